@@ -34,6 +34,8 @@ public abstract class FECCodec {
 	// Striping is very costly I/O wise.
 	// So set a maximum buffer size and calculate the stripe size accordingly.
 	static final int MAX_MEMORY_BUFFER = 8*1024*1024;
+	/** Use LongWordFECCodec rather than the onion code for segments it can handle. */
+	private static volatile boolean useLongWordCodec;
 
         private static volatile boolean logMINOR;
 	static {
@@ -64,7 +66,7 @@ public abstract class FECCodec {
 		if(splitfileType == Metadata.SPLITFILE_NONREDUNDANT)
 			return null;
 		if(splitfileType == Metadata.SPLITFILE_ONION_STANDARD)
-			return StandardOnionFECCodec.getInstance(dataBlocks, checkBlocks);
+			return getStandardOnionCodec(dataBlocks, checkBlocks);
 		else
 			return null;
 	}
@@ -78,12 +80,28 @@ public abstract class FECCodec {
 			return null;
 		if(splitfileType == Metadata.SPLITFILE_ONION_STANDARD) {
 			int checkBlocks = standardOnionCheckBlocks(dataBlocks, compatibilityMode);
-			return StandardOnionFECCodec.getInstance(dataBlocks, checkBlocks);
+			return getStandardOnionCodec(dataBlocks, checkBlocks);
 		}
 		else
 			return null;
 	}
 	
+	private static FECCodec getStandardOnionCodec(int dataBlocks, int checkBlocks) {
+		if(useLongWordCodec && dataBlocks + checkBlocks <= LongWordFECCodec.MAX_BLOCKS)
+			return LongWordFECCodec.getInstance(dataBlocks, checkBlocks);
+		return StandardOnionFECCodec.getInstance(dataBlocks, checkBlocks);
+	}
+
+	/** Whether to use LongWordFECCodec for new encodes and decodes. It produces the same
+	 * output as the onion code, so this can be changed at any time. */
+	public static void setUseLongWordCodec(boolean val) {
+		useLongWordCodec = val;
+	}
+
+	public static boolean getUseLongWordCodec() {
+		return useLongWordCodec;
+	}
+
 	private static int standardOnionCheckBlocks(int dataBlocks, CompatibilityMode compatibilityMode) {
 		/**
 		 * ALCHEMY: What we do know is that redundancy by FEC is much more efficient than 
@@ -131,7 +149,6 @@ public abstract class FECCodec {
 			throw new IllegalArgumentException();
 		if(dataBlockStatus.length != k)
 			throw new IllegalArgumentException();
-		Buffer[] packets = new Buffer[k];
 		Bucket[] buckets = new Bucket[n];
 		DataInputStream[] readers = new DataInputStream[n];
 		OutputStream[] writers = new OutputStream[k];
@@ -156,10 +173,6 @@ public abstract class FECCodec {
 
 			int idx = 0;
 
-			for(int i = 0; i < k; i++)
-				packets[i] = new Buffer(realBuffer, i * stripeSize,
-					stripeSize);
-
 			// Shortcut.
 			// Due to the not-fetching-last-block code, we need to check here,
 			// rather than relying on numberToDecode (since the last data block won't be part of numberToDecode).
@@ -246,7 +259,7 @@ public abstract class FECCodec {
 					int[] disposableIndexes = new int[packetIndexes.length];
 					System.arraycopy(packetIndexes, 0, disposableIndexes, 0,
 						packetIndexes.length);
-					fec.decode(packets, disposableIndexes);
+					decodeStripe(realBuffer, stripeSize, disposableIndexes);
 					// packets now contains an array of decoded blocks, in order
 					// Write the data out
 					for(int i = 0; i < k; i++) {
@@ -305,8 +318,6 @@ public abstract class FECCodec {
 		if((dataBlockStatus.length + checkBlockStatus.length != n) ||
 			(dataBlockStatus.length != k))
 			throw new IllegalArgumentException("Data blocks: " + dataBlockStatus.length + ", Check blocks: " + checkBlockStatus.length + ", n: " + n + ", k: " + k);
-		Buffer[] dataPackets = new Buffer[k];
-		Buffer[] checkPackets;
 		Bucket[] buckets = new Bucket[n];
 		DataInputStream[] readers = new DataInputStream[k];
 		OutputStream[] writers = null;
@@ -327,7 +338,6 @@ public abstract class FECCodec {
 			}
 			
 			toEncode = new int[numberToEncode];
-			checkPackets = new Buffer[numberToEncode];
 			writers = new OutputStream[numberToEncode];
 			
 			int stripeSize = MAX_MEMORY_BUFFER / (k + numberToEncode);
@@ -344,17 +354,12 @@ public abstract class FECCodec {
 			for(int i = 0; i < checkBlockStatus.length; i++) {
 				if(checkBlockStatus[i] == null) {
 					toEncode[x] = i + k;
-					checkPackets[x] = new Buffer(realBuffer, (x + k) * stripeSize, stripeSize);
 					if(stripeSize != blockLength)
 						writers[x] = buckets[i + k].getOutputStream();
 					x++;
 				}
 			}
 			
-			for(int i = 0; i < k; i++)
-				dataPackets[i] = new Buffer(realBuffer, i * stripeSize,
-					stripeSize);
-
 			for(int i = 0; i < dataBlockStatus.length; i++) {
 				buckets[i] = dataBlockStatus[i];
 				if(buckets[i] == null)
@@ -414,7 +419,7 @@ public abstract class FECCodec {
 					long memUsedBeforeStripe = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 					if(logMINOR)
 						Logger.minor(this, "Memory in use before stripe: " + memUsedBeforeStripe);
-					fec.encode(dataPackets, checkPackets, toEncode);
+					encodeStripe(realBuffer, stripeSize, toEncode);
 					//					Runtime.getRuntime().gc();
 //					Runtime.getRuntime().runFinalization();
 //					Runtime.getRuntime().gc();
@@ -457,6 +462,35 @@ public abstract class FECCodec {
 		}
 	}
 
+	/**
+	 * Decode one stripe in place.
+	 * @param realBuffer On entry, the stripe at i * stripeSize is a stripe of block
+	 * packetIndexes[i]. On exit, the stripe at i * stripeSize is a stripe of data block i.
+	 * @param packetIndexes May be modified.
+	 */
+	protected void decodeStripe(byte[] realBuffer, int stripeSize, int[] packetIndexes) {
+		Buffer[] packets = new Buffer[k];
+		for(int i = 0; i < k; i++)
+			packets[i] = new Buffer(realBuffer, i * stripeSize, stripeSize);
+		fec.decode(packets, packetIndexes);
+	}
+
+	/**
+	 * Encode one stripe.
+	 * @param realBuffer The stripes of the k data blocks, followed by space for the stripes of
+	 * the check blocks to encode, each stripeSize bytes.
+	 * @param toEncode The block numbers (k or more) of the check blocks to encode.
+	 */
+	protected void encodeStripe(byte[] realBuffer, int stripeSize, int[] toEncode) {
+		Buffer[] dataPackets = new Buffer[k];
+		for(int i = 0; i < k; i++)
+			dataPackets[i] = new Buffer(realBuffer, i * stripeSize, stripeSize);
+		Buffer[] checkPackets = new Buffer[toEncode.length];
+		for(int i = 0; i < toEncode.length; i++)
+			checkPackets[i] = new Buffer(realBuffer, (i + k) * stripeSize, stripeSize);
+		fec.encode(dataPackets, checkPackets, toEncode);
+	}
+
 	/**
 	 * The method used to submit {@link FECJob}s to the pool
 	 * 
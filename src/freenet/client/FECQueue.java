@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.ListIterator;
 
@@ -50,6 +51,12 @@ public class FECQueue implements OOMHook {
 	private transient int fecPoolCounter;
 	private transient PrioRunnable runner;
 	private transient DBJob cacheFillerJob;
+	/** Persistent jobs which have finished, waiting for completionFlusher. */
+	private transient ArrayList<CompletedFECJob> completedJobs;
+	/** Runs the callbacks for completedJobs on the database thread. */
+	private transient DBJob completionFlusher;
+	/** The priority completionFlusher is currently queued at, or -1 if it isn't queued. */
+	private transient int completionFlushPriority;
 	private long nodeDBHandle;
 	/** If we have delayed startup for the persistent client layer, we will have already created
 	 * a FECQueue. Therefore when we load the real one, we will point it to the old FECQueue. */
@@ -119,9 +126,12 @@ public class FECQueue implements OOMHook {
 			transientQueue[i] = new LinkedList<FECJob>();
 			persistentQueueCache[i] = new LinkedList<FECJob>();
 		}
+		completedJobs = new ArrayList<CompletedFECJob>();
+		completionFlushPriority = -1;
 		maxRunningFECThreads = getMaxRunningFECThreads();
 		OOMHandler.addOOMHook(this);
 		initRunner();
+		initCompletionFlusher();
 		initCacheFillerJob();
 		queueCacheFiller();
 	}
@@ -247,49 +257,9 @@ public class FECQueue implements OOMHook {
 					} catch (final Throwable t) {
 						Logger.error(this, "Caught: "+t, t);
 						if(job.persistent) {
-							if(logMINOR)
-								Logger.minor(this, "Scheduling callback for "+job+" after "+t, t);
 							int prio = job.isADecodingJob ? NativeThread.NORM_PRIORITY+1 : NativeThread.NORM_PRIORITY;
 							// Run at a fairly high priority so we get the blocks out of memory and onto disk.
-							databaseJobRunner.queue(new DBJob() {
-
-								@Override
-								public boolean run(ObjectContainer container, ClientContext context) {
-									try {
-										job.storeBlockStatuses(container, true);
-									} catch (Throwable t) {
-										Logger.error(this, "Caught storing block statuses for "+job+" : "+t, t);
-										// Fail with the original error.
-									}
-									// Don't activate the job itself.
-									// It MUST already be activated, because it is carrying the status blocks.
-									// The status blocks have been set on the FEC thread but *not stored* because
-									// they can't be stored on the FEC thread.
-									Logger.minor(this, "Activating "+job.callback+" is active="+container.ext().isActive(job.callback));
-									container.activate(job.callback, 1);
-									if(logMINOR)
-										Logger.minor(this, "Running callback for "+job);
-									try {
-										job.callback.onFailed(t, container, context);
-									} catch (Throwable t1) {
-										Logger.error(this, "Caught "+t1+" in FECQueue callback failure", t1);
-									} finally {
-										// Always delete the job, even if the callback throws.
-										container.delete(job);
-									}
-									if(container.ext().isStored(job.callback))
-										container.deactivate(job.callback, 1);
-									return true;
-								}
-								
-								@Override
-								public String toString() {
-									return "FECQueueJobFailedCallback@"+Integer.toHexString(super.hashCode());
-								}
-								
-							}, prio, false);
-							if(logMINOR)
-								Logger.minor(this, "Scheduled callback for "+job+"...");
+							queueCompletion(job, t, prio);
 						} else {
 							job.callback.onFailed(t, null, clientContext);
 						}
@@ -304,74 +274,12 @@ public class FECQueue implements OOMHook {
 							else
 								job.callback.onEncodedSegment(null, clientContext, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
 						} else {
-							if(logMINOR)
-								Logger.minor(this, "Scheduling callback for "+job+"...");
 							int prio = job.isADecodingJob ? NativeThread.NORM_PRIORITY+1 : NativeThread.NORM_PRIORITY;
 							if(job.priority > RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS)
 								prio--;
 							if(job.priority >= RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS)
 								prio--;
-							databaseJobRunner.queue(new DBJob() {
-
-								@Override
-								public boolean run(ObjectContainer container, ClientContext context) {
-									try {
-										job.storeBlockStatuses(container, false);
-									} catch (Throwable t) {
-										Logger.error(this, "Caught storing block statuses on "+this+" : "+t, t);
-										// Don't activate the job itself.
-										// It MUST already be activated, because it is carrying the status blocks.
-										// The status blocks have been set on the FEC thread but *not stored* because
-										// they can't be stored on the FEC thread.
-										Logger.minor(this, "Activating "+job.callback+" is active="+container.ext().isActive(job.callback));
-										container.activate(job.callback, 1);
-										if(logMINOR)
-											Logger.minor(this, "Running callback for "+job);
-										try {
-											job.callback.onFailed(t, container, context);
-										} catch (Throwable t1) {
-											Logger.error(this, "Caught "+t1+" in FECQueue callback failure", t1);
-										} finally {
-											// Always delete the job, even if the callback throws.
-											container.delete(job);
-										}
-										if(container.ext().isStored(job.callback))
-											container.deactivate(job.callback, 1);
-										return true;
-									}
-									// Don't activate the job itself.
-									// It MUST already be activated, because it is carrying the status blocks.
-									// The status blocks have been set on the FEC thread but *not stored* because
-									// they can't be stored on the FEC thread.
-									Logger.minor(this, "Activating "+job.callback+" is active="+container.ext().isActive(job.callback));
-									container.activate(job.callback, 1);
-									if(logMINOR)
-										Logger.minor(this, "Running callback for "+job);
-									try {
-									if(job.isADecodingJob)
-										job.callback.onDecodedSegment(container, clientContext, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
-									else
-										job.callback.onEncodedSegment(container, clientContext, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
-									} catch (Throwable t) {
-										Logger.error(this, "Caught "+t+" in FECQueue callback", t);
-									} finally {
-										// Always delete the job, even if the callback throws.
-										container.delete(job);
-									}
-									if(container.ext().isStored(job.callback))
-										container.deactivate(job.callback, 1);
-									return true;
-								}
-								
-								@Override
-								public String toString() {
-									return "FECQueueJobCompletedCallback@"+Integer.toHexString(super.hashCode());
-								}
-								
-							}, prio, false);
-							if(logMINOR)
-								Logger.minor(this, "Scheduled callback for "+job+"...");
-							
+							queueCompletion(job, null, prio);
 						}
 					} catch (Throwable e) {
 						Logger.error(this, "The callback failed!" + e, e);
@@ -395,6 +303,148 @@ public class FECQueue implements OOMHook {
 	};
 	}
 
+	/** A persistent job which has finished on a FEC thread, waiting for its callback to be run
+	 * on the database thread. */
+	private static class CompletedFECJob {
+		final FECJob job;
+		/** Null if the job succeeded. */
+		final Throwable failure;
+		CompletedFECJob(FECJob job, Throwable failure) {
+			this.job = job;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * Queue the callback for a persistent job. Jobs which finish while the flusher is waiting to
+	 * run are handled by the same database job, so with many FEC threads we don't need a
+	 * database job (and a commit) for each one.
+	 * @param prio The database job priority needed for this job. If the flusher is already
+	 * queued at this priority or higher we don't need to queue it again.
+	 */
+	private void queueCompletion(FECJob job, Throwable failure, int prio) {
+		synchronized(this) {
+			completedJobs.add(new CompletedFECJob(job, failure));
+			if(completionFlushPriority >= prio) {
+				if(logMINOR)
+					Logger.minor(this, "Callback for "+job+" will run with "+completedJobs.size()+" others");
+				return;
+			}
+			completionFlushPriority = prio;
+		}
+		if(logMINOR)
+			Logger.minor(this, "Scheduling callback for "+job+"...");
+		try {
+			databaseJobRunner.queue(completionFlusher, prio, false);
+		} catch (DatabaseDisabledException e) {
+			// The callbacks can't run, so drop them, and allow the flusher to be queued again.
+			int dropped;
+			synchronized(this) {
+				completionFlushPriority = -1;
+				dropped = completedJobs.size();
+				completedJobs.clear();
+			}
+			Logger.error(this, "Database disabled, unable to run callbacks for "+dropped+" jobs including "+job);
+		}
+	}
+
+	private void initCompletionFlusher() {
+		completionFlusher = new DBJob() {
+
+			@Override
+			public boolean run(ObjectContainer container, ClientContext context) {
+				CompletedFECJob[] jobs;
+				synchronized(FECQueue.this) {
+					completionFlushPriority = -1;
+					if(completedJobs.isEmpty()) return false;
+					jobs = completedJobs.toArray(new CompletedFECJob[completedJobs.size()]);
+					completedJobs.clear();
+				}
+				if(logMINOR)
+					Logger.minor(this, "Running callbacks for "+jobs.length+" FEC jobs");
+				for(CompletedFECJob completed : jobs) {
+					if(completed.failure != null)
+						onPersistentFailed(completed.job, completed.failure, container, context);
+					else
+						onPersistentCompleted(completed.job, container, context);
+				}
+				return true;
+			}
+
+			@Override
+			public String toString() {
+				return "FECQueueJobCompletedCallbacks@"+Integer.toHexString(super.hashCode());
+			}
+
+		};
+	}
+
+	private void onPersistentCompleted(FECJob job, ObjectContainer container, ClientContext context) {
+		try {
+			job.storeBlockStatuses(container, false);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught storing block statuses on "+this+" : "+t, t);
+			onPersistentFailed(job, t, container, context, false);
+			return;
+		}
+		// Don't activate the job itself.
+		// It MUST already be activated, because it is carrying the status blocks.
+		// The status blocks have been set on the FEC thread but *not stored* because
+		// they can't be stored on the FEC thread.
+		if(logMINOR)
+			Logger.minor(this, "Activating "+job.callback+" is active="+container.ext().isActive(job.callback));
+		container.activate(job.callback, 1);
+		if(logMINOR)
+			Logger.minor(this, "Running callback for "+job);
+		try {
+			if(job.isADecodingJob)
+				job.callback.onDecodedSegment(container, clientContext, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
+			else
+				job.callback.onEncodedSegment(container, clientContext, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" in FECQueue callback", t);
+		} finally {
+			// Always delete the job, even if the callback throws.
+			container.delete(job);
+		}
+		if(container.ext().isStored(job.callback))
+			container.deactivate(job.callback, 1);
+	}
+
+	private void onPersistentFailed(FECJob job, Throwable t, ObjectContainer container, ClientContext context) {
+		onPersistentFailed(job, t, container, context, true);
+	}
+
+	private void onPersistentFailed(FECJob job, Throwable t, ObjectContainer container, ClientContext context, boolean storeBlockStatuses) {
+		if(storeBlockStatuses) {
+			try {
+				job.storeBlockStatuses(container, true);
+			} catch (Throwable t1) {
+				Logger.error(this, "Caught storing block statuses for "+job+" : "+t1, t1);
+				// Fail with the original error.
+			}
+		}
+		// Don't activate the job itself.
+		// It MUST already be activated, because it is carrying the status blocks.
+		// The status blocks have been set on the FEC thread but *not stored* because
+		// they can't be stored on the FEC thread.
+		if(logMINOR)
+			Logger.minor(this, "Activating "+job.callback+" is active="+container.ext().isActive(job.callback));
+		container.activate(job.callback, 1);
+		if(logMINOR)
+			Logger.minor(this, "Running failure callback for "+job);
+		try {
+			job.callback.onFailed(t, container, context);
+		} catch (Throwable t1) {
+			Logger.error(this, "Caught "+t1+" in FECQueue callback failure", t1);
+		} finally {
+			// Always delete the job, even if the callback throws.
+			container.delete(job);
+		}
+		if(container.ext().isStored(job.callback))
+			container.deactivate(job.callback, 1);
+	}
+
 	private void initCacheFillerJob() {
 		cacheFillerJob = new DBJob() {
 			
@@ -496,7 +546,7 @@ public class FECQueue implements OOMHook {
 					return false;
 				} else {
 					synchronized(FECQueue.this) {
-						int maxRunningThreads = maxRunningFECThreads;
+						int maxRunningThreads = getMaxRunningFECThreads();
 						if(runningFECThreads < maxRunningThreads) {
 							int queueSize = 0;
 							for(int i=0;i<priorities;i++) {
@@ -520,18 +570,42 @@ public class FECQueue implements OOMHook {
 	}
 	
 	private int maxRunningFECThreads = -1;
+	/** Whether maxRunningFECThreads was computed for one thread per core. */
+	private transient boolean maxRunningFECThreadsPerCore;
+
+	/** If true, run up to one FEC thread per core, limited only by available memory. */
+	private static volatile boolean threadPerCore;
+
+	public static void setThreadPerCore(boolean val) {
+		threadPerCore = val;
+	}
+
+	public static boolean getThreadPerCore() {
+		return threadPerCore;
+	}
 
 	private synchronized int getMaxRunningFECThreads() {
-		if (maxRunningFECThreads != -1)
+		boolean perCore = threadPerCore;
+		if (maxRunningFECThreads != -1 && maxRunningFECThreadsPerCore == perCore)
 			return maxRunningFECThreads;
+		maxRunningFECThreadsPerCore = perCore;
 		String osName = System.getProperty("os.name");
-		if(osName.indexOf("Windows") == -1 && ((osName.toLowerCase().indexOf("mac os x") > 0) || (!NativeThread.usingNativeCode()))) {
+		Runtime r = Runtime.getRuntime();
+		if(perCore) {
+			// The user has asked for it, so ignore niceness and file descriptor worries.
+			int max = r.availableProcessors();
+			long maxMemory = r.maxMemory();
+			if(maxMemory < 256*1024*1024)
+				max = 1;
+			else
+				max = Math.min(max, (int) (Math.min(Integer.MAX_VALUE, maxMemory / (128*1024*1024))));
+			maxRunningFECThreads = max;
+		} else if(osName.indexOf("Windows") == -1 && ((osName.toLowerCase().indexOf("mac os x") > 0) || (!NativeThread.usingNativeCode()))) {
 			// OS/X niceness is really weak, so we don't want any more background CPU load than necessary
 			// Also, on non-Windows, we need the native threads library to be working.
 			maxRunningFECThreads = 1;
 		} else {
 			// Most other OSs will have reasonable niceness, so go by RAM.
-			Runtime r = Runtime.getRuntime();
 			int max = r.availableProcessors(); // FIXME this may change in a VM, poll it
 			long maxMemory = r.maxMemory();
 			if(maxMemory < 256*1024*1024) {
@@ -0,0 +1,312 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.nio.ByteBuffer;
+
+import freenet.support.LRUHashtable;
+
+/**
+ * Pure Java implementation of the onion code, for up to 256 blocks. Produces exactly the same
+ * check blocks as PureCode: the code is the systematic Vandermonde code of Rizzo's fec library
+ * over GF(2^8) with polynomial x^8+x^4+x^3+x^2+1, and both encoding and decoding matrices are
+ * uniquely determined by that.
+ *
+ * Unlike PureCode it works directly on the stripe buffer, without copying through Buffer
+ * wrappers, and multiplies a long word (8 bytes) at a time: each byte is still looked up in the
+ * multiplication table for the coefficient, but loads, stores and XORs are done on longs.
+ */
+public class LongWordFECCodec extends FECCodec {
+
+	/** The maximum number of blocks, data plus check, in a segment. */
+	public static final int MAX_BLOCKS = 256;
+
+	private static final int MAX_CACHED_CODECS = 8;
+
+	private static final LRUHashtable<Integer, LongWordFECCodec> recentlyUsedCodecs = new LRUHashtable<Integer, LongWordFECCodec>();
+
+	/** GF(2^8) x^8+x^4+x^3+x^2+1, as in Rizzo's fec.c */
+	private static final int POLYNOMIAL = 0x11d;
+	/** Powers of the generator, twice over so we can skip the modulo */
+	private static final int[] EXP = new int[510];
+	private static final int[] LOG = new int[256];
+	/** MUL[a][b] = a * b */
+	private static final byte[][] MUL = new byte[256][256];
+	/** INV[a] = 1 / a */
+	private static final int[] INV = new int[256];
+
+	static {
+		int x = 1;
+		for(int i = 0; i < 255; i++) {
+			EXP[i] = x;
+			EXP[i + 255] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if(x >= 256) x ^= POLYNOMIAL;
+		}
+		for(int a = 1; a < 256; a++) {
+			for(int b = 1; b < 256; b++)
+				MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+			INV[a] = EXP[255 - LOG[a]];
+		}
+	}
+
+	/** The rows of the encoding matrix for the check blocks: check block k+i is
+	 * sum over j of checkMatrix[i][j] * data block j. */
+	private transient int[][] checkMatrix;
+
+	public synchronized static FECCodec getInstance(int dataBlocks, int checkBlocks) {
+		if(checkBlocks == 0 || dataBlocks == 0)
+			throw new IllegalArgumentException("data blocks "+dataBlocks+" check blocks "+checkBlocks);
+		Integer key = (dataBlocks << 16) + checkBlocks + dataBlocks;
+		LongWordFECCodec codec = recentlyUsedCodecs.get(key);
+		if(codec != null) {
+			recentlyUsedCodecs.push(key, codec);
+			return codec;
+		}
+		codec = new LongWordFECCodec(dataBlocks, checkBlocks + dataBlocks);
+		recentlyUsedCodecs.push(key, codec);
+		while(recentlyUsedCodecs.size() > MAX_CACHED_CODECS) {
+			recentlyUsedCodecs.popKey();
+		}
+		return codec;
+	}
+
+	public LongWordFECCodec(int k, int n) {
+		super(k, n);
+		if(k >= n) throw new IllegalArgumentException("n must be >k: n = "+n+" k = "+k);
+		if(n > MAX_BLOCKS) throw new IllegalArgumentException("Too many blocks: n = "+n+" k = "+k);
+		loadFEC();
+	}
+
+	@Override
+	protected void loadFEC() {
+		synchronized(this) {
+			if(checkMatrix != null) return;
+		}
+		// Vandermonde matrix: row 0 is the point 0, row r > 0 is the point EXP[r-1].
+		int[][] vdm = new int[n][k];
+		vdm[0][0] = 1;
+		for(int r = 1; r < n; r++)
+			for(int c = 0; c < k; c++)
+				vdm[r][c] = EXP[((r - 1) * c) % 255];
+		int[][] top = new int[k][];
+		for(int r = 0; r < k; r++)
+			top[r] = vdm[r];
+		int[][] inverse = invert(top);
+		int[][] matrix = new int[n - k][];
+		for(int r = k; r < n; r++)
+			matrix[r - k] = multiply(vdm[r], inverse);
+		synchronized(this) {
+			checkMatrix = matrix;
+		}
+	}
+
+	private synchronized int[][] getCheckMatrix() {
+		return checkMatrix;
+	}
+
+	/** @return row * matrix */
+	private static int[] multiply(int[] row, int[][] matrix) {
+		int[] result = new int[matrix[0].length];
+		for(int i = 0; i < row.length; i++) {
+			int a = row[i];
+			if(a == 0) continue;
+			byte[] mul = MUL[a];
+			int[] m = matrix[i];
+			for(int j = 0; j < result.length; j++)
+				result[j] ^= mul[m[j]] & 0xff;
+		}
+		return result;
+	}
+
+	/** Invert a square matrix by Gauss-Jordan elimination. The rows passed in are not modified.
+	 * @throws IllegalArgumentException If the matrix is singular. */
+	private static int[][] invert(int[][] rows) {
+		int size = rows.length;
+		int[][] a = new int[size][];
+		int[][] inv = new int[size][size];
+		for(int i = 0; i < size; i++) {
+			a[i] = rows[i].clone();
+			inv[i][i] = 1;
+		}
+		for(int col = 0; col < size; col++) {
+			int pivot = col;
+			while(pivot < size && a[pivot][col] == 0) pivot++;
+			if(pivot == size) throw new IllegalArgumentException("Singular matrix");
+			if(pivot != col) {
+				int[] t = a[pivot]; a[pivot] = a[col]; a[col] = t;
+				t = inv[pivot]; inv[pivot] = inv[col]; inv[col] = t;
+			}
+			int scale = INV[a[col][col]];
+			if(scale != 1) {
+				byte[] mul = MUL[scale];
+				for(int j = 0; j < size; j++) {
+					a[col][j] = mul[a[col][j]] & 0xff;
+					inv[col][j] = mul[inv[col][j]] & 0xff;
+				}
+			}
+			for(int r = 0; r < size; r++) {
+				if(r == col) continue;
+				int f = a[r][col];
+				if(f == 0) continue;
+				byte[] mul = MUL[f];
+				for(int j = 0; j < size; j++) {
+					a[r][j] ^= mul[a[col][j]] & 0xff;
+					inv[r][j] ^= mul[inv[col][j]] & 0xff;
+				}
+			}
+		}
+		return inv;
+	}
+
+	@Override
+	protected void encodeStripe(byte[] realBuffer, int stripeSize, int[] toEncode) {
+		int[][] matrix = getCheckMatrix();
+		ByteBuffer buf = ByteBuffer.wrap(realBuffer);
+		for(int i = 0; i < toEncode.length; i++) {
+			int[] row = matrix[toEncode[i] - k];
+			int dst = (i + k) * stripeSize;
+			for(int j = 0; j < k; j++)
+				multiply(buf, dst, j * stripeSize, stripeSize, row[j], j == 0);
+		}
+	}
+
+	@Override
+	protected void decodeStripe(byte[] realBuffer, int stripeSize, int[] packetIndexes) {
+		int[][] checkMatrix = getCheckMatrix();
+		// The rows of the encoding matrix for the blocks we have.
+		int[][] rows = new int[k][];
+		boolean needDecode = false;
+		for(int i = 0; i < k; i++) {
+			int index = packetIndexes[i];
+			if(index < k) {
+				rows[i] = new int[k];
+				rows[i][index] = 1;
+			} else {
+				rows[i] = checkMatrix[index - k];
+				needDecode = true;
+			}
+		}
+		ByteBuffer buf = ByteBuffer.wrap(realBuffer);
+		// Recover the missing data blocks into temporary buffers, since we need all of the
+		// blocks we have until we are done.
+		ByteBuffer[] recovered = null;
+		if(needDecode) {
+			int[][] decodeMatrix = invert(rows);
+			boolean[] have = new boolean[k];
+			for(int i = 0; i < k; i++)
+				if(packetIndexes[i] < k) have[packetIndexes[i]] = true;
+			recovered = new ByteBuffer[k];
+			for(int d = 0; d < k; d++) {
+				if(have[d]) continue;
+				ByteBuffer out = ByteBuffer.allocate(stripeSize);
+				ByteBuffer dup = buf.duplicate();
+				int[] row = decodeMatrix[d];
+				boolean first = true;
+				for(int j = 0; j < k; j++) {
+					if(row[j] == 0) continue;
+					multiply(out, dup, 0, j * stripeSize, stripeSize, row[j], first);
+					first = false;
+				}
+				recovered[d] = out;
+			}
+		}
+		// Put the data blocks we have in the right places.
+		byte[] temp = null;
+		for(int i = 0; i < k; i++) {
+			while(packetIndexes[i] < k && packetIndexes[i] != i) {
+				int target = packetIndexes[i];
+				if(temp == null) temp = new byte[stripeSize];
+				System.arraycopy(realBuffer, target * stripeSize, temp, 0, stripeSize);
+				System.arraycopy(realBuffer, i * stripeSize, realBuffer, target * stripeSize, stripeSize);
+				System.arraycopy(temp, 0, realBuffer, i * stripeSize, stripeSize);
+				packetIndexes[i] = packetIndexes[target];
+				packetIndexes[target] = target;
+			}
+		}
+		if(recovered != null) {
+			for(int d = 0; d < k; d++) {
+				if(recovered[d] == null) continue;
+				System.arraycopy(recovered[d].array(), 0, realBuffer, d * stripeSize, stripeSize);
+				packetIndexes[d] = d;
+			}
+		}
+	}
+
+	/** dst[dstOffset...] (^)= c * src[srcOffset...], within one buffer */
+	private static void multiply(ByteBuffer buf, int dstOffset, int srcOffset, int length, int c, boolean set) {
+		multiply(buf, buf, dstOffset, srcOffset, length, c, set);
+	}
+
+	/**
+	 * Multiply a region by a constant, and either store it or add (XOR) it to the destination.
+	 * @param set If true, overwrite the destination, otherwise add to it.
+	 */
+	static void multiply(ByteBuffer dst, ByteBuffer src, int dstOffset, int srcOffset, int length, int c, boolean set) {
+		int end = length & ~7;
+		int i = 0;
+		if(c == 0) {
+			if(!set) return;
+			for(; i < end; i += 8)
+				dst.putLong(dstOffset + i, 0);
+			for(; i < length; i++)
+				dst.put(dstOffset + i, (byte) 0);
+		} else if(c == 1) {
+			if(set) {
+				for(; i < end; i += 8)
+					dst.putLong(dstOffset + i, src.getLong(srcOffset + i));
+				for(; i < length; i++)
+					dst.put(dstOffset + i, src.get(srcOffset + i));
+			} else {
+				for(; i < end; i += 8)
+					dst.putLong(dstOffset + i, dst.getLong(dstOffset + i) ^ src.getLong(srcOffset + i));
+				for(; i < length; i++)
+					dst.put(dstOffset + i, (byte) (dst.get(dstOffset + i) ^ src.get(srcOffset + i)));
+			}
+		} else {
+			byte[] mul = MUL[c];
+			for(; i < end; i += 8) {
+				long s = src.getLong(srcOffset + i);
+				long p = 0;
+				if(s != 0) {
+					p = (mul[(int) (s >>> 56)] & 0xffL) << 56 |
+						(mul[(int) (s >>> 48) & 0xff] & 0xffL) << 48 |
+						(mul[(int) (s >>> 40) & 0xff] & 0xffL) << 40 |
+						(mul[(int) (s >>> 32) & 0xff] & 0xffL) << 32 |
+						(mul[(int) (s >>> 24) & 0xff] & 0xffL) << 24 |
+						(mul[(int) (s >>> 16) & 0xff] & 0xffL) << 16 |
+						(mul[(int) (s >>> 8) & 0xff] & 0xffL) << 8 |
+						(mul[(int) s & 0xff] & 0xffL);
+				}
+				if(set)
+					dst.putLong(dstOffset + i, p);
+				else if(p != 0)
+					dst.putLong(dstOffset + i, dst.getLong(dstOffset + i) ^ p);
+			}
+			for(; i < length; i++) {
+				byte b = mul[src.get(srcOffset + i) & 0xff];
+				if(set)
+					dst.put(dstOffset + i, b);
+				else
+					dst.put(dstOffset + i, (byte) (dst.get(dstOffset + i) ^ b));
+			}
+		}
+	}
+
+	@Override
+	public int countCheckBlocks() {
+		return n-k;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":n="+n+",k="+k;
+	}
+
+	@Override
+	public short getAlgorithm() {
+		return Metadata.SPLITFILE_ONION_STANDARD;
+	}
+}
@@ -4,12 +4,16 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import com.onionnetworks.util.FileUtil;
 
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
 import freenet.keys.KeyVerifyException;
+import freenet.keys.SSKVerifier;
 
 public abstract class BinaryBlob {
 
@@ -59,6 +63,7 @@ public abstract class BinaryBlob {
 		if(version != BinaryBlob.BINARY_BLOB_OVERALL_VERSION)
 			throw new BinaryBlobFormatException("Unknown overall version");
 		
+		List<Callable<KeyBlock>> jobs = new ArrayList<Callable<KeyBlock>>();
 		int i=0;
 		while(true) {
 			long blobLength;
@@ -81,7 +86,7 @@ public abstract class BinaryBlob {
 					throw new BinaryBlobFormatException("Unknown block blob version");
 				if(blobLength < 9)
 					throw new BinaryBlobFormatException("Block blob too short");
-				short keyType = dis.readShort();
+				final short keyType = dis.readShort();
 				int keyLen = dis.readUnsignedByte();
 				int headersLen = dis.readUnsignedShort();
 				int dataLen = dis.readUnsignedShort();
@@ -89,22 +94,23 @@ public abstract class BinaryBlob {
 				int total = 9 + keyLen + headersLen + dataLen + pubkeyLen;
 				if(blobLength != total)
 					throw new BinaryBlobFormatException("Binary blob not same length as data: blobLength="+blobLength+" total="+total);
-				byte[] keyBytes = new byte[keyLen];
-				byte[] headersBytes = new byte[headersLen];
-				byte[] dataBytes = new byte[dataLen];
-				byte[] pubkeyBytes = new byte[pubkeyLen];
+				final byte[] keyBytes = new byte[keyLen];
+				final byte[] headersBytes = new byte[headersLen];
+				final byte[] dataBytes = new byte[dataLen];
+				final byte[] pubkeyBytes = new byte[pubkeyLen];
 				dis.readFully(keyBytes);
 				dis.readFully(headersBytes);
 				dis.readFully(dataBytes);
 				dis.readFully(pubkeyBytes);
-				KeyBlock block;
-				try {
-					block = Key.createBlock(keyType, keyBytes, headersBytes, dataBytes, pubkeyBytes);
-				} catch (KeyVerifyException e) {
-					throw new BinaryBlobFormatException("Invalid key: "+e.getMessage(), e);
-				}
-				
-				blocks.add(block);
+				// Verify later, all at once.
+				jobs.add(new Callable<KeyBlock>() {
+
+					@Override
+					public KeyBlock call() throws KeyVerifyException {
+						return Key.createBlock(keyType, keyBytes, headersBytes, dataBytes, pubkeyBytes);
+					}
+
+				});
 				
 			} else {
 				if(tolerant) {
@@ -115,6 +121,16 @@ public abstract class BinaryBlob {
 			}
 			i++;
 		}
+		
+		// Checking the signatures on SSKs is slow, so do it in parallel.
+		List<KeyBlock> verified;
+		try {
+			verified = SSKVerifier.runInParallel(jobs);
+		} catch (KeyVerifyException e) {
+			throw new BinaryBlobFormatException("Invalid key: "+e.getMessage(), e);
+		}
+		for(KeyBlock block : verified)
+			blocks.add(block);
 
 	}
 }
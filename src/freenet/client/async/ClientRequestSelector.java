@@ -2,7 +2,6 @@ package freenet.client.async;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
@@ -40,9 +39,7 @@ class ClientRequestSelector implements KeysFetchingLocally {
 		this.sched = sched;
 		this.isInsertScheduler = isInsertScheduler;
 		if(!isInsertScheduler) {
-			keysFetching = new HashSet<Key>();
-			persistentRequestsWaitingForKeysFetching = new HashMap<Key, Long[]>();
-			transientRequestsWaitingForKeysFetching = new HashMap<Key, WeakReference<BaseSendableGet>[]>();
+			keysFetching = new KeysFetchingSet<BaseSendableGet>();
 			runningTransientInserts = null;
 			this.recentSuccesses = new ArrayList<RandomGrabArray>();
 		} else {
@@ -70,12 +67,11 @@ class ClientRequestSelector implements KeysFetchingLocally {
 	 * but that thread hasn't started yet. FIXME: Both issues can be avoided: first we'd get 
 	 * rid of the SenderThread and start the requests directly and asynchronously, secondly
 	 * we'd move this to node but only track keys we are fetching at max HTL.
-	 * LOCKING: Always lock this LAST.
+	 * Also keeps the requests waiting for each key to finish fetching.
+	 * LOCKING: hasKey() doesn't lock unless it has to add a request to a wait list. Always
+	 * lock shards LAST.
 	 */
-	private transient HashSet<Key> keysFetching;
-	
-	private transient HashMap<Key, Long[]> persistentRequestsWaitingForKeysFetching;
-	private transient HashMap<Key, WeakReference<BaseSendableGet>[]> transientRequestsWaitingForKeysFetching;
+	private transient KeysFetchingSet<BaseSendableGet> keysFetching;
 	
 	private static class RunningTransientInsert {
 		
@@ -594,16 +590,14 @@ outer:	for(;choosenPriorityClass <= maxPrio;choosenPriorityClass++) {
 	 * @return True unless the key was already present.
 	 */
 	public boolean addToFetching(Key key) {
-		synchronized(keysFetching) {
-			boolean retval = keysFetching.add(key);
-			if(!retval) {
-				Logger.normal(this, "Already in keysFetching: "+key);
-			} else {
-				if(logMINOR)
-					Logger.minor(this, "Added to keysFetching: "+key);
-			}
-			return retval;
+		boolean retval = keysFetching.add(KeysFetchingSet.fingerprint(key));
+		if(!retval) {
+			Logger.normal(this, "Already in keysFetching: "+key);
+		} else {
+			if(logMINOR)
+				Logger.minor(this, "Added to keysFetching: "+key);
 		}
+		return retval;
 	}
 	
 	@Override
@@ -611,67 +605,33 @@ outer:	for(;choosenPriorityClass <= maxPrio;choosenPriorityClass++) {
 		if(keysFetching == null) {
 			throw new NullPointerException();
 		}
-		long pid = -1;
-		if(getterWaiting != null && persistent) {
-			pid = container.ext().getID(getterWaiting);
-		}
-		synchronized(keysFetching) {
-			boolean ret = keysFetching.contains(key);
-			if(!ret) return ret;
-			// It is being fetched. Add the BaseSendableGet to the wait list so it gets woken up when the request finishes.
-			if(getterWaiting != null) {
-				if(persistent) {
-					Long[] waiting = persistentRequestsWaitingForKeysFetching.get(key);
-					if(waiting == null) {
-						persistentRequestsWaitingForKeysFetching.put(key, new Long[] { pid });
-					} else {
-						for(long l : waiting) {
-							if(l == pid) return true;
-						}
-						Long[] newWaiting = new Long[waiting.length+1];
-						System.arraycopy(waiting, 0, newWaiting, 0, waiting.length);
-						newWaiting[waiting.length] = pid;
-						persistentRequestsWaitingForKeysFetching.put(key, newWaiting);
-					}
-				} else {
-					WeakReference<BaseSendableGet>[] waiting = transientRequestsWaitingForKeysFetching.get(key);
-					if(waiting == null) {
-						transientRequestsWaitingForKeysFetching.put(key, new WeakReference[] { new WeakReference<BaseSendableGet>(getterWaiting) });
-					} else {
-						for(WeakReference<BaseSendableGet> ref : waiting) {
-							if(ref.get() == getterWaiting) return true;
-						}
-						WeakReference<BaseSendableGet>[] newWaiting = new WeakReference[waiting.length+1];
-						System.arraycopy(waiting, 0, newWaiting, 0, waiting.length);
-						newWaiting[waiting.length] = new WeakReference<BaseSendableGet>(getterWaiting);
-						transientRequestsWaitingForKeysFetching.put(key, newWaiting);
-					}
-				}
-			}
-			return true;
+		long fp = KeysFetchingSet.fingerprint(key);
+		if(!keysFetching.contains(fp)) return false;
+		// It is being fetched. Add the BaseSendableGet to the wait list so it gets woken up when the request finishes.
+		// If it has finished in the meantime, it doesn't need to wait.
+		if(getterWaiting != null) {
+			if(persistent)
+				return keysFetching.addWaiting(fp, container.ext().getID(getterWaiting));
+			else
+				return keysFetching.addWaiting(fp, getterWaiting);
 		}
+		return true;
 	}
 
 	/** LOCKING: Caller should hold as few locks as possible */ 
 	public void removeFetchingKey(final Key key) {
-		Long[] persistentWaiting;
-		WeakReference<BaseSendableGet>[] transientWaiting;
 		if(logMINOR)
 			Logger.minor(this, "Removing from keysFetching: "+key);
 		if(key != null) {
-			synchronized(keysFetching) {
-				keysFetching.remove(key);
-				persistentWaiting = this.persistentRequestsWaitingForKeysFetching.remove(key);
-				transientWaiting = this.transientRequestsWaitingForKeysFetching.remove(key);
-			}
-			if(persistentWaiting != null || transientWaiting != null) {
+			KeysFetchingSet.Waiting<BaseSendableGet> waiting = keysFetching.remove(KeysFetchingSet.fingerprint(key));
+			if(waiting != null) {
 				CooldownTracker tracker = sched.clientContext.cooldownTracker;
-				if(persistentWaiting != null) {
-					for(Long l : persistentWaiting)
+				if(waiting.persistent != null) {
+					for(Long l : waiting.persistent)
 						tracker.clearCachedWakeupPersistent(l);
 				}
-				if(transientWaiting != null) {
-					for(WeakReference<BaseSendableGet> ref : transientWaiting) {
+				if(waiting.nonPersistent != null) {
+					for(WeakReference<BaseSendableGet> ref : waiting.nonPersistent) {
 						BaseSendableGet get = ref.get();
 						if(get == null) continue;
 						synchronized(sched) {
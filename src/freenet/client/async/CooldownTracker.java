@@ -9,6 +9,8 @@ import java.util.WeakHashMap;
 import com.db4o.ObjectContainer;
 
 import freenet.support.Logger;
+import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
 import freenet.support.RemoveRandomWithObject;
 import freenet.support.Ticker;
 
@@ -227,6 +229,12 @@ public class CooldownTracker {
 			return false;
 		}
 		if(logMINOR) Logger.minor(this, "Clearing cached wakeup for "+toCheck);
+		if(toCheck instanceof RandomGrabArrayItem && (!persistent || container.ext().isActive(toCheck))) {
+			// Let the array choose it again straight away.
+			RandomGrabArrayItem item = (RandomGrabArrayItem) toCheck;
+			RandomGrabArray array = item.getParentGrabArray();
+			if(array != null) array.clearExcluded(item);
+		}
 		if(persistent) {
 			if(!container.ext().isStored(toCheck)) throw new IllegalArgumentException("Must store first!");
 			long uid = container.ext().getID(toCheck);
@@ -0,0 +1,240 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import freenet.keys.Key;
+import freenet.support.Fields;
+
+/**
+ * The keys we are fetching locally, for ClientRequestSelector. We keep a 64-bit fingerprint of
+ * each routing key rather than the Key itself, in one of several shards chosen by the
+ * fingerprint, so that a request finishing on one key doesn't hold up the selection of blocks
+ * for another.
+ *
+ * Each shard is an open-addressed hash table which is read without locking: writers hold the
+ * shard's lock, never move a live entry, mark removed entries rather than clearing them, and
+ * publish a resized table through a volatile field. So contains() is lock-free, and add(),
+ * remove() and the wait lists only lock one shard.
+ *
+ * Routing keys are hashes, so two keys having the same fingerprint is very unlikely, and the
+ * worst it can do is make us skip a block until the other key has been fetched.
+ *
+ * @param <T> The type of the transient requests which can wait for a key.
+ */
+final class KeysFetchingSet<T> {
+
+	/** Must be a power of 2. */
+	static final int SHARDS = 16;
+	private static final int INITIAL_SIZE = 64;
+	private static final long EMPTY = 0;
+	private static final long REMOVED = 1;
+
+	private final Shard<T>[] shards;
+
+	@SuppressWarnings("unchecked")
+	KeysFetchingSet() {
+		shards = new Shard[SHARDS];
+		for(int i=0;i<SHARDS;i++)
+			shards[i] = new Shard<T>();
+	}
+
+	/** The fingerprint of a key. Keys are equal if their routing keys are equal, so we only
+	 * need the routing key. */
+	static long fingerprint(Key key) {
+		long fp = Fields.bytesToLong(key.getRoutingKey(), 0);
+		if(fp == EMPTY || fp == REMOVED) fp = 2;
+		return fp;
+	}
+
+	private Shard<T> shard(long fp) {
+		return shards[(int)(fp >>> 59) & (SHARDS - 1)];
+	}
+
+	/** @return True unless the key was already present. */
+	boolean add(long fp) {
+		return shard(fp).add(fp);
+	}
+
+	/** Does not lock. */
+	boolean contains(long fp) {
+		return shard(fp).contains(fp);
+	}
+
+	/** Remove a key.
+	 * @return The requests waiting for it, or null if there are none. */
+	Waiting<T> remove(long fp) {
+		return shard(fp).remove(fp);
+	}
+
+	/** Wake up a persistent request, identified by its database ID, when a key is removed.
+	 * @return False if the key is no longer being fetched, so the request doesn't need to
+	 * wait. */
+	boolean addWaiting(long fp, long pid) {
+		return shard(fp).addWaiting(fp, pid);
+	}
+
+	/** Wake up a transient request when a key is removed.
+	 * @return False if the key is no longer being fetched, so the request doesn't need to
+	 * wait. */
+	boolean addWaiting(long fp, T getter) {
+		return shard(fp).addWaiting(fp, getter);
+	}
+
+	int size() {
+		int total = 0;
+		for(Shard<T> shard : shards)
+			total += shard.size();
+		return total;
+	}
+
+	/** The requests which were waiting for a key when it was removed. */
+	static final class Waiting<T> {
+		/** Database IDs of persistent requests, or null. */
+		final Long[] persistent;
+		/** Transient requests, or null. */
+		final WeakReference<T>[] nonPersistent;
+
+		Waiting(Long[] persistent, WeakReference<T>[] nonPersistent) {
+			this.persistent = persistent;
+			this.nonPersistent = nonPersistent;
+		}
+	}
+
+	private static final class Shard<T> {
+
+		/** Only replaced with the lock held. Always has at least one EMPTY slot, so a probe
+		 * always terminates, even on a table which has since been replaced. */
+		private volatile AtomicLongArray table = new AtomicLongArray(INITIAL_SIZE);
+		/** Number of live entries. LOCKING: Lock the shard. */
+		private int live;
+		/** Number of live and removed entries. LOCKING: Lock the shard. */
+		private int used;
+		/** Created on demand. LOCKING: Lock the shard. */
+		private HashMap<Long, Long[]> persistentWaiting;
+		private HashMap<Long, WeakReference<T>[]> transientWaiting;
+
+		private static int slot(long fp, int mask) {
+			return (int)(fp ^ (fp >>> 32)) & mask;
+		}
+
+		boolean contains(long fp) {
+			AtomicLongArray t = table;
+			int mask = t.length() - 1;
+			for(int i = slot(fp, mask);; i = (i + 1) & mask) {
+				long v = t.get(i);
+				if(v == fp) return true;
+				if(v == EMPTY) return false;
+			}
+		}
+
+		synchronized boolean add(long fp) {
+			if((used + 1) * 4 > table.length() * 3)
+				rebuild();
+			AtomicLongArray t = table;
+			int mask = t.length() - 1;
+			int reuse = -1;
+			for(int i = slot(fp, mask);; i = (i + 1) & mask) {
+				long v = t.get(i);
+				if(v == fp) return false;
+				if(v == REMOVED) {
+					if(reuse < 0) reuse = i;
+				} else if(v == EMPTY) {
+					if(reuse < 0) {
+						reuse = i;
+						used++;
+					}
+					t.set(reuse, fp);
+					live++;
+					return true;
+				}
+			}
+		}
+
+		synchronized Waiting<T> remove(long fp) {
+			AtomicLongArray t = table;
+			int mask = t.length() - 1;
+			for(int i = slot(fp, mask);; i = (i + 1) & mask) {
+				long v = t.get(i);
+				if(v == fp) {
+					t.set(i, REMOVED);
+					live--;
+					break;
+				}
+				if(v == EMPTY) break;
+			}
+			Long[] p = persistentWaiting == null ? null : persistentWaiting.remove(fp);
+			WeakReference<T>[] np = transientWaiting == null ? null : transientWaiting.remove(fp);
+			if(p == null && np == null) return null;
+			return new Waiting<T>(p, np);
+		}
+
+		/** Copy the live entries to a new table, sized for the number of live entries. */
+		private void rebuild() {
+			int size = INITIAL_SIZE;
+			while(size < (live + 1) * 2) size <<= 1;
+			AtomicLongArray t = table;
+			AtomicLongArray newTable = new AtomicLongArray(size);
+			int mask = size - 1;
+			for(int i=0;i<t.length();i++) {
+				long v = t.get(i);
+				if(v == EMPTY || v == REMOVED) continue;
+				int j = slot(v, mask);
+				while(newTable.get(j) != EMPTY)
+					j = (j + 1) & mask;
+				newTable.set(j, v);
+			}
+			used = live;
+			table = newTable;
+		}
+
+		synchronized boolean addWaiting(long fp, long pid) {
+			if(!contains(fp)) return false;
+			if(persistentWaiting == null)
+				persistentWaiting = new HashMap<Long, Long[]>();
+			Long[] waiting = persistentWaiting.get(fp);
+			if(waiting == null) {
+				persistentWaiting.put(fp, new Long[] { pid });
+			} else {
+				for(long l : waiting) {
+					if(l == pid) return true;
+				}
+				Long[] newWaiting = new Long[waiting.length+1];
+				System.arraycopy(waiting, 0, newWaiting, 0, waiting.length);
+				newWaiting[waiting.length] = pid;
+				persistentWaiting.put(fp, newWaiting);
+			}
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized boolean addWaiting(long fp, T getter) {
+			if(!contains(fp)) return false;
+			if(transientWaiting == null)
+				transientWaiting = new HashMap<Long, WeakReference<T>[]>();
+			WeakReference<T>[] waiting = transientWaiting.get(fp);
+			if(waiting == null) {
+				transientWaiting.put(fp, new WeakReference[] { new WeakReference<T>(getter) });
+			} else {
+				for(WeakReference<T> ref : waiting) {
+					if(ref.get() == getter) return true;
+				}
+				WeakReference<T>[] newWaiting = new WeakReference[waiting.length+1];
+				System.arraycopy(waiting, 0, newWaiting, 0, waiting.length);
+				newWaiting[waiting.length] = new WeakReference<T>(getter);
+				transientWaiting.put(fp, newWaiting);
+			}
+			return true;
+		}
+
+		synchronized int size() {
+			return live;
+		}
+
+	}
+
+}
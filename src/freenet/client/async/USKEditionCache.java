@@ -0,0 +1,166 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.UnsupportedEncodingException;
+
+import freenet.keys.USK;
+import freenet.node.Persistable;
+import freenet.support.Base64;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.IllegalBase64Exception;
+import freenet.support.LRUHashtable;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Remembers the latest known editions of recently used USKs across restarts. USKManager is
+ * transient, so without this, after a restart every subscribed USK would be polled from its
+ * original hint again, and USKFetcher would walk through all the editions since then.
+ *
+ * Keyed by the pubkey hash and document name. Limited in size: the USKs least recently
+ * updated or looked up are forgotten first. NodeClientCore writes it to disk every minute
+ * with a Persister, and reads it back at startup. The file is not encrypted, so the cache is
+ * disabled unless the physical security level is LOW.
+ */
+public class USKEditionCache implements Persistable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(USKEditionCache.class);
+	}
+
+	static final int DEFAULT_MAX_SIZE = 2000;
+
+	private static class Editions {
+		final byte[] pubKeyHash;
+		final String siteName;
+		long knownGood = -1;
+		long latestSlot = -1;
+
+		Editions(byte[] pubKeyHash, String siteName) {
+			this.pubKeyHash = pubKeyHash;
+			this.siteName = siteName;
+		}
+	}
+
+	private final int maxSize;
+	private final LRUHashtable<ByteArrayWrapper, Editions> editions;
+	private boolean enabled = true;
+
+	public USKEditionCache(int maxSize) {
+		this.maxSize = maxSize;
+		editions = new LRUHashtable<ByteArrayWrapper, Editions>();
+	}
+
+	private static ByteArrayWrapper makeKey(byte[] pubKeyHash, String siteName) {
+		byte[] name;
+		try {
+			name = siteName.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e); // Impossible
+		}
+		byte[] buf = new byte[pubKeyHash.length + name.length];
+		System.arraycopy(pubKeyHash, 0, buf, 0, pubKeyHash.length);
+		System.arraycopy(name, 0, buf, pubKeyHash.length, name.length);
+		return new ByteArrayWrapper(buf);
+	}
+
+	/**
+	 * Record the latest editions of a USK. Editions lower than those already recorded are
+	 * ignored.
+	 * @param knownGood The latest edition successfully fetched, or -1.
+	 * @param latestSlot The latest edition known to exist, or -1.
+	 */
+	public synchronized void update(USK usk, long knownGood, long latestSlot) {
+		if(!enabled) return;
+		ByteArrayWrapper key = makeKey(usk.pubKeyHash, usk.siteName);
+		Editions e = editions.get(key);
+		if(e == null)
+			e = new Editions(usk.pubKeyHash, usk.siteName);
+		e.knownGood = Math.max(e.knownGood, knownGood);
+		e.latestSlot = Math.max(e.latestSlot, Math.max(latestSlot, knownGood));
+		editions.push(key, e);
+		while(editions.size() > maxSize)
+			editions.popKey();
+	}
+
+	/**
+	 * Get the editions recorded for a USK, and mark it as recently used.
+	 * @return Null if we don't know anything about it, otherwise the latest known good
+	 * edition and the latest known slot, either of which may be -1.
+	 */
+	public synchronized long[] get(USK usk) {
+		ByteArrayWrapper key = makeKey(usk.pubKeyHash, usk.siteName);
+		Editions e = editions.get(key);
+		if(e == null) return null;
+		editions.push(key, e);
+		return new long[] { e.knownGood, e.latestSlot };
+	}
+
+	public synchronized int size() {
+		return editions.size();
+	}
+
+	/** Turn the cache off, e.g. because the physical security level is above LOW, and so we
+	 * mustn't leave an unencrypted record of which USKs were fetched. Forgets everything. */
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if(!enabled)
+			editions.clear();
+	}
+
+	/** Write the editions, most recently used first. */
+	@Override
+	public synchronized SimpleFieldSet persistThrottlesToFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		if(!enabled) return fs;
+		// Starts with the least recently used.
+		Editions[] list = new Editions[editions.size()];
+		editions.valuesToArray(list);
+		int x = 0;
+		for(int i=list.length-1;i>=0;i--) {
+			Editions e = list[i];
+			SimpleFieldSet entry = new SimpleFieldSet(true);
+			entry.putSingle("PubKeyHash", Base64.encode(e.pubKeyHash));
+			entry.putSingle("SiteName", e.siteName);
+			entry.put("KnownGood", e.knownGood);
+			entry.put("LatestSlot", e.latestSlot);
+			fs.put(Integer.toString(x++), entry);
+		}
+		return fs;
+	}
+
+	/** Read the editions written by persistThrottlesToFieldSet(). Invalid entries are
+	 * ignored. */
+	public synchronized void readFrom(SimpleFieldSet fs) {
+		if(!enabled) return;
+		int count = 0;
+		while(fs.subset(Integer.toString(count)) != null)
+			count++;
+		// Push the least recently used first, so they keep their order.
+		for(int i=count-1;i>=0;i--) {
+			SimpleFieldSet entry = fs.subset(Integer.toString(i));
+			String siteName = entry.get("SiteName");
+			String hash = entry.get("PubKeyHash");
+			if(siteName == null || hash == null) continue;
+			byte[] pubKeyHash;
+			try {
+				pubKeyHash = Base64.decode(hash);
+			} catch (IllegalBase64Exception e) {
+				Logger.error(this, "Invalid pubkey hash in saved USK editions: "+hash);
+				continue;
+			}
+			Editions e = new Editions(pubKeyHash, siteName);
+			e.knownGood = entry.getLong("KnownGood", -1);
+			e.latestSlot = Math.max(e.knownGood, entry.getLong("LatestSlot", -1));
+			editions.push(makeKey(pubKeyHash, siteName), e);
+		}
+		while(editions.size() > maxSize)
+			editions.popKey();
+		if(logMINOR) Logger.minor(this, "Read "+editions.size()+" saved USK editions");
+	}
+
+}
@@ -35,6 +35,8 @@ import freenet.support.io.NullBucket;
  * Also does auto-updates.
  * 
  * Note that this is a transient class. It is not stored in the database. All fetchers and subscriptions are likewise transient.
+ * However the latest editions of recently used USKs are kept in a USKEditionCache, which is saved to disk,
+ * so that we don't need to find them all again after a restart.
  * 
  * Plugin authors: Don't construct it yourself, get it from ClientContext from NodeClientCore.
  */
@@ -116,6 +118,9 @@ public class USKManager {
 	 * fetcher finishes. */
 	final WeakHashMap<USK, Long> temporaryBackgroundFetchersPrefetch;
 	
+	/** Editions saved across restarts. Used when we don't know about a USK yet. */
+	final USKEditionCache editionCache;
+	
 	final FetchContext backgroundFetchContext;
 	final FetchContext backgroundFetchContextIgnoreDBR;
 	/** This one actually fetches data */
@@ -140,6 +145,7 @@ public class USKManager {
 		backgroundFetchersByClearUSK = new HashMap<USK, USKFetcher>();
 		temporaryBackgroundFetchersLRU = new LRUHashtable<USK, USKFetcher>();
 		temporaryBackgroundFetchersPrefetch = new WeakHashMap<USK, Long>();
+		editionCache = new USKEditionCache(USKEditionCache.DEFAULT_MAX_SIZE);
 		executor = core.getExecutor();
 	}
 
@@ -157,7 +163,9 @@ public class USKManager {
 	 * @return The latest known edition number, or -1.
 	 */
 	public synchronized long lookupKnownGood(USK usk) {
-		Long l = latestKnownGoodByClearUSK.get(usk.clearCopy());
+		USK clear = usk.clearCopy();
+		checkSaved(clear);
+		Long l = latestKnownGoodByClearUSK.get(clear);
 		if(l != null)
 			return l.longValue();
 		else return -1;
@@ -169,11 +177,33 @@ public class USKManager {
 	 * @return The latest known edition number, or -1.
 	 */
 	public synchronized long lookupLatestSlot(USK usk) {
-		Long l = latestSlotByClearUSK.get(usk.clearCopy());
+		USK clear = usk.clearCopy();
+		checkSaved(clear);
+		Long l = latestSlotByClearUSK.get(clear);
 		if(l != null)
 			return l.longValue();
 		else return -1;
 	}
+	
+	/**
+	 * Mark the USK as recently used in the edition cache, and if we don't know anything
+	 * about it yet, start from the editions saved before the last restart, if any.
+	 * Caller must hold the lock.
+	 */
+	private void checkSaved(USK clear) {
+		long[] saved = editionCache.get(clear);
+		if(saved == null) return;
+		if(latestSlotByClearUSK.containsKey(clear)) return;
+		if(logMINOR) Logger.minor(this, "Using saved editions for "+clear+" : known good "+saved[0]+" slot "+saved[1]);
+		if(saved[0] >= 0)
+			latestKnownGoodByClearUSK.put(clear, saved[0]);
+		if(saved[1] >= 0)
+			latestSlotByClearUSK.put(clear, saved[1]);
+	}
+	
+	public USKEditionCache getEditionCache() {
+		return editionCache;
+	}
 
 	public USKFetcherTag getFetcher(USK usk, FetchContext ctx, boolean keepLast, boolean persistent, boolean realTime, 
 			USKFetcherCallback callback, boolean ownFetchContext, ObjectContainer container, ClientContext context, boolean checkStoreOnly) {
@@ -442,6 +472,7 @@ public class USKManager {
 		final USKCallback[] callbacks;
 		boolean newSlot = false;
 		synchronized(this) {
+			checkSaved(clear);
 			Long l = latestKnownGoodByClearUSK.get(clear);
 			if(logMINOR) Logger.minor(this, "Old known good: "+l);
 			if((l == null) || (number > l.longValue())) {
@@ -459,6 +490,7 @@ public class USKManager {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 				newSlot = true;
 			} 
+			editionCache.update(clear, number, l);
 			
 			callbacks = subscribersByClearUSK.get(clear);
 		}
@@ -482,6 +514,7 @@ public class USKManager {
 		USK clear = origUSK.clearCopy();
 		final USKCallback[] callbacks;
 		synchronized(this) {
+			checkSaved(clear);
 			Long l = latestSlotByClearUSK.get(clear);
 			if(logMINOR) Logger.minor(this, "Old slot: "+l);
 			if((l == null) || (number > l.longValue())) {
@@ -490,6 +523,7 @@ public class USKManager {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 			} else
 				return;
+			editionCache.update(clear, -1, number);
 			
 			callbacks = subscribersByClearUSK.get(clear);
 			if(temporaryBackgroundFetchersPrefetch.containsKey(clear)) {
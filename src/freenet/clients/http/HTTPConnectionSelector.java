@@ -0,0 +1,433 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+import freenet.support.io.NativeThread;
+
+/**
+ * Waits for HTTP requests on fproxy connections without using a thread for each connection.
+ * A single thread reads from all the idle connections until it has a complete set of request
+ * headers, and only then hands the connection to a worker, which handles the request in the
+ * usual blocking way via ToadletContextImpl.handleRequest(). When it has been handled, a
+ * persistent connection comes back here to wait for the next request. If the client has
+ * already sent the next request (pipelining), it is handled straight away.
+ *
+ * At most getMaxFproxyConnections() requests are handled at once; connections with complete
+ * requests beyond that wait here, rather than blocking the accept thread.
+ */
+class HTTPConnectionSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(HTTPConnectionSelector.class);
+	}
+
+	/** Initial size of a connection's read buffer. */
+	static final int INITIAL_BUFFER_SIZE = 4096;
+	/** Maximum size of a connection's read buffer. If the headers don't fit, the worker reads
+	 * the rest from the socket, just as if we had no selector. Must be more than the maximum
+	 * line length in handleRequest(), so readLine() can always reset to its mark. */
+	static final int MAX_BUFFER_SIZE = 65536;
+	/** Close connections which have been idle this long. */
+	static final int IDLE_TIMEOUT = 5*60*1000;
+
+	private final SimpleToadletServer server;
+	private final Executor executor;
+	private final PageMaker pageMaker;
+	private final Selector selector;
+	/** Connections to register with the selector, added by other threads. */
+	private final ConcurrentLinkedQueue<Connection> toRegister;
+	/** Connections with a complete request, waiting for a free worker. Protected by this. */
+	private final LinkedList<Connection> waiting;
+	/** Connections with a complete request, to dispatch after this round of select(). Only
+	 * used by the selector thread. */
+	private final ArrayList<Connection> ready;
+	private long lastIdleCheck;
+	/** Number of requests being handled. Protected by this. */
+	private int running;
+	private volatile boolean finishedStartup;
+	private volatile boolean shutdown;
+
+	HTTPConnectionSelector(SimpleToadletServer server, Executor executor, PageMaker pageMaker) throws IOException {
+		this.server = server;
+		this.executor = executor;
+		this.pageMaker = pageMaker;
+		selector = Selector.open();
+		toRegister = new ConcurrentLinkedQueue<Connection>();
+		waiting = new LinkedList<Connection>();
+		ready = new ArrayList<Connection>();
+	}
+
+	/** Until this is called, workers are started as new threads, because the executor may not
+	 * be running yet. */
+	void setFinishedStartup() {
+		finishedStartup = true;
+	}
+
+	/**
+	 * Add a newly accepted connection.
+	 * @return False if the socket has no channel, so the caller must handle it the old way.
+	 */
+	boolean add(Socket sock) {
+		SocketChannel channel = sock.getChannel();
+		if(channel == null || shutdown) return false;
+		toRegister.add(new Connection(sock, channel));
+		selector.wakeup();
+		return true;
+	}
+
+	/** Close the selector and all the idle connections. Requests being handled finish normally. */
+	void shutdown() {
+		shutdown = true;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		try {
+			while(!shutdown) {
+				try {
+					selector.select(10*1000);
+				} catch (IOException e) {
+					Logger.error(this, "Caught "+e+" in select()", e);
+					continue;
+				}
+				registerNew();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid()) continue;
+					readFrom(key);
+				}
+				if(!ready.isEmpty()) {
+					// Make sure the channels are deregistered before making them blocking again.
+					try {
+						selector.selectNow();
+					} catch (IOException e) {
+						Logger.error(this, "Caught "+e+" in selectNow()", e);
+					}
+					for(Connection conn : ready) {
+						try {
+							conn.channel.configureBlocking(true);
+						} catch (IOException e) {
+							conn.close();
+							continue;
+						}
+						dispatch(conn);
+					}
+					ready.clear();
+				}
+				long now = System.currentTimeMillis();
+				if(now - lastIdleCheck > 1000) {
+					closeIdle(now);
+					lastIdleCheck = now;
+				}
+			}
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" in HTTP selector", t);
+		} finally {
+			shutdown = true;
+			for(SelectionKey key : selector.keys())
+				((Connection) key.attachment()).close();
+			Connection conn;
+			while((conn = toRegister.poll()) != null)
+				conn.close();
+			synchronized(this) {
+				for(Connection c : waiting)
+					c.close();
+				waiting.clear();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	private void registerNew() {
+		Connection conn;
+		while((conn = toRegister.poll()) != null) {
+			try {
+				conn.channel.configureBlocking(false);
+				conn.channel.register(selector, SelectionKey.OP_READ, conn);
+				conn.lastActive = System.currentTimeMillis();
+			} catch (IOException e) {
+				conn.close();
+			}
+		}
+	}
+
+	private void readFrom(SelectionKey key) {
+		Connection conn = (Connection) key.attachment();
+		int read;
+		try {
+			read = conn.fill();
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Caught "+e+" reading from "+conn.sock);
+			key.cancel();
+			conn.close();
+			return;
+		}
+		if(read < 0) {
+			key.cancel();
+			conn.close();
+			return;
+		}
+		conn.lastActive = System.currentTimeMillis();
+		if(conn.haveHeaders() || conn.isFull()) {
+			key.cancel();
+			ready.add(conn);
+		}
+	}
+
+	private void closeIdle(long now) {
+		for(SelectionKey key : selector.keys()) {
+			Connection conn = (Connection) key.attachment();
+			if(now - conn.lastActive > IDLE_TIMEOUT) {
+				if(logMINOR) Logger.minor(this, "Closing idle connection "+conn.sock);
+				key.cancel();
+				conn.close();
+			}
+		}
+	}
+
+	private void dispatch(Connection conn) {
+		synchronized(this) {
+			if(running >= server.getMaxFproxyConnections()) {
+				waiting.add(conn);
+				return;
+			}
+			running++;
+		}
+		Worker worker = new Worker(conn);
+		if(finishedStartup)
+			executor.execute(worker, "HTTP request handler for "+conn.sock.getInetAddress());
+		else
+			new Thread(worker).start();
+	}
+
+	/** A request has been handled. Start the next waiting one, if any. */
+	private void requestFinished() {
+		Connection next;
+		synchronized(this) {
+			running--;
+			if(waiting.isEmpty()) return;
+			next = waiting.removeFirst();
+		}
+		dispatch(next);
+	}
+
+	private class Worker implements PrioRunnable {
+
+		private final Connection conn;
+
+		Worker(Connection conn) {
+			this.conn = conn;
+		}
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			boolean reuse = false;
+			try {
+				do {
+					reuse = ToadletContextImpl.handleRequest(conn.sock, conn.in, server, pageMaker);
+				} while(reuse && conn.haveHeaders());
+			} catch (OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				Logger.error(this, "OOM in HTTP request handler");
+				reuse = false;
+			} catch (Throwable t) {
+				Logger.error(this, "Caught in HTTP request handler: "+t, t);
+				reuse = false;
+			} finally {
+				if(reuse && !shutdown) {
+					conn.lastActive = System.currentTimeMillis();
+					toRegister.add(conn);
+					selector.wakeup();
+				} else {
+					conn.close();
+				}
+				requestFinished();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY-1;
+		}
+
+	}
+
+	/**
+	 * A connection and whatever we have read from it but not yet processed. The selector
+	 * reads into the buffer when the channel is non-blocking; the worker reads through the
+	 * InputStream, which reads from the buffer first and refills it from the channel when it
+	 * is blocking, so any pipelined request stays in the buffer for next time.
+	 */
+	static class Connection {
+
+		final Socket sock;
+		final SocketChannel channel;
+		/** Unread data is between position and limit. */
+		private ByteBuffer buf;
+		/** Position of the mark in buf, or -1. */
+		private int mark = -1;
+		volatile long lastActive;
+		final InputStream in = new ConnectionInputStream();
+
+		Connection(Socket sock, SocketChannel channel) {
+			this.sock = sock;
+			this.channel = channel;
+			buf = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+			buf.limit(0);
+		}
+
+		/**
+		 * Read as much as we can from the channel into the buffer, keeping any unread data
+		 * and the mark. Grows the buffer up to MAX_BUFFER_SIZE if necessary; if it is still
+		 * full, the mark is dropped.
+		 * @return The number of bytes read, or -1 on EOF.
+		 */
+		int fill() throws IOException {
+			int keepFrom = mark >= 0 ? mark : buf.position();
+			if(keepFrom == 0 && buf.limit() == buf.capacity()) {
+				if(buf.capacity() < MAX_BUFFER_SIZE) {
+					ByteBuffer newBuf = ByteBuffer.allocate(Math.min(buf.capacity() * 2, MAX_BUFFER_SIZE));
+					newBuf.put(buf.array(), 0, buf.limit());
+					newBuf.flip();
+					newBuf.position(buf.position());
+					buf = newBuf;
+				} else if(mark >= 0) {
+					mark = -1;
+					keepFrom = buf.position();
+				}
+			}
+			int offset = buf.position() - keepFrom;
+			buf.position(keepFrom);
+			buf.compact();
+			int read;
+			try {
+				read = channel.read(buf);
+			} finally {
+				buf.flip();
+				if(mark >= 0) mark = 0;
+				buf.position(offset);
+			}
+			return read;
+		}
+
+		/** Is there a complete set of request headers in the buffer? Leading empty lines,
+		 * which clients may send after a POST, are ignored, just as handleRequest() does. */
+		boolean haveHeaders() {
+			byte[] data = buf.array();
+			int i = buf.position();
+			int end = buf.limit();
+			while(i < end && (data[i] == '\r' || data[i] == '\n')) i++;
+			for(; i < end; i++) {
+				if(data[i] != '\n') continue;
+				if(i + 1 < end && data[i+1] == '\n') return true;
+				if(i + 2 < end && data[i+1] == '\r' && data[i+2] == '\n') return true;
+			}
+			return false;
+		}
+
+		/** Is the buffer full, with no room left to grow? */
+		boolean isFull() {
+			return buf.capacity() >= MAX_BUFFER_SIZE && buf.remaining() == buf.capacity();
+		}
+
+		void close() {
+			try {
+				sock.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+
+		private class ConnectionInputStream extends InputStream {
+
+			@Override
+			public int read() throws IOException {
+				if(!buf.hasRemaining() && fillBlocking() < 0) return -1;
+				return buf.get() & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if(len == 0) return 0;
+				if(!buf.hasRemaining() && fillBlocking() < 0) return -1;
+				len = Math.min(len, buf.remaining());
+				buf.get(b, off, len);
+				return len;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				if(n <= 0) return 0;
+				if(!buf.hasRemaining() && fillBlocking() < 0) return 0;
+				int skip = (int) Math.min(n, buf.remaining());
+				buf.position(buf.position() + skip);
+				return skip;
+			}
+
+			@Override
+			public int available() {
+				return buf.remaining();
+			}
+
+			@Override
+			public boolean markSupported() {
+				return true;
+			}
+
+			@Override
+			public synchronized void mark(int readlimit) {
+				mark = buf.position();
+			}
+
+			@Override
+			public synchronized void reset() throws IOException {
+				if(mark < 0) throw new IOException("Mark invalidated");
+				buf.position(mark);
+			}
+
+			@Override
+			public void close() {
+				Connection.this.close();
+			}
+
+			private int fillBlocking() throws IOException {
+				int read;
+				do {
+					read = fill();
+				} while(read == 0);
+				return read;
+			}
+
+		}
+
+	}
+
+}
@@ -3,12 +3,9 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.http;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -36,7 +33,6 @@ import freenet.support.api.HTTPRequest;
 import freenet.support.api.HTTPUploadedFile;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
-import freenet.support.io.LineReadingInputStream;
 
 /**
  * Used for passing all HTTP request information to the FredPlugin that handles
@@ -418,10 +414,6 @@ public class HTTPRequestImpl implements HTTPRequest {
 	 */
 	private void parseMultiPartData() throws IOException {
 		InputStream is = null;
-		BufferedInputStream bis = null;
-		LineReadingInputStream lis = null;
-		OutputStream bucketos = null;
-		OutputStream bbos = null;
 
 		try {
 			if(data == null)
@@ -457,119 +449,21 @@ public class HTTPRequestImpl implements HTTPRequest {
 			if(boundary.charAt(boundary.length() - 1) == '"')
 				boundary = boundary.substring(0, boundary.length() - 1);
 
-			boundary = "--" + boundary;
-
 			if(logMINOR)
 				Logger.minor(this, "Boundary is: " + boundary);
 
 			is = this.data.getInputStream();
-			bis = new BufferedInputStream(is, 32768);
-			lis = new LineReadingInputStream(bis);
-
-			String line;
-			line = lis.readLine(100, 100, false); // really it's US-ASCII, but ISO-8859-1 is close enough.
-			while((bis.available() > 0) && !line.equals(boundary)) {
-				line = lis.readLine(100, 100, false);
-			}
-
-			boundary = "\r\n" + boundary;
-
-			Bucket filedata = null;
-			String name = null;
-			String filename = null;
-			String contentType = null;
-
-			while(bis.available() > 0) {
-				name = null;
-				filename = null;
-				contentType = null;
-				// chomp headers
-				while((line = lis.readLine(200, 200, true)) /* should be UTF-8 as we told the browser to send UTF-8 */ != null) {
-					if(line.length() == 0)
-						break;
-
-					String[] lineparts = line.split(":");
-					if(lineparts == null || lineparts.length == 0)
-						continue;
-					String hdrname = lineparts[0].trim();
-
-					if(hdrname.equalsIgnoreCase("Content-Disposition")) {
-						if(lineparts.length < 2)
-							continue;
-						String[] valueparts = lineparts[1].split(";");
-
-						for(int i = 0; i < valueparts.length; i++) {
-							String[] subparts = valueparts[i].split("=");
-							if(subparts.length != 2)
-								continue;
-							String fieldname = subparts[0].trim();
-							String value = subparts[1].trim();
-							if(value.startsWith("\"") && value.endsWith("\""))
-								value = value.substring(1, value.length() - 1);
-							if(fieldname.equalsIgnoreCase("name"))
-								name = value;
-							else if(fieldname.equalsIgnoreCase("filename"))
-								filename = value;
-						}
-					}
-					else if(hdrname.equalsIgnoreCase("Content-Type")) {
-						contentType = lineparts[1].trim();
-						if(logMINOR)
-							Logger.minor(this, "Parsed type: " + contentType);
-					}
-					else {
-					// Do nothing, irrelevant header
-					}
-				}
-
-				if(name == null)
-					continue;
-
-				// we should be at the data now. Start reading it in, checking for the
-			// boundary string
-
-				// we can only give an upper bound for the size of the bucket
-				filedata = this.bucketfactory.makeBucket(bis.available());
-				bucketos = filedata.getOutputStream();
-				bbos = new BufferedOutputStream(bucketos, 32768);
-				// buffer characters that match the boundary so far
-			// FIXME use whatever charset was used
-				byte[] bbound = boundary.getBytes("UTF-8"); // ISO-8859-1? boundary should be in US-ASCII
-				int offset = 0;
-				while((bis.available() > 0) && (offset < bbound.length)) {
-					byte b = (byte) bis.read();
-
-					if(b == bbound[offset])
-						offset++;
-					else if((b != bbound[offset]) && (offset > 0)) {
-						// offset bytes matched, but no more
-					// write the bytes that matched, then the non-matching byte
-						bbos.write(bbound, 0, offset);
-						offset = 0;
-						if(b == bbound[0])
-							offset = 1;
-						else
-							bbos.write(b);
-					}
-					else
-						bbos.write(b);
-				}
-
-				bbos.flush();
-				bbos.close();
-			
-				parts.put(name, filedata);
+			MultipartParser parser = new MultipartParser(is, boundary, bucketfactory);
+			MultipartParser.Part part;
+			while((part = parser.readPart()) != null) {
+				parts.put(part.name, part.data);
 				if(logMINOR)
-					Logger.minor(this, "Name = " + name + " length = " + filedata.size() + " filename = " + filename);
-				if(filename != null)
-					uploadedFiles.put(name, new HTTPUploadedFileImpl(filename, contentType, filedata));
+					Logger.minor(this, "Name = " + part.name + " length = " + part.data.size() + " filename = " + part.filename);
+				if(part.filename != null)
+					uploadedFiles.put(part.name, new HTTPUploadedFileImpl(part.filename, part.contentType, part.data));
 			}
 		}
 		finally {
-			Closer.close(bbos);
-			Closer.close(bucketos);
-			Closer.close(lis);
-			Closer.close(bis);
 			Closer.close(is);
 		}
 	}
@@ -0,0 +1,257 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.Closer;
+
+/**
+ * Parses a multipart/form-data body in a single pass, writing each part straight into a
+ * Bucket. The stream is read in large blocks into a sliding buffer, which is searched for the
+ * boundary with Boyer-Moore-Horspool, so most of the data is only looked at once per boundary
+ * length rather than once per byte. Parts with no name are skipped.
+ */
+class MultipartParser {
+
+	/** Size of the read buffer, unless the boundary is huge. */
+	static final int BUFFER_SIZE = 32768;
+	/** Maximum length of a header line in a part. */
+	static final int MAX_HEADER_LINE = 200;
+
+	/** One part of the body. */
+	static class Part {
+		final String name;
+		/** The filename, if this is an uploaded file, otherwise null. */
+		final String filename;
+		final String contentType;
+		final Bucket data;
+
+		Part(String name, String filename, String contentType, Bucket data) {
+			this.name = name;
+			this.filename = filename;
+			this.contentType = contentType;
+			this.data = data;
+		}
+	}
+
+	private final InputStream is;
+	private final BucketFactory bf;
+	/** CRLF, "--", and the boundary. */
+	private final byte[] delimiter;
+	/** How far to move the search for each value of the last byte compared. */
+	private final int[] shift;
+	private final byte[] buf;
+	/** Unread data is between start and end. */
+	private int start;
+	private int end;
+	private boolean eof;
+	private boolean started;
+	private boolean finished;
+
+	/**
+	 * @param is The body. Not closed by the parser.
+	 * @param boundary The boundary from the content-type, without the leading "--".
+	 * @param bf Where to create the buckets for the parts.
+	 */
+	MultipartParser(InputStream is, String boundary, BucketFactory bf) {
+		this.is = is;
+		this.bf = bf;
+		try {
+			delimiter = ("\r\n--" + boundary).getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+		int m = delimiter.length;
+		shift = new int[256];
+		for(int i = 0; i < shift.length; i++)
+			shift[i] = m;
+		for(int i = 0; i < m - 1; i++)
+			shift[delimiter[i] & 0xFF] = m - 1 - i;
+		buf = new byte[Math.max(BUFFER_SIZE, Math.max(m, MAX_HEADER_LINE) * 4)];
+		// The first boundary need not be preceded by a CRLF.
+		buf[0] = '\r';
+		buf[1] = '\n';
+		end = 2;
+	}
+
+	/**
+	 * Read the next part with a name.
+	 * @return The part, or null if there are no more. The caller must free its data.
+	 */
+	Part readPart() throws IOException {
+		if(!started) {
+			started = true;
+			// Skip the preamble.
+			if(!copyToDelimiter(null)) finished = true;
+		}
+		while(!finished) {
+			// The rest of the boundary line. "--" means this was the last one.
+			String line = readLine(MAX_HEADER_LINE, false);
+			if(line == null || line.startsWith("--")) {
+				finished = true;
+				break;
+			}
+			String name = null;
+			String filename = null;
+			String contentType = null;
+			// should be UTF-8 as we told the browser to send UTF-8
+			while((line = readLine(MAX_HEADER_LINE, true)) != null) {
+				if(line.length() == 0)
+					break;
+
+				String[] lineparts = line.split(":");
+				if(lineparts == null || lineparts.length == 0)
+					continue;
+				String hdrname = lineparts[0].trim();
+
+				if(hdrname.equalsIgnoreCase("Content-Disposition")) {
+					if(lineparts.length < 2)
+						continue;
+					String[] valueparts = lineparts[1].split(";");
+
+					for(int i = 0; i < valueparts.length; i++) {
+						String[] subparts = valueparts[i].split("=");
+						if(subparts.length != 2)
+							continue;
+						String fieldname = subparts[0].trim();
+						String value = subparts[1].trim();
+						if(value.startsWith("\"") && value.endsWith("\""))
+							value = value.substring(1, value.length() - 1);
+						if(fieldname.equalsIgnoreCase("name"))
+							name = value;
+						else if(fieldname.equalsIgnoreCase("filename"))
+							filename = value;
+					}
+				} else if(hdrname.equalsIgnoreCase("Content-Type")) {
+					if(lineparts.length < 2)
+						continue;
+					contentType = lineparts[1].trim();
+				}
+				// Otherwise irrelevant header
+			}
+			if(line == null) {
+				finished = true;
+				break;
+			}
+			if(name == null) {
+				if(!copyToDelimiter(null)) finished = true;
+				continue;
+			}
+			// We don't know how big the part will be. Temp buckets are moved to disk if they grow.
+			Bucket data = bf.makeBucket(end - start);
+			OutputStream os = null;
+			boolean success = false;
+			try {
+				os = data.getOutputStream();
+				if(!copyToDelimiter(os)) finished = true;
+				os.close();
+				os = null;
+				success = true;
+			} finally {
+				Closer.close(os);
+				if(!success) data.free();
+			}
+			return new Part(name, filename, contentType, data);
+		}
+		return null;
+	}
+
+	/**
+	 * Copy everything up to the next delimiter, and skip the delimiter.
+	 * @param out Where to write the data, or null to discard it.
+	 * @return False if we reached the end of the stream without finding a delimiter.
+	 */
+	private boolean copyToDelimiter(OutputStream out) throws IOException {
+		int m = delimiter.length;
+		while(true) {
+			int found = indexOfDelimiter();
+			if(found >= 0) {
+				if(out != null) out.write(buf, start, found - start);
+				start = found + m;
+				return true;
+			}
+			// The last m-1 bytes could be the start of a delimiter; everything before can go.
+			int safe = Math.max(start, end - (m - 1));
+			if(out != null && safe > start) out.write(buf, start, safe - start);
+			start = safe;
+			if(!fill()) {
+				if(out != null) out.write(buf, start, end - start);
+				start = end;
+				return false;
+			}
+		}
+	}
+
+	/** @return The offset of the first delimiter in the buffer, or -1. */
+	private int indexOfDelimiter() {
+		int m = delimiter.length;
+		int last = m - 1;
+		for(int i = start; i + m <= end; i += shift[buf[i + last] & 0xFF]) {
+			int j = last;
+			while(buf[i + j] == delimiter[j]) {
+				if(j == 0) return i;
+				j--;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Read a \n or \r\n terminated line.
+	 * @return The line, without the terminator, or null at the end of the stream.
+	 */
+	private String readLine(int maxLength, boolean utf) throws IOException {
+		int scanned = 0;
+		while(true) {
+			for(int i = start + scanned; i < end; i++) {
+				if(buf[i] != '\n') continue;
+				int lineEnd = i;
+				if(lineEnd > start && buf[lineEnd - 1] == '\r') lineEnd--;
+				if(lineEnd - start > maxLength)
+					throw new IOException("Line too long in multipart data");
+				String line = new String(buf, start, lineEnd - start, utf ? "UTF-8" : "ISO-8859-1");
+				start = i + 1;
+				return line;
+			}
+			scanned = end - start;
+			if(scanned > maxLength + 1)
+				throw new IOException("Line too long in multipart data");
+			if(!fill()) {
+				if(start == end) return null;
+				String line = new String(buf, start, end - start, utf ? "UTF-8" : "ISO-8859-1");
+				start = end;
+				return line;
+			}
+		}
+	}
+
+	/**
+	 * Read more data into the buffer, moving the unread data to the start if necessary.
+	 * @return False if there is no more data.
+	 */
+	private boolean fill() throws IOException {
+		if(eof) return false;
+		if(start == end) {
+			start = end = 0;
+		} else if(buf.length - end < buf.length / 4) {
+			System.arraycopy(buf, start, buf, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		int read = is.read(buf, end, buf.length - end);
+		if(read < 0) {
+			eof = true;
+			return false;
+		}
+		end += read;
+		return true;
+	}
+
+}
@@ -118,6 +118,10 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	
 	private int fproxyConnections;
 	
+	/** If true, connections wait for requests on the HTTPConnectionSelector rather than each
+	 * having a thread. */
+	private volatile boolean enableConnectionSelector;
+	
 	private boolean finishedStartup;
 	
 	/** The PushDataManager handles all the pushing tasks*/
@@ -678,6 +682,22 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		}, false);
 		maxFproxyConnections = fproxyConfig.getInt("maxFproxyConnections");
 		
+		fproxyConfig.register("enableConnectionSelector", true, configItemOrder++, true, false, "SimpleToadletServer.enableConnectionSelector", "SimpleToadletServer.enableConnectionSelectorLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return enableConnectionSelector;
+					}
+
+					@Override
+					public void set(Boolean val) {
+						enableConnectionSelector = val;
+					}
+			
+		});
+		enableConnectionSelector = fproxyConfig.getBoolean("enableConnectionSelector");
+		
 		fproxyConfig.register("metaRefreshSamePageInterval", 1, configItemOrder++, true, false, "SimpleToadletServer.metaRefreshSamePageInterval", "SimpleToadletServer.metaRefreshSamePageIntervalLong",
 				new IntCallback() {
 
@@ -783,7 +803,9 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		} else {
-			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			// Each connection is only read or written by one thread at a time, whether or not
+			// the selector is enabled.
+			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true, true);
 		}
 	}		
 
@@ -936,18 +958,31 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		} catch (SocketException e1) {
 			Logger.error(this, "Could not set so-timeout to 500ms; on-the-fly disabling of the interface will not work");
 		}
+		HTTPConnectionSelector selector;
+		try {
+			selector = new HTTPConnectionSelector(this, executor, pageMaker);
+			Thread t = new Thread(selector, "HTTP connection selector");
+			t.setDaemon(true);
+			t.start();
+		} catch (IOException e) {
+			Logger.error(this, "Could not create selector, using a thread per connection: "+e, e);
+			selector = null;
+		}
+		try {
+			acceptConnections(selector);
+		} finally {
+			if(selector != null) selector.shutdown();
+		}
+	}
+	
+	private void acceptConnections(HTTPConnectionSelector selector) {
 		boolean finishedStartup = false;
 		while(true) {
 			synchronized(this) {
-				while(fproxyConnections > maxFproxyConnections) {
-					try {
-						wait();
-					} catch (InterruptedException e) {
-						// Ignore
-					}
-				}
-				if((!finishedStartup) && this.finishedStartup)
+				if((!finishedStartup) && this.finishedStartup) {
 					finishedStartup = true;
+					if(selector != null) selector.setFinishedStartup();
+				}
 				if(myThread == null) return;
 			}
 			Socket conn = networkInterface.accept();
@@ -957,11 +992,27 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            // The selector limits the number of requests being handled, so doesn't need to block accept.
+            if(enableConnectionSelector && selector != null && selector.add(conn))
+            	continue;
+			synchronized(this) {
+				while(fproxyConnections > maxFproxyConnections) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+			}
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
 	}
 	
+	synchronized int getMaxFproxyConnections() {
+		return maxFproxyConnections;
+	}
+	
 	public class SocketHandler implements PrioRunnable {
 
 		Socket sock;
@@ -15,10 +15,13 @@ import freenet.client.async.ClientRequester;
 import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
 import freenet.io.comm.IncomingPacketFilterImpl;
+import freenet.io.comm.UdpSocketHandler;
 import freenet.io.xfer.BlockReceiver;
 import freenet.io.xfer.BlockTransmitter;
 import freenet.l10n.NodeL10n;
 import freenet.keys.FreenetURI;
+import freenet.keys.SSKVerifier;
+import freenet.node.FNPPacketMangler;
 import freenet.node.Location;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
@@ -627,6 +630,9 @@ public class StatisticsToadlet extends Toadlet {
 		HTMLNode threadsInfoboxContent = node.addChild("div", "class", "infobox-content");
 		int[] activeThreadsByPriority = stats.getActiveThreadsByPriority();
 		int[] waitingThreadsByPriority = stats.getWaitingThreadsByPriority();
+		int[] queuedJobsByPriority = stats.getQueuedJobsByPriority();
+		double[] averageQueueWaitByPriority = stats.getAverageQueueWaitByPriority();
+		double[] maxQueueWaitByPriority = stats.getMaxQueueWaitByPriority();
 		
 		HTMLNode threadsByPriorityTable = threadsInfoboxContent.addChild("table", "border", "0");
 		HTMLNode row = threadsByPriorityTable.addChild("tr");
@@ -634,12 +640,22 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("priority"));
 		row.addChild("th", l10n("running"));
 		row.addChild("th", l10n("waiting"));
+		if(queuedJobsByPriority != null) {
+			row.addChild("th", l10n("queuedJobs"));
+			row.addChild("th", l10n("averageQueueWait"));
+			row.addChild("th", l10n("maxQueueWait"));
+		}
 		
 		for(int i=0; i<activeThreadsByPriority.length; i++) {
 			row = threadsByPriorityTable.addChild("tr");
 			row.addChild("td", String.valueOf(i+1));
 			row.addChild("td", String.valueOf(activeThreadsByPriority[i]));
 			row.addChild("td", String.valueOf(waitingThreadsByPriority[i]));
+			if(queuedJobsByPriority != null) {
+				row.addChild("td", String.valueOf(queuedJobsByPriority[i]));
+				row.addChild("td", fix1p2.format(averageQueueWaitByPriority[i]) + "ms");
+				row.addChild("td", fix1p2.format(maxQueueWaitByPriority[i]) + "ms");
+			}
 		}
 	}
 
@@ -679,6 +695,25 @@ public class StatisticsToadlet extends Toadlet {
 			row.addChild("td", TimeUtil.formatTime(entry.totalTime, 2, true));
 		}
 		
+		// Per job-type time waiting, running and committing
+		
+		HTMLNode jobTimingStatisticsTable = threadsInfoboxContent.addChild("table", "border", "0");
+		row = jobTimingStatisticsTable.addChild("tr");
+		row.addChild("th", l10n("jobType"));
+		row.addChild("th", l10n("count"));
+		row.addChild("th", l10n("averageQueueWait"));
+		row.addChild("th", l10n("avgRunTime"));
+		row.addChild("th", l10n("avgCommitShare"));
+		
+		for(NodeStats.DatabaseJobTimedStats entry : stats.getDatabaseJobTimingStatistics()) {
+			row = jobTimingStatisticsTable.addChild("tr");
+			row.addChild("td", entry.keyStr);
+			row.addChild("td", Long.toString(entry.count));
+			row.addChild("td", fix1p2.format(entry.avgQueueTime) + "ms");
+			row.addChild("td", fix1p2.format(entry.avgRunTime) + "ms");
+			row.addChild("td", fix1p2.format(entry.avgCommitTime) + "ms");
+		}
+		
 		HTMLNode jobQueueStatistics = threadsInfoboxContent.addChild("table", "border", "0");
 		row = jobQueueStatistics .addChild("tr");
 		row.addChild("th", l10n("queuedCount"));
@@ -863,6 +898,15 @@ public class StatisticsToadlet extends Toadlet {
 			}
 		}
 
+		long sskChecks = SSKVerifier.getChecks();
+		if(sskChecks > 0) {
+			HTMLNode sskList = storeSizeInfoboxContent.addChild("ul");
+			sskList.addChild("li", l10n("sskVerification", new String[] { "count", "hitRate", "time" },
+					new String[] { thousandPoint.format(sskChecks),
+						fix3p1pct.format((double)SSKVerifier.getCacheHits() / sskChecks),
+						fix1p2.format(SSKVerifier.getAverageVerifyTime()) + "ms" }));
+		}
+
 	}
 
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
@@ -1317,6 +1361,18 @@ public class StatisticsToadlet extends Toadlet {
 		if(decoded != null) {
 			overviewList.addChild("li", "packetsDecoded:\u00a0"+fix3p1pct.format(((double)decoded[0])/((double)decoded[1]))+"\u00a0("+decoded[1]+")");
 		}
+		for(UdpSocketHandler handler : node.getPacketSocketHandlers()) {
+			long[] pipeline = handler.getReceivePipelineStats();
+			if(pipeline == null) continue;
+			overviewList.addChild("li", "receivePipeline("+handler.getPortNumber()+"):\u00a0"+pipeline[0]+"\u00a0packets, dropped:\u00a0"+
+					pipeline[1]+"\u00a0no buffer,\u00a0"+pipeline[2]+"\u00a0queue full, queued:\u00a0"+
+					fix1p2.format(pipeline[3] / (1000.0 * 1000.0))+"ms\u00a0average,\u00a0"+fix1p2.format(pipeline[4] / (1000.0 * 1000.0))+"ms\u00a0max");
+		}
+		long[] trial = FNPPacketMangler.getTrialDecryptionStats();
+		if(trial[0] > 0) {
+			overviewList.addChild("li", "unknownAddressPackets:\u00a0"+trial[0]+"\u00a0(peers tried:\u00a0"+fix1p1.format(((double)trial[1])/((double)trial[0]))+
+					"\u00a0per packet, moved peers:\u00a0"+trial[2]+", other peers:\u00a0"+trial[3]+", limited:\u00a0"+trial[4]+")");
+		}
 		
 	}
 
@@ -367,205 +367,222 @@ public class ToadletContextImpl implements ToadletContext {
 	 * Handle an incoming connection. Blocking, obviously.
 	 */
 	public static void handle(Socket sock, ToadletContainer container, PageMaker pageMaker) {
+		InputStream is;
+		try {
+			is = new BufferedInputStream(sock.getInputStream(), 4096);
+		} catch (IOException e) {
+			return;
+		}
+		while(handleRequest(sock, is, container, pageMaker)) {
+			// Persistent connection, wait for the next request.
+		}
+	}
+	
+	/**
+	 * Read and handle one request on a connection. Blocking.
+	 * @param is The stream to read the request from. If the connection is reused, the next
+	 * request is read from the same stream, so anything read ahead must stay in it.
+	 * @return True if the connection is still open and may be used for another request.
+	 */
+	static boolean handleRequest(Socket sock, InputStream is, ToadletContainer container, PageMaker pageMaker) {
 		try {
-			InputStream is = new BufferedInputStream(sock.getInputStream(), 4096);
-			
 			LineReadingInputStream lis = new LineReadingInputStream(is);
 			
+			String firstLine;
 			while(true) {
-				
-				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
+				firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
 				if (firstLine == null) {
 					sock.close();
-					return;
-				} else if (firstLine.equals("")) {
-					continue;
+					return false;
+				} else if (!firstLine.equals("")) {
+					break;
 				}
-				
-				if(logMINOR)
-					Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
-				
-				String[] split = firstLine.split(" ");
-				
-				if(split.length != 3)
-					throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
-				
-				if(!split[2].startsWith("HTTP/1."))
-					throw new ParseException("Unrecognized protocol "+split[2], -1);
-				
-				URI uri;
-				try {
-					uri = URIPreEncoder.encodeURI(split[1]).normalize();
-					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
-				} catch (URISyntaxException e) {
-					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
+			}
+			
+			if(logMINOR)
+				Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
+			
+			String[] split = firstLine.split(" ");
+			
+			if(split.length != 3)
+				throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
+			
+			if(!split[2].startsWith("HTTP/1."))
+				throw new ParseException("Unrecognized protocol "+split[2], -1);
+			
+			URI uri;
+			try {
+				uri = URIPreEncoder.encodeURI(split[1]).normalize();
+				if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
+			} catch (URISyntaxException e) {
+				sendURIParseError(sock.getOutputStream(), true, e);
+				return false;
+			}
+			String method = split[0];
+			
+			MultiValueTable<String,String> headers = new MultiValueTable<String,String>();
+			
+			while(true) {
+				String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
+				if (line == null) {
+					sock.close();
+					return false;
 				}
-				String method = split[0];
-				
-				MultiValueTable<String,String> headers = new MultiValueTable<String,String>();
-				
-				while(true) {
-					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
-					if (line == null) {
-						sock.close();
-						return;
-					}
-					//System.out.println("Length="+line.length()+": "+line);
-					if(line.length() == 0) break;
-					int index = line.indexOf(':');
-					if (index < 0) {
-						throw new ParseException("Missing ':' in request header field", -1);
-					}
-					String before = line.substring(0, index).toLowerCase();
-					String after = line.substring(index+1);
-					after = after.trim();
-					headers.put(before, after);
+				//System.out.println("Length="+line.length()+": "+line);
+				if(line.length() == 0) break;
+				int index = line.indexOf(':');
+				if (index < 0) {
+					throw new ParseException("Missing ':' in request header field", -1);
 				}
-				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
+				String before = line.substring(0, index).toLowerCase();
+				String after = line.substring(index+1);
+				after = after.trim();
+				headers.put(before, after);
+			}
+			
+			boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
 
-				boolean allowPost = container.allowPosts();
-				BucketFactory bf = container.getBucketFactory();
-				
-				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container,uri);
-				ctx.shouldDisconnect = disconnect;
-				
-				/*
-				 * copy the data into a bucket now,
-				 * before we go into the redirect loop
-				 */
-				
-				Bucket data;
+			boolean allowPost = container.allowPosts();
+			BucketFactory bf = container.getBucketFactory();
+			
+			ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container,uri);
+			ctx.shouldDisconnect = disconnect;
+			
+			/*
+			 * copy the data into a bucket now,
+			 * before we go into the redirect loop
+			 */
+			
+			Bucket data;
 
-				boolean methodIsConfigurable = true;
+			boolean methodIsConfigurable = true;
 
-				String slen = headers.get("content-length");
+			String slen = headers.get("content-length");
 
-				if (METHODS_MUST_HAVE_DATA.contains(method)) {
-					// <method> must have data
-					methodIsConfigurable = false;
-					if (slen == null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
-					// <method> can not have data
-					methodIsConfigurable = false;
-					if (slen != null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
+			if (METHODS_MUST_HAVE_DATA.contains(method)) {
+				// <method> must have data
+				methodIsConfigurable = false;
+				if (slen == null) {
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
 				}
-
+			} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
+				// <method> can not have data
+				methodIsConfigurable = false;
 				if (slen != null) {
-					long len;
-					try {
-						len = Integer.parseInt(slen);
-						if(len < 0) throw new NumberFormatException("content-length less than 0");
-					} catch (NumberFormatException e) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
-						data = bf.makeBucket(len);
-						BucketTools.copyFrom(data, is, len);
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
+				}
+			}
+
+			if (slen != null) {
+				long len;
+				try {
+					len = Integer.parseInt(slen);
+					if(len < 0) throw new NumberFormatException("content-length less than 0");
+				} catch (NumberFormatException e) {
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
+				}
+				if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
+					data = bf.makeBucket(len);
+					BucketTools.copyFrom(data, is, len);
+				} else {
+					FileUtil.skipFully(is, len);
+					if (method.equals("POST")) {
+						ctx.sendMethodNotAllowed("POST", true);
 					} else {
-						FileUtil.skipFully(is, len);
-						if (method.equals("POST")) {
-							ctx.sendMethodNotAllowed("POST", true);
-						} else {
-							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
-						}
-						ctx.close();
-						return;
+						sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
 					}
-				} else {
-					// we're not doing to use it, but we have to keep
-					// the compiler happy
-					data = null;
+					ctx.close();
+					return false;
 				}
+			} else {
+				// we're not doing to use it, but we have to keep
+				// the compiler happy
+				data = null;
+			}
 
-				if (!container.enableExtendedMethodHandling()) {
-					if (!METHODS_RESTRICTED_MODE.contains(method)) {
-						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
-					}
+			if (!container.enableExtendedMethodHandling()) {
+				if (!METHODS_RESTRICTED_MODE.contains(method)) {
+					sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
+					return false;
 				}
+			}
 
-				// Handle it.
-				try {
-					boolean redirect = true;
-					while (redirect) {
-						// don't go around the loop unless set explicitly
-						redirect = false;
-						
-						Toadlet t;
-						try {
-							t = container.findToadlet(uri);
-						} catch (PermanentRedirectException e) {
-							Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
-							break;
-						}
+			// Handle it.
+			try {
+				boolean redirect = true;
+				while (redirect) {
+					// don't go around the loop unless set explicitly
+					redirect = false;
 					
-						if(t == null) {
-							ctx.sendNoToadletError(ctx.shouldDisconnect);
-							break;
-						}
+					Toadlet t;
+					try {
+						t = container.findToadlet(uri);
+					} catch (PermanentRedirectException e) {
+						Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
+						break;
+					}
+				
+					if(t == null) {
+						ctx.sendNoToadletError(ctx.shouldDisconnect);
+						break;
+					}
 
-						// if the Toadlet does not support the method, we don't need to parse the data
-						// also due this pre check a 'NoSuchMethodException' should never appear
-						if (!(t.findSupportedMethods().contains(method))) {
-							ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
-							break;
-						}
+					// if the Toadlet does not support the method, we don't need to parse the data
+					// also due this pre check a 'NoSuchMethodException' should never appear
+					if (!(t.findSupportedMethods().contains(method))) {
+						ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
+						break;
+					}
 
-						HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
+					HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
+					try {
+						String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
 						try {
-							String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
-							try {
-								Class<? extends Toadlet> c = t.getClass();
-								Method m = c.getMethod(methodName, HANDLE_PARAMETERS);
-								if (methodIsConfigurable) {
-									AllowData anno = m.getAnnotation(AllowData.class);
-									if (anno == null) {
-										if (data != null) {
-											sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
-											ctx.close();
-											return;
-										}
-									} else if (anno.value()) {
-										if (data == null) {
-											sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
-											ctx.close();
-											return;
-										}
+							Class<? extends Toadlet> c = t.getClass();
+							Method m = c.getMethod(methodName, HANDLE_PARAMETERS);
+							if (methodIsConfigurable) {
+								AllowData anno = m.getAnnotation(AllowData.class);
+								if (anno == null) {
+									if (data != null) {
+										sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+										ctx.close();
+										return false;
+									}
+								} else if (anno.value()) {
+									if (data == null) {
+										sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
+										ctx.close();
+										return false;
 									}
 								}
-								ctx.setActiveToadlet(t);
-								Object arglist[] = new Object[] {uri, req, ctx};
-								m.invoke(t, arglist);
-							} catch (InvocationTargetException ite) {
-								throw ite.getCause();
 							}
-						} catch (RedirectException re) {
-							uri = re.newuri;
-							redirect = true;
-						} finally {
-							req.freeParts();
+							ctx.setActiveToadlet(t);
+							Object arglist[] = new Object[] {uri, req, ctx};
+							m.invoke(t, arglist);
+						} catch (InvocationTargetException ite) {
+							throw ite.getCause();
 						}
+					} catch (RedirectException re) {
+						uri = re.newuri;
+						redirect = true;
+					} finally {
+						req.freeParts();
 					}
-					if(ctx.shouldDisconnect) {
-						sock.close();
-						return;
-					}
-				} finally {
-					if(data != null) data.free();
 				}
+				if(ctx.shouldDisconnect) {
+					sock.close();
+					return false;
+				}
+			} finally {
+				if(data != null) data.free();
 			}
+			return true;
 			
 		} catch (ParseException e) {
 			try {
@@ -600,6 +617,7 @@ public class ToadletContextImpl implements ToadletContext {
 				// ignore and return
 			}
 		}
+		return false;
 	}
 	
 	private void setActiveToadlet(Toadlet t) {
@@ -38,6 +38,18 @@ public class HMAC {
 	}
 
 	public byte[] mac(byte[] K, byte[] text, int macbytes) {
+		byte[] rv = new byte[macbytes];
+		mac(K, text, 0, text.length, rv, 0, macbytes);
+		return rv;
+	}
+
+	/**
+	 * Compute the MAC of part of a buffer, and write it to another (or the same) buffer.
+	 * This avoids copying the text, e.g. when the MAC is stored in front of it in a packet.
+	 * @param macbytes The number of bytes of the MAC to write. If this is more than the
+	 * digest length, the rest is left unchanged.
+	 */
+	public void mac(byte[] K, byte[] text, int offset, int length, byte[] out, int outOffset, int macbytes) {
 		byte[] K0 = null;
 
 		if(K.length == B) // Step 1
@@ -58,7 +70,7 @@ public class HMAC {
 
 		// Step 5/6
 		d.update(IS1);
-		d.update(text);
+		d.update(text, offset, length);
 		IS1 = d.digest();
 
 		// Step 7
@@ -70,13 +82,7 @@ public class HMAC {
 		IS1 = d.digest();
 
 		// Step 10
-		if(macbytes == IS1.length)
-			return IS1;
-		else {
-			byte[] rv = new byte[macbytes];
-			System.arraycopy(IS1, 0, rv, 0, Math.min(rv.length, IS1.length));
-			return rv;
-		}
+		System.arraycopy(IS1, 0, out, outOffset, Math.min(macbytes, IS1.length));
 	}
 
 	public static void main(String[] args) throws UnsupportedEncodingException {
@@ -139,6 +145,20 @@ public class HMAC {
 		}
 	}
 
+	/** Compute the HMAC-SHA256 of part of a buffer, writing the first macbytes bytes of it to
+	 * another (or the same) buffer. */
+	public static void macWithSHA256(byte[] K, byte[] text, int offset, int length, byte[] out, int outOffset, int macbytes) {
+		MessageDigest sha256 = null;
+		try {
+			sha256 = SHA256.getMessageDigest();
+			HMAC hash = new HMAC(sha256);
+			hash.mac(K, text, offset, length, out, outOffset, macbytes);
+		} finally {
+			if(sha256 != null)
+				SHA256.returnMessageDigest(sha256);
+		}
+	}
+
 	public static boolean verifyWithSHA256(byte[] K, byte[] text, byte[] mac) {
 		MessageDigest sha256 = null;
 		try {
@@ -4,13 +4,19 @@ import freenet.crypt.ciphers.Rijndael;
 
 /**
  * Optimised PCFBMode for Rijndael.
- * All this actually does is avoid two new int[4]'s per cycle.
+ * Avoids two new int[4]'s per cycle, and processes whole blocks a word at a time: the
+ * register is kept as big-endian ints while we are in the middle of a long buffer, rather
+ * than being converted to and from bytes and XOR'ed byte by byte for every block.
  */
 public final class RijndaelPCFBMode extends PCFBMode {
 
     /** Temporary variables to remove allocations from inner crypto loop. These are wiped
      * by the encrypt function. */
     private final int[] a, t;
+    /** The register as words, only valid during a bulk operation. */
+    private final int[] words;
+    /** The encrypted register as words. */
+    private final int[] stream;
 
     // Refills the encrypted buffer with data.
     //private synchronized void refillBuffer() {
@@ -27,6 +33,8 @@ public final class RijndaelPCFBMode extends PCFBMode {
     	int tempSize = c.getTempArraySize();
     	a = new int[tempSize];
     	t = new int[tempSize];
+    	words = new int[tempSize];
+    	stream = new int[tempSize];
     }
 
     public RijndaelPCFBMode(Rijndael c, byte[] iv, int offset) {
@@ -34,6 +42,86 @@ public final class RijndaelPCFBMode extends PCFBMode {
     	int tempSize = c.getTempArraySize();
     	a = new int[tempSize];
     	t = new int[tempSize];
+    	words = new int[tempSize];
+    	stream = new int[tempSize];
     }
-    
+
+    @Override
+    public byte[] blockEncipher(byte[] buf, int off, int len) {
+        int blockLength = feedback_register.length;
+        if (registerPointer != blockLength) {
+            // Use up the rest of the current block first.
+            int n = Math.min(len, blockLength - registerPointer);
+            super.blockEncipher(buf, off, n);
+            off += n;
+            len -= n;
+        }
+        if (len >= blockLength) {
+            int blocks = len / blockLength;
+            bulk(buf, off, blocks, true);
+            off += blocks * blockLength;
+            len -= blocks * blockLength;
+        }
+        if (len > 0)
+            super.blockEncipher(buf, off, len);
+        return buf;
+    }
+
+    @Override
+    public byte[] blockDecipher(byte[] buf, int off, int len) {
+        int blockLength = feedback_register.length;
+        if (registerPointer != blockLength) {
+            int n = Math.min(len, blockLength - registerPointer);
+            super.blockDecipher(buf, off, n);
+            off += n;
+            len -= n;
+        }
+        if (len >= blockLength) {
+            int blocks = len / blockLength;
+            bulk(buf, off, blocks, false);
+            off += blocks * blockLength;
+            len -= blocks * blockLength;
+        }
+        if (len > 0)
+            super.blockDecipher(buf, off, len);
+        return buf;
+    }
+
+    /**
+     * Encrypt or decrypt whole blocks, starting with the register empty (registerPointer at
+     * the end). Leaves the register holding the last ciphertext block, still empty, exactly
+     * as the byte-at-a-time code would.
+     */
+    private void bulk(byte[] buf, int off, int blocks, boolean encrypt) {
+        Rijndael cipher = (Rijndael) c;
+        int count = words.length;
+        for (int i = 0, j = 0; i < count; i++, j += 4)
+            words[i] = toInt(feedback_register, j);
+        for (int b = 0; b < blocks; b++) {
+            cipher.encipher(words, stream, a, t);
+            for (int i = 0; i < count; i++, off += 4) {
+                int in = toInt(buf, off);
+                int out = in ^ stream[i];
+                buf[off] = (byte) (out >>> 24);
+                buf[off+1] = (byte) (out >>> 16);
+                buf[off+2] = (byte) (out >>> 8);
+                buf[off+3] = (byte) out;
+                // The ciphertext is fed back.
+                words[i] = encrypt ? out : in;
+            }
+        }
+        for (int i = 0, j = 0; i < count; i++) {
+            int w = words[i];
+            feedback_register[j++] = (byte) (w >>> 24);
+            feedback_register[j++] = (byte) (w >>> 16);
+            feedback_register[j++] = (byte) (w >>> 8);
+            feedback_register[j++] = (byte) w;
+        }
+    }
+
+    private static int toInt(byte[] buf, int off) {
+        return (buf[off] & 0xFF) << 24 | (buf[off+1] & 0xFF) << 16 |
+            (buf[off+2] & 0xFF) << 8 | (buf[off+3] & 0xFF);
+    }
+
 }
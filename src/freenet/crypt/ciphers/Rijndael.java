@@ -1,9 +1,12 @@
 package freenet.crypt.ciphers;
 
 import java.security.InvalidKeyException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.UnsupportedCipherException;
+import freenet.support.ByteArrayWrapper;
 import freenet.support.Logger;
 
 /*
@@ -20,6 +23,16 @@ public class Rijndael implements BlockCipher {
 	private Object sessionKey;
 	private final int keysize, blocksize;
 
+	/** Recently expanded key schedules, keyed by the key followed by the block size in
+	 * bytes. The schedules are never modified once made, so can be shared. */
+	@SuppressWarnings("serial")
+	private static final Map<ByteArrayWrapper, Object> sessionKeyCache = new LinkedHashMap<ByteArrayWrapper, Object>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Object> eldest) {
+			return size() > 64;
+		}
+	};
+
 	/**
 	 * Create a Rijndael instance.
 	 * @param keysize The key size.
@@ -67,6 +80,33 @@ public class Rijndael implements BlockCipher {
 		}
 	}
 
+	/**
+	 * Like initialize(), but reuse the key schedule if the same key has been used recently.
+	 * Only worth it for keys which are used over and over again, e.g. the key of a splitfile
+	 * whose blocks all share one crypto key, or a connection setup key. Note that the cache
+	 * keeps the key in memory until it is pushed out by other keys.
+	 */
+	public final void initializeCached(byte[] key) {
+		byte[] cacheKey = new byte[(keysize>>3)+1];
+		System.arraycopy(key, 0, cacheKey, 0, keysize>>3);
+		cacheKey[keysize>>3] = (byte)(blocksize>>3);
+		ByteArrayWrapper wrapper = new ByteArrayWrapper(cacheKey);
+		Object cached;
+		synchronized(sessionKeyCache) {
+			cached = sessionKeyCache.get(wrapper);
+		}
+		if(cached != null) {
+			sessionKey = cached;
+			return;
+		}
+		sessionKey = null;
+		initialize(key);
+		if(sessionKey == null) return; // Invalid key, already logged.
+		synchronized(sessionKeyCache) {
+			sessionKeyCache.put(wrapper, sessionKey);
+		}
+	}
+
 	@Override
 	public synchronized final void encipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
@@ -92,6 +132,22 @@ public class Rijndael implements BlockCipher {
 		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8, a, t);
 	}
 
+	/**
+	 * Encrypt one block held as big-endian words, see RijndaelPCFBMode.
+	 * @param block getTempArraySize() words.
+	 * @param result Where to put the encrypted block. May be the same as block.
+	 * @param a Temporary array of getTempArraySize() words.
+	 * @param t Temporary array of getTempArraySize() words.
+	 */
+	// only consumer is RijndaelPCFBMode
+	public synchronized final void encipher(int[] block, int[] result, int[] a, int[] t) {
+		if(block.length != blocksize/(8*4) || result.length != block.length)
+			throw new IllegalArgumentException();
+		if(a.length != t.length || t.length != blocksize/(8*4))
+			throw new IllegalArgumentException();
+		Rijndael_Algorithm.blockEncrypt(block, result, sessionKey, a, t);
+	}
+
 	@Override
 	public synchronized final void decipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
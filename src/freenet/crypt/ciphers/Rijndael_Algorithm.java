@@ -77,6 +77,21 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 		{ {0, 0}, {1, 7}, {3, 5}, {4, 4} }
 	};
 
+	/** shiftIndex[SC][k][i] == (i + shifts[SC][k][0]) % BC, so the word-oriented
+	 * encryption doesn't need a division for every table lookup. */
+	private static final int[][][] shiftIndex = new int[3][4][];
+
+	static {
+		for (int sc = 0; sc < 3; sc++) {
+			int bc = 4 + 2 * sc;
+			for (int k = 0; k < 4; k++) {
+				shiftIndex[sc][k] = new int[bc];
+				for (int i = 0; i < bc; i++)
+					shiftIndex[sc][k][i] = (i + shifts[sc][k][0]) % bc;
+			}
+		}
+	}
+
 	private static final char[] HEX_DIGITS = {
 		'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'
 	};
@@ -669,6 +684,50 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 		if (RDEBUG) trace(OUT, "blockEncrypt()");
 	}
 
+	/**
+	 * Encrypt exactly one block, held as big-endian words rather than bytes, so that a
+	 * caller which works on whole blocks (e.g. PCFB) doesn't have to convert between the
+	 * two for every block. Works for any block size.
+	 *
+	 * @param  in         The plaintext, blockSize/4 words.
+	 * @param  result     The buffer into which to write the resulting ciphertext. May be in.
+	 * @param  sessionKey The session key to use for encryption.
+	 * @param  a          Temporary work array of blockSize/4 words.
+	 * @param  t          Temporary work array of blockSize/4 words.
+	 */
+	static final void
+	blockEncrypt (int[] in, int[] result, Object sessionKey, int[] a, int[] t) {
+		int[][] Ke = (int[][]) ((Object[]) sessionKey)[0]; // extract encryption round keys
+
+		int BC = t.length;
+		int ROUNDS = Ke.length - 1;
+		int[] i1 = shiftIndex[(BC - 4) >> 1][1];
+		int[] i2 = shiftIndex[(BC - 4) >> 1][2];
+		int[] i3 = shiftIndex[(BC - 4) >> 1][3];
+		int i;
+
+		int[] Ker = Ke[0];
+		for (i = 0; i < BC; i++)                   // plaintext + key
+			t[i] = in[i] ^ Ker[i];
+		for (int r = 1; r < ROUNDS; r++) {          // apply round transforms
+			Ker = Ke[r];
+			for (i = 0; i < BC; i++)
+				a[i] = (T1[(t[    i ] >>> 24) & 0xFF] ^
+						T2[(t[i1[i]] >>> 16) & 0xFF] ^
+						T3[(t[i2[i]] >>>  8) & 0xFF] ^
+						T4[ t[i3[i]]         & 0xFF]  ) ^ Ker[i];
+			int[] tmp = t;
+			t = a;
+			a = tmp;
+		}
+		Ker = Ke[ROUNDS];
+		for (i = 0; i < BC; i++)                   // last round is special
+			result[i] = ((S[(t[    i ] >>> 24) & 0xFF] & 0xFF) << 24 |
+					(S[(t[i1[i]] >>> 16) & 0xFF] & 0xFF) << 16 |
+					(S[(t[i2[i]] >>>  8) & 0xFF] & 0xFF) <<  8 |
+					(S[ t[i3[i]]         & 0xFF] & 0xFF)        ) ^ Ker[i];
+	}
+
 	/**
 	 * Decrypt exactly one block of ciphertext.
 	 *
@@ -25,6 +25,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -83,11 +84,26 @@ public class NetworkInterface implements Closeable {
 	
 	private final Executor executor;
 
+	/** If true, accepted sockets have channels. See create(). */
+	private boolean selectable;
+
 	// FIXME make configurable
 	static final int maxQueueLength = 100;
 
 	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6) throws IOException {
+		return create(port, bindTo, allowedHosts, executor, ignoreUnbindableIP6, false);
+	}
+
+	/**
+	 * @param selectable If true, the server sockets are created from channels, so the sockets
+	 * they accept have channels too, and can be used with a selector. They are still blocking to
+	 * start with. But a channel's socket streams share a lock (JDK bug 4774871), so a thread
+	 * blocked reading blocks any other thread writing. Only use this if each connection is read
+	 * and written by one thread at a time.
+	 */
+	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6, boolean selectable) throws IOException {
 		NetworkInterface iface = new NetworkInterface(port, allowedHosts, executor);
+		iface.selectable = selectable;
 		try {
 			iface.setBindTo(bindTo, ignoreUnbindableIP6);
 		} catch (IOException e) {
@@ -118,6 +134,8 @@ public class NetworkInterface implements Closeable {
 	}
 
 	protected ServerSocket createServerSocket() throws IOException {
+		if(selectable)
+			return ServerSocketChannel.open().socket();
 		return new ServerSocket();
 	}
 	
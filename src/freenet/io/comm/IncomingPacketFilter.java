@@ -32,6 +32,14 @@ public interface IncomingPacketFilter {
      */
 	DECODED process(byte[] buf, int offset, int length, Peer peer, long now);
 
+    /**
+     * Which peer would process() decode a packet from this address for, without trying to
+     * decrypt it?
+     * @return The peer, or null if the address is unknown, in which case process() will
+     * trial decrypt the packet.
+     */
+    PeerContext getPeerContext(Peer peer);
+
     // Outgoing packets are handled elsewhere...
     
     /**
@@ -44,6 +44,11 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		return !context.isConnected();
 	}
 	
+	@Override
+	public PeerContext getPeerContext(Peer peer) {
+		return node.peers.getByPeer(peer, mangler);
+	}
+
 	private static final AtomicLong successfullyDecodedPackets = new AtomicLong();
 	private static final AtomicLong failedDecodePackets = new AtomicLong();
 	
@@ -72,16 +77,6 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		if(decoded == DECODED.DECODED) {
 			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 		} else if(decoded == DECODED.NOT_DECODED) {
-			
-			for(PeerNode pn : crypto.getPeerNodes()) {
-				if(pn == opn) continue;
-				if(pn.isOldFNP()) continue;
-				if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
-					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
-					return DECODED.DECODED;
-				}
-			}
-			
 			if(logMINOR) failedDecodePackets.incrementAndGet();
 		}
 		return decoded;
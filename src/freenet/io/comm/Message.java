@@ -25,8 +25,6 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 import freenet.support.ByteBufferInputStream;
@@ -61,7 +59,12 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	/** Field values, indexed by MessageType slot. Fields of a primitive kind are kept unboxed in
+	 * _primitives (booleans as 0/1, doubles as their long bits), the rest in _objects. */
+	private final Object[] _objects;
+	private final long[] _primitives;
+	/** Bit n is set if slot n has a value. */
+	private long _set;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -101,16 +104,7 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-		    for (String name : mspec.getOrderedFields()) {
-		        Class<?> type = mspec.getFields().get(name);
-		        if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-		            m.set(name, Serializer
-					        .readListFromDataInputStream(mspec.getLinkedListTypes().get(name),
-					        bb));
-		        } else {
-		            m.set(name, Serializer.readFromDataInputStream(type, bb));
-		        }
-			}
+			m.readFields(bb);
 			if (mayHaveSubMessages) {
 		    	while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
 		    		ByteBufferInputStream bb2;
@@ -151,6 +145,45 @@ public class Message {
 		return m;
 	}
 
+	/** Read the fields in slot order, straight into the slots. The types are determined by the
+	 * spec so there is no need to check them, and primitives are never boxed. */
+	private void readFields(ByteBufferInputStream bb) throws IOException {
+		int count = _spec.getFieldCount();
+		for (int i = 0; i < count; i++) {
+			switch(_spec.getFieldKind(i)) {
+			case MessageType.KIND_BOOLEAN:
+				int bool = bb.readByte();
+				if (bool != 0 && bool != 1)
+					throw new IOException("Boolean is non boolean value: "+bool);
+				_primitives[i] = bool;
+				break;
+			case MessageType.KIND_BYTE:
+				_primitives[i] = bb.readByte();
+				break;
+			case MessageType.KIND_SHORT:
+				_primitives[i] = bb.readShort();
+				break;
+			case MessageType.KIND_INT:
+				_primitives[i] = bb.readInt();
+				break;
+			case MessageType.KIND_LONG:
+				_primitives[i] = bb.readLong();
+				break;
+			case MessageType.KIND_DOUBLE:
+				_primitives[i] = Double.doubleToLongBits(bb.readDouble());
+				break;
+			default:
+				Class<?> listType = _spec.getFieldListType(i);
+				if (listType != null) { // Special handling for LinkedList to deal with element type
+					_objects[i] = Serializer.readListFromDataInputStream(listType, bb);
+				} else {
+					_objects[i] = Serializer.readFromDataInputStream(_spec.getFieldType(i), bb);
+				}
+			}
+			_set |= 1L << i;
+		}
+	}
+
 	public Message(MessageType spec) {
 		this(spec, null, 0);
 	}
@@ -167,62 +200,116 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		int count = spec.getFieldCount();
+		_objects = new Object[count];
+		_primitives = new long[count];
+	}
+
+	/** @return The slot of a field which is set, checking that it is of the given kind. */
+	private int getSlot(String key, byte kind) {
+		int i = _spec.getFieldIndex(key);
+		if (i == -1 || (_set & (1L << i)) == 0)
+			throw new FieldNotSetException(key+" not set");
+		if (_spec.getFieldKind(i) != kind)
+			throw new IncorrectTypeException(key+" is a "+_spec.getFieldType(i)+" in "+_spec.getName());
+		return i;
 	}
 
 	public boolean getBoolean(String key) {
-		return ((Boolean) _payload.get(key)).booleanValue();
+		return _primitives[getSlot(key, MessageType.KIND_BOOLEAN)] != 0;
 	}
 
 	public byte getByte(String key) {
-		return ((Byte) _payload.get(key)).byteValue();
+		return (byte) _primitives[getSlot(key, MessageType.KIND_BYTE)];
 	}
 
 	public short getShort(String key) {
-		return ((Short) _payload.get(key)).shortValue();
+		return (short) _primitives[getSlot(key, MessageType.KIND_SHORT)];
 	}
 
 	public int getInt(String key) {
-		return ((Integer) _payload.get(key)).intValue();
+		return (int) _primitives[getSlot(key, MessageType.KIND_INT)];
 	}
 
 	public long getLong(String key) {
-		return ((Long) _payload.get(key)).longValue();
+		return _primitives[getSlot(key, MessageType.KIND_LONG)];
 	}
 
 	public double getDouble(String key) {
-	    return ((Double) _payload.get(key)).doubleValue();
+	    return Double.longBitsToDouble(_primitives[getSlot(key, MessageType.KIND_DOUBLE)]);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String)getObject(key);
 	}
 
+	/** @return The value of the field, boxed if it is a primitive, or null if it is not set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int i = _spec.getFieldIndex(key);
+		if (i == -1) return null;
+		return getObject(i);
+	}
+
+	private Object getObject(int i) {
+		if ((_set & (1L << i)) == 0) return null;
+		long v = _primitives[i];
+		switch(_spec.getFieldKind(i)) {
+		case MessageType.KIND_BOOLEAN:
+			return Boolean.valueOf(v != 0);
+		case MessageType.KIND_BYTE:
+			return Byte.valueOf((byte) v);
+		case MessageType.KIND_SHORT:
+			return Short.valueOf((short) v);
+		case MessageType.KIND_INT:
+			return Integer.valueOf((int) v);
+		case MessageType.KIND_LONG:
+			return Long.valueOf(v);
+		case MessageType.KIND_DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(v));
+		default:
+			return _objects[i];
+		}
+	}
+
+	/** Set a primitive field without boxing, if it is of the given kind.
+	 * @return False if it isn't, in which case the caller should fall back to set(String, Object)
+	 * which will throw. */
+	private boolean setPrimitive(String key, byte kind, long value) {
+		int i = _spec.getFieldIndex(key);
+		if (i == -1 || _spec.getFieldKind(i) != kind) return false;
+		_primitives[i] = value;
+		_set |= 1L << i;
+		return true;
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		if (!setPrimitive(key, MessageType.KIND_BOOLEAN, b ? 1 : 0))
+			set(key, Boolean.valueOf(b));
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		if (!setPrimitive(key, MessageType.KIND_BYTE, b))
+			set(key, Byte.valueOf(b));
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		if (!setPrimitive(key, MessageType.KIND_SHORT, s))
+			set(key, Short.valueOf(s));
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		if (!setPrimitive(key, MessageType.KIND_INT, i))
+			set(key, Integer.valueOf(i));
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		if (!setPrimitive(key, MessageType.KIND_LONG, l))
+			set(key, Long.valueOf(l));
 	}
 
 	public void set(String key, double d) {
-		set(key, new Double(d));
+		if (!setPrimitive(key, MessageType.KIND_DOUBLE, Double.doubleToLongBits(d)))
+			set(key, new Double(d));
 	}
 
 	public void set(String key, Object value) {
@@ -232,7 +319,30 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		int i = _spec.getFieldIndex(key);
+		switch(_spec.getFieldKind(i)) {
+		case MessageType.KIND_BOOLEAN:
+			_primitives[i] = ((Boolean) value).booleanValue() ? 1 : 0;
+			break;
+		case MessageType.KIND_BYTE:
+			_primitives[i] = ((Byte) value).byteValue();
+			break;
+		case MessageType.KIND_SHORT:
+			_primitives[i] = ((Short) value).shortValue();
+			break;
+		case MessageType.KIND_INT:
+			_primitives[i] = ((Integer) value).intValue();
+			break;
+		case MessageType.KIND_LONG:
+			_primitives[i] = ((Long) value).longValue();
+			break;
+		case MessageType.KIND_DOUBLE:
+			_primitives[i] = Double.doubleToLongBits(((Double) value).doubleValue());
+			break;
+		default:
+			_objects[i] = value;
+		}
+		_set |= 1L << i;
 	}
 
 	public byte[] encodeToPacket() {
@@ -249,9 +359,7 @@ public class Message {
 		DataOutputStream dos = new DataOutputStream(baos);
 		try {
 			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
-			}
+			writeFields(dos);
 			dos.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -277,14 +385,45 @@ public class Message {
 		return buf;
 	}
 
+	private void writeFields(DataOutputStream dos) throws IOException {
+		int count = _spec.getFieldCount();
+		for (int i = 0; i < count; i++) {
+			if ((_set & (1L << i)) == 0) {
+				// Will throw, as it always has.
+				Serializer.writeToDataOutputStream(null, dos);
+			}
+			long v = _primitives[i];
+			switch(_spec.getFieldKind(i)) {
+			case MessageType.KIND_BOOLEAN:
+			case MessageType.KIND_BYTE:
+				dos.write((int) v);
+				break;
+			case MessageType.KIND_SHORT:
+				dos.writeShort((int) v);
+				break;
+			case MessageType.KIND_INT:
+				dos.writeInt((int) v);
+				break;
+			case MessageType.KIND_LONG:
+			case MessageType.KIND_DOUBLE:
+				// Doubles are kept as doubleToLongBits(), which is what writeDouble() writes.
+				dos.writeLong(v);
+				break;
+			default:
+				Serializer.writeToDataOutputStream(_objects[i], dos);
+			}
+		}
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder ret = new StringBuilder(1000);
 		String comma = "";
 		ret.append(_spec.getName()).append(" {");
-		for (String name : _spec.getFields().keySet()) {
+		int count = _spec.getFieldCount();
+		for (int i = 0; i < count; i++) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(_spec.getFieldName(i)).append('=').append(getObject(i));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -304,11 +443,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int i = _spec.getFieldIndex(fieldName);
+		return i != -1 && (_set & (1L << i)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r =  getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
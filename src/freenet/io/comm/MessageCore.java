@@ -21,9 +21,9 @@ package freenet.io.comm;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.Vector;
 
 import freenet.io.comm.MessageFilter.MATCHED;
 import freenet.node.PeerNode;
@@ -53,7 +53,7 @@ public class MessageCore {
 	private Dispatcher _dispatcher;
 	private Executor _executor;
 	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
+	private final MessageFilterIndex _filters = new MessageFilterIndex(System.currentTimeMillis());
 	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = 10*60*1000;  // 10 minutes; maybe this should be per message type??
@@ -68,7 +68,6 @@ public class MessageCore {
 	}
 
 	public MessageCore(Executor executor) {
-		_timedOutFilters = new Vector<MessageFilter>(32);
 		_executor = executor;
 	}
 
@@ -89,10 +88,6 @@ public class MessageCore {
         }
     }
 
-    /** Only used by removeTimedOutFilters() - if future code uses this elsewhere, we need to
-     * reconsider its locking. */
-    private final Vector<MessageFilter> _timedOutFilters;
-    
     public void start(final Ticker ticker) {
     	synchronized(this) {
     		startedTime = System.currentTimeMillis();
@@ -124,45 +119,31 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
+		List<MessageFilter> timedOut;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(!_timedOutFilters.contains(f))
-						_timedOutFilters.add(f);
-					else
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
+			// Filters with a timeout are on a timing wheel, so this only looks at the ones which
+			// are due, plus those with a callback which may ask to be timed out early.
+			timedOut = _filters.removeTimedOut(tStart);
+			if(logMINOR) {
+				for (MessageFilter f : timedOut) {
+					Logger.minor(this, "Removing "+f);
+					for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
+						Message m = it.next();
+						MATCHED status = f.match(m, true, tStart);
+						if (status == MATCHED.MATCHED) {
+							// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+							Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
+							break;
 						}
 					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
 			}
 		}
 		
-		for(MessageFilter f : _timedOutFilters) {
+		for(MessageFilter f : timedOut) {
 			f.setMessage(null);
 			f.onTimedOut(_executor);
 		}
-		_timedOutFilters.clear();
 		
 		long tEnd = System.currentTimeMillis();
 		if(tEnd - tStart > 50) {
@@ -192,39 +173,21 @@ public class MessageCore {
 					+ m.getSource() + " : " + m);
 		}
 		MessageFilter match = null;
-		ArrayList<MessageFilter> timedOut = null;
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>(0);
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, tStart);
-				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if(timedOut == null)
-						timedOut = new ArrayList<MessageFilter>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				} else if(status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
-					f.setMessage(m);
-					if(logMINOR) Logger.minor(this, "Matched (1): "+f);
-					break; // Only one match permitted per message
-				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
-			}
+			// Only one match permitted per message
+			match = _filters.match(m, tStart, timedOut);
+			if(match != null) {
+				matched = true;
+				// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
+				match.setMessage(m);
+				if(logMINOR) Logger.minor(this, "Matched (1): "+match);
+			} else if(logDEBUG) Logger.minor(this, "Did not match any of "+_filters.size()+" filters");
 		}
-		if(timedOut != null) {
-			for(MessageFilter f : timedOut) {
-				if(logMINOR) Logger.minor(this, "Timed out "+f);
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		for(MessageFilter f : timedOut) {
+			if(logMINOR) Logger.minor(this, "Timed out "+f);
+			f.setMessage(null);
+			f.onTimedOut(_executor);
 		}
 		if(match != null) {
 			match.onMatched(_executor);
@@ -238,7 +201,7 @@ public class MessageCore {
 		        Logger.error(this, "Dispatcher threw "+t, t);
 		    }
 		}
-		if(timedOut != null) timedOut.clear();
+		timedOut.clear();
 		// Keep the last few _unclaimed messages around in case the intended receiver isn't receiving yet
 		if (!matched) {
 			if(logMINOR) Logger.minor(this, "Unclaimed: "+m);
@@ -265,23 +228,11 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, tStart);
-					if(status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					} else if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if(timedOut == null)
-							timedOut = new ArrayList<MessageFilter>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
+				match = _filters.match(m, tStart, timedOut);
+				if(match != null) {
+					matched = true;
+					if(logMINOR) Logger.minor(this, "Matched (2): "+match);
+					match.setMessage(m);
 				}
 				if(!matched) {
 				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
@@ -300,11 +251,9 @@ public class MessageCore {
 			if(match != null) {
 				match.onMatched(_executor);
 			}
-			if(timedOut != null) {
-				for(MessageFilter f : timedOut) {
-					f.setMessage(null);
-					f.onTimedOut(_executor);
-				}
+			for(MessageFilter f : timedOut) {
+				f.setMessage(null);
+				f.onTimedOut(_executor);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -319,18 +268,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node is disconnected. */
 	public void onDisconnect(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesDroppedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeDroppedConnection(ctx);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -341,18 +281,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node connects with a new boot ID */
 	public void onRestart(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesRestartedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeRestartedConnection(ctx);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -410,22 +341,10 @@ public class MessageCore {
 			}
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				// Indexed by type and source, in order of timeout
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter - my timeout="+timeout);
+				return;
 			}
 		}
 		if(ret != null) {
@@ -493,22 +412,9 @@ public class MessageCore {
 			}
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				// Indexed by type and source, in order of timeout
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter - my timeout="+filter.getTimeout()+" filter "+filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -561,9 +467,6 @@ public class MessageCore {
 			filter.clearMatched();
 			// We must remove it from _filters before we return, or when it is re-added,
 			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
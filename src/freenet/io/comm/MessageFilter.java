@@ -125,6 +125,16 @@ public final class MessageFilter {
 		return this;
 	}
 
+	/** @return The message type this filter matches, not including any or() alternatives. */
+	MessageType getType() {
+		return _type;
+	}
+
+	/** @return The next filter in the or() chain, if any. */
+	MessageFilter getOr() {
+		return _or;
+	}
+
 	public MessageFilter setSource(PeerContext source) {
 		_source = source;
 		if(source != null)
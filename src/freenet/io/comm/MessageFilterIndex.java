@@ -0,0 +1,298 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.support.Logger;
+
+/**
+ * The pending MessageFilter's of a MessageCore. Each filter is indexed under the message type
+ * and source of every alternative in its or() chain, so an incoming message is only checked
+ * against the filters which could possibly match it, rather than every filter we are waiting
+ * for. Filters with a finite timeout are also put on a timing wheel, so expiring them doesn't
+ * need a scan of every filter either.
+ *
+ * Filters with a callback can ask to be timed out at any time (shouldTimeout()), so those are
+ * still checked on every expiry run.
+ *
+ * Not thread-safe. MessageCore synchronizes on the index, because matching a message against
+ * the filters and adding it to the unclaimed list must be atomic.
+ */
+class MessageFilterIndex {
+
+	/** Granularity of the timing wheel in milliseconds. */
+	static final int WHEEL_TICK = 100;
+	/** Number of slots on the timing wheel. Filters further in the future go round again. */
+	static final int WHEEL_SLOTS = 1024;
+
+	/** Bucket key. Either field may be null, meaning any type or any source. */
+	private static final class Key {
+		final MessageType type;
+		final PeerContext source;
+		final int hashCode;
+
+		Key(MessageType type, PeerContext source) {
+			this.type = type;
+			this.source = source;
+			this.hashCode = (type == null ? 0 : type.hashCode()) * 31 + (source == null ? 0 : source.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return (type == null ? k.type == null : type.equals(k.type)) &&
+				(source == null ? k.source == null : source.equals(k.source));
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	/** One add() of a filter. Filters are often re-used, so the wheel refers to these rather
+	 * than to the filter, to avoid acting on stale wheel entries. */
+	private static final class Registration {
+		final MessageFilter filter;
+		final Key[] keys;
+		final boolean hasCallback;
+		/** The filter's timeout when it was added. The buckets are ordered by this, because the
+		 * filter's own timeout can change, e.g. a callback can make it time out immediately. */
+		final long timeout;
+		/** The wheel tick this registration is currently queued on, or -1. */
+		long tick = -1;
+		boolean removed;
+
+		Registration(MessageFilter filter, Key[] keys, long timeout) {
+			this.filter = filter;
+			this.keys = keys;
+			this.hasCallback = filter.hasCallback();
+			this.timeout = timeout;
+		}
+	}
+
+	/** Filters by key, each list in order of the timeout they were added with. */
+	private final HashMap<Key, LinkedList<Registration>> buckets = new HashMap<Key, LinkedList<Registration>>();
+	private final HashMap<MessageFilter, Registration> registered = new HashMap<MessageFilter, Registration>();
+	/** Registrations which have a callback, which we must poll for shouldTimeout(). */
+	private final HashSet<Registration> withCallback = new HashSet<Registration>();
+	private final ArrayList<Registration>[] wheel;
+	/** The last wheel tick which has been processed. */
+	private long wheelTick;
+	/** Filters found by match() which had already matched, and which are just unlinked. Only
+	 * used during match(). */
+	private final ArrayList<MessageFilter> preMatched = new ArrayList<MessageFilter>();
+
+	@SuppressWarnings("unchecked")
+	MessageFilterIndex(long now) {
+		wheel = new ArrayList[WHEEL_SLOTS];
+		for(int i=0;i<WHEEL_SLOTS;i++)
+			wheel[i] = new ArrayList<Registration>();
+		wheelTick = now / WHEEL_TICK;
+	}
+
+	/** @return The number of filters waiting. */
+	int size() {
+		return registered.size();
+	}
+
+	boolean contains(MessageFilter filter) {
+		return registered.containsKey(filter);
+	}
+
+	/** Add a filter. It will be matched after any filter with an earlier timeout. */
+	void add(MessageFilter filter) {
+		if(registered.containsKey(filter)) {
+			Logger.error(this, "Filter "+filter+" is in filter list twice!", new Exception("error"));
+			return;
+		}
+		ArrayList<Key> keys = new ArrayList<Key>(2);
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			Key k = new Key(f.getType(), f.getSource());
+			if(!keys.contains(k)) keys.add(k);
+		}
+		long timeout = filter.getTimeout();
+		Registration reg = new Registration(filter, keys.toArray(new Key[keys.size()]), timeout);
+		registered.put(filter, reg);
+		for(Key k : reg.keys) {
+			LinkedList<Registration> bucket = buckets.get(k);
+			if(bucket == null) {
+				bucket = new LinkedList<Registration>();
+				buckets.put(k, bucket);
+			}
+			// Insert in order of timeout. Usually at or near the end.
+			ListIterator<Registration> i = bucket.listIterator(bucket.size());
+			while(i.hasPrevious()) {
+				if(i.previous().timeout <= timeout) {
+					i.next();
+					break;
+				}
+			}
+			i.add(reg);
+		}
+		if(reg.hasCallback)
+			withCallback.add(reg);
+		schedule(reg, timeout);
+	}
+
+	/** Remove a filter.
+	 * @return False if it wasn't in the index. */
+	boolean remove(MessageFilter filter) {
+		Registration reg = registered.remove(filter);
+		if(reg == null) return false;
+		reg.removed = true;
+		for(Key k : reg.keys) {
+			LinkedList<Registration> bucket = buckets.get(k);
+			if(bucket == null) continue;
+			bucket.remove(reg);
+			if(bucket.isEmpty())
+				buckets.remove(k);
+		}
+		if(reg.hasCallback)
+			withCallback.remove(reg);
+		return true;
+	}
+
+	/**
+	 * Find the filter which matches a message, and remove it. If several filters match, the one
+	 * which was added with the earliest timeout wins. Any timed out filters we come across are
+	 * also removed, as are any which have already matched, but those are not reported.
+	 * @param timedOut Timed out filters are added to this list, if not already on it. The
+	 * matched filter is never added.
+	 * @return The matched filter, or null.
+	 */
+	MessageFilter match(Message m, long now, List<MessageFilter> timedOut) {
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		Registration match = null;
+		match = matchBucket(new Key(type, source), m, now, timedOut, match);
+		if(source != null)
+			match = matchBucket(new Key(type, null), m, now, timedOut, match);
+		if(type != null) {
+			match = matchBucket(new Key(null, source), m, now, timedOut, match);
+			if(source != null)
+				match = matchBucket(new Key(null, null), m, now, timedOut, match);
+		}
+		if(match != null)
+			timedOut.remove(match.filter);
+		for(MessageFilter f : timedOut)
+			remove(f);
+		for(MessageFilter f : preMatched)
+			remove(f);
+		preMatched.clear();
+		if(match == null) return null;
+		remove(match.filter);
+		return match.filter;
+	}
+
+	private Registration matchBucket(Key k, Message m, long now, List<MessageFilter> timedOut, Registration match) {
+		LinkedList<Registration> bucket = buckets.get(k);
+		if(bucket == null) return match;
+		for(Registration reg : bucket) {
+			// The bucket is in timeout order, so nothing later can beat what we have.
+			if(match != null && (reg == match || reg.timeout > match.timeout)) break;
+			MessageFilter f = reg.filter;
+			if(f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+				if(!preMatched.contains(f)) preMatched.add(f);
+				continue;
+			}
+			MATCHED status = f.match(m, now);
+			if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+				if(!timedOut.contains(f)) timedOut.add(f);
+			} else if(status == MATCHED.MATCHED) {
+				if(!timedOut.contains(f))
+					return reg;
+				break;
+			}
+		}
+		return match;
+	}
+
+	/**
+	 * Remove every filter which has timed out, either because its timeout has passed, or
+	 * because its callback says it should time out.
+	 */
+	List<MessageFilter> removeTimedOut(long now) {
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		long nowTick = now / WHEEL_TICK;
+		// If we've fallen a whole rotation behind, one pass over the wheel covers everything.
+		long firstTick = Math.max(wheelTick + 1, nowTick - WHEEL_SLOTS + 1);
+		for(long t = firstTick; t <= nowTick; t++) {
+			int slot = (int) (t % WHEEL_SLOTS);
+			ArrayList<Registration> regs = wheel[slot];
+			if(regs.isEmpty()) continue;
+			wheel[slot] = new ArrayList<Registration>();
+			for(Registration reg : regs) {
+				if(reg.removed || reg.tick > nowTick) {
+					// Removed, or due on a later rotation.
+					if(!reg.removed) wheel[slot].add(reg);
+					continue;
+				}
+				reg.tick = -1;
+				if(reg.filter.timedOut(now))
+					timedOut.add(reg.filter);
+				else
+					schedule(reg, reg.filter.getTimeout());
+			}
+		}
+		wheelTick = Math.max(wheelTick, nowTick);
+		for(Registration reg : withCallback) {
+			if(!timedOut.contains(reg.filter) && reg.filter.timedOut(now))
+				timedOut.add(reg.filter);
+		}
+		for(MessageFilter f : timedOut)
+			remove(f);
+		return timedOut;
+	}
+
+	private void schedule(Registration reg, long timeout) {
+		if(timeout == Long.MAX_VALUE) return;
+		long tick = Math.max(timeout / WHEEL_TICK + 1, wheelTick + 1);
+		reg.tick = tick;
+		wheel[(int) (tick % WHEEL_SLOTS)].add(reg);
+	}
+
+	/** Remove and return the filters which are waiting for a message from a peer which has
+	 * disconnected. */
+	List<MessageFilter> removeDroppedConnection(PeerContext ctx) {
+		List<MessageFilter> dropped = null;
+		for(Iterator<MessageFilter> i = registered.keySet().iterator(); i.hasNext();) {
+			MessageFilter f = i.next();
+			if(f.matchesDroppedConnection(ctx)) {
+				if(dropped == null) dropped = new ArrayList<MessageFilter>();
+				dropped.add(f);
+			}
+		}
+		if(dropped != null)
+			for(MessageFilter f : dropped) remove(f);
+		return dropped;
+	}
+
+	/** Remove and return the filters which are waiting for a message from a peer which has
+	 * restarted. */
+	List<MessageFilter> removeRestartedConnection(PeerContext ctx) {
+		List<MessageFilter> dropped = null;
+		for(Iterator<MessageFilter> i = registered.keySet().iterator(); i.hasNext();) {
+			MessageFilter f = i.next();
+			if(f.matchesRestartedConnection(ctx)) {
+				if(dropped == null) dropped = new ArrayList<MessageFilter>();
+				dropped.add(f);
+			}
+		}
+		if(dropped != null)
+			for(MessageFilter f : dropped) remove(f);
+		return dropped;
+	}
+
+}
@@ -37,6 +37,13 @@ public class MessageType {
 	private final LinkedList<String> _orderedFields = new LinkedList<String>();
 	private final HashMap<String, Class<?>> _fields = new HashMap<String, Class<?>>();
 	private final HashMap<String, Class<?>> _linkedListTypes = new HashMap<String, Class<?>>();
+	/** Field layout for Message: each field gets a slot, in the order they were added, which is
+	 * also the order they are encoded in. */
+	private String[] _slotNames = new String[0];
+	private byte[] _slotKinds = new byte[0];
+	private Class<?>[] _slotTypes = new Class<?>[0];
+	private Class<?>[] _slotListTypes = new Class<?>[0];
+	private final HashMap<String, Integer> _slotIndex = new HashMap<String, Integer>();
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
@@ -67,8 +74,80 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		if(_slotIndex.containsKey(name))
+			throw new IllegalArgumentException("Field "+name+" already exists in "+_name);
+		if(_slotNames.length == MAX_FIELDS)
+			throw new IllegalStateException("Too many fields in "+_name);
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		int slot = _slotNames.length;
+		_slotNames = append(_slotNames, new String[slot + 1], name);
+		_slotTypes = append(_slotTypes, new Class<?>[slot + 1], type);
+		_slotListTypes = append(_slotListTypes, new Class<?>[slot + 1], _linkedListTypes.get(name));
+		byte[] kinds = new byte[slot + 1];
+		System.arraycopy(_slotKinds, 0, kinds, 0, slot);
+		kinds[slot] = kindOf(type);
+		_slotKinds = kinds;
+		_slotIndex.put(name, slot);
+	}
+
+	private static <T> T[] append(T[] from, T[] to, T value) {
+		System.arraycopy(from, 0, to, 0, from.length);
+		to[from.length] = value;
+		return to;
+	}
+
+	/** Field kinds. Primitive kinds are stored unboxed by Message. */
+	static final byte KIND_OBJECT = 0;
+	static final byte KIND_BOOLEAN = 1;
+	static final byte KIND_BYTE = 2;
+	static final byte KIND_SHORT = 3;
+	static final byte KIND_INT = 4;
+	static final byte KIND_LONG = 5;
+	static final byte KIND_DOUBLE = 6;
+
+	/** Message keeps track of which fields are set in a long. */
+	static final int MAX_FIELDS = 64;
+
+	private static byte kindOf(Class<?> type) {
+		if(type == Boolean.class) return KIND_BOOLEAN;
+		if(type == Byte.class) return KIND_BYTE;
+		if(type == Short.class) return KIND_SHORT;
+		if(type == Integer.class) return KIND_INT;
+		if(type == Long.class) return KIND_LONG;
+		if(type == Double.class) return KIND_DOUBLE;
+		return KIND_OBJECT;
+	}
+
+	/** @return The slot of the field, or -1 if there is no such field. */
+	int getFieldIndex(String name) {
+		// Field names are nearly always the constants in DMT, so try identity first.
+		String[] names = _slotNames;
+		for(int i=0;i<names.length;i++)
+			if(names[i] == name) return i;
+		Integer slot = _slotIndex.get(name);
+		return slot == null ? -1 : slot.intValue();
+	}
+
+	int getFieldCount() {
+		return _slotNames.length;
+	}
+
+	String getFieldName(int slot) {
+		return _slotNames[slot];
+	}
+
+	byte getFieldKind(int slot) {
+		return _slotKinds[slot];
+	}
+
+	Class<?> getFieldType(int slot) {
+		return _slotTypes[slot];
+	}
+
+	/** @return The element type if the field is a LinkedList, otherwise null. */
+	Class<?> getFieldListType(int slot) {
+		return _slotListTypes[slot];
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -0,0 +1,248 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+import freenet.support.io.NativeThread;
+
+/**
+ * Receives packets from a DatagramChannel on one thread and processes them on several others,
+ * so the socket is drained while we are busy with crypto. The reader receives into a fixed pool
+ * of direct buffers and hands each packet to a worker chosen by the peer it comes from, so packets
+ * from any one peer are still processed one at a time, in the order they arrived, even if the
+ * peer uses more than one address. Packets from unknown addresses, which need trial decryption,
+ * all go to the first worker. So that packets aren't reordered when such a packet identifies the
+ * peer, later packets from that address also go to the first worker until it has processed all
+ * of them that it had already queued. If there is no free buffer, or the worker's queue is full, the
+ * packet is dropped, just as the kernel would have dropped it if we hadn't read it.
+ */
+class UdpReceivePipeline {
+
+	/** Processes packets, on the worker threads. */
+	interface PacketHandler {
+		/** Called on the reader thread, so must be fast.
+		 * @return The object whose state processing a packet from this address may change, e.g.
+		 * the peer with that address. Packets with the same key are processed on the same worker.
+		 * Null if the address is unknown. */
+		Object getOrderingKey(InetAddress address, int port);
+		/** The buffer is reused after this returns, so must not be kept. */
+		void handle(byte[] buf, int offset, int length, InetAddress address, int port);
+	}
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(UdpReceivePipeline.class);
+	}
+
+	/** Number of buffers to receive into, shared by all the workers. */
+	static final int BUFFERS = 512;
+	/** Packets queued for each worker. */
+	static final int WORKER_QUEUE_SIZE = 256;
+
+	private final DatagramChannel channel;
+	private final PacketHandler handler;
+	private final int maxPacketSize;
+	private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+	private final Worker[] workers;
+	/** Packets queued on or being processed by the first worker, by source address, for addresses
+	 * that were unknown when the packet arrived. LOCKING: Synchronize on the map. */
+	private final HashMap<InetSocketAddress, Integer> unidentified = new HashMap<InetSocketAddress, Integer>();
+	private volatile boolean active = true;
+
+	private final AtomicLong packets = new AtomicLong();
+	private final AtomicLong droppedNoBuffer = new AtomicLong();
+	private final AtomicLong droppedQueueFull = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong totalQueueNanos = new AtomicLong();
+	private final AtomicLong maxQueueNanos = new AtomicLong();
+
+	private static class ReceivedPacket {
+		final ByteBuffer buf;
+		final InetSocketAddress from;
+		final long received;
+		/** True if counted in unidentified. */
+		final boolean unidentified;
+		ReceivedPacket(ByteBuffer buf, InetSocketAddress from, long received, boolean unidentified) {
+			this.buf = buf;
+			this.from = from;
+			this.received = received;
+			this.unidentified = unidentified;
+		}
+	}
+
+	UdpReceivePipeline(DatagramChannel channel, int threads, int maxPacketSize, PacketHandler handler) {
+		this.channel = channel;
+		this.handler = handler;
+		this.maxPacketSize = maxPacketSize;
+		freeBuffers = new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+		for(int i=0;i<BUFFERS;i++)
+			freeBuffers.add(ByteBuffer.allocateDirect(maxPacketSize));
+		workers = new Worker[threads];
+		for(int i=0;i<threads;i++)
+			workers[i] = new Worker();
+	}
+
+	/** Start the worker threads. The caller then calls run() on the reader thread. */
+	void start(Executor executor, String name) {
+		for(int i=0;i<workers.length;i++)
+			executor.execute(workers[i], name+" worker "+i);
+	}
+
+	/** Receive packets until the channel is closed. */
+	void run() {
+		ByteBuffer spare = ByteBuffer.allocateDirect(maxPacketSize);
+		try {
+			while(active) {
+				ByteBuffer buf = freeBuffers.poll();
+				boolean noBuffer = buf == null;
+				if(noBuffer) buf = spare;
+				buf.clear();
+				InetSocketAddress from;
+				try {
+					from = (InetSocketAddress) channel.receive(buf);
+				} catch (ClosedChannelException e) {
+					return;
+				} catch (IOException e) {
+					if(!active || !channel.isOpen()) return;
+					Logger.error(this, "Caught "+e+" receiving packet", e);
+					if(!noBuffer) freeBuffers.offer(buf);
+					continue;
+				}
+				if(from == null) {
+					// Only possible in non-blocking mode.
+					if(!noBuffer) freeBuffers.offer(buf);
+					continue;
+				}
+				packets.incrementAndGet();
+				if(noBuffer) {
+					droppedNoBuffer.incrementAndGet();
+					if(logMINOR) Logger.minor(this, "Dropped packet from "+from+" : no free buffers");
+					continue;
+				}
+				buf.flip();
+				Worker worker = chooseWorker(from);
+				boolean unknown = worker == null;
+				if(unknown) worker = workers[0];
+				if(!worker.queue.offer(new ReceivedPacket(buf, from, System.nanoTime(), unknown))) {
+					if(unknown) processedUnidentified(from);
+					droppedQueueFull.incrementAndGet();
+					if(logMINOR) Logger.minor(this, "Dropped packet from "+from+" : worker queue full");
+					freeBuffers.offer(buf);
+				}
+			}
+		} finally {
+			active = false;
+		}
+	}
+
+	/** @return The worker for a packet from a known peer, or null if the packet must go to the
+	 * first worker, either because the address is unknown or because the first worker still has
+	 * packets from it that were queued before it became known. In that case the packet has been
+	 * counted in unidentified. */
+	private Worker chooseWorker(InetSocketAddress from) {
+		Object key;
+		try {
+			key = handler.getOrderingKey(from.getAddress(), from.getPort());
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" looking up "+from, t);
+			key = null;
+		}
+		synchronized(unidentified) {
+			Integer queued = unidentified.get(from);
+			if(key == null || queued != null) {
+				unidentified.put(from, queued == null ? 1 : queued + 1);
+				return null;
+			}
+		}
+		return workers[(key.hashCode() & Integer.MAX_VALUE) % workers.length];
+	}
+
+	/** A packet counted in unidentified has been processed or dropped. */
+	private void processedUnidentified(InetSocketAddress from) {
+		synchronized(unidentified) {
+			Integer queued = unidentified.get(from);
+			if(queued == null || queued <= 1)
+				unidentified.remove(from);
+			else
+				unidentified.put(from, queued - 1);
+		}
+	}
+
+	/** Tell the workers to exit. run() exits when the channel is closed. */
+	void stop() {
+		active = false;
+	}
+
+	private class Worker implements PrioRunnable {
+
+		final ArrayBlockingQueue<ReceivedPacket> queue = new ArrayBlockingQueue<ReceivedPacket>(WORKER_QUEUE_SIZE);
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			byte[] data = new byte[maxPacketSize];
+			while(true) {
+				ReceivedPacket packet;
+				try {
+					packet = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					packet = null;
+				}
+				if(packet == null) {
+					if(!active) return;
+					continue;
+				}
+				long waited = System.nanoTime() - packet.received;
+				processed.incrementAndGet();
+				totalQueueNanos.addAndGet(waited);
+				while(true) {
+					long max = maxQueueNanos.get();
+					if(waited <= max || maxQueueNanos.compareAndSet(max, waited)) break;
+				}
+				int length = packet.buf.remaining();
+				packet.buf.get(data, 0, length);
+				freeBuffers.offer(packet.buf);
+				try {
+					handler.handle(data, 0, length, packet.from.getAddress(), packet.from.getPort());
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" processing packet from "+packet.from, t);
+				} finally {
+					if(packet.unidentified) processedUnidentified(packet.from);
+				}
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+
+	}
+
+	/** @return Packets received, dropped for lack of a buffer, dropped because the worker was
+	 * too far behind, average and maximum nanoseconds spent waiting for a worker. */
+	long[] getStats() {
+		long count = processed.get();
+		long average = count == 0 ? 0 : totalQueueNanos.get() / count;
+		return new long[] { packets.get(), droppedNoBuffer.get(), droppedQueueFull.get(), average, maxQueueNanos.get() };
+	}
+
+}
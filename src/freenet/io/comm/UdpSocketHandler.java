@@ -5,8 +5,10 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
 import java.util.Random;
 
 import freenet.io.AddressTracker;
@@ -41,6 +43,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private boolean _started;
 	private long startTime;
 	private final IOStatisticCollector collector;
+	/** If not null, packets are received on this thread and processed on the pipeline's threads */
+	private final UdpReceivePipeline pipeline;
 
         static {
             Logger.registerClass(UdpSocketHandler.class);
@@ -57,16 +61,54 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		int receiveThreads = node.getUdpReceiveThreads();
+		if(receiveThreads > 0) {
+			// Read from a channel on one thread, process on receiveThreads others.
+			DatagramChannel channel;
+			try {
+				channel = DatagramChannel.open();
+			} catch (IOException e) {
+				SocketException ex = new SocketException("Unable to open datagram channel: "+e);
+				ex.initCause(e);
+				throw ex;
+			}
+			_sock = channel.socket();
+			try {
+				// Exit reasonably quickly
+				_sock.setReuseAddress(true);
+				_sock.bind(new InetSocketAddress(bindto, listenPort));
+			} catch (SocketException e) {
+				_sock.close();
+				throw e;
+			}
+			pipeline = new UdpReceivePipeline(channel, receiveThreads, MAX_RECEIVE_SIZE, new UdpReceivePipeline.PacketHandler() {
+
+				@Override
+				public Object getOrderingKey(InetAddress address, int port) {
+					return lowLevelFilter.getPeerContext(new Peer(address, port));
+				}
+
+				@Override
+				public void handle(byte[] buf, int offset, int length, InetAddress address, int port) {
+					receivedPacket(buf, offset, length, address, port);
+				}
+
+			});
+		} else {
+			_sock = new DatagramSocket(listenPort, bindto);
+			pipeline = null;
+		}
 		int sz = _sock.getReceiveBufferSize();
 		if(sz < 65536) {
 			_sock.setReceiveBufferSize(65536);
 		}
-		try {
-			// Exit reasonably quickly
-			_sock.setReuseAddress(true);
-		} catch (SocketException e) {
-			throw new RuntimeException(e);
+		if(pipeline == null) {
+			try {
+				// Exit reasonably quickly
+				_sock.setReuseAddress(true);
+			} catch (SocketException e) {
+				throw new RuntimeException(e);
+			}
 		}
 //		}
 		// Only used for debugging, no need to seed from Yarrow
@@ -93,7 +135,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	public void run() { // Listen for packets
 		tracker.startReceive(System.currentTimeMillis());
 		try {
-			runLoop();
+			if(pipeline != null)
+				pipeline.run();
+			else
+				runLoop();
 		} catch (Throwable t) {
 			// Impossible? It keeps on exiting. We get the below,
 			// but not this...
@@ -151,42 +196,47 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private void realRun(DatagramPacket packet) {
 		// Single receiving thread
 		boolean gotPacket = getPacket(packet);
-		long now = System.currentTimeMillis();
 		if (gotPacket) {
-			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
-			long endTime = System.currentTimeMillis();
+			receivedPacket(packet.getData(), packet.getOffset(), packet.getLength(), packet.getAddress(), packet.getPort());
+		} else {
+			if(logDEBUG) Logger.debug(this, "No packet received");
+		}
+	}
+
+	/** Process a packet. Called on the receiving thread, or on one of the pipeline's threads. */
+	private void receivedPacket(byte[] data, int offset, int length, InetAddress address, int port) {
+		long now = System.currentTimeMillis();
+		boolean isLocal = !IPUtil.isValidAddress(address, false);
+		collector.addInfo(address + ":" + port,
+				length, 0, isLocal); // FIXME use (packet.getLength() + UDP_HEADERS_LENGTH)?
+		long startTime = System.currentTimeMillis();
+		Peer peer = new Peer(address, port);
+		tracker.receivedPacketFrom(peer);
+		long endTime = System.currentTimeMillis();
+		if(endTime - startTime > 50) {
+			if(endTime-startTime > 3000) {
+				Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
+			} else {
+				if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+			}
+		}
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			startTime = System.currentTimeMillis();
+			lowLevelFilter.process(data, offset, length, peer, now);
+			endTime = System.currentTimeMillis();
 			if(endTime - startTime > 50) {
 				if(endTime-startTime > 3000) {
-					Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
 				} else {
-					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
 				}
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
-			}
-		} else {
-			if(logDEBUG) Logger.debug(this, "No packet received");
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
 		}
 	}
 
@@ -195,10 +245,6 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private boolean getPacket(DatagramPacket packet) {
 		try {
 			_sock.receive(packet);
-			InetAddress address = packet.getAddress();
-			boolean isLocal = !IPUtil.isValidAddress(address, false);
-			collector.addInfo(address + ":" + packet.getPort(),
-					packet.getLength(), 0, isLocal); // FIXME use (packet.getLength() + UDP_HEADERS_LENGTH)?
 		} catch (SocketTimeoutException e1) {
 			return false;
 		} catch (IOException e2) {
@@ -323,6 +369,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			_started = true;
 			startTime = System.currentTimeMillis();
 		}
+		if(pipeline != null)
+			pipeline.start(node.executor, "UdpSocketHandler for port "+listenPort);
 		node.executor.execute(this, "UdpSocketHandler for port "+listenPort);
 	}
 
@@ -331,6 +379,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		synchronized (this) {
 			_active = false;
 			_sock.close();
+			if(pipeline != null)
+				pipeline.stop();
 
 			if(!_started) return;
 			while (!_isDone) {
@@ -389,4 +439,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return startTime;
 	}
 
+	/** @return Statistics for the receive pipeline (see UdpReceivePipeline.getStats()), or null
+	 * if we receive and process packets on a single thread. */
+	public long[] getReceivePipelineStats() {
+		if(pipeline == null) return null;
+		return pipeline.getStats();
+	}
+
 }
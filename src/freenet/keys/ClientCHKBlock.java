@@ -11,7 +11,6 @@ import freenet.support.math.MersenneTwister;
 
 import com.db4o.ObjectContainer;
 
-import freenet.crypt.BlockCipher;
 import freenet.crypt.PCFBMode;
 import freenet.crypt.SHA256;
 import freenet.crypt.UnsupportedCipherException;
@@ -97,7 +96,7 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         // Overall hash already verified, so first job is to decrypt.
 		if(key.cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
             throw new UnsupportedOperationException();
-        BlockCipher cipher;
+        Rijndael cipher;
         try {
             cipher = new Rijndael(256, 256);
         } catch (UnsupportedCipherException e) {
@@ -107,7 +106,8 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         byte[] cryptoKey = key.cryptoKey;
         if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
             throw new CHKDecodeException("Crypto key too short");
-        cipher.initialize(key.cryptoKey);
+        // Splitfile blocks usually share the same crypto key.
+        cipher.initializeCached(key.cryptoKey);
         PCFBMode pcfb = PCFBMode.create(cipher);
 	byte[] hbuf = new byte[headers.length-2];
 	System.arraycopy(headers, 2, hbuf, 0, headers.length-2);
@@ -233,14 +233,14 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         // despite exposing asymmetric and hashes!
         
         // Now encrypt the header, then the data, using the same PCFB instance
-        BlockCipher cipher;
+        Rijndael cipher;
         try {
             cipher = new Rijndael(256, 256);
         } catch (UnsupportedCipherException e) {
         	Logger.error(ClientCHKBlock.class, "Impossible: "+e, e);
             throw new Error(e);
         }
-        cipher.initialize(encKey);
+        cipher.initializeCached(encKey);
         
         // FIXME CRYPTO plainIV, the hash of the crypto key, is encrypted with a null IV.
         // In other words, it is XORed with E(0).
@@ -6,13 +6,9 @@ package freenet.keys;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
-import net.i2p.util.NativeBigInteger;
-
 import com.db4o.ObjectContainer;
 
-import freenet.crypt.DSA;
 import freenet.crypt.DSAPublicKey;
-import freenet.crypt.DSASignature;
 import freenet.crypt.SHA256;
 import freenet.support.Fields;
 import freenet.support.HexUtil;
@@ -151,10 +147,7 @@ public class SSKBlock implements KeyBlock {
 			SHA256.returnMessageDigest(md);
 			
 			// Now verify it
-			NativeBigInteger r = new NativeBigInteger(1, bufR);
-			NativeBigInteger s = new NativeBigInteger(1, bufS);
-			if(!(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), false) ||
-					(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), true)))) {
+			if(!SSKVerifier.verify(pubKey, nodeKey.getPubKeyHash(), overallHash, bufR, bufS)) {
 				if (dontVerify)
 					Logger.error(this, "DSA verification failed with dontVerify!!!!");
 				throw new SSKVerifyException("Signature verification failed for node-level SSK");
@@ -0,0 +1,201 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.util.NativeBigInteger;
+import freenet.crypt.DSA;
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DSASignature;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/**
+ * Checks the signatures on SSK blocks for SSKBlock. The same block is often verified many
+ * times: every time it is fetched from the store, every time a USK poll or a client such as
+ * Freetalk fetches it again, and when it is offered or inserted again. So we remember the
+ * signatures which were valid, keyed by the pubkey hash, the hash of the signed headers and
+ * data, and the signature itself, and only run DSA on a miss. Invalid signatures are not
+ * remembered: they should be rare, and remembering them would let others fill the cache.
+ *
+ * When many blocks arrive at once (e.g. a binary blob), runInParallel() checks them on
+ * several threads, if the node has given us an executor.
+ */
+public final class SSKVerifier {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SSKVerifier.class);
+	}
+
+	/** Number of valid signatures to remember. Each takes around 200 bytes. */
+	static final int CACHE_SIZE = 4096;
+	/** Don't bother with other threads for fewer blocks than this. */
+	static final int MIN_PARALLEL = 4;
+
+	private static final int HASH_LENGTH = 32;
+
+	@SuppressWarnings("serial")
+	private static final Map<ByteArrayWrapper, Boolean> verified = new LinkedHashMap<ByteArrayWrapper, Boolean>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private static final AtomicLong checks = new AtomicLong();
+	private static final AtomicLong cacheHits = new AtomicLong();
+	private static final AtomicLong verifications = new AtomicLong();
+	private static final AtomicLong verifyTime = new AtomicLong();
+
+	private static volatile Executor executor;
+
+	private SSKVerifier() {
+		// Static only.
+	}
+
+	/** Set the executor used to verify many blocks in parallel. Until this is called,
+	 * everything is verified on the calling thread. */
+	public static void setExecutor(Executor e) {
+		executor = e;
+	}
+
+	/**
+	 * Check the signature on an SSK block.
+	 * @param pubKey The public key. Must match pubKeyHash.
+	 * @param pubKeyHash The hash of the public key.
+	 * @param overallHash The hash of the data and the headers up to the signature.
+	 * @param sigR The R part of the signature.
+	 * @param sigS The S part of the signature.
+	 * @return True if the signature is valid, either with or without clipping the hash to
+	 * 255 bits.
+	 */
+	static boolean verify(DSAPublicKey pubKey, byte[] pubKeyHash, byte[] overallHash, byte[] sigR, byte[] sigS) {
+		checks.incrementAndGet();
+		byte[] buf = new byte[HASH_LENGTH * 2 + sigR.length + sigS.length];
+		System.arraycopy(pubKeyHash, 0, buf, 0, HASH_LENGTH);
+		System.arraycopy(overallHash, 0, buf, HASH_LENGTH, HASH_LENGTH);
+		System.arraycopy(sigR, 0, buf, HASH_LENGTH * 2, sigR.length);
+		System.arraycopy(sigS, 0, buf, HASH_LENGTH * 2 + sigR.length, sigS.length);
+		ByteArrayWrapper cacheKey = new ByteArrayWrapper(buf);
+		synchronized(verified) {
+			if(verified.get(cacheKey) != null) {
+				cacheHits.incrementAndGet();
+				return true;
+			}
+		}
+		long start = System.nanoTime();
+		NativeBigInteger r = new NativeBigInteger(1, sigR);
+		NativeBigInteger s = new NativeBigInteger(1, sigS);
+		DSASignature sig = new DSASignature(r, s);
+		NativeBigInteger m = new NativeBigInteger(1, overallHash);
+		boolean valid = DSA.verify(pubKey, sig, m, false) || DSA.verify(pubKey, sig, m, true);
+		verifyTime.addAndGet(System.nanoTime() - start);
+		verifications.incrementAndGet();
+		if(valid) {
+			synchronized(verified) {
+				verified.put(cacheKey, Boolean.TRUE);
+			}
+		}
+		return valid;
+	}
+
+	/**
+	 * Run a batch of jobs which verify blocks, e.g. constructing SSKBlock's, on several
+	 * threads, and wait for them all to finish. The calling thread does its share, so this
+	 * completes even if the executor is busy.
+	 * @return The results, in the same order as the jobs.
+	 * @throws KeyVerifyException The first error, in the order of the jobs, if any failed.
+	 */
+	public static <T> List<T> runInParallel(final List<? extends Callable<T>> jobs) throws KeyVerifyException {
+		final int count = jobs.size();
+		final Object[] results = new Object[count];
+		final Throwable[] errors = new Throwable[count];
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(count);
+		Runnable worker = new Runnable() {
+
+			@Override
+			public void run() {
+				int i;
+				while((i = next.getAndIncrement()) < count) {
+					try {
+						results[i] = jobs.get(i).call();
+					} catch (Throwable t) {
+						errors[i] = t;
+					} finally {
+						done.countDown();
+					}
+				}
+			}
+
+		};
+		Executor e = executor;
+		if(e != null && count >= MIN_PARALLEL) {
+			int helpers = Math.min(count, Runtime.getRuntime().availableProcessors()) - 1;
+			if(logMINOR) Logger.minor(SSKVerifier.class, "Verifying "+count+" blocks with "+helpers+" helper threads");
+			for(int i=0;i<helpers;i++)
+				e.execute(worker, "SSK verifier helper");
+		}
+		worker.run();
+		// The helpers may still be working on the last few.
+		boolean interrupted = false;
+		while(true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		List<T> list = new ArrayList<T>(count);
+		for(int i=0;i<count;i++) {
+			Throwable t = errors[i];
+			if(t != null) {
+				if(t instanceof KeyVerifyException) throw (KeyVerifyException) t;
+				if(t instanceof RuntimeException) throw (RuntimeException) t;
+				if(t instanceof Error) throw (Error) t;
+				throw new KeyVerifyException(t.toString(), t);
+			}
+			@SuppressWarnings("unchecked")
+			T result = (T) results[i];
+			list.add(result);
+		}
+		return list;
+	}
+
+	/** Number of signatures checked, including those found in the cache. */
+	public static long getChecks() {
+		return checks.get();
+	}
+
+	/** Number of signatures which were found in the cache, so didn't need checking. */
+	public static long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/** Number of signatures which were actually checked with DSA. */
+	public static long getVerifications() {
+		return verifications.get();
+	}
+
+	/** Average time to check a signature with DSA, in milliseconds. */
+	public static double getAverageVerifyTime() {
+		long count = verifications.get();
+		if(count == 0) return 0.0;
+		return verifyTime.get() / (count * 1000.0 * 1000.0);
+	}
+
+}
@@ -11,6 +11,8 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.clients.http.ExternalLinkToadlet;
 import net.i2p.util.NativeBigInteger;
@@ -220,6 +222,88 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		return process(buf, offset, length, peer, opn, now);
 	}
 
+	/** Maximum number of times per second we try every peer's session keys on a packet from an
+	 * unknown address. Each try can cost three decryptions per peer, so a burst of packets from
+	 * new addresses must not be allowed to trigger an unlimited number of them. Peers which have
+	 * recently changed address are always tried. */
+	static final int MAX_FULL_TRIAL_SCANS_PER_SECOND = 50;
+	private static final Object fullTrialScanSync = new Object();
+	/** Protected by fullTrialScanSync */
+	private static long fullTrialScanPeriodStart;
+	/** Protected by fullTrialScanSync */
+	private static int fullTrialScansThisPeriod;
+
+	private static final AtomicLong trialDecryptPackets = new AtomicLong();
+	private static final AtomicLong trialDecryptPeers = new AtomicLong();
+	private static final AtomicLong trialDecryptCandidateHits = new AtomicLong();
+	private static final AtomicLong trialDecryptScanHits = new AtomicLong();
+	private static final AtomicLong trialDecryptScansSkipped = new AtomicLong();
+
+	/** Can we try every peer's keys on a packet from an unknown address? */
+	private static boolean allowFullTrialScan(long now) {
+		synchronized(fullTrialScanSync) {
+			if(now - fullTrialScanPeriodStart >= 1000 || now < fullTrialScanPeriodStart) {
+				fullTrialScanPeriodStart = now;
+				fullTrialScansThisPeriod = 0;
+			}
+			if(fullTrialScansThisPeriod >= MAX_FULL_TRIAL_SCANS_PER_SECOND) return false;
+			fullTrialScansThisPeriod++;
+			return true;
+		}
+	}
+
+	/**
+	 * Record trying to decrypt a packet from an unknown address.
+	 * @param peers The number of peers whose keys we tried.
+	 * @param candidateHit True if it was from a peer which had recently changed address.
+	 * @param scanHit True if it was from another peer.
+	 * @param scanSkipped True if we didn't try every peer because of MAX_FULL_TRIAL_SCANS_PER_SECOND.
+	 */
+	private static void countTrialDecryption(int peers, boolean candidateHit, boolean scanHit, boolean scanSkipped) {
+		trialDecryptPackets.incrementAndGet();
+		trialDecryptPeers.addAndGet(peers);
+		if(candidateHit) trialDecryptCandidateHits.incrementAndGet();
+		if(scanHit) trialDecryptScanHits.incrementAndGet();
+		if(scanSkipped) trialDecryptScansSkipped.incrementAndGet();
+	}
+
+	/** @return Packets from unknown addresses, peers tried for them, packets which were from a
+	 * recently moved peer, packets which were from some other peer, and packets for which we
+	 * didn't try every peer. */
+	public static long[] getTrialDecryptionStats() {
+		return new long[] { trialDecryptPackets.get(), trialDecryptPeers.get(), trialDecryptCandidateHits.get(),
+				trialDecryptScanHits.get(), trialDecryptScansSkipped.get() };
+	}
+
+	/** Try all of a peer's session keys on a packet which didn't come from its address. For a
+	 * peer using the new packet format, the packet is passed to the peer to decode.
+	 * @return True if one of them worked. If the peer uses the old packet format, its address is
+	 * updated. */
+	private boolean tryProcessChangedIP(byte[] buf, int offset, int length, PeerNode pn, Peer peer, long now) {
+		if(!pn.isOldFNP())
+			return pn.handleReceivedPacket(buf, offset, length, now, peer);
+		if(length <= HASH_LENGTH + RANDOM_BYTES_LENGTH + 4 + 6) return false;
+		if(logDEBUG) Logger.debug(this, "Trying current key tracker for loop");
+		if(tryProcess(buf, offset, length, pn.getCurrentKeyTracker(), now)) {
+			// IP address change
+			pn.changedIP(peer);
+			return true;
+		}
+		if(logDEBUG) Logger.debug(this, "Trying previous key tracker for loop");
+		if(tryProcess(buf, offset, length, pn.getPreviousKeyTracker(), now)) {
+			// IP address change
+			pn.changedIP(peer);
+			return true;
+		}
+		if(logDEBUG) Logger.debug(this, "Trying unverified key tracker for loop");
+		if(tryProcess(buf, offset, length, pn.getUnverifiedKeyTracker(), now)) {
+			// IP address change
+			pn.changedIP(peer);
+			return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Decrypt and authenticate packet.
 	 * Then feed it to USM.checkFilters.
@@ -267,29 +351,33 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		}
 		PeerNode[] peers = crypto.getPeerNodes();
 		// Existing connection, changed IP address?
-		if(length > HASH_LENGTH + RANDOM_BYTES_LENGTH + 4 + 6) {
+		// This is the only place we try other peers' session keys, for both packet formats.
+		// Try the peers which have moved recently first, they are the most likely.
+		List<PeerNode> candidates = node.peers.getAddressChangeCandidates();
+		int tried = 0;
+		for(PeerNode candidate : candidates) {
+			if(candidate == opn || candidate.getOutgoingMangler() != this) continue;
+			tried++;
+			if(tryProcessChangedIP(buf, offset, length, candidate, peer, now)) {
+				countTrialDecryption(tried, true, false, false);
+				return DECODED.DECODED;
+			}
+		}
+		if(allowFullTrialScan(now)) {
 			for(int i=0;i<peers.length;i++) {
 				pn = peers[i];
-				if(pn == opn) continue;
-				if(logDEBUG) Logger.debug(this, "Trying current key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getCurrentKeyTracker(), now)) {
-					// IP address change
-					pn.changedIP(peer);
-					return DECODED.DECODED;
-				}
-				if(logDEBUG) Logger.debug(this, "Trying previous key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getPreviousKeyTracker(), now)) {
-					// IP address change
-					pn.changedIP(peer);
-					return DECODED.DECODED;
-				}
-				if(logDEBUG) Logger.debug(this, "Trying unverified key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getUnverifiedKeyTracker(), now)) {
-					// IP address change
-					pn.changedIP(peer);
+				if(pn == opn || candidates.contains(pn)) continue;
+				tried++;
+				if(tryProcessChangedIP(buf, offset, length, pn, peer, now)) {
+					countTrialDecryption(tried, false, true, false);
+					if(!pn.isOldFNP()) node.peers.addressMismatch(pn);
 					return DECODED.DECODED;
 				}
 			}
+			countTrialDecryption(tried, false, false, false);
+		} else {
+			if(logMINOR) Logger.minor(this, "Too many packets from unknown addresses, only tried "+tried+" recently moved peers for "+peer);
+			countTrialDecryption(tried, false, false, true);
 		}
 		if(node.isStopping()) return DECODED.SHUTTING_DOWN;
 		// Disconnected node connecting on a new IP address?
@@ -1145,7 +1233,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		final long t1 = System.currentTimeMillis();
 		if(logMINOR) Logger.minor(this, "Got a JFK(3) message, processing it - "+pn);
 
-		BlockCipher c = null;
+		Rijndael c = null;
 		try { c = new Rijndael(256, 256); } catch (UnsupportedCipherException e) { throw new RuntimeException(e); }
 
 		final int expectedLength =
@@ -1279,7 +1367,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			outgoingKey = incommingKey;
 		}
 
-		c.initialize(Ke);
+		c.initializeCached(Ke);
 		int ivLength = PCFBMode.lengthIV(c);
 		int decypheredPayloadOffset = 0;
 		// We compute the HMAC of ("I"+cyphertext) : the cyphertext includes the IV!
@@ -1481,7 +1569,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 				Logger.error(this, error);
 			}
 		}
-		BlockCipher c = null;
+		Rijndael c = null;
 		try { c = new Rijndael(256, 256); } catch (UnsupportedCipherException e) { throw new RuntimeException(e); }
 
 		final int expectedLength =
@@ -1506,7 +1594,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		System.arraycopy(payload, inputOffset, hmac, 0, HASH_LENGTH);
 		inputOffset += HASH_LENGTH;
 
-		c.initialize(pn.jfkKe);
+		c.initializeCached(pn.jfkKe);
 		int ivLength = PCFBMode.lengthIV(c);
 		int decypheredPayloadOffset = 0;
 		// We compute the HMAC of ("R"+cyphertext) : the cyphertext includes the IV!
@@ -1691,7 +1779,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	{
 		if(logMINOR) Logger.minor(this, "Sending a JFK(3) message to "+pn.getPeer());
 		long t1=System.currentTimeMillis();
-		BlockCipher c = null;
+		Rijndael c = null;
 		try { c = new Rijndael(256, 256); } catch (UnsupportedCipherException e) { throw new RuntimeException(e); }
 		DiffieHellmanLightContext ctx = (DiffieHellmanLightContext) pn.getKeyAgreementSchemeContext();
 		if(ctx == null) return;
@@ -1800,7 +1888,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			pn.incommingKey = pn.outgoingKey;
 		}
 
-		c.initialize(pn.jfkKe);
+		c.initializeCached(pn.jfkKe);
 		int ivLength = PCFBMode.lengthIV(c);
 		byte[] iv = new byte[ivLength];
 		node.random.nextBytes(iv);
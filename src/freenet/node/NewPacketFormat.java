@@ -67,9 +67,12 @@ public class NewPacketFormat implements PacketFormat {
 	 * LOCKING: Protected by (this). */
 	private final SparseBitmap ackedMessages = new SparseBitmap();
 
+	/** LOCKING: Protected by receiveLock. */
 	private final HashMap<Integer, PartiallyReceivedBuffer> receiveBuffers = new HashMap<Integer, PartiallyReceivedBuffer>();
+	/** LOCKING: Protected by receiveLock. */
 	private final HashMap<Integer, SparseBitmap> receiveMaps = new HashMap<Integer, SparseBitmap>();
-	/** The first message id that hasn't been fully received */
+	/** The first message id that hasn't been fully received
+	 * LOCKING: Protected by receiveLock. */
 	private int messageWindowPtrReceived;
 	private final SparseBitmap receivedMessages= new SparseBitmap();
 
@@ -91,6 +94,11 @@ public class NewPacketFormat implements PacketFormat {
 	private final Object sendBufferLock = new Object();
 	/** Lock protecting the size of the receive buffer. */
 	private final Object receiveBufferSizeLock = new Object();
+	/** Lock protecting the sequence number watch lists and reassembly of received messages.
+	 * Packets from one peer are normally all processed on one thread, but with several receive
+	 * threads, a packet from an address we don't know yet can be trial decrypted on another.
+	 * Taken before (this) and sendBufferLock. */
+	private final Object receiveLock = new Object();
 	
 	private long timeLastSentPacket;
 	private long timeLastSentPayload;
@@ -193,98 +201,100 @@ public class NewPacketFormat implements PacketFormat {
 			for(Message msg : lossyMessages)
 				pn.handleMessage(msg);
 		}
-		for(MessageFragment fragment : packet.getFragments()) {
-			if(messageWindowPtrReceived + MSG_WINDOW_SIZE > NUM_MESSAGE_IDS) {
-				int upperBound = (messageWindowPtrReceived + MSG_WINDOW_SIZE) % NUM_MESSAGE_IDS;
-				if((fragment.messageID > upperBound) && (fragment.messageID < messageWindowPtrReceived)) {
-					if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
-					continue;
+		synchronized(receiveLock) {
+			for(MessageFragment fragment : packet.getFragments()) {
+				if(messageWindowPtrReceived + MSG_WINDOW_SIZE > NUM_MESSAGE_IDS) {
+					int upperBound = (messageWindowPtrReceived + MSG_WINDOW_SIZE) % NUM_MESSAGE_IDS;
+					if((fragment.messageID > upperBound) && (fragment.messageID < messageWindowPtrReceived)) {
+						if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
+						continue;
+					}
+				} else {
+					int upperBound = messageWindowPtrReceived + MSG_WINDOW_SIZE;
+					if(!((fragment.messageID >= messageWindowPtrReceived) && (fragment.messageID < upperBound))) {
+						if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
+						continue;
+					}
 				}
-			} else {
-				int upperBound = messageWindowPtrReceived + MSG_WINDOW_SIZE;
-				if(!((fragment.messageID >= messageWindowPtrReceived) && (fragment.messageID < upperBound))) {
-					if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
-					continue;
+				synchronized(receivedMessages) {
+					if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
 				}
-			}
-			synchronized(receivedMessages) {
-				if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
-			}
 
-			PartiallyReceivedBuffer recvBuffer = receiveBuffers.get(fragment.messageID);
-			SparseBitmap recvMap = receiveMaps.get(fragment.messageID);
-			if(recvBuffer == null) {
-				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Creating buffer");
+				PartiallyReceivedBuffer recvBuffer = receiveBuffers.get(fragment.messageID);
+				SparseBitmap recvMap = receiveMaps.get(fragment.messageID);
+				if(recvBuffer == null) {
+					if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Creating buffer");
 
-				recvBuffer = new PartiallyReceivedBuffer(this);
-				if(fragment.firstFragment) {
-					if(!recvBuffer.setMessageLength(fragment.messageLength)) {
-						dontAck = true;
-						continue;
+					recvBuffer = new PartiallyReceivedBuffer(this);
+					if(fragment.firstFragment) {
+						if(!recvBuffer.setMessageLength(fragment.messageLength)) {
+							dontAck = true;
+							continue;
+						}
+					} else {
+						synchronized(receiveBufferSizeLock) {
+							if((receiveBufferUsed + fragment.fragmentLength) > MAX_RECEIVE_BUFFER_SIZE) {
+								if(logMINOR) Logger.minor(this, "Could not create buffer, would excede max size");
+								dontAck = true;
+								continue;
+							}
+						}
 					}
+
+					recvMap = new SparseBitmap();
+					receiveBuffers.put(fragment.messageID, recvBuffer);
+					receiveMaps.put(fragment.messageID, recvMap);
 				} else {
-					synchronized(receiveBufferSizeLock) {
-						if((receiveBufferUsed + fragment.fragmentLength) > MAX_RECEIVE_BUFFER_SIZE) {
-							if(logMINOR) Logger.minor(this, "Could not create buffer, would excede max size");
+					if(fragment.firstFragment) {
+						if(!recvBuffer.setMessageLength(fragment.messageLength)) {
 							dontAck = true;
 							continue;
 						}
 					}
 				}
 
-				recvMap = new SparseBitmap();
-				receiveBuffers.put(fragment.messageID, recvBuffer);
-				receiveMaps.put(fragment.messageID, recvMap);
-			} else {
-				if(fragment.firstFragment) {
-					if(!recvBuffer.setMessageLength(fragment.messageLength)) {
-						dontAck = true;
-						continue;
-					}
+				if(!recvBuffer.add(fragment.fragmentData, fragment.fragmentOffset)) {
+					dontAck = true;
+					continue;
 				}
-			}
-
-			if(!recvBuffer.add(fragment.fragmentData, fragment.fragmentOffset)) {
-				dontAck = true;
-				continue;
-			}
-			if(fragment.fragmentLength == 0) {
-				Logger.warning(this, "Received fragment of length 0");
-				continue;
-			}
-			recvMap.add(fragment.fragmentOffset, fragment.fragmentOffset + fragment.fragmentLength - 1);
-			if((recvBuffer.messageLength != -1) && recvMap.contains(0, recvBuffer.messageLength - 1)) {
-				receiveBuffers.remove(fragment.messageID);
-				receiveMaps.remove(fragment.messageID);
-
-				synchronized(receivedMessages) {
-					if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
-					receivedMessages.add(fragment.messageID, fragment.messageID);
+				if(fragment.fragmentLength == 0) {
+					Logger.warning(this, "Received fragment of length 0");
+					continue;
+				}
+				recvMap.add(fragment.fragmentOffset, fragment.fragmentOffset + fragment.fragmentLength - 1);
+				if((recvBuffer.messageLength != -1) && recvMap.contains(0, recvBuffer.messageLength - 1)) {
+					receiveBuffers.remove(fragment.messageID);
+					receiveMaps.remove(fragment.messageID);
+
+					synchronized(receivedMessages) {
+						if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
+						receivedMessages.add(fragment.messageID, fragment.messageID);
+
+						int oldWindow = messageWindowPtrReceived;
+						while(receivedMessages.contains(messageWindowPtrReceived, messageWindowPtrReceived)) {
+							messageWindowPtrReceived++;
+							if(messageWindowPtrReceived == NUM_MESSAGE_IDS) messageWindowPtrReceived = 0;
+						}
 
-					int oldWindow = messageWindowPtrReceived;
-					while(receivedMessages.contains(messageWindowPtrReceived, messageWindowPtrReceived)) {
-						messageWindowPtrReceived++;
-						if(messageWindowPtrReceived == NUM_MESSAGE_IDS) messageWindowPtrReceived = 0;
+						if(messageWindowPtrReceived < oldWindow) {
+							receivedMessages.remove(oldWindow, NUM_MESSAGE_IDS - 1);
+							receivedMessages.remove(0, messageWindowPtrReceived);
+						} else {
+							receivedMessages.remove(oldWindow, messageWindowPtrReceived);
+						}
 					}
 
-					if(messageWindowPtrReceived < oldWindow) {
-						receivedMessages.remove(oldWindow, NUM_MESSAGE_IDS - 1);
-						receivedMessages.remove(0, messageWindowPtrReceived);
-					} else {
-						receivedMessages.remove(oldWindow, messageWindowPtrReceived);
+					synchronized(sendBufferLock) {
+						receiveBufferUsed -= recvBuffer.messageLength;
+						if(logDEBUG) Logger.debug(this, "Removed " + recvBuffer.messageLength + " from buffer. Total is now " + receiveBufferUsed);
 					}
-				}
 
-				synchronized(sendBufferLock) {
-					receiveBufferUsed -= recvBuffer.messageLength;
-					if(logDEBUG) Logger.debug(this, "Removed " + recvBuffer.messageLength + " from buffer. Total is now " + receiveBufferUsed);
+					fullyReceived.add(recvBuffer.buffer);
+					
+					if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Completed");
+				} else {
+					if(logDEBUG) Logger.debug(this, "Message id " + fragment.messageID + ": " + recvMap);
 				}
-
-				fullyReceived.add(recvBuffer.buffer);
-				
-				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Completed");
-			} else {
-				if(logDEBUG) Logger.debug(this, "Message id " + fragment.messageID + ": " + recvMap);
 			}
 		}
 
@@ -312,73 +322,77 @@ public class NewPacketFormat implements PacketFormat {
 
 	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
-		// Create the watchlist if the key has changed
-		if(keyContext.seqNumWatchList == null) {
-			if(logMINOR) Logger.minor(this, "Creating watchlist starting at " + keyContext.watchListOffset);
-			
-			keyContext.seqNumWatchList = new byte[NUM_SEQNUMS_TO_WATCH_FOR][4];
-
-			int seqNum = keyContext.watchListOffset;
-			for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
-				keyContext.seqNumWatchList[i] = encryptSequenceNumber(seqNum++, sessionKey);
-				if((seqNum == NUM_SEQNUMS) || (seqNum < 0)) seqNum = 0;
-			}
-		}
+		// The watch list is changed as well as read, and a packet from an unknown address can be
+		// trial decrypted on another thread while we are decoding one from the peer's address.
+		synchronized(receiveLock) {
+			// Create the watchlist if the key has changed
+			if(keyContext.seqNumWatchList == null) {
+				if(logMINOR) Logger.minor(this, "Creating watchlist starting at " + keyContext.watchListOffset);
+				
+				keyContext.seqNumWatchList = new byte[NUM_SEQNUMS_TO_WATCH_FOR][4];
 
-		// Move the watchlist if needed
-		int highestReceivedSeqNum;
-		synchronized(this) {
-			highestReceivedSeqNum = keyContext.highestReceivedSeqNum;
-		}
-		// The entry for the highest received sequence number is kept in the middle of the list
-		int oldHighestReceived = (int) ((0l + keyContext.watchListOffset + (keyContext.seqNumWatchList.length / 2)) % NUM_SEQNUMS);
-		if(seqNumGreaterThan(highestReceivedSeqNum, oldHighestReceived, 31)) {
-			int moveBy;
-			if(highestReceivedSeqNum > oldHighestReceived) {
-				moveBy = highestReceivedSeqNum - oldHighestReceived;
-			} else {
-				moveBy = ((int) (NUM_SEQNUMS - oldHighestReceived)) + highestReceivedSeqNum;
+				int seqNum = keyContext.watchListOffset;
+				for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
+					keyContext.seqNumWatchList[i] = encryptSequenceNumber(seqNum++, sessionKey);
+					if((seqNum == NUM_SEQNUMS) || (seqNum < 0)) seqNum = 0;
+				}
 			}
 
-			if(moveBy > keyContext.seqNumWatchList.length) {
-				Logger.warning(this, "Moving watchlist pointer by " + moveBy);
-			} else if(moveBy < 0) {
-				Logger.warning(this, "Tried moving watchlist pointer by " + moveBy);
-				moveBy = 0;
-			} else {
-				if(logDEBUG) Logger.debug(this, "Moving watchlist pointer by " + moveBy);
+			// Move the watchlist if needed
+			int highestReceivedSeqNum;
+			synchronized(this) {
+				highestReceivedSeqNum = keyContext.highestReceivedSeqNum;
 			}
+			// The entry for the highest received sequence number is kept in the middle of the list
+			int oldHighestReceived = (int) ((0l + keyContext.watchListOffset + (keyContext.seqNumWatchList.length / 2)) % NUM_SEQNUMS);
+			if(seqNumGreaterThan(highestReceivedSeqNum, oldHighestReceived, 31)) {
+				int moveBy;
+				if(highestReceivedSeqNum > oldHighestReceived) {
+					moveBy = highestReceivedSeqNum - oldHighestReceived;
+				} else {
+					moveBy = ((int) (NUM_SEQNUMS - oldHighestReceived)) + highestReceivedSeqNum;
+				}
 
-			int seqNum = (int) ((0l + keyContext.watchListOffset + keyContext.seqNumWatchList.length) % NUM_SEQNUMS);
-			for(int i = keyContext.watchListPointer; i < (keyContext.watchListPointer + moveBy); i++) {
-				keyContext.seqNumWatchList[i % keyContext.seqNumWatchList.length] = encryptSequenceNumber(seqNum++, sessionKey);
-				if(seqNum == NUM_SEQNUMS) seqNum = 0;
-			}
+				if(moveBy > keyContext.seqNumWatchList.length) {
+					Logger.warning(this, "Moving watchlist pointer by " + moveBy);
+				} else if(moveBy < 0) {
+					Logger.warning(this, "Tried moving watchlist pointer by " + moveBy);
+					moveBy = 0;
+				} else {
+					if(logDEBUG) Logger.debug(this, "Moving watchlist pointer by " + moveBy);
+				}
 
-			keyContext.watchListPointer = (keyContext.watchListPointer + moveBy) % keyContext.seqNumWatchList.length;
-			keyContext.watchListOffset = (int) ((0l + keyContext.watchListOffset + moveBy) % NUM_SEQNUMS);
-		}
+				int seqNum = (int) ((0l + keyContext.watchListOffset + keyContext.seqNumWatchList.length) % NUM_SEQNUMS);
+				for(int i = keyContext.watchListPointer; i < (keyContext.watchListPointer + moveBy); i++) {
+					keyContext.seqNumWatchList[i % keyContext.seqNumWatchList.length] = encryptSequenceNumber(seqNum++, sessionKey);
+					if(seqNum == NUM_SEQNUMS) seqNum = 0;
+				}
 
-outer:
-		for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
-			int index = (keyContext.watchListPointer + i) % keyContext.seqNumWatchList.length;
-			for(int j = 0; j < keyContext.seqNumWatchList[index].length; j++) {
-				if(keyContext.seqNumWatchList[index][j] != buf[offset + hmacLength + j]) continue outer;
+				keyContext.watchListPointer = (keyContext.watchListPointer + moveBy) % keyContext.seqNumWatchList.length;
+				keyContext.watchListOffset = (int) ((0l + keyContext.watchListOffset + moveBy) % NUM_SEQNUMS);
 			}
-			
-			int sequenceNumber = (int) ((0l + keyContext.watchListOffset + i) % NUM_SEQNUMS);
-			if(logDEBUG) Logger.debug(this, "Received packet matches sequence number " + sequenceNumber);
-			// Copy it to avoid side-effects.
-			byte[] copy = new byte[length];
-			System.arraycopy(buf, offset, copy, 0, length);
-			NPFPacket p = decipherFromSeqnum(copy, 0, length, sessionKey, sequenceNumber);
-			if(p != null) {
-				if(logMINOR) Logger.minor(this, "Received packet " + p.getSequenceNumber()+" on "+sessionKey);
-				return p;
+
+	outer:
+			for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
+				int index = (keyContext.watchListPointer + i) % keyContext.seqNumWatchList.length;
+				for(int j = 0; j < keyContext.seqNumWatchList[index].length; j++) {
+					if(keyContext.seqNumWatchList[index][j] != buf[offset + hmacLength + j]) continue outer;
+				}
+				
+				int sequenceNumber = (int) ((0l + keyContext.watchListOffset + i) % NUM_SEQNUMS);
+				if(logDEBUG) Logger.debug(this, "Received packet matches sequence number " + sequenceNumber);
+				// Copy it to avoid side-effects.
+				byte[] copy = new byte[length];
+				System.arraycopy(buf, offset, copy, 0, length);
+				NPFPacket p = decipherFromSeqnum(copy, 0, length, sessionKey, sequenceNumber);
+				if(p != null) {
+					if(logMINOR) Logger.minor(this, "Received packet " + p.getSequenceNumber()+" on "+sessionKey);
+					return p;
+				}
 			}
-		}
 
-		return null;
+			return null;
+		}
 	}
 
 	/** NOTE: THIS WILL DECRYPT THE DATA IN THE BUFFER !!! */
@@ -447,6 +461,35 @@ outer:
 		return seqNumBytes;
 	}
 
+	/**
+	 * Encrypt a serialized packet and add its HMAC, in place. The first hmacLength bytes of the
+	 * buffer are for the HMAC, the rest is the packet, starting with the sequence number. The
+	 * cipher and IV buffer are kept on the key context and reused for each packet.
+	 */
+	void encryptPacket(byte[] data, SessionKey sessionKey) {
+		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
+		BlockCipher ivCipher = sessionKey.ivCipher;
+		synchronized(keyContext.outgoingCryptoLock) {
+			byte[] IV = keyContext.outgoingIV;
+			if(IV == null)
+				IV = keyContext.outgoingIV = new byte[ivCipher.getBlockSize() / 8];
+			System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
+			System.arraycopy(data, hmacLength, IV, IV.length - 4, 4);
+
+			ivCipher.encipher(IV, IV);
+
+			PCFBMode payloadCipher = keyContext.outgoingPayloadCipher;
+			if(payloadCipher == null)
+				payloadCipher = keyContext.outgoingPayloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
+			else
+				payloadCipher.reset(IV);
+			payloadCipher.blockEncipher(data, hmacLength, data.length - hmacLength);
+		}
+
+		//Add hash
+		HMAC.macWithSHA256(sessionKey.hmacKey, data, hmacLength, data.length - hmacLength, data, 0, hmacLength);
+	}
+
 	@Override
 	public boolean maybeSendPacket(long now, Vector<ResendPacketItem> rpiTemp, int[] rpiIntTemp, boolean ackOnly)
 	throws BlockedTooLongException {
@@ -496,24 +539,7 @@ outer:
 		byte[] data = new byte[paddedLen];
 		packet.toBytes(data, hmacLength, pn.paddingGen());
 
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(data, hmacLength, IV, IV.length - 4, 4);
-
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
-		payloadCipher.blockEncipher(data, hmacLength, paddedLen - hmacLength);
-
-		//Add hash
-		byte[] text = new byte[paddedLen - hmacLength];
-		System.arraycopy(data, hmacLength, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text, hmacLength);
-
-		System.arraycopy(hash, 0, data, 0, hmacLength);
+		encryptPacket(data, sessionKey);
 
 		try {
 			if(logMINOR) {
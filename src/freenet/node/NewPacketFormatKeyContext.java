@@ -5,6 +5,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
 
+import freenet.crypt.PCFBMode;
 import freenet.io.xfer.PacketThrottle;
 import freenet.node.NewPacketFormat.SentPacket;
 import freenet.support.LogThresholdCallback;
@@ -24,6 +25,7 @@ public class NewPacketFormatKeyContext {
 	public int nextSeqNum;
 	public int highestReceivedSeqNum;
 
+	/** LOCKING: The watch list fields are protected by the NewPacketFormat's receiveLock. */
 	public byte[][] seqNumWatchList = null;
 	/** Index of the packet with the lowest sequence number */
 	public int watchListPointer = 0;
@@ -40,6 +42,13 @@ public class NewPacketFormatKeyContext {
 	
 	private final Object sequenceNumberLock = new Object();
 	
+	/** Reused to encrypt every outgoing packet with this key, rather than creating a new one
+	 * for each packet. Created and used by NewPacketFormat, protected by outgoingCryptoLock. */
+	PCFBMode outgoingPayloadCipher;
+	/** Scratch space for the IV of an outgoing packet. Protected by outgoingCryptoLock. */
+	byte[] outgoingIV;
+	final Object outgoingCryptoLock = new Object();
+	
 	private static final int REKEY_THRESHOLD = 100;
 	/** All acks must be sent within 200ms */
 	static final int MAX_ACK_DELAY = 200;
@@ -106,6 +106,7 @@ import freenet.keys.KeyVerifyException;
 import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
+import freenet.keys.SSKVerifier;
 import freenet.keys.SSKVerifyException;
 import freenet.l10n.BaseL10n;
 import freenet.l10n.NodeL10n;
@@ -140,6 +141,7 @@ import freenet.store.CHKStore;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
 import freenet.store.NullFreenetStore;
+import freenet.store.OffHeapFreenetStore;
 import freenet.store.PubkeyStore;
 import freenet.store.RAMFreenetStore;
 import freenet.store.SSKStore;
@@ -162,7 +164,9 @@ import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.SizeUtil;
 import freenet.support.Ticker;
+import freenet.support.TimingWheelTicker;
 import freenet.support.TokenBucket;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
@@ -264,6 +268,14 @@ public class Node implements TimeSkewDetectorCallback {
 				Logger.error(this, "Caught migrating old store: "+e, e);
 			}
 			ramstore.clear();
+		} else if(store instanceof OffHeapFreenetStore) {
+			OffHeapFreenetStore<T> ramstore = (OffHeapFreenetStore<T>)store;
+			try {
+				ramstore.migrateTo(newStore, canReadClientCache);
+			} catch (IOException e) {
+				Logger.error(this, "Caught migrating old store: "+e, e);
+			}
+			ramstore.clear();
 		} else if(store instanceof SaltedHashFreenetStore) {
 			SaltedHashFreenetStore<T> saltstore = (SaltedHashFreenetStore<T>) store;
 			// FIXME
@@ -560,6 +572,18 @@ public class Node implements TimeSkewDetectorCallback {
 	/** Datastore properties */
 	private String storeType;
 	private boolean storeUseSlotFilters;
+	/** Memory-map the salted hash store metadata and use striped slot locks */
+	private boolean storeMapMetadata;
+	/** Queue salted hash store writes and write them in batches on a separate thread */
+	private boolean storeWriteBehind;
+	/** Memory-map the slot filters rather than keeping them on the heap */
+	private boolean storeMapSlotFilters;
+	/** Keep the blocks of RAM stores and caches in direct buffers rather than on the heap */
+	private boolean storeRAMOffHeap;
+	/** Use a timing wheel for the ticker rather than a sorted map */
+	private boolean tickerTimingWheel;
+	/** If more than 0, receive UDP packets on one thread and process them on this many */
+	private int udpReceiveThreads;
 	private boolean storeSaltHashResizeOnStart;
 
 	/** The number of bytes per key total in all the different datastores. All the datastores
@@ -734,7 +758,7 @@ public class Node implements TimeSkewDetectorCallback {
 
 	public final Executor executor;
 	public final PacketSender ps;
-	public final PrioritizedTicker ticker;
+	public final Ticker ticker;
 	final DNSRequester dnsr;
 	final NodeDispatcher dispatcher;
 	public final UptimeEstimator uptime;
@@ -1013,6 +1037,7 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println(tmp);
 		collector = new IOStatisticCollector();
 		this.executor = executor;
+		SSKVerifier.setExecutor(executor);
 		nodeStarter=ns;
 		if(logConfigHandler != lc)
 			logConfigHandler=lc;
@@ -1562,6 +1587,32 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enablePacketCoalescing = nodeConfig.getBoolean("enablePacketCoalescing");
 
+		nodeConfig.register("udpReceiveThreads", 0, sortOrder++, true, false, "Node.udpReceiveThreads", "Node.udpReceiveThreadsLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				synchronized(Node.this) {
+					return udpReceiveThreads;
+				}
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("mustBePositive"));
+				synchronized(Node.this) {
+					udpReceiveThreads = val;
+				}
+
+				// FIXME l10n
+				throw new NodeNeedRestartException("Need to restart to change udpReceiveThreads");
+			}
+
+		}, false);
+
+		udpReceiveThreads = nodeConfig.getInt("udpReceiveThreads");
+		if(udpReceiveThreads < 0) udpReceiveThreads = 0;
+
 		// Determine the port number
 		// @see #191
 		if(oldConfig != null && "-1".equals(oldConfig.get("node.listenPort")))
@@ -1581,9 +1632,39 @@ public class Node implements TimeSkewDetectorCallback {
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
 		ps = new PacketSender(this);
-		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
+
+		nodeConfig.register("tickerTimingWheel", false, sortOrder++, true, false, "Node.tickerTimingWheel", "Node.tickerTimingWheelLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return tickerTimingWheel;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					tickerTimingWheel = val;
+				}
+
+				// FIXME l10n
+				throw new NodeNeedRestartException("Need to restart to change tickerTimingWheel");
+			}
+
+		});
+
+		tickerTimingWheel = nodeConfig.getBoolean("tickerTimingWheel");
+
+		if(tickerTimingWheel)
+			ticker = new TimingWheelTicker(executor, getDarknetPortNumber());
+		else
+			ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
+		else if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).setTicker(ticker);
 
 		Logger.normal(Node.class, "Creating node...");
 
@@ -2030,6 +2111,102 @@ public class Node implements TimeSkewDetectorCallback {
 		
 		storeUseSlotFilters = nodeConfig.getBoolean("storeUseSlotFilters");
 
+		nodeConfig.register("storeMapMetadata", false, sortOrder++, true, false, "Node.storeMapMetadata", "Node.storeMapMetadataLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeMapMetadata;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeMapMetadata = val;
+				}
+
+				// FIXME l10n
+				throw new NodeNeedRestartException("Need to restart to change storeMapMetadata");
+			}
+
+		});
+
+		storeMapMetadata = nodeConfig.getBoolean("storeMapMetadata");
+
+		nodeConfig.register("storeWriteBehind", false, sortOrder++, true, false, "Node.storeWriteBehind", "Node.storeWriteBehindLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeWriteBehind;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeWriteBehind = val;
+				}
+
+				// FIXME l10n
+				throw new NodeNeedRestartException("Need to restart to change storeWriteBehind");
+			}
+
+		});
+
+		storeWriteBehind = nodeConfig.getBoolean("storeWriteBehind");
+
+		nodeConfig.register("storeMapSlotFilters", false, sortOrder++, true, false, "Node.storeMapSlotFilters", "Node.storeMapSlotFiltersLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeMapSlotFilters;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeMapSlotFilters = val;
+				}
+
+				// FIXME l10n
+				throw new NodeNeedRestartException("Need to restart to change storeMapSlotFilters");
+			}
+
+		});
+
+		storeMapSlotFilters = nodeConfig.getBoolean("storeMapSlotFilters");
+
+		nodeConfig.register("storeRAMOffHeap", false, sortOrder++, true, false, "Node.storeRAMOffHeap", "Node.storeRAMOffHeapLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeRAMOffHeap;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeRAMOffHeap = val;
+				}
+
+				// FIXME l10n
+				throw new NodeNeedRestartException("Need to restart to change storeRAMOffHeap");
+			}
+
+		});
+
+		storeRAMOffHeap = nodeConfig.getBoolean("storeRAMOffHeap");
+
 		nodeConfig.register("storeSaltHashResizeOnStart", false, sortOrder++, true, false,
 				"Node.storeSaltHashResizeOnStart", "Node.storeSaltHashResizeOnStartLong", new BooleanCallback() {
 			@Override
@@ -3262,11 +3439,11 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void initRAMClientCacheFS() {
 		chkClientcache = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		makeRAMStore(chkClientcache, maxClientCacheKeys);
 		pubKeyClientcache = new PubkeyStore();
-		new RAMFreenetStore<DSAPublicKey>(pubKeyClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		makeRAMStore(pubKeyClientcache, maxClientCacheKeys);
 		sskClientcache = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		makeRAMStore(sskClientcache, maxClientCacheKeys);
 		envMutableConfig = null;
 		this.storeEnvironment = null;
 	}
@@ -3362,20 +3539,29 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/** Create a RAM store for the given callback, on or off the heap depending on storeRAMOffHeap. */
+	private <T extends StorableBlock> FreenetStore<T> makeRAMStore(StoreCallback<T> callback, long maxKeys) {
+		int keys = (int) Math.min(Integer.MAX_VALUE, maxKeys);
+		if(storeRAMOffHeap)
+			return new OffHeapFreenetStore<T>(callback, keys);
+		else
+			return new RAMFreenetStore<T>(callback, keys);
+	}
+
 	private void initRAMFS() {
 		chkDatastore = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		makeRAMStore(chkDatastore, maxStoreKeys);
 		chkDatacache = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		makeRAMStore(chkDatacache, maxCacheKeys);
 		pubKeyDatastore = new PubkeyStore();
-		new RAMFreenetStore<DSAPublicKey>(pubKeyDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		makeRAMStore(pubKeyDatastore, maxStoreKeys);
 		pubKeyDatacache = new PubkeyStore();
 		getPubKey.setDataStore(pubKeyDatastore, pubKeyDatacache);
-		new RAMFreenetStore<DSAPublicKey>(pubKeyDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		makeRAMStore(pubKeyDatacache, maxCacheKeys);
 		sskDatastore = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		makeRAMStore(sskDatastore, maxStoreKeys);
 		sskDatacache = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		makeRAMStore(sskDatacache, maxCacheKeys);
 		envMutableConfig = null;
 		this.storeEnvironment = null;
 	}
@@ -3594,7 +3780,9 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
-		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey, storeMapMetadata, storeMapSlotFilters);
+		if(storeWriteBehind)
+			fs.enableWriteBehind();
 		cb.setStore(fs);
 		return fs;
 	}
@@ -3757,7 +3945,10 @@ public class Node implements TimeSkewDetectorCallback {
 		if(opennet != null)
 			opennet.start();
 		ps.start(nodeStats);
-		ticker.start();
+		if(ticker instanceof TimingWheelTicker)
+			((TimingWheelTicker)ticker).start();
+		else
+			((PrioritizedTicker)ticker).start();
 		scheduleVersionTransition();
 		usm.start(ticker);
 
@@ -5644,6 +5835,12 @@ public class Node implements TimeSkewDetectorCallback {
 		 config.get("node").getOption("name").setValue(key);
 	}
 
+	/** Number of threads to process incoming UDP packets on, or 0 to process them on the
+	 * thread that receives them. */
+	public synchronized int getUdpReceiveThreads() {
+		return udpReceiveThreads;
+	}
+
 	public Ticker getTicker() {
 		return ticker;
 	}
@@ -3,6 +3,7 @@ package freenet.node;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.HashMap;
 import java.util.HashSet;
 
 import org.tanukisoftware.wrapper.WrapperManager;
@@ -11,6 +12,7 @@ import com.db4o.ObjectContainer;
 import com.db4o.ext.Db4oException;
 
 import freenet.client.ArchiveManager;
+import freenet.client.FECCodec;
 import freenet.client.FECQueue;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.HighLevelSimpleClientImpl;
@@ -140,6 +142,8 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 	public final RealCompressor compressor;
 	/** If true, requests are resumed lazily i.e. startup does not block waiting for them. */
 	protected final Persister persister;
+	/** Saves the latest editions of recently used USKs, see USKEditionCache. */
+	private final Persister uskEditionsPersister;
 	/** All client-layer database access occurs on a SerialExecutor, so that we don't need
 	 * to have multiple parallel transactions. Advantages:
 	 * - We never have two copies of the same object in RAM, and more broadly, we don't
@@ -236,6 +240,17 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		}
 
 		uskManager = new USKManager(this);
+		uskEditionsPersister = new Persister(uskManager.getEditionCache(), new File(node.getRunDir(), "usk-editions.dat.tmp"),
+				new File(node.getRunDir(), "usk-editions.dat"), node.ticker);
+		if(node.securityLevels.getPhysicalThreatLevel() != PHYSICAL_THREAT_LEVEL.LOW) {
+			// The file is not encrypted, and is effectively a browsing history, so only keep it
+			// if we aren't worried about the node being seized. Any old file will be emptied.
+			uskManager.getEditionCache().setEnabled(false);
+		} else {
+			SimpleFieldSet editionsFS = uskEditionsPersister.read();
+			if(editionsFS != null)
+				uskManager.getEditionCache().readFrom(editionsFS);
+		}
 
 		// Persistent temp files
 		nodeConfig.register("encryptPersistentTempBuckets", true, sortOrder++, true, false, "NodeClientCore.encryptPersistentTempBuckets", "NodeClientCore.encryptPersistentTempBucketsLong", new BooleanCallback() {
@@ -347,6 +362,12 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 
 			@Override
 			public void onChange(PHYSICAL_THREAT_LEVEL oldLevel, PHYSICAL_THREAT_LEVEL newLevel) {
+				if(newLevel == PHYSICAL_THREAT_LEVEL.LOW) {
+					uskManager.getEditionCache().setEnabled(true);
+				} else if(oldLevel == PHYSICAL_THREAT_LEVEL.LOW) {
+					uskManager.getEditionCache().setEnabled(false);
+					uskEditionsPersister.persistNow();
+				}
 				if(newLevel == PHYSICAL_THREAT_LEVEL.LOW) {
 					if(tempBucketFactory.isEncrypting()) {
 						tempBucketFactory.setEncryption(false);
@@ -521,6 +542,56 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 
 		});
 		alwaysCommit = nodeConfig.getBoolean("alwaysCommit");
+
+		nodeConfig.register("groupCommitLatency", 1000, sortOrder++, true, false, "NodeClientCore.groupCommitLatency", "NodeClientCore.groupCommitLatencyLong",
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return groupCommitLatency;
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException {
+						if(val < 0)
+							throw new InvalidConfigValueException(NodeL10n.getBase().getString("Node.mustBePositive"));
+						groupCommitLatency = val;
+					}
+
+		}, false);
+		groupCommitLatency = nodeConfig.getInt("groupCommitLatency");
+
+		nodeConfig.register("fecLongWordCodec", false, sortOrder++, true, false, "NodeClientCore.fecLongWordCodec", "NodeClientCore.fecLongWordCodecLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return FECCodec.getUseLongWordCodec();
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						FECCodec.setUseLongWordCodec(val);
+					}
+
+		});
+		FECCodec.setUseLongWordCodec(nodeConfig.getBoolean("fecLongWordCodec"));
+
+		nodeConfig.register("fecThreadPerCore", false, sortOrder++, true, false, "NodeClientCore.fecThreadPerCore", "NodeClientCore.fecThreadPerCoreLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return FECQueue.getThreadPerCore();
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						FECQueue.setThreadPerCore(val);
+					}
+
+		});
+		FECQueue.setThreadPerCore(nodeConfig.getBoolean("fecThreadPerCore"));
 	}
 
 	private void initUSK(ObjectContainer container) {
@@ -778,6 +849,7 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		}
 
 		persister.start();
+		uskEditionsPersister.start();
 
 		requestStarters.start();
 
@@ -1865,14 +1937,32 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 
 	static final int SOON_COMMIT_INTERVAL = 5*1000;
 
+	/** If positive, a job which wants a commit waits for up to this many milliseconds, so that
+	 * one commit can cover it and the jobs queued behind it. If 0, we commit as soon as a job
+	 * asks for it. */
+	private volatile int groupCommitLatency;
+
+	/** The most jobs a group commit will cover. */
+	static final int MAX_GROUP_COMMIT_JOBS = 1000;
+
+	/** When the first job since the last commit asked for a commit, or -1. */
+	private long commitWantedSince = -1;
+
+	/** The number of jobs of each type since the last commit, so we can share out the time
+	 * taken to commit. Only accessed on the database thread. */
+	private final HashMap<String, Integer> uncommittedJobs = new HashMap<String, Integer>();
+	private int uncommittedJobCount;
+
 	class DBJobWrapper implements Runnable {
 
 		DBJobWrapper(DBJob job) {
 			this.job = job;
 			if(job == null) throw new NullPointerException();
+			queuedTime = System.nanoTime();
 		}
 
 		final DBJob job;
+		final long queuedTime;
 
 		@Override
 		public void run() {
@@ -1886,11 +1976,39 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 				}
 				if(job == null) throw new NullPointerException();
 				if(node == null) throw new NullPointerException();
+				long startTime = System.nanoTime();
 				boolean commit = job.run(node.db, clientContext);
+				long endTime = System.nanoTime();
+				String jobType = NodeStats.sanitizeDBJobType(job.toString());
+				if(nodeStats != null)
+					nodeStats.reportDatabaseJobTimes(jobType, (startTime - queuedTime) / 1000000.0, (endTime - startTime) / 1000000.0);
+				Integer count = uncommittedJobs.get(jobType);
+				uncommittedJobs.put(jobType, count == null ? 1 : count + 1);
+				uncommittedJobCount++;
 				boolean killed;
 				synchronized(NodeClientCore.this) {
 					killed = killedDatabase;
-					if(!killed) {
+					if(!killed && groupCommitLatency > 0) {
+						long now = System.currentTimeMillis();
+						if((commit || commitSoon) && commitWantedSince < 0)
+							commitWantedSince = now;
+						// Commit when the queue is drained, or when the first job that wanted
+						// a commit has waited long enough.
+						commit = commitWantedSince >= 0 &&
+							(!clientDatabaseExecutor.anyQueued() ||
+									now - commitWantedSince >= groupCommitLatency ||
+									uncommittedJobCount >= MAX_GROUP_COMMIT_JOBS);
+						if(now - lastCommitted > MAX_COMMIT_INTERVAL)
+							commit = true;
+						if(alwaysCommit)
+							commit = true;
+						if(commitThisTransaction) {
+							commit = true;
+							commitThisTransaction = false;
+						}
+						if(commit)
+							commitSoon = false;
+					} else if(!killed) {
 						long now = System.currentTimeMillis();
 						if(now - lastCommitted > MAX_COMMIT_INTERVAL) {
 							lastCommitted = now;
@@ -1914,15 +2032,11 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 				}
 				if(killed) {
 					node.db.rollback();
+					uncommittedJobs.clear();
+					uncommittedJobCount = 0;
 					return;
 				} else if(commit) {
-					persistentTempBucketFactory.preCommit(node.db);
-					node.db.commit();
-					synchronized(NodeClientCore.this) {
-						lastCommitted = System.currentTimeMillis();
-					}
-					if(logMINOR) Logger.minor(this, "COMMITTED");
-					persistentTempBucketFactory.postCommit(node.db);
+					commit();
 				}
 			} catch (Throwable t) {
 				if(t instanceof OutOfMemoryError) {
@@ -1939,6 +2053,8 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 				}
 				if(killed) {
 					node.db.rollback();
+					uncommittedJobs.clear();
+					uncommittedJobCount = 0;
 				}
 			}
 		}
@@ -2064,13 +2180,25 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		synchronized(NodeClientCore.this) {
 			if(killedDatabase) return;
 		}
+		commit();
+	}
+
+	/** Commit the database, and share the time taken between the jobs it covers. Must be
+	 * called on the database thread. */
+	private void commit() {
+		long startTime = System.nanoTime();
 		persistentTempBucketFactory.preCommit(node.db);
 		node.db.commit();
 		synchronized(NodeClientCore.this) {
 			lastCommitted = System.currentTimeMillis();
+			commitWantedSince = -1;
 		}
 		if(logMINOR) Logger.minor(this, "COMMITTED");
 		persistentTempBucketFactory.postCommit(node.db);
+		if(nodeStats != null)
+			nodeStats.reportDatabaseCommit(uncommittedJobs, uncommittedJobCount, (System.nanoTime() - startTime) / 1000000.0);
+		uncommittedJobs.clear();
+		uncommittedJobCount = 0;
 	}
 
 	private boolean commitThisTransaction;
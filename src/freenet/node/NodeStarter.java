@@ -11,6 +11,7 @@ import org.tanukisoftware.wrapper.WrapperManager;
 
 import freenet.config.FreenetFilePersistentConfig;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.PersistentConfig;
 import freenet.config.SubConfig;
 import freenet.crypt.DiffieHellman;
@@ -21,7 +22,9 @@ import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleFieldSet;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.Logger.LogLevel;
+import freenet.support.api.BooleanCallback;
 import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.io.NativeThread;
 
@@ -34,6 +37,7 @@ public class NodeStarter implements WrapperListener {
 
 	private Node node;
 	private static LoggingConfigHandler logConfigHandler;
+	private static boolean executorWorkStealing;
 	/** Freenet will not function at all without at least this build of freenet-ext.jar.
 	 * This will be included in the jar manifest file so we can check it when we download new builds. */
 	public final static int REQUIRED_EXT_BUILD_NUMBER = 29;
@@ -118,7 +122,27 @@ public class NodeStarter implements WrapperListener {
 		// First, set up logging. It is global, and may be shared between several nodes.
 		SubConfig loggingConfig = new SubConfig("logger", cfg);
 
-		PooledExecutor executor = new PooledExecutor();
+		// The executor is also global, and must exist before the logger.
+		SubConfig executorConfig = new SubConfig("executor", cfg);
+		executorConfig.register("workStealing", false, 0, true, false, "NodeStarter.executorWorkStealing", "NodeStarter.executorWorkStealingLong",
+			new BooleanCallback() {
+
+				@Override
+				public Boolean get() {
+					return executorWorkStealing;
+				}
+
+				@Override
+				public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+					if(val.equals(get())) return;
+					executorWorkStealing = val;
+					throw new NodeNeedRestartException("Need to restart to change the executor");
+				}
+			});
+		executorWorkStealing = executorConfig.getBoolean("workStealing");
+		executorConfig.finishedInitialization();
+
+		Executor executor = executorWorkStealing ? new WorkStealingExecutor() : new PooledExecutor();
 
 		try {
 			System.out.println("Creating logger...");
@@ -130,7 +154,8 @@ public class NodeStarter implements WrapperListener {
 		}
 
 		System.out.println("Starting executor...");
-		executor.start();
+		if(executor instanceof PooledExecutor)
+			((PooledExecutor)executor).start();
 
 		// Prevent timeouts for a while. The DiffieHellman init for example could take some time on a very slow system.
 		WrapperManager.signalStarting(500000);
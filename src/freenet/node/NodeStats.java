@@ -18,12 +18,15 @@ import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.io.xfer.BlockTransmitter.BlockTimeCallback;
 import freenet.io.xfer.BulkTransmitter;
+import freenet.keys.CHKBlock;
 import freenet.l10n.NodeL10n;
 import freenet.node.Node.CountedRequests;
 import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreLocationStats;
 import freenet.store.CHKStore;
+import freenet.store.FreenetStore;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.HTMLNode;
 import freenet.support.Histogram2;
 import freenet.support.LogThresholdCallback;
@@ -34,6 +37,7 @@ import freenet.support.SizeUtil;
 import freenet.support.StringCounter;
 import freenet.support.TimeUtil;
 import freenet.support.TokenBucket;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -244,8 +248,6 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 	// ThreadCounting stuffs
 	public final ThreadGroup rootThreadGroup;
-	private int[] activeThreadsByPriorities = new int[NativeThread.JAVA_PRIORITY_RANGE];
-	private int[] waitingThreadsByPriorities = new int[NativeThread.JAVA_PRIORITY_RANGE];
 	private int threadLimit;
 
 	final NodePinger nodePinger;
@@ -273,6 +275,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 	// Database stats
 	final Hashtable<String, TrivialRunningAverage> avgDatabaseJobExecutionTimes;
+	final Hashtable<String, DatabaseJobTimes> databaseJobTimes;
 	public final DecayingKeyspaceAverage avgClientCacheCHKLocation;
 	public final DecayingKeyspaceAverage avgCacheCHKSuccess;
 	public final DecayingKeyspaceAverage avgSlashdotCacheCHKSucess;
@@ -307,8 +310,6 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		ThreadGroup tg = Thread.currentThread().getThreadGroup();
 		while(tg.getParent() != null) tg = tg.getParent();
 		this.rootThreadGroup = tg;
-		this.activeThreadsByPriorities = new int[NativeThread.JAVA_PRIORITY_RANGE];
-		this.waitingThreadsByPriorities = new int[NativeThread.JAVA_PRIORITY_RANGE];
 		throttledPacketSendAverage =
 			new BootstrappingDecayingRunningAverage(0, 0, Long.MAX_VALUE, 100, null);
 		throttledPacketSendAverageRT =
@@ -601,6 +602,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		avgTransferBackoffTimesBulk = new Hashtable<String, TrivialRunningAverage>();
 
 		avgDatabaseJobExecutionTimes = new Hashtable<String, TrivialRunningAverage>();
+		databaseJobTimes = new Hashtable<String, DatabaseJobTimes>();
 	}
 
 	protected String l10n(String key) {
@@ -1763,11 +1765,32 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public int[] getActiveThreadsByPriority() {
-		return activeThreadsByPriorities;
+		return node.executor.runningThreads();
 	}
 
 	public int[] getWaitingThreadsByPriority() {
-		return waitingThreadsByPriorities;
+		return node.executor.waitingThreads();
+	}
+
+	/** @return The number of jobs queued but not yet started by priority, or null if the
+	 * executor doesn't queue jobs. */
+	public int[] getQueuedJobsByPriority() {
+		if(!(node.executor instanceof WorkStealingExecutor)) return null;
+		return ((WorkStealingExecutor)node.executor).queuedJobs();
+	}
+
+	/** @return The average time jobs waited before starting in milliseconds by priority, or
+	 * null if the executor doesn't queue jobs. */
+	public double[] getAverageQueueWaitByPriority() {
+		if(!(node.executor instanceof WorkStealingExecutor)) return null;
+		return ((WorkStealingExecutor)node.executor).averageQueueWait();
+	}
+
+	/** @return The longest time a job waited before starting in milliseconds by priority, or
+	 * null if the executor doesn't queue jobs. */
+	public double[] getMaxQueueWaitByPriority() {
+		if(!(node.executor instanceof WorkStealingExecutor)) return null;
+		return ((WorkStealingExecutor)node.executor).maxQueueWait();
 	}
 
 	public int getThreadLimit() {
@@ -2077,6 +2100,21 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("overallAccesses", overallAccesses);
 		fs.put("avgStoreAccessRate", avgStoreAccessRate);
 
+		FreenetStore<CHKBlock> chkStore = node.getChkDatastore().getStore();
+		if(chkStore instanceof SaltedHashFreenetStore) {
+			SaltedHashFreenetStore<CHKBlock> saltStore = (SaltedHashFreenetStore<CHKBlock>) chkStore;
+			fs.put("storeWriteQueueSize", saltStore.getWriteQueueSize());
+			fs.put("storeAvgFlushTime", saltStore.getAverageFlushTime());
+			fs.put("storeAvgFlushBatchSize", saltStore.getAverageFlushBatchSize());
+		}
+		FreenetStore<CHKBlock> chkCache = node.getChkDatacache().getStore();
+		if(chkCache instanceof SaltedHashFreenetStore) {
+			SaltedHashFreenetStore<CHKBlock> saltStore = (SaltedHashFreenetStore<CHKBlock>) chkCache;
+			fs.put("cachedStoreWriteQueueSize", saltStore.getWriteQueueSize());
+			fs.put("cachedStoreAvgFlushTime", saltStore.getAverageFlushTime());
+			fs.put("cachedStoreAvgFlushBatchSize", saltStore.getAverageFlushBatchSize());
+		}
+
 		Runtime rt = Runtime.getRuntime();
 		float freeMemory = rt.freeMemory();
 		float totalMemory = rt.totalMemory();
@@ -2974,7 +3012,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			hourlyStatsBulk.fillRemoteRequestHTLsBox(html);
 	}
 
-	private String sanitizeDBJobType(String jobType) {
+	static String sanitizeDBJobType(String jobType) {
 		int typeBeginIndex = jobType.lastIndexOf('.'); // Only use the actual class name, exclude the packages
 		int typeEndIndex = jobType.indexOf('@');
 
@@ -3009,6 +3047,50 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		avg.report(executionTimeMiliSeconds);
 	}
 
+	/** Where the time goes for one type of database job, in milliseconds. */
+	private static class DatabaseJobTimes {
+		final TrivialRunningAverage queueTime = new TrivialRunningAverage();
+		final TrivialRunningAverage runTime = new TrivialRunningAverage();
+		final TrivialRunningAverage commitTime = new TrivialRunningAverage();
+	}
+
+	private DatabaseJobTimes getDatabaseJobTimes(String jobType) {
+		synchronized(databaseJobTimes) {
+			DatabaseJobTimes times = databaseJobTimes.get(jobType);
+			if(times == null) {
+				times = new DatabaseJobTimes();
+				databaseJobTimes.put(jobType, times);
+			}
+			return times;
+		}
+	}
+
+	/**
+	 * Report how long a database job waited in the queue and how long it ran for, not
+	 * including any commit.
+	 * @param jobType The type of the job, from sanitizeDBJobType().
+	 */
+	public void reportDatabaseJobTimes(String jobType, double queueTimeMilliSeconds, double runTimeMilliSeconds) {
+		DatabaseJobTimes times = getDatabaseJobTimes(jobType);
+		times.queueTime.report(queueTimeMilliSeconds);
+		times.runTime.report(runTimeMilliSeconds);
+	}
+
+	/**
+	 * Report a commit, sharing the time equally between the jobs it covered.
+	 * @param jobCounts The number of jobs of each type (from sanitizeDBJobType()) since the
+	 * last commit.
+	 */
+	public void reportDatabaseCommit(Map<String, Integer> jobCounts, int jobs, double commitTimeMilliSeconds) {
+		if(jobs == 0) return;
+		double share = commitTimeMilliSeconds / jobs;
+		for(Map.Entry<String, Integer> entry : jobCounts.entrySet()) {
+			TrivialRunningAverage avg = getDatabaseJobTimes(entry.getKey()).commitTime;
+			for(int i=0;i<entry.getValue();i++)
+				avg.report(share);
+		}
+	}
+
 	public void reportMandatoryBackoff(String backoffType, long backoffTimeMilliSeconds, boolean realtime) {
 		TrivialRunningAverage avg;
 		if(realtime) {
@@ -3497,6 +3579,53 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return entries;
 	}
 
+	public static class DatabaseJobTimedStats implements Comparable<DatabaseJobTimedStats> {
+		public final String keyStr;
+		public final long count;
+		public final double avgQueueTime;
+		public final double avgRunTime;
+		/** Average share of the time spent committing the jobs. */
+		public final double avgCommitTime;
+		/** Total time spent running and committing the jobs. */
+		public final double totalTime;
+
+		public DatabaseJobTimedStats(String myKeyStr, long myCount, double myAvgQueueTime, double myAvgRunTime, double myAvgCommitTime, double myTotalTime) {
+			keyStr = myKeyStr;
+			count = myCount;
+			avgQueueTime = myAvgQueueTime;
+			avgRunTime = myAvgRunTime;
+			avgCommitTime = myAvgCommitTime;
+			totalTime = myTotalTime;
+		}
+
+		@Override
+		public int compareTo(DatabaseJobTimedStats o) {
+			return Double.compare(o.totalTime, totalTime);
+		}
+	}
+
+	private static double average(TrivialRunningAverage avg) {
+		return avg.countReports() == 0 ? 0.0 : avg.currentValue();
+	}
+
+	public DatabaseJobTimedStats[] getDatabaseJobTimingStatistics() {
+		DatabaseJobTimedStats[] entries;
+		int i = 0;
+
+		synchronized(databaseJobTimes) {
+			entries = new DatabaseJobTimedStats[databaseJobTimes.size()];
+			for(Map.Entry<String, DatabaseJobTimes> entry : databaseJobTimes.entrySet()) {
+				DatabaseJobTimes times = entry.getValue();
+				entries[i++] = new DatabaseJobTimedStats(entry.getKey(), times.runTime.countReports(),
+						average(times.queueTime), average(times.runTime), average(times.commitTime),
+						times.runTime.totalValue() + times.commitTime.totalValue());
+			}
+		}
+
+		Arrays.sort(entries);
+		return entries;
+	}
+
 	public StringCounter getDatabaseJobQueueStatistics() {
 		final StringCounter result = new StringCounter();
 
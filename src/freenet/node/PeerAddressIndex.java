@@ -0,0 +1,176 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.io.comm.FreenetInetAddress;
+import freenet.io.comm.Peer;
+
+/**
+ * Index of peers by IP address and port, and by IP address alone, so the peer a packet came
+ * from can be found without checking every peer. The owner of each set of addresses is
+ * normally a PeerNode; the caller must call update() whenever its addresses change, and
+ * remove() when it goes away. Lookups don't take any locks.
+ *
+ * Addresses are indexed without hostnames, so an address which has not been looked up yet
+ * will not match anything. Peer.laxEquals() doesn't match those against a numeric address
+ * either.
+ *
+ * Also keeps a short list of peers which have recently been seen on an address other than the
+ * one we had for them (NAT rebinding, dynamic IPs). When a packet comes from an unknown address
+ * these are the most likely senders, so they should be tried before any others.
+ */
+class PeerAddressIndex<T> {
+
+	/** Maximum number of address change candidates to remember. */
+	static final int MAX_CANDIDATES = 16;
+
+	/** Owners by IP address and port. The lists are never modified once in the map. */
+	private final ConcurrentHashMap<Peer, List<T>> byPeer;
+	/** Owners by IP address. The lists are never modified once in the map. */
+	private final ConcurrentHashMap<FreenetInetAddress, List<T>> byIP;
+	/** The addresses we have indexed for each owner. Protected by this. */
+	private final HashMap<T, Peer[]> indexed;
+	/** Owners most recently seen on a new address, most recent first. Replaced, never modified. */
+	private volatile List<T> candidates;
+
+	PeerAddressIndex() {
+		byPeer = new ConcurrentHashMap<Peer, List<T>>();
+		byIP = new ConcurrentHashMap<FreenetInetAddress, List<T>>();
+		indexed = new HashMap<T, Peer[]>();
+		candidates = Collections.emptyList();
+	}
+
+	/** @return Owners with exactly this address and port. Never null. */
+	List<T> get(Peer peer) {
+		List<T> list = byPeer.get(peer);
+		if(list == null) return Collections.emptyList();
+		return list;
+	}
+
+	/** @return Owners with this IP address, on any port. Never null. */
+	List<T> getByIP(FreenetInetAddress addr) {
+		List<T> list = byIP.get(addr);
+		if(list == null) return Collections.emptyList();
+		return list;
+	}
+
+	/**
+	 * Set the addresses for an owner, replacing any it had before.
+	 * @param addresses The addresses. Hostnames are dropped; addresses which haven't been looked
+	 * up yet, and nulls, are ignored.
+	 */
+	synchronized void update(T owner, Peer[] addresses) {
+		ArrayList<Peer> numeric = new ArrayList<Peer>(addresses.length);
+		for(Peer p : addresses) {
+			if(p == null) continue;
+			if(p.getFreenetAddress().hasHostnameNoIP()) continue;
+			p = p.dropHostName();
+			if(p == null || numeric.contains(p)) continue;
+			numeric.add(p);
+		}
+		Peer[] old = indexed.get(owner);
+		Peer[] now = numeric.toArray(new Peer[numeric.size()]);
+		if(old != null && sameAddresses(old, now)) return;
+		if(old != null) removeInner(owner, old);
+		if(now.length == 0) {
+			indexed.remove(owner);
+			return;
+		}
+		indexed.put(owner, now);
+		ArrayList<FreenetInetAddress> ips = new ArrayList<FreenetInetAddress>(now.length);
+		for(Peer p : now) {
+			byPeer.put(p, with(byPeer.get(p), owner));
+			FreenetInetAddress ip = p.getFreenetAddress();
+			if(ips.contains(ip)) continue;
+			ips.add(ip);
+			byIP.put(ip, with(byIP.get(ip), owner));
+		}
+	}
+
+	/** Remove an owner from the index and from the candidate list. */
+	synchronized void remove(T owner) {
+		Peer[] old = indexed.remove(owner);
+		if(old != null) removeInner(owner, old);
+		if(candidates.contains(owner)) {
+			List<T> list = new ArrayList<T>(candidates);
+			list.remove(owner);
+			candidates = Collections.unmodifiableList(list);
+		}
+	}
+
+	synchronized void clear() {
+		indexed.clear();
+		byPeer.clear();
+		byIP.clear();
+		candidates = Collections.emptyList();
+	}
+
+	/** How many owners have at least one address indexed? */
+	synchronized int size() {
+		return indexed.size();
+	}
+
+	/** The owner has been seen on an address other than the one we had for it. */
+	synchronized void addressMismatch(T owner) {
+		List<T> old = candidates;
+		if(!old.isEmpty() && old.get(0) == owner) return;
+		List<T> list = new ArrayList<T>(Math.min(old.size() + 1, MAX_CANDIDATES));
+		list.add(owner);
+		for(T t : old) {
+			if(list.size() >= MAX_CANDIDATES) break;
+			if(t != owner) list.add(t);
+		}
+		candidates = Collections.unmodifiableList(list);
+	}
+
+	/** @return Owners recently seen on a new address, most recent first. Never null. */
+	List<T> getCandidates() {
+		return candidates;
+	}
+
+	private void removeInner(T owner, Peer[] old) {
+		for(Peer p : old) {
+			List<T> list = without(byPeer.get(p), owner);
+			if(list == null) byPeer.remove(p);
+			else byPeer.put(p, list);
+			FreenetInetAddress ip = p.getFreenetAddress();
+			list = without(byIP.get(ip), owner);
+			if(list == null) byIP.remove(ip);
+			else byIP.put(ip, list);
+		}
+	}
+
+	private static boolean sameAddresses(Peer[] a, Peer[] b) {
+		if(a.length != b.length) return false;
+		for(int i=0;i<a.length;i++)
+			if(!a[i].equals(b[i])) return false;
+		return true;
+	}
+
+	private List<T> with(List<T> list, T owner) {
+		if(list == null) return Collections.singletonList(owner);
+		if(list.contains(owner)) return list;
+		List<T> newList = new ArrayList<T>(list.size() + 1);
+		newList.addAll(list);
+		newList.add(owner);
+		return Collections.unmodifiableList(newList);
+	}
+
+	/** @return The list without the owner, or null if that leaves it empty. */
+	private List<T> without(List<T> list, T owner) {
+		if(list == null) return null;
+		if(!list.contains(owner)) return list;
+		if(list.size() == 1) return null;
+		List<T> newList = new ArrayList<T>(list);
+		newList.remove(owner);
+		return Collections.unmodifiableList(newList);
+	}
+
+}
@@ -64,6 +64,8 @@ public class PeerManager {
 	PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	PeerNode[] connectedPeers;
+	/** myPeers by address, so we can find the peer a packet came from quickly */
+	private final PeerAddressIndex<PeerNode> addressIndex = new PeerAddressIndex<PeerNode>();
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
@@ -334,6 +336,7 @@ public class PeerManager {
 			myPeers = newMyPeers;
 			Logger.normal(this, "Added " + pn);
 		}
+		updateAddressIndex(pn);
 		if(pn.recordStatus())
 			addPeerNodeStatus(pn.getPeerNodeStatus(), pn, false);
 		pn.setPeerNodeStatus(System.currentTimeMillis());
@@ -408,6 +411,7 @@ public class PeerManager {
 				Logger.normal(this, "Removed " + pn);
 			}
 		}
+		addressIndex.remove(pn);
 		pn.onRemove();
 		if(isInPeers && !pn.isSeed())
 			updatePMUserAlert();
@@ -423,6 +427,7 @@ public class PeerManager {
 			myPeers = new PeerNode[0];
 			connectedPeers = new PeerNode[0];
 		}
+		addressIndex.clear();
 		for(int i = 0; i < oldPeers.length; i++)
 			oldPeers[i].onRemove();
 		notifyPeerStatusChangeListeners();
@@ -531,42 +536,69 @@ public class PeerManager {
 	 * non-isRealConnection()'s since they can also be connected.
 	 */
 	public PeerNode getByPeer(Peer peer) {
-		PeerNode[] peerList = myPeers;
-		for(int i = 0; i < peerList.length; i++) {
-			if(peerList[i].matchesPeerAndPort(peer))
-				return peerList[i];
-		}
-		// Try a match by IP address if we can't match exactly by IP:port.
-		FreenetInetAddress addr = peer.getFreenetAddress();
-		for(int i = 0; i < peerList.length; i++) {
-			if(peerList[i].matchesIP(addr, false))
-				return peerList[i];
-		}
-		return null;
+		return getByPeer(peer, null);
 	}
 	
 	/**
 	 * Find the node with the given Peer address, or IP address. Checks the outgoing
 	 * packet mangler as well.
 	 * @param peer
-	 * @param mangler
+	 * @param mangler If not null, only return a node which uses this packet mangler.
 	 * @return
 	 */
 	public PeerNode getByPeer(Peer peer, FNPPacketMangler mangler) {
+		FreenetInetAddress addr = peer.getFreenetAddress();
+		if(addr.hasHostnameNoIP() || peer.dropHostName() != peer) {
+			// The index only has numeric addresses. Packets always come from one, so this is rare.
+			return getByPeerSlow(peer, mangler);
+		}
+		for(PeerNode pn : addressIndex.get(peer)) {
+			if(mangler == null || pn.getOutgoingMangler() == mangler)
+				return pn;
+		}
+		// Try a match by IP address if we can't match exactly by IP:port.
+		for(PeerNode pn : addressIndex.getByIP(addr)) {
+			if(mangler == null || pn.getOutgoingMangler() == mangler)
+				return pn;
+		}
+		return null;
+	}
+
+	private PeerNode getByPeerSlow(Peer peer, FNPPacketMangler mangler) {
 		PeerNode[] peerList = myPeers;
 		for(int i = 0; i < peerList.length; i++) {
-			if(peerList[i].matchesPeerAndPort(peer) && peerList[i].getOutgoingMangler() == mangler)
+			if(peerList[i].matchesPeerAndPort(peer) && (mangler == null || peerList[i].getOutgoingMangler() == mangler))
 				return peerList[i];
 		}
 		// Try a match by IP address if we can't match exactly by IP:port.
 		FreenetInetAddress addr = peer.getFreenetAddress();
 		for(int i = 0; i < peerList.length; i++) {
-			if(peerList[i].matchesIP(addr, false) && peerList[i].getOutgoingMangler() == mangler)
+			if(peerList[i].matchesIP(addr, false) && (mangler == null || peerList[i].getOutgoingMangler() == mangler))
 				return peerList[i];
 		}
 		return null;
 	}
 
+	/** Called by a PeerNode when its detected or nominal addresses change. */
+	void updateAddressIndex(PeerNode pn) {
+		Peer[] addresses = pn.getIndexableAddresses();
+		synchronized(this) {
+			if(!havePeer(pn)) return;
+			addressIndex.update(pn, addresses);
+		}
+	}
+
+	/** Called when a peer has been seen on a new address, so is worth trying first when a packet
+	 * arrives from an address we don't recognise. */
+	public void addressMismatch(PeerNode pn) {
+		addressIndex.addressMismatch(pn);
+	}
+
+	/** @return Peers which have recently changed address, most recent first. */
+	public List<PeerNode> getAddressChangeCandidates() {
+		return addressIndex.getCandidates();
+	}
+
 	/**
 	 * Find nodes with a given IP address.
 	 */
@@ -1020,6 +1020,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode {
 				localDetectedPeer = detectedPeer = detectedDuplicate;
 			updateShortToString();
 		}
+		// Hostnames in the nominal addresses may have been looked up.
+		updateAddressIndex();
 		if(logMINOR) {
 			if(localDetectedPeer != null)
 				Logger.minor(this, "3: detectedPeer = " + localDetectedPeer + " (" + localDetectedPeer.getAddress(false) + ')');
@@ -1931,17 +1933,25 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode {
 			Logger.error(this, "Impossible: No address for detected peer! "+p+" on "+this);
 			return;
 		}
+		boolean connected;
+		boolean moved;
 		synchronized(this) {
 			Peer oldPeer = detectedPeer;
 			if((newPeer != null) && ((oldPeer == null) || !oldPeer.equals(newPeer))) {
 				this.detectedPeer = newPeer;
 				updateShortToString();
 				this.lastAttemptedHandshakeIPUpdateTime = 0;
-				if(!isConnected)
-					return;
+				connected = isConnected;
+				moved = oldPeer != null;
 			} else
 				return;
 		}
+		updateAddressIndex();
+		PeerManager peers = node.peers;
+		if(moved && peers != null)
+			peers.addressMismatch(this);
+		if(!connected)
+			return;
 		getThrottle().maybeDisconnected();
 		sendIPAddressMessage();
 	}
@@ -2712,6 +2722,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode {
 		if(logMINOR)
 			Logger.minor(this, "Parsing: \n" + fs);
 		boolean changedAnything = innerProcessNewNoderef(fs, forARK, forDiffNodeRef, forFullNodeRef) || forARK;
+		if(changedAnything)
+			updateAddressIndex();
 		if(changedAnything && !isSeed())
 			node.peers.writePeers(isOpennet());
 		// FIXME should this be urgent if IPs change? Dunno.
@@ -6096,6 +6108,21 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode {
 		return paddingGen;
 	}
 
+	/** @return The addresses matchesPeerAndPort() compares against, for PeerManager's index. */
+	synchronized Peer[] getIndexableAddresses() {
+		ArrayList<Peer> addresses = new ArrayList<Peer>();
+		if(detectedPeer != null) addresses.add(detectedPeer);
+		if(nominalPeer != null) addresses.addAll(nominalPeer);
+		return addresses.toArray(new Peer[addresses.size()]);
+	}
+
+	/** Tell the PeerManager that our addresses may have changed. Must not be called while
+	 * synchronized on the PeerNode. */
+	private void updateAddressIndex() {
+		PeerManager peers = node.peers;
+		if(peers != null) peers.updateAddressIndex(this);
+	}
+
 	public synchronized boolean matchesPeerAndPort(Peer peer) {
 		if(detectedPeer != null && detectedPeer.laxEquals(peer)) return true;
 		if(nominalPeer != null) { // FIXME condition necessary???
@@ -60,7 +60,13 @@ class Persister implements Runnable {
 		ps.queueTimedJob(this, 60*1000);
 	}
 	
-	private void persistThrottle() {
+	/** Write the data now rather than waiting for the next scheduled write, e.g. because it
+	 * has been cleared and the old data mustn't stay on disk. */
+	void persistNow() {
+		persistThrottle();
+	}
+
+	private synchronized void persistThrottle() {
 		if (logMINOR) {
 			Logger.minor(this, "Trying to persist throttles...");
 		}
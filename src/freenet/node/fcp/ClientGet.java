@@ -593,8 +593,10 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			handler = origHandler.outputHandler;
 		if(handler != null)
 			handler.queue(msg);
-		else
+		else {
+			client.requestChanged(identifier);
 			client.queueClientRequestMessage(msg, verbosityMask, container);
+		}
 		if(persistenceType == PERSIST_FOREVER && !client.isGlobalQueue)
 			container.deactivate(client, 1);
 	}
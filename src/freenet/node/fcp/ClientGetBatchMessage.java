@@ -0,0 +1,100 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.db4o.ObjectContainer;
+
+import freenet.node.Node;
+import freenet.support.Fields;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Start many downloads at once. Each Request.N is a ClientGet, and any other fields except
+ * the Identifier are defaults for all of them. All the persistent downloads are created in a
+ * single database transaction, rather than one each. Replies are as for the individual
+ * ClientGet's; a request which is invalid does not stop the others from being started.
+ * <pre>
+ * ClientGetBatch
+ * Persistence=forever // defaults for all requests
+ * Global=true
+ * ReturnType=disk
+ * Request.0.Identifier=file0
+ * Request.0.URI=CHK@...
+ * Request.0.Filename=/home/user/file0
+ * Request.1.Identifier=file1
+ * Request.1.URI=CHK@...
+ * Request.1.Filename=/home/user/file1
+ * (the Request.x must be sequential and start at 0)
+ * ...
+ * EndMessage
+ * </pre>
+ */
+public class ClientGetBatchMessage extends FCPMessage {
+
+	static final String NAME = "ClientGetBatch";
+
+	final List<ClientGetMessage> requests;
+	/** Errors from requests which could not be parsed. */
+	final List<MessageInvalidException> errors;
+
+	public ClientGetBatchMessage(SimpleFieldSet fs) throws MessageInvalidException {
+		SimpleFieldSet list = fs.subset("Request");
+		if(list == null)
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "Missing Request section", fs.get("Identifier"), Fields.stringToBool(fs.get("Global"), false));
+		SimpleFieldSet defaults = new SimpleFieldSet(fs);
+		defaults.removeSubset("Request");
+		defaults.removeValue("Identifier");
+		requests = new ArrayList<ClientGetMessage>();
+		errors = new ArrayList<MessageInvalidException>();
+		for(int i=0;;i++) {
+			SimpleFieldSet subset = list.subset(Integer.toString(i));
+			if(subset == null) break;
+			SimpleFieldSet merged = new SimpleFieldSet(subset);
+			Iterator<String> keys = defaults.keyIterator();
+			while(keys.hasNext()) {
+				String key = keys.next();
+				if(merged.get(key) == null)
+					merged.putSingle(key, defaults.get(key));
+			}
+			try {
+				ClientGetMessage msg = new ClientGetMessage(merged);
+				if(msg.dataLength() > 0)
+					throw new MessageInvalidException(ProtocolErrorMessage.NOT_SUPPORTED, "Cannot attach data to a batched request", msg.identifier, msg.global);
+				requests.add(msg);
+			} catch (MessageInvalidException e) {
+				errors.add(e);
+			}
+		}
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		for(int i=0;i<requests.size();i++)
+			fs.put("Request."+i, requests.get(i).getFieldSet());
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		for(MessageInvalidException e : errors)
+			handler.outputHandler.queue(new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global));
+		handler.startClientGets(requests);
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		container.delete(this);
+	}
+
+}
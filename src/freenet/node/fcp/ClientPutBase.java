@@ -527,8 +527,10 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 			handler = origHandler.outputHandler;
 		if(handler != null)
 			handler.queue(msg);
-		else
+		else {
+			client.requestChanged(identifier);
 			client.queueClientRequestMessage(msg, verbosity, container);
+		}
 	}
 
 	@Override
@@ -383,6 +383,7 @@ public abstract class ClientRequest {
 		} else {
 			return; // paranoia, we should not be here if nothing was changed!
 		}
+		client.requestChanged(identifier);
 		client.queueClientRequestMessage(modifiedMsg, 0, container);
 	}
 
@@ -0,0 +1,50 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+public class EndListRequestStatusChangesMessage extends FCPMessage {
+
+	static final String name = "EndListRequestStatusChanges";
+
+	final long logID;
+	final long sequence;
+	final boolean truncated;
+
+	EndListRequestStatusChangesMessage(long logID, long sequence, boolean truncated) {
+		this.logID = logID;
+		this.sequence = sequence;
+		this.truncated = truncated;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.put("LogID", logID);
+		fs.put("Sequence", sequence);
+		fs.put("Truncated", truncated);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "EndListRequestStatusChanges goes from server to client not the other way around", null, false);
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		container.delete(this);
+	}
+
+}
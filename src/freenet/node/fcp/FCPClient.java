@@ -86,6 +86,8 @@ public class FCPClient {
 	private transient Whiteboard whiteboard;
 	/** The cache where ClientRequests report their progress */
 	private transient RequestStatusCache statusCache;
+	/** Which requests have changed recently. Lazy init, sync on this. */
+	private transient RequestChangeLog changeLog;
 	/** Connection mode */
 	final short persistenceType;
 	        
@@ -138,6 +140,7 @@ public class FCPClient {
 				}
 			}	
 		}
+		requestChanged(get.identifier);
 		if(statusCache != null) {
 			if(get instanceof ClientGet) {
 				ClientGet download = (ClientGet)get;
@@ -277,6 +280,7 @@ public class FCPClient {
 			clientRequestsByIdentifier.put(ident, cg);
 			if(container != null) container.ext().store(clientRequestsByIdentifier, 2);
 		}
+		requestChanged(cg.getIdentifier());
 		if(statusCache != null) {
 			if(cg instanceof ClientGet) {
 				statusCache.addDownload((DownloadRequestStatus)(cg.getStatus(container)));
@@ -343,6 +347,7 @@ public class FCPClient {
 				container.ext().store(clientRequestsByIdentifier, 2);
 			}
 		}
+		getChangeLog().removed(identifier);
 		if(container != null)
 			container.activate(req, 1);
 		if(kill) {
@@ -694,6 +699,16 @@ public class FCPClient {
 		this.whiteboard=whiteboard;
 	}
 	
+	/** Record that a request has been added, has made progress, or has finished. */
+	void requestChanged(String identifier) {
+		getChangeLog().changed(identifier);
+	}
+
+	synchronized RequestChangeLog getChangeLog() {
+		if(changeLog == null) changeLog = new RequestChangeLog(); // it is transient so it might be null
+		return changeLog;
+	}
+
 	public RequestStatusCache getRequestStatusCache() {
 		return statusCache;
 	}
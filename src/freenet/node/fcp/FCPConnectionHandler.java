@@ -7,8 +7,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -62,6 +64,9 @@ public class FCPConnectionHandler implements Closeable {
 
 	final FCPServer server;
 	final Socket sock;
+	/** If set, the connection is handled by the selector rather than a thread each for input
+	 * and output. Set before the connection is started. */
+	volatile FCPConnectionSelector.Connection connection;
 	final FCPConnectionInputHandler inputHandler;
 	final Map<String, SubscribeUSK> uskSubscriptions;
 	public final FCPConnectionOutputHandler outputHandler;
@@ -143,6 +148,17 @@ public class FCPConnectionHandler implements Closeable {
 	}
 	
 	void start() {
+		FCPConnectionSelector selector = server.getConnectionSelector();
+		if(selector != null && sock != null && sock.getChannel() != null) {
+			try {
+				connection = selector.newConnection(this);
+				selector.register(connection);
+				return;
+			} catch (IOException e) {
+				Logger.error(this, "Could not add FCP connection to the selector, using threads: "+e, e);
+				connection = null;
+			}
+		}
 		inputHandler.start();
 		outputHandler.start();
 	}
@@ -360,6 +376,56 @@ public class FCPConnectionHandler implements Closeable {
 		}
 	}
 
+	/**
+	 * Start a batch of downloads. Persistent-forever downloads are created and started in a
+	 * single database job, so the batch costs one commit rather than one per request.
+	 */
+	public void startClientGets(List<ClientGetMessage> messages) {
+		final List<ClientGetMessage> forever = new ArrayList<ClientGetMessage>();
+		for(ClientGetMessage message : messages) {
+			if(message.persistenceType == ClientRequest.PERSIST_FOREVER)
+				forever.add(message);
+			else
+				startClientGet(message);
+		}
+		if(forever.isEmpty()) return;
+		synchronized(this) {
+			if(isClosed) return;
+		}
+		try {
+			server.core.clientContext.jobRunner.queue(new DBJob() {
+
+				@Override
+				public boolean run(ObjectContainer container, ClientContext context) {
+					boolean started = false;
+					for(ClientGetMessage message : forever) {
+						ClientGet getter;
+						try {
+							getter = new ClientGet(FCPConnectionHandler.this, message, server, container);
+							getter.register(container, false);
+						} catch (IdentifierCollisionException e) {
+							Logger.normal(this, "Identifier collision on "+this);
+							outputHandler.queue(new IdentifierCollisionMessage(message.identifier, message.global));
+							continue;
+						} catch (MessageInvalidException e) {
+							outputHandler.queue(new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global));
+							continue;
+						}
+						container.store(getter);
+						getter.start(container, context);
+						container.deactivate(getter, 1);
+						started = true;
+					}
+					return started;
+				}
+
+			}, NativeThread.HIGH_PRIORITY-1, false);
+		} catch (DatabaseDisabledException e) {
+			for(ClientGetMessage message : forever)
+				outputHandler.queue(new ProtocolErrorMessage(ProtocolErrorMessage.PERSISTENCE_DISABLED, false, "Persistence is disabled", message.identifier, message.global));
+		}
+	}
+
 	public void startClientPut(final ClientPutMessage message) {
 		if(logMINOR)
 			Logger.minor(this, "Starting insert ID=\""+message.identifier+ '"');
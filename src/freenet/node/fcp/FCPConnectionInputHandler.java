@@ -35,6 +35,9 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	final FCPConnectionHandler handler;
+	/** Only accessed by the thread reading messages; in non-blocking mode there is only one
+	 * of those at a time. */
+	private boolean firstMessage = true;
 
 	FCPConnectionInputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
@@ -70,89 +73,136 @@ public class FCPConnectionInputHandler implements Runnable {
 		InputStream is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
 		LineReadingInputStream lis = new LineReadingInputStream(is);
 
-		boolean firstMessage = true;
-
-		while(true) {
-			SimpleFieldSet fs;
-			if(WrapperManager.hasShutdownHookBeenTriggered()) {
-				FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
-				handler.outputHandler.queue(msg);
-				Closer.close(is);
-				return;
-			}
-			// Read a message
-			String messageType = lis.readLine(128, 128, true);
-			if(messageType == null) {
-				Closer.close(is);
-				return;
+		try {
+			while(processMessage(lis)) {
+				// Next message
 			}
-			if(messageType.equals(""))
-				continue;
-			fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+		} finally {
+			Closer.close(is);
+		}
+	}
 
-			// check for valid endmarker
-			if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
-				handler.outputHandler.queue(err);
-				continue;
+	/** Start processing the messages the selector has buffered for us, on another thread. The
+	 * caller must not call this again until the previous run has returned. */
+	void startNonBlocking(final FCPConnectionSelector.Connection conn) {
+		handler.server.node.executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				runNonBlocking(conn);
 			}
 
-			FCPMessage msg;
-			try {
-				if(logDEBUG)
-					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
-				msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
-				if(msg == null) continue;
-			} catch (MessageInvalidException e) {
-				if(firstMessage) {
-					FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-					handler.outputHandler.queue(err);
-					handler.close();
-					Closer.close(is);
-					return;
-				} else {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
-				}
-				continue;
+		}, "FCP input handler for "+handler.sock.getRemoteSocketAddress());
+	}
+
+	/** Process messages until the selector has no more complete messages for us, or the
+	 * connection is closed. */
+	private void runNonBlocking(FCPConnectionSelector.Connection conn) {
+	    freenet.support.Logger.OSThread.logPID(this);
+		InputStream is = conn.getInputStream();
+		LineReadingInputStream lis = new LineReadingInputStream(is);
+		try {
+			while(true) {
+				if(!conn.startMessage()) return;
+				if(!processMessage(lis)) break;
 			}
-			if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			Closer.close(is);
+		} catch (TooLongException e) {
+			Logger.normal(this, "Caught "+e.getMessage(), e);
+		} catch (IOException e) {
+			if(logMINOR)
+				Logger.minor(this, "Caught "+e, e);
+		} catch (OutOfMemoryError e) {
+			OOMHandler.handleOOM(e);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t, t);
+			t.printStackTrace();
+		}
+		conn.inputFinished();
+		handler.close();
+		handler.closedInput();
+	}
+
+	/**
+	 * Read and process one message.
+	 * @return False if the connection has been closed and we should stop reading.
+	 */
+	private boolean processMessage(LineReadingInputStream lis) throws IOException {
+		SimpleFieldSet fs;
+		if(WrapperManager.hasShutdownHookBeenTriggered()) {
+			FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
+			handler.outputHandler.queue(msg);
+			return false;
+		}
+		// Read a message
+		String messageType = lis.readLine(128, 128, true);
+		if(messageType == null) {
+			return false;
+		}
+		if(messageType.equals(""))
+			return true;
+		fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+
+		// check for valid endmarker
+		if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
+			handler.outputHandler.queue(err);
+			return true;
+		}
+
+		FCPMessage msg;
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
+			msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
+			if(msg == null) return true;
+		} catch (MessageInvalidException e) {
+			if(firstMessage) {
 				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
 				handler.outputHandler.queue(err);
 				handler.close();
-				Closer.close(is);
-				return;
-			}
-			if(msg instanceof BaseDataCarryingMessage) {
-				// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
-				try {
-					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.server);
-				} catch (MessageInvalidException e) {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
-					continue;
-				}
-			}
-			if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+				return false;
+			} else {
+				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.outputHandler.queue(err);
-				continue;
 			}
+			return true;
+		}
+		if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+			handler.outputHandler.queue(err);
+			handler.close();
+			return false;
+		}
+		if(msg instanceof BaseDataCarryingMessage) {
+			// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
 			try {
-				if(logDEBUG)
-					Logger.debug(this, "Parsed message: "+msg+" for "+handler);
-				msg.run(handler, handler.server.node);
+				((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.server);
 			} catch (MessageInvalidException e) {
 				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.outputHandler.queue(err);
-				continue;
-			}
-			firstMessage = false;
-			if(handler.isClosed()) {
-				Closer.close(is);
-				return;
+				return true;
 			}
 		}
+		if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+			handler.outputHandler.queue(err);
+			return true;
+		}
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Parsed message: "+msg+" for "+handler);
+			msg.run(handler, handler.server.node);
+		} catch (MessageInvalidException e) {
+			FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
+			handler.outputHandler.queue(err);
+			return true;
+		}
+		firstMessage = false;
+		if(handler.isClosed()) {
+			return false;
+		}
+		return true;
 	}
 
 	public boolean objectCanNew(ObjectContainer container) {
@@ -21,6 +21,10 @@ public class FCPConnectionOutputHandler implements Runnable {
 	final LinkedList<FCPMessage> outQueue;
 	// Synced on outQueue
 	private boolean closedOutputQueue;
+	/** Non-blocking mode only: Is a thread sending the queue? Synced on outQueue. */
+	private boolean sending;
+	/** Non-blocking mode only: Has the handler been closed? Synced on outQueue. */
+	private boolean closeRequested;
 
         private static volatile boolean logMINOR;
         private static volatile boolean logDEBUG;
@@ -122,6 +126,71 @@ public class FCPConnectionOutputHandler implements Runnable {
 		}
 	}
 
+	/** Send everything queued, then exit, or close the connection if the handler has been closed.
+	 * Used instead of run() when the connection is on the selector, so we only use a thread
+	 * while there is something to send. */
+	private void sendNonBlocking(FCPConnectionSelector.Connection conn) {
+	    freenet.support.Logger.OSThread.logPID(this);
+		OutputStream os = conn.getOutputStream();
+		try {
+			while(true) {
+				FCPMessage msg = null;
+				synchronized(outQueue) {
+					if(!outQueue.isEmpty())
+						msg = outQueue.removeFirst();
+				}
+				if(msg != null) {
+					if(logMINOR) Logger.minor(this, "Sending "+msg);
+					msg.send(os);
+					continue;
+				}
+				if(logMINOR) Logger.minor(this, "Flushing");
+				os.flush();
+				synchronized(outQueue) {
+					if(!outQueue.isEmpty()) continue;
+					if(!closeRequested) {
+						sending = false;
+						return;
+					}
+					closedOutputQueue = true;
+					outQueue.notifyAll();
+				}
+				conn.waitForOutput();
+				break;
+			}
+		} catch (IOException e) {
+			if(logMINOR)
+				Logger.minor(this, "Caught "+e, e);
+			handler.close();
+		} catch (OutOfMemoryError e) {
+			OOMHandler.handleOOM(e);
+			handler.close();
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t, t);
+			handler.close();
+		} finally {
+			synchronized(outQueue) {
+				closedOutputQueue = true;
+				outQueue.notifyAll();
+			}
+		}
+		conn.close();
+		handler.closedOutput();
+	}
+
+	/** Start a thread to send the queue. Caller must hold the lock on outQueue and have set
+	 * sending. */
+	private void startSending(final FCPConnectionSelector.Connection conn) {
+		handler.server.node.executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				sendNonBlocking(conn);
+			}
+
+		}, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
+	}
+
 	public void queue(FCPMessage msg) {
 		if(logDEBUG)
 			Logger.debug(this, "Queueing "+msg, new Exception("debug"));
@@ -144,11 +213,25 @@ public class FCPConnectionOutputHandler implements Runnable {
 			}
 			outQueue.add(msg);
 			outQueue.notifyAll();
+			FCPConnectionSelector.Connection conn = handler.connection;
+			if(conn != null && !sending) {
+				sending = true;
+				startSending(conn);
+			}
 		}
 	}
 
 	public void onClosed() {
 		synchronized(outQueue) {
+			FCPConnectionSelector.Connection conn = handler.connection;
+			if(conn != null) {
+				// Nothing is waiting on outQueue, so make sure something closes the connection.
+				closeRequested = true;
+				if(!sending && !closedOutputQueue) {
+					sending = true;
+					startSending(conn);
+				}
+			}
 			outQueue.notifyAll();
 			// Give a chance to the output handler to flush
 			// its queue before the socket is closed
@@ -0,0 +1,518 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Reads and writes all FCP connections from a single thread, rather than two threads per
+ * connection. Incoming data is buffered until a complete message header (the message name, the
+ * fields and the end marker) has arrived, and only then is the connection handed to the input
+ * handler to parse and run, on a pooled thread. The input handler keeps the connection until it
+ * runs out of complete messages, so messages on a connection are still processed one at a time
+ * and in order, and data payloads are streamed through a bounded buffer. Outgoing messages are
+ * written into buffers which the selector writes with a single gathering write.
+ */
+public class FCPConnectionSelector implements Runnable {
+
+	/** The most we will buffer from a client which has not been processed yet. */
+	static final int MAX_INPUT = 65536;
+	/** Size of the buffers outgoing messages are written into. */
+	static final int OUTPUT_CHUNK = 16384;
+	/** The most we will queue for a client before the sender has to wait. */
+	static final int MAX_OUTPUT = 256 * 1024;
+
+	private final Selector selector;
+	private final ByteBuffer readBuffer;
+	/** Connections whose interest set needs updating by the selector thread. */
+	private final ConcurrentLinkedQueue<Connection> toUpdate;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	FCPConnectionSelector() throws IOException {
+		selector = Selector.open();
+		readBuffer = ByteBuffer.allocateDirect(MAX_INPUT);
+		toUpdate = new ConcurrentLinkedQueue<Connection>();
+	}
+
+	/** Create the connection for a handler. The caller must set it on the handler before
+	 * calling register(), as the handler may be called as soon as it is registered. */
+	Connection newConnection(FCPConnectionHandler handler) {
+		return new Connection(handler, handler.sock.getChannel());
+	}
+
+	/** Start reading from a connection. */
+	void register(Connection conn) throws IOException {
+		conn.channel.configureBlocking(false);
+		requestUpdate(conn);
+	}
+
+	private void requestUpdate(Connection conn) {
+		toUpdate.add(conn);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+	    freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				realRun();
+			} catch (IOException e) {
+				Logger.error(this, "Caught "+e, e);
+			} catch (OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			}
+		}
+	}
+
+	private void realRun() throws IOException {
+		Connection conn;
+		while((conn = toUpdate.poll()) != null)
+			updateInterest(conn);
+		selector.select();
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while(it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			conn = (Connection) key.attachment();
+			try {
+				if(key.isWritable())
+					write(conn);
+				if(key.isValid() && key.isReadable())
+					read(conn);
+			} catch (CancelledKeyException e) {
+				// Closed
+			}
+			updateInterest(conn);
+		}
+	}
+
+	private void updateInterest(Connection conn) {
+		int ops = 0;
+		boolean closed;
+		synchronized(conn) {
+			closed = conn.closed;
+			if(!(conn.eof || conn.buffered() >= MAX_INPUT))
+				ops |= SelectionKey.OP_READ;
+			if(!conn.out.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+		}
+		if(closed) {
+			if(conn.key != null) conn.key.cancel();
+			return;
+		}
+		try {
+			if(conn.key == null)
+				conn.key = conn.channel.register(selector, ops, conn);
+			else
+				conn.key.interestOps(ops);
+		} catch (CancelledKeyException e) {
+			conn.close();
+		} catch (ClosedChannelException e) {
+			conn.close();
+		}
+	}
+
+	private void read(Connection conn) {
+		int space;
+		synchronized(conn) {
+			space = MAX_INPUT - conn.buffered();
+		}
+		if(space <= 0) return;
+		readBuffer.clear();
+		readBuffer.limit(Math.min(space, readBuffer.capacity()));
+		int read;
+		try {
+			read = conn.channel.read(readBuffer);
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Caught "+e+" reading from "+conn.handler, e);
+			read = -1;
+		}
+		boolean start = false;
+		synchronized(conn) {
+			if(read < 0) {
+				conn.eof = true;
+			} else if(read > 0) {
+				readBuffer.flip();
+				conn.append(readBuffer);
+			}
+			conn.notifyAll();
+			if(!conn.processing && !conn.inputDone &&
+					(conn.eof || conn.buffered() >= MAX_INPUT || conn.haveMessage())) {
+				conn.processing = true;
+				start = true;
+			}
+		}
+		if(start)
+			conn.handler.inputHandler.startNonBlocking(conn);
+	}
+
+	private void write(Connection conn) {
+		ByteBuffer[] bufs;
+		synchronized(conn) {
+			if(conn.out.isEmpty()) return;
+			bufs = conn.out.toArray(new ByteBuffer[conn.out.size()]);
+		}
+		long written;
+		try {
+			written = conn.channel.write(bufs);
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Caught "+e+" writing to "+conn.handler, e);
+			conn.close();
+			return;
+		}
+		synchronized(conn) {
+			// Only we remove buffers, and the sender only adds them at the end.
+			while(!conn.out.isEmpty() && !conn.out.peekFirst().hasRemaining())
+				conn.out.removeFirst();
+			conn.outPending -= written;
+			conn.notifyAll();
+		}
+	}
+
+	/** The state of one FCP connection. Everything but the channel and the key is protected by
+	 * the lock on the Connection. */
+	class Connection {
+
+		final FCPConnectionHandler handler;
+		final SocketChannel channel;
+		/** Only used by the selector thread. */
+		private SelectionKey key;
+
+		/** Data read but not yet consumed is between inStart and inEnd. */
+		private byte[] in;
+		private int inStart;
+		private int inEnd;
+		/** Position of the mark in in, or -1. */
+		private int mark = -1;
+		private int markLimit;
+		private boolean eof;
+		/** True while the input handler is processing messages on another thread. */
+		private boolean processing;
+		/** True when the input handler has finished with the connection. */
+		private boolean inputDone;
+
+		/** Buffers waiting to be written. */
+		private final ArrayDeque<ByteBuffer> out;
+		private long outPending;
+		private boolean closed;
+
+		private final InputStream inputStream;
+		private final OutputStream outputStream;
+
+		Connection(FCPConnectionHandler handler, SocketChannel channel) {
+			this.handler = handler;
+			this.channel = channel;
+			in = new byte[4096];
+			out = new ArrayDeque<ByteBuffer>();
+			inputStream = new ConnectionInputStream();
+			outputStream = new ConnectionOutputStream();
+		}
+
+		/** @return The number of bytes we are holding on to, including the marked data. */
+		private int buffered() {
+			return inEnd - (mark >= 0 ? mark : inStart);
+		}
+
+		private void append(ByteBuffer data) {
+			int keepFrom = mark >= 0 ? mark : inStart;
+			int needed = inEnd - keepFrom + data.remaining();
+			if(inEnd + data.remaining() > in.length) {
+				byte[] buf = in;
+				if(needed > in.length)
+					buf = new byte[Math.max(needed, Math.min(in.length * 2, MAX_INPUT))];
+				System.arraycopy(in, keepFrom, buf, 0, inEnd - keepFrom);
+				in = buf;
+				inStart -= keepFrom;
+				inEnd -= keepFrom;
+				if(mark >= 0) mark = 0;
+			}
+			int len = data.remaining();
+			data.get(in, inEnd, len);
+			inEnd += len;
+		}
+
+		/**
+		 * Is there a complete message header in the buffer? That is, any blank lines, the
+		 * message name, and field lines up to and including the end marker, which is the first
+		 * line without an '='. The data for a data-carrying message need not have arrived.
+		 */
+		private boolean haveMessage() {
+			boolean haveName = false;
+			boolean sawEquals = false;
+			int lineStart = inStart;
+			for(int i = inStart; i < inEnd; i++) {
+				byte b = in[i];
+				if(b == '=') {
+					sawEquals = true;
+				} else if(b == '\n') {
+					int lineEnd = i;
+					if(lineEnd > lineStart && in[lineEnd - 1] == '\r') lineEnd--;
+					if(!haveName) {
+						if(lineEnd > lineStart) haveName = true;
+					} else if(!sawEquals) {
+						return true;
+					}
+					sawEquals = false;
+					lineStart = i + 1;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Called by the input handler before reading each message.
+		 * @return True if there is a message to read, or the connection has been closed. False
+		 * if the input handler should return; the selector will start it again when there is a
+		 * complete message.
+		 */
+		synchronized boolean startMessage() {
+			if(eof || buffered() >= MAX_INPUT || haveMessage())
+				return true;
+			processing = false;
+			return false;
+		}
+
+		/** Called by the input handler when it will not read any more. */
+		synchronized void inputFinished() {
+			inputDone = true;
+			processing = false;
+		}
+
+		/** The input stream, which blocks if we are in the middle of a message. Only one thread
+		 * may use it at a time. */
+		InputStream getInputStream() {
+			return inputStream;
+		}
+
+		/** The output stream. Data is sent when it is flushed. Only one thread may use it at a
+		 * time. */
+		OutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		/** Wait until everything queued has been written, or the connection has been closed. */
+		synchronized void waitForOutput() {
+			while(!out.isEmpty() && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+
+		void close() {
+			synchronized(this) {
+				if(closed) return;
+				closed = true;
+				eof = true;
+				notifyAll();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+			requestUpdate(this);
+		}
+
+		private void enqueue(ByteBuffer buf) throws IOException {
+			synchronized(this) {
+				while(outPending >= MAX_OUTPUT && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				if(closed) throw new IOException("Connection closed");
+				boolean wasEmpty = out.isEmpty();
+				out.addLast(buf);
+				outPending += buf.remaining();
+				if(!wasEmpty) return; // Already waiting to write
+			}
+			requestUpdate(this);
+		}
+
+		private class ConnectionInputStream extends InputStream {
+
+			/** @return False if there is no more data. Caller must hold the lock on the
+			 * Connection. */
+			private boolean waitForData() {
+				while(inStart == inEnd) {
+					if(eof) return false;
+					try {
+						Connection.this.wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				return true;
+			}
+
+			/** Release the space taken up by data we have read. Caller must hold the lock.
+			 * @return True if the selector had stopped reading because the buffer was full. */
+			private boolean consumed(int length) {
+				boolean wasFull = buffered() >= MAX_INPUT;
+				inStart += length;
+				if(mark >= 0 && inStart - mark > markLimit)
+					mark = -1;
+				if(inStart == inEnd && mark < 0)
+					inStart = inEnd = 0;
+				return wasFull;
+			}
+
+			@Override
+			public int read() throws IOException {
+				int b;
+				boolean wasFull;
+				synchronized(Connection.this) {
+					if(!waitForData()) return -1;
+					b = in[inStart] & 0xFF;
+					wasFull = consumed(1);
+				}
+				if(wasFull) requestUpdate(Connection.this);
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buf, int offset, int length) throws IOException {
+				if(length == 0) return 0;
+				int x;
+				boolean wasFull;
+				synchronized(Connection.this) {
+					if(!waitForData()) return -1;
+					x = Math.min(length, inEnd - inStart);
+					System.arraycopy(in, inStart, buf, offset, x);
+					wasFull = consumed(x);
+				}
+				if(wasFull) requestUpdate(Connection.this);
+				return x;
+			}
+
+			@Override
+			public int available() {
+				synchronized(Connection.this) {
+					return inEnd - inStart;
+				}
+			}
+
+			@Override
+			public boolean markSupported() {
+				return true;
+			}
+
+			@Override
+			public void mark(int readlimit) {
+				synchronized(Connection.this) {
+					mark = inStart;
+					markLimit = readlimit;
+				}
+			}
+
+			@Override
+			public void reset() throws IOException {
+				synchronized(Connection.this) {
+					if(mark < 0) throw new IOException("Mark invalidated");
+					inStart = mark;
+				}
+			}
+
+			/** Closing the input does not close the connection, as there may still be
+			 * messages to send. The output handler closes it when they have been sent. */
+			@Override
+			public void close() {
+				synchronized(Connection.this) {
+					eof = true;
+					mark = -1;
+					inStart = inEnd = 0;
+					Connection.this.notifyAll();
+				}
+				requestUpdate(Connection.this);
+			}
+
+		}
+
+		private class ConnectionOutputStream extends OutputStream {
+
+			private ByteBuffer buf;
+
+			@Override
+			public void write(int b) throws IOException {
+				if(buf == null) buf = ByteBuffer.allocate(OUTPUT_CHUNK);
+				buf.put((byte) b);
+				if(!buf.hasRemaining()) sendBuffer();
+			}
+
+			@Override
+			public void write(byte[] data, int offset, int length) throws IOException {
+				while(length > 0) {
+					if(buf == null) buf = ByteBuffer.allocate(OUTPUT_CHUNK);
+					int x = Math.min(length, buf.remaining());
+					buf.put(data, offset, x);
+					offset += x;
+					length -= x;
+					if(!buf.hasRemaining()) sendBuffer();
+				}
+			}
+
+			private void sendBuffer() throws IOException {
+				buf.flip();
+				ByteBuffer b = buf;
+				buf = null;
+				enqueue(b);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				if(buf == null || buf.position() == 0) return;
+				if(buf.position() >= OUTPUT_CHUNK / 4) {
+					sendBuffer();
+				} else {
+					// Don't tie up a whole chunk for a small message.
+					ByteBuffer b = ByteBuffer.wrap(Arrays.copyOf(buf.array(), buf.position()));
+					buf.clear();
+					enqueue(b);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+
+		}
+
+	}
+
+}
@@ -52,6 +52,8 @@ public abstract class FCPMessage {
 			return new AddPeer(fs);
 		if(name.equals(ClientGetMessage.NAME))
 			return new ClientGetMessage(fs);
+		if(name.equals(ClientGetBatchMessage.NAME))
+			return new ClientGetBatchMessage(fs);
 		if(name.equals(ClientHelloMessage.NAME))
 			return new ClientHelloMessage(fs);
 		if(name.equals(ClientPutComplexDirMessage.NAME))
@@ -88,6 +90,8 @@ public abstract class FCPMessage {
 			return new ListPeerNotesMessage(fs);
 		if(name.equals(ListPersistentRequestsMessage.NAME))
 			return new ListPersistentRequestsMessage(fs);
+		if(name.equals(ListRequestStatusChangesMessage.NAME))
+			return new ListRequestStatusChangesMessage(fs);
 		if(name.equals(LoadPlugin.NAME))
 			return new LoadPlugin(fs);
 		if(name.equals(ModifyConfig.NAME))
@@ -27,6 +27,7 @@ import freenet.client.async.DatabaseDisabledException;
 import freenet.client.async.DownloadCache;
 import freenet.config.Config;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
@@ -79,6 +80,8 @@ public class FCPServer implements Runnable, DownloadCache {
 	private boolean assumeUploadDDAIsAllowed;
 	private boolean neverDropAMessage;
 	private int maxMessageQueueLength;
+	private volatile boolean enableConnectionSelector;
+	private FCPConnectionSelector connectionSelector;
 	private final Whiteboard whiteboard=new Whiteboard();;
 
 	public FCPServer(String ipToBindTo, String allowedHosts, String allowedHostsFullAccess, int port, Node node, NodeClientCore core, boolean isEnabled, boolean assumeDDADownloadAllowed, boolean assumeDDAUploadAllowed, boolean neverDropAMessage, int maxMessageQueueLength, ObjectContainer container) throws IOException, InvalidConfigValueException {
@@ -121,7 +124,9 @@ public class FCPServer implements Runnable, DownloadCache {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			} else {
-				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+				// Sockets with channels can't be read and written by different threads at once,
+				// so only use them if connections will be handled by the selector.
+				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true, startConnectionSelector());
 			}
 		} catch (IOException be) {
 			Logger.error(this, "Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.", be);
@@ -177,6 +182,7 @@ public class FCPServer implements Runnable, DownloadCache {
 		if(!node.isHasStarted()) return;
 		// Accept a connection
 		Socket s = networkInterface.accept();
+		if(s == null) return;
 		FCPConnectionHandler ch = new FCPConnectionHandler(s, this);
 		ch.start();
 	}
@@ -386,6 +392,24 @@ public class FCPServer implements Runnable, DownloadCache {
 		}
 	}
 
+	static class EnableConnectionSelectorCallback extends BooleanCallback {
+		FCPServer server;
+
+		@Override
+		public Boolean get() {
+			return server.enableConnectionSelector;
+		}
+
+		@Override
+		public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+			if (get().equals(val))
+				return;
+			// Decides how the listening sockets are created.
+			server.enableConnectionSelector = val;
+			throw new NodeNeedRestartException("fcp.enableConnectionSelector");
+		}
+	}
+
 	static class MaxMessageQueueLengthCallback extends IntCallback {
 		FCPServer server;
 
@@ -417,10 +441,12 @@ public class FCPServer implements Runnable, DownloadCache {
 		AssumeDDAUploadIsAllowedCallback cb5;
 		NeverDropAMessageCallback cb6;
 		MaxMessageQueueLengthCallback cb7;
+		EnableConnectionSelectorCallback cb8;
 		fcpConfig.register("assumeDownloadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeDownloadDDAIsAllowed", "FcpServer.assumeDownloadDDAIsAllowedLong", cb4 = new AssumeDDADownloadIsAllowedCallback());
 		fcpConfig.register("assumeUploadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeUploadDDAIsAllowed", "FcpServer.assumeUploadDDAIsAllowedLong", cb5 = new AssumeDDAUploadIsAllowedCallback());
 		fcpConfig.register("maxMessageQueueLength", 1024, sortOrder++, true, false, "FcpServer.maxMessageQueueLength", "FcpServer.maxMessageQueueLengthLong", cb7 = new MaxMessageQueueLengthCallback(), false);
 		fcpConfig.register("neverDropAMessage", false, sortOrder++, true, false, "FcpServer.neverDropAMessage", "FcpServer.neverDropAMessageLong", cb6 = new NeverDropAMessageCallback());
+		fcpConfig.register("enableConnectionSelector", true, sortOrder++, true, false, "FcpServer.enableConnectionSelector", "FcpServer.enableConnectionSelectorLong", cb8 = new EnableConnectionSelectorCallback());
 
 		if(SSL.available()) {
 			ssl = fcpConfig.getBoolean("ssl");
@@ -433,12 +459,42 @@ public class FCPServer implements Runnable, DownloadCache {
 			cb5.server = fcp;
 			cb6.server = fcp;
 			cb7.server = fcp;
+			cb8.server = fcp;
+			fcp.enableConnectionSelector = fcpConfig.getBoolean("enableConnectionSelector");
 		}
 
 		fcpConfig.finishedInitialization();
 		return fcp;
 	}
 
+	/**
+	 * Start the selector, if it is enabled. Called before creating the network interface.
+	 * @return True if the selector is running.
+	 */
+	private synchronized boolean startConnectionSelector() {
+		if(!enableConnectionSelector) return false;
+		if(connectionSelector == null) {
+			try {
+				connectionSelector = new FCPConnectionSelector();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to open selector for FCP, using a thread per connection: "+e, e);
+				return false;
+			}
+			Thread t = new Thread(connectionSelector, "FCP connection selector");
+			t.setDaemon(true);
+			t.start();
+		}
+		return true;
+	}
+
+	/**
+	 * @return The selector to handle new connections with, or null if each connection should
+	 * have its own threads.
+	 */
+	synchronized FCPConnectionSelector getConnectionSelector() {
+		return connectionSelector;
+	}
+
 	public boolean neverDropAMessage() {
 		return neverDropAMessage;
 	}
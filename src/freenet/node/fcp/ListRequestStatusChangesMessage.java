@@ -0,0 +1,187 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.DBJob;
+import freenet.client.async.DatabaseDisabledException;
+import freenet.node.Node;
+import freenet.support.Fields;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.NativeThread;
+
+/**
+ * List only the persistent requests which have changed since the last time we asked, rather
+ * than all of them as ListPersistentRequests does.
+ * <pre>
+ * ListRequestStatusChanges
+ * LogID=1234 // from the last EndListRequestStatusChanges
+ * Since=5678 // the Sequence from the last EndListRequestStatusChanges
+ * Global=true // include the global queue even if we aren't watching it
+ * EndMessage
+ * </pre>
+ * The node sends the usual messages (PersistentGet, SimpleProgress, DataFound etc) for each
+ * request which has been added, has made progress or has finished, PersistentRequestRemoved
+ * for each request which has been removed, and then EndListRequestStatusChanges with the
+ * LogID and Sequence to use next time. If that has Truncated=true, the node doesn't know
+ * what has changed (because it has been restarted, the client hasn't asked before, or it has
+ * been too long), and the client should use ListPersistentRequests and then ask for changes
+ * since the Sequence it was given.
+ */
+public class ListRequestStatusChangesMessage extends FCPMessage {
+
+	static final String NAME = "ListRequestStatusChanges";
+	/** How many requests to send before checking whether the output queue is full. */
+	static final int BATCH_SIZE = 30;
+
+	final long logID;
+	final long since;
+	final boolean global;
+
+	public ListRequestStatusChangesMessage(SimpleFieldSet fs) {
+		logID = fs.getLong("LogID", -1);
+		since = fs.getLong("Since", -1);
+		global = Fields.stringToBool(fs.get("Global"), false);
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.put("LogID", logID);
+		fs.put("Since", since);
+		fs.put("Global", global);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/** Sends the changes for each client in turn, a few requests at a time so that we don't
+	 * flood the connection. Must run on the database thread if any of the clients are
+	 * persistent-forever. */
+	static class SendChangesJob implements DBJob, Runnable {
+
+		final FCPConnectionOutputHandler outputHandler;
+		final List<FCPClient> clients;
+		final long since;
+		final long sequence;
+		final boolean persistent;
+		final ClientContext context;
+		private int clientIndex;
+		private RequestChangeLog.Changes changes;
+		private int progress;
+		private boolean truncated;
+
+		SendChangesJob(FCPConnectionOutputHandler outputHandler, List<FCPClient> clients, long since, long sequence, boolean persistent, ClientContext context) {
+			this.outputHandler = outputHandler;
+			this.clients = clients;
+			this.since = since;
+			this.sequence = sequence;
+			this.persistent = persistent;
+			this.context = context;
+		}
+
+		@Override
+		public boolean run(ObjectContainer container, ClientContext context) {
+			while(clientIndex < clients.size()) {
+				FCPClient client = clients.get(clientIndex);
+				boolean forever = client.persistenceType == ClientRequest.PERSIST_FOREVER;
+				if(changes == null) {
+					changes = client.getChangeLog().getChangesSince(since);
+					if(changes == null) {
+						truncated = true;
+						break;
+					}
+					progress = 0;
+				}
+				if(forever) container.activate(client, 1);
+				while(progress < changes.changed.size()) {
+					if(outputHandler.isQueueHalfFull()) {
+						if(forever && !client.isGlobalQueue) container.deactivate(client, 1);
+						context.ticker.queueTimedJob(this, 100);
+						return false;
+					}
+					int end = Math.min(changes.changed.size(), progress + BATCH_SIZE);
+					for(;progress<end;progress++) {
+						ClientRequest req = client.getRequest(changes.changed.get(progress), forever ? container : null);
+						if(req == null) continue; // Removed since
+						req.sendPendingMessages(outputHandler, true, false, false, forever ? container : null);
+						if(forever) container.deactivate(req, 1);
+					}
+				}
+				for(String identifier : changes.removed)
+					outputHandler.queue(new PersistentRequestRemovedMessage(identifier, client.isGlobalQueue));
+				if(forever && !client.isGlobalQueue) container.deactivate(client, 1);
+				changes = null;
+				clientIndex++;
+			}
+			outputHandler.queue(new EndListRequestStatusChangesMessage(RequestChangeLog.LOG_ID, sequence, truncated));
+			return false;
+		}
+
+		@Override
+		public void run() {
+			if(persistent) {
+				try {
+					context.jobRunner.queue(this, NativeThread.HIGH_PRIORITY-1, false);
+				} catch (DatabaseDisabledException e) {
+					outputHandler.queue(new EndListRequestStatusChangesMessage(RequestChangeLog.LOG_ID, sequence, true));
+				}
+			} else
+				run(null, context);
+		}
+
+	}
+
+	@Override
+	public void run(final FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		// Read the sequence first: anything which changes while we are sending will be sent
+		// again next time, but nothing will be missed.
+		final long sequence = RequestChangeLog.currentSequence();
+		if(logID != RequestChangeLog.LOG_ID || since < 0 || since > sequence) {
+			handler.outputHandler.queue(new EndListRequestStatusChangesMessage(RequestChangeLog.LOG_ID, sequence, true));
+			return;
+		}
+		final boolean includeGlobal = global || handler.getRebootClient().watchGlobal;
+		final List<FCPClient> clients = new ArrayList<FCPClient>();
+		clients.add(handler.getRebootClient());
+		if(includeGlobal)
+			clients.add(handler.server.globalRebootClient);
+		final ClientContext context = node.clientCore.clientContext;
+		if(node.clientCore.killedDatabase()) {
+			new SendChangesJob(handler.outputHandler, clients, since, sequence, false, context).run();
+			return;
+		}
+		try {
+			context.jobRunner.queue(new DBJob() {
+
+				@Override
+				public boolean run(ObjectContainer container, ClientContext context) {
+					clients.add(handler.getForeverClient(container));
+					if(includeGlobal && handler.server.globalForeverClient != null)
+						clients.add(handler.server.globalForeverClient);
+					new SendChangesJob(handler.outputHandler, clients, since, sequence, true, context).run(container, context);
+					return false;
+				}
+
+			}, NativeThread.HIGH_PRIORITY-1, false);
+		} catch (DatabaseDisabledException e) {
+			new SendChangesJob(handler.outputHandler, clients, since, sequence, false, context).run();
+		}
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		container.delete(this);
+	}
+
+}
@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-FCPClient record of which requests have changed, so that a client can ask for the
+ * requests which have changed since it last looked rather than listing all of them. Only the
+ * latest change to each request is kept, so the log is never bigger than the number of
+ * requests plus a bounded number of removals. Kept in RAM only: sequence numbers are unique
+ * across all clients for the life of the node, and the LOG_ID changes on restart so that
+ * clients know to start again.
+ */
+class RequestChangeLog {
+
+	/** Identifies this run of the node. */
+	static final long LOG_ID = System.currentTimeMillis();
+	/** The most removals we remember. Beyond this, clients which haven't looked for a while
+	 * will be told to list everything. */
+	static final int MAX_REMOVED = 1024;
+
+	private static final AtomicLong sequence = new AtomicLong();
+
+	/** The latest sequence number assigned to a change. */
+	static long currentSequence() {
+		return sequence.get();
+	}
+
+	/** The changes since a given sequence number. */
+	static class Changes {
+		/** Identifiers of requests which have been added or changed. */
+		final List<String> changed = new ArrayList<String>();
+		/** Identifiers of requests which have been removed. */
+		final List<String> removed = new ArrayList<String>();
+	}
+
+	private static class Entry {
+		final String identifier;
+		final boolean removed;
+		Entry(String identifier, boolean removed) {
+			this.identifier = identifier;
+			this.removed = removed;
+		}
+	}
+
+	private final Map<String, Long> sequenceByIdentifier = new HashMap<String, Long>();
+	private final TreeMap<Long, Entry> entriesBySequence = new TreeMap<Long, Entry>();
+	private int removedCount;
+	/** We may have forgotten changes up to and including this sequence number. */
+	private long forgotten;
+
+	synchronized void changed(String identifier) {
+		add(identifier, false);
+	}
+
+	synchronized void removed(String identifier) {
+		add(identifier, true);
+		if(removedCount > MAX_REMOVED) {
+			// Forget the oldest removals.
+			Iterator<Map.Entry<Long, Entry>> it = entriesBySequence.entrySet().iterator();
+			while(removedCount > MAX_REMOVED / 2 && it.hasNext()) {
+				Map.Entry<Long, Entry> e = it.next();
+				if(!e.getValue().removed) continue;
+				it.remove();
+				sequenceByIdentifier.remove(e.getValue().identifier);
+				removedCount--;
+				forgotten = e.getKey();
+			}
+		}
+	}
+
+	private void add(String identifier, boolean removed) {
+		// Assign the sequence number with the lock held, so a caller which reads
+		// currentSequence() before getChangesSince() sees every change up to it.
+		long seq = sequence.incrementAndGet();
+		Long old = sequenceByIdentifier.put(identifier, seq);
+		if(old != null) {
+			Entry e = entriesBySequence.remove(old);
+			if(e.removed) removedCount--;
+		}
+		entriesBySequence.put(seq, new Entry(identifier, removed));
+		if(removed) removedCount++;
+	}
+
+	/**
+	 * @return The requests which have changed after the given sequence number, or null if we
+	 * no longer know.
+	 */
+	synchronized Changes getChangesSince(long since) {
+		if(since < forgotten) return null;
+		Changes changes = new Changes();
+		for(Entry e : entriesBySequence.tailMap(since, false).values()) {
+			if(e.removed)
+				changes.removed.add(e.identifier);
+			else
+				changes.changed.add(e.identifier);
+		}
+		return changes;
+	}
+
+}
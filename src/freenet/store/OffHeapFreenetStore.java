@@ -0,0 +1,486 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.sleepycat.je.DatabaseException;
+
+import freenet.keys.KeyVerifyException;
+import freenet.node.stats.StoreAccessStats;
+import freenet.support.Fields;
+import freenet.support.Logger;
+
+/**
+ * In memory store which keeps the blocks outside the Java heap, so that a large RAM store doesn't
+ * make every full GC slower. Behaves like RAMFreenetStore, except that eviction is approximately
+ * LRU (CLOCK) rather than strictly LRU.
+ *
+ * Blocks are kept in fixed size slots in direct ByteBuffer arenas, which are allocated as the
+ * store fills up. The heap only holds an open addressed index of routing key hash to slot, and
+ * a few bytes of per-slot state.
+ *
+ * Slot layout: routing key, full key (if the callback stores full keys), header, data.
+ */
+public class OffHeapFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
+
+	/** Approximate size of each direct buffer. */
+	static final int ARENA_SIZE = 32 * 1024 * 1024;
+
+	private static final byte FLAG_USED = 1;
+	private static final byte FLAG_REFERENCED = 2;
+	private static final byte FLAG_OLD_BLOCK = 4;
+
+	private final StoreCallback<T> callback;
+
+	private final boolean storeFullKeys;
+	private final int routingKeyLength;
+	private final int fullKeyLength;
+	private final int headerLength;
+	private final int dataLength;
+	private final int slotSize;
+	private final int slotsPerArena;
+
+	private final ArrayList<ByteBuffer> arenas;
+
+	/** Hash of the routing key in each slot. */
+	private int[] slotHash;
+	/** FLAG_* for each slot. */
+	private byte[] slotFlags;
+	/** Open addressed, linear probing index of slot + 1, 0 = empty. */
+	private int[] table;
+	private int tableMask;
+	/** Slots below allocated which are not in use. */
+	private int[] freeSlots;
+	private int freeCount;
+	/** Number of slots which have been handed out at least once. */
+	private int allocated;
+	/** Number of slots in use. */
+	private int count;
+	/** The CLOCK hand. */
+	private int hand;
+
+	private int maxKeys;
+
+	private final byte[] keyBuf;
+
+	private long hits;
+	private long misses;
+	private long writes;
+
+	public OffHeapFreenetStore(StoreCallback<T> callback, int maxKeys) {
+		this.callback = callback;
+		this.storeFullKeys = callback.storeFullKeys();
+		this.routingKeyLength = callback.routingKeyLength();
+		this.fullKeyLength = storeFullKeys ? callback.fullKeyLength() : 0;
+		this.headerLength = callback.headerLength();
+		this.dataLength = callback.dataLength();
+		this.slotSize = routingKeyLength + fullKeyLength + headerLength + dataLength;
+		this.slotsPerArena = Math.max(1, ARENA_SIZE / slotSize);
+		this.arenas = new ArrayList<ByteBuffer>();
+		this.keyBuf = new byte[routingKeyLength];
+		this.maxKeys = maxKeys;
+		this.slotHash = new int[0];
+		this.slotFlags = new byte[0];
+		this.freeSlots = new int[0];
+		this.table = new int[2];
+		this.tableMask = 1;
+		callback.setStore(this);
+	}
+
+	@Override
+	public T fetch(byte[] routingKey, byte[] fullKey,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		byte[] header = new byte[headerLength];
+		byte[] data = new byte[dataLength];
+		byte[] storedFullKey = storeFullKeys ? new byte[fullKeyLength] : null;
+		boolean oldBlock;
+		synchronized(this) {
+			int slot = find(routingKey, hash(routingKey));
+			if(slot == -1) {
+				misses++;
+				return null;
+			}
+			oldBlock = (slotFlags[slot] & FLAG_OLD_BLOCK) != 0;
+			if(ignoreOldBlocks && oldBlock) {
+				Logger.normal(this, "Ignoring old block");
+				return null;
+			}
+			ByteBuffer buf = slotBuffer(slot);
+			buf.position(buf.position() + routingKeyLength);
+			if(storeFullKeys)
+				buf.get(storedFullKey);
+			buf.get(header);
+			buf.get(data);
+			if(!dontPromote)
+				slotFlags[slot] |= FLAG_REFERENCED;
+		}
+		// Verifying may be expensive (SSKs), so do it outside the lock.
+		try {
+			T ret =
+				callback.construct(data, header, routingKey, storedFullKey, canReadClientCache, canReadSlashdotCache, meta, null);
+			synchronized(this) {
+				hits++;
+			}
+			if(meta != null && oldBlock)
+				meta.setOldBlock();
+			return ret;
+		} catch (KeyVerifyException e) {
+			synchronized(this) {
+				int slot = find(routingKey, hash(routingKey));
+				if(slot != -1 && contentEquals(slot, storedFullKey, header, data))
+					remove(slot);
+				misses++;
+			}
+			return null;
+		}
+	}
+
+	@Override
+	public synchronized long getMaxKeys() {
+		return maxKeys;
+	}
+
+	@Override
+	public synchronized long hits() {
+		return hits;
+	}
+
+	@Override
+	public synchronized long keyCount() {
+		return count;
+	}
+
+	@Override
+	public synchronized long misses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		byte[] fullKey = block.getFullKey();
+
+		writes++;
+		int hash = hash(routingKey);
+		int slot = find(routingKey, hash);
+		if(slot != -1) {
+			if(callback.collisionPossible()) {
+				if(contentEquals(slot, fullKey, header, data)) {
+					if(!isOldBlock)
+						slotFlags[slot] &= ~FLAG_OLD_BLOCK;
+					return;
+				}
+				if(overwrite) {
+					writeSlot(slot, routingKey, fullKey, header, data);
+					if(isOldBlock)
+						slotFlags[slot] |= FLAG_OLD_BLOCK;
+					else
+						slotFlags[slot] &= ~FLAG_OLD_BLOCK;
+				} else {
+					throw new KeyCollisionException();
+				}
+				return;
+			} else {
+				if(!isOldBlock)
+					slotFlags[slot] &= ~FLAG_OLD_BLOCK;
+				return;
+			}
+		}
+		if(maxKeys <= 0) return;
+		slot = allocateSlot();
+		writeSlot(slot, routingKey, fullKey, header, data);
+		slotHash[slot] = hash;
+		slotFlags[slot] = (byte) (FLAG_USED | FLAG_REFERENCED | (isOldBlock ? FLAG_OLD_BLOCK : 0));
+		insert(slot);
+		count++;
+	}
+
+	@Override
+	public synchronized void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
+			throws DatabaseException, IOException {
+		int newMaxKeys = (int)Math.min(Integer.MAX_VALUE, maxStoreKeys);
+		// Always shrink now regardless of parameter, we can't free the buffers otherwise.
+		if(newMaxKeys < allocated) {
+			while(count > newMaxKeys)
+				remove(evict());
+			// Move everything above the new limit into free slots below it.
+			int[] free = new int[allocated];
+			int nFree = 0;
+			for(int i=0;i<newMaxKeys;i++)
+				if((slotFlags[i] & FLAG_USED) == 0) free[nFree++] = i;
+			for(int i=newMaxKeys;i<allocated;i++) {
+				if((slotFlags[i] & FLAG_USED) == 0) continue;
+				int to = free[--nFree];
+				removeFromIndex(i);
+				ByteBuffer src = slotBuffer(i).duplicate();
+				src.limit(src.position() + slotSize);
+				slotBuffer(to).put(src);
+				slotHash[to] = slotHash[i];
+				slotFlags[to] = slotFlags[i];
+				slotFlags[i] = 0;
+				insert(to);
+			}
+			freeSlots = new int[newMaxKeys];
+			System.arraycopy(free, 0, freeSlots, 0, nFree);
+			freeCount = nFree;
+			allocated = newMaxKeys;
+			if(hand >= allocated) hand = 0;
+			int arenasNeeded = (allocated + slotsPerArena - 1) / slotsPerArena;
+			while(arenas.size() > arenasNeeded)
+				arenas.remove(arenas.size() - 1);
+			resizeArrays(allocated);
+		}
+		this.maxKeys = newMaxKeys;
+	}
+
+	@Override
+	public synchronized long writes() {
+		return writes;
+	}
+
+	@Override
+	public long getBloomFalsePositive() {
+		return -1;
+	}
+
+	@Override
+	public synchronized boolean probablyInStore(byte[] routingKey) {
+		return find(routingKey, hash(routingKey)) != -1;
+	}
+
+	/** Drop all the blocks and free the buffers. */
+	public synchronized void clear() {
+		arenas.clear();
+		slotHash = new int[0];
+		slotFlags = new byte[0];
+		freeSlots = new int[0];
+		freeCount = 0;
+		table = new int[2];
+		tableMask = 1;
+		allocated = 0;
+		count = 0;
+		hand = 0;
+	}
+
+	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
+		int max;
+		synchronized(this) {
+			max = allocated;
+		}
+		for(int slot=0;slot<max;slot++) {
+			byte[] routingKey = new byte[routingKeyLength];
+			byte[] fullKey = storeFullKeys ? new byte[fullKeyLength] : null;
+			byte[] header = new byte[headerLength];
+			byte[] data = new byte[dataLength];
+			boolean oldBlock;
+			synchronized(this) {
+				if(slot >= allocated || (slotFlags[slot] & FLAG_USED) == 0) continue;
+				oldBlock = (slotFlags[slot] & FLAG_OLD_BLOCK) != 0;
+				ByteBuffer buf = slotBuffer(slot);
+				buf.get(routingKey);
+				if(storeFullKeys)
+					buf.get(fullKey);
+				buf.get(header);
+				buf.get(data);
+			}
+
+			T ret;
+			try {
+				ret = callback.construct(data, header, routingKey, fullKey, canReadClientCache, false, null, null);
+			} catch (KeyVerifyException e) {
+				Logger.error(this, "Caught while migrating: "+e, e);
+				continue;
+			}
+			try {
+				target.getStore().put(ret, data, header, false, oldBlock);
+			} catch (KeyCollisionException e) {
+				// Ignore
+			}
+		}
+	}
+
+	@Override
+	public StoreAccessStats getSessionAccessStats() {
+		return new StoreAccessStats() {
+
+			@Override
+			public long hits() {
+				return OffHeapFreenetStore.this.hits();
+			}
+
+			@Override
+			public long misses() {
+				return OffHeapFreenetStore.this.misses();
+			}
+
+			@Override
+			public long falsePos() {
+				return 0;
+			}
+
+			@Override
+			public long writes() {
+				return OffHeapFreenetStore.this.writes();
+			}
+
+		};
+	}
+
+	@Override
+	public StoreAccessStats getTotalAccessStats() {
+		return null;
+	}
+
+	/** Routing keys are hashes already, but mix in the tail in case the head is not random. */
+	private int hash(byte[] routingKey) {
+		int h = routingKey.length >= 4 ? Fields.bytesToInt(routingKey, 0) : Arrays.hashCode(routingKey);
+		if(routingKey.length >= 8)
+			h ^= Fields.bytesToInt(routingKey, routingKey.length - 4) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/** @return A buffer positioned at the start of the slot. Caller must hold the lock. */
+	private ByteBuffer slotBuffer(int slot) {
+		ByteBuffer buf = arenas.get(slot / slotsPerArena);
+		buf.clear();
+		buf.position((slot % slotsPerArena) * slotSize);
+		return buf;
+	}
+
+	private int find(byte[] routingKey, int hash) {
+		for(int i = hash & tableMask; table[i] != 0; i = (i + 1) & tableMask) {
+			int slot = table[i] - 1;
+			if(slotHash[slot] != hash) continue;
+			slotBuffer(slot).get(keyBuf);
+			if(Arrays.equals(keyBuf, routingKey))
+				return slot;
+		}
+		return -1;
+	}
+
+	private boolean contentEquals(int slot, byte[] fullKey, byte[] header, byte[] data) {
+		ByteBuffer buf = slotBuffer(slot);
+		buf.position(buf.position() + routingKeyLength);
+		if(storeFullKeys) {
+			buf.limit(buf.position() + fullKeyLength);
+			if(!buf.equals(ByteBuffer.wrap(fullKey))) return false;
+			buf.position(buf.limit());
+		}
+		buf.limit(buf.position() + headerLength);
+		if(!buf.equals(ByteBuffer.wrap(header))) return false;
+		buf.position(buf.limit());
+		buf.limit(buf.position() + dataLength);
+		return buf.equals(ByteBuffer.wrap(data));
+	}
+
+	private void writeSlot(int slot, byte[] routingKey, byte[] fullKey, byte[] header, byte[] data) {
+		ByteBuffer buf = slotBuffer(slot);
+		buf.put(routingKey, 0, routingKeyLength);
+		if(storeFullKeys)
+			buf.put(fullKey, 0, fullKeyLength);
+		buf.put(header, 0, headerLength);
+		buf.put(data, 0, dataLength);
+	}
+
+	private void insert(int slot) {
+		int i = slotHash[slot] & tableMask;
+		while(table[i] != 0)
+			i = (i + 1) & tableMask;
+		table[i] = slot + 1;
+	}
+
+	/** Remove a slot from the index, shifting back any entries which probed past it. */
+	private void removeFromIndex(int slot) {
+		int i = slotHash[slot] & tableMask;
+		while(table[i] != slot + 1)
+			i = (i + 1) & tableMask;
+		int j = i;
+		while(true) {
+			j = (j + 1) & tableMask;
+			if(table[j] == 0) break;
+			int k = slotHash[table[j] - 1] & tableMask;
+			// Move j back to i unless its home position lies cyclically in (i, j].
+			if(i <= j ? (i < k && k <= j) : (i < k || k <= j)) continue;
+			table[i] = table[j];
+			i = j;
+		}
+		table[i] = 0;
+	}
+
+	private void remove(int slot) {
+		removeFromIndex(slot);
+		slotFlags[slot] = 0;
+		freeSlots[freeCount++] = slot;
+		count--;
+	}
+
+	private int allocateSlot() {
+		if(freeCount > 0)
+			return freeSlots[--freeCount];
+		if(allocated < maxKeys) {
+			if(allocated == slotHash.length)
+				resizeArrays((int) Math.min(maxKeys, Math.max(1024L, allocated * 2L)));
+			ensureArena(allocated);
+			return allocated++;
+		}
+		int slot = evict();
+		removeFromIndex(slot);
+		slotFlags[slot] = 0;
+		count--;
+		return slot;
+	}
+
+	/** Make sure the arena for a new slot exists and is big enough. The last arena is only as big
+	 * as maxKeys requires, so it may have to be replaced if maxKeys has since grown. */
+	private void ensureArena(int slot) {
+		int index = slot / slotsPerArena;
+		int needed = ((slot % slotsPerArena) + 1) * slotSize;
+		if(index < arenas.size() && arenas.get(index).capacity() >= needed) return;
+		int slots = (int) Math.min(slotsPerArena, (long)maxKeys - (long)index * slotsPerArena);
+		ByteBuffer arena = ByteBuffer.allocateDirect(slots * slotSize);
+		if(index < arenas.size()) {
+			ByteBuffer old = arenas.get(index);
+			old.clear();
+			arena.put(old);
+			arena.clear();
+			arenas.set(index, arena);
+		} else {
+			arenas.add(arena);
+		}
+	}
+
+	/** Find a victim with the CLOCK algorithm. Caller must then free it. */
+	private int evict() {
+		while(true) {
+			int slot = hand;
+			hand = (hand + 1) % allocated;
+			byte flags = slotFlags[slot];
+			if((flags & FLAG_USED) == 0) continue;
+			if((flags & FLAG_REFERENCED) != 0) {
+				slotFlags[slot] = (byte) (flags & ~FLAG_REFERENCED);
+				continue;
+			}
+			return slot;
+		}
+	}
+
+	/** Change the capacity of the per-slot arrays and rebuild the index to match. */
+	private void resizeArrays(int capacity) {
+		slotHash = Arrays.copyOf(slotHash, capacity);
+		slotFlags = Arrays.copyOf(slotFlags, capacity);
+		freeSlots = Arrays.copyOf(freeSlots, capacity);
+		int tableSize = 2;
+		while(tableSize < capacity * 2L && tableSize < (1 << 30))
+			tableSize <<= 1;
+		table = new int[tableSize];
+		tableMask = tableSize - 1;
+		for(int i=0;i<Math.min(allocated, capacity);i++)
+			if((slotFlags[i] & FLAG_USED) != 0) insert(i);
+	}
+
+}
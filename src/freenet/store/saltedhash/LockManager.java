@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -18,6 +19,11 @@ import freenet.support.Logger.LogLevel;
  * 
  * Handle locking/unlocking of individual offsets.
  * 
+ * In striped mode, offsets are mapped onto a fixed array of locks instead of a map of
+ * per-offset conditions. Nothing is allocated per lock operation, at the cost of occasional
+ * false sharing between unrelated offsets. Callers locking more than one offset must lock them
+ * in the order given by {@link #getLockOrder()}.
+ * 
  * @author sdiz
  */
 public class LockManager {
@@ -26,8 +32,59 @@ public class LockManager {
 	private Lock entryLock = new ReentrantLock();
 	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
 
+	/** Striped locks, or null if we lock individual offsets. */
+	private final ReentrantLock[] stripes;
+	/** One condition per stripe, only used as the token passed back to unlockEntry(). */
+	private final Condition[] stripeTokens;
+
+	private final Comparator<Long> lockOrder;
+
 	LockManager() {
+		this(0);
+	}
+
+	/**
+	 * @param stripeCount
+	 *            Number of striped locks, or 0 to lock individual offsets.
+	 */
+	LockManager(int stripeCount) {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		if (stripeCount > 0) {
+			stripes = new ReentrantLock[stripeCount];
+			stripeTokens = new Condition[stripeCount];
+			for (int i = 0; i < stripeCount; i++) {
+				stripes[i] = new ReentrantLock();
+				stripeTokens[i] = stripes[i].newCondition();
+			}
+			lockOrder = new Comparator<Long>() {
+				public int compare(Long o1, Long o2) {
+					int s1 = stripeOf(o1);
+					int s2 = stripeOf(o2);
+					if (s1 != s2)
+						return s1 < s2 ? -1 : 1;
+					return o1.compareTo(o2);
+				}
+			};
+		} else {
+			stripes = null;
+			stripeTokens = null;
+			lockOrder = new Comparator<Long>() {
+				public int compare(Long o1, Long o2) {
+					return o1.compareTo(o2);
+				}
+			};
+		}
+	}
+
+	private int stripeOf(long offset) {
+		return (int) (offset % stripes.length);
+	}
+
+	/**
+	 * The order in which multiple offsets must be locked to avoid deadlocks.
+	 */
+	Comparator<Long> getLockOrder() {
+		return lockOrder;
 	}
 
 	/**
@@ -37,6 +94,9 @@ public class LockManager {
 	 * then one lock at a time (or deadlock may occur).
 	 */
 	Condition lockEntry(long offset) {
+		if (stripes != null)
+			return lockStripe(offset);
+
 		if (logDEBUG)
 			Logger.debug(this, "try locking " + offset, new Exception());
 
@@ -69,10 +129,35 @@ public class LockManager {
 		return condition;
 	}
 
+	private Condition lockStripe(long offset) {
+		int stripe = stripeOf(offset);
+		try {
+			while (!stripes[stripe].tryLock(10, TimeUnit.SECONDS)) { // 10s for checking shutdown
+				if (shutdown)
+					return null;
+			}
+		} catch (InterruptedException e) {
+			Logger.error(this, "lock interrupted", e);
+			return null;
+		}
+		if (shutdown) {
+			stripes[stripe].unlock();
+			return null;
+		}
+		return stripeTokens[stripe];
+	}
+
 	/**
 	 * Unlock the entry
 	 */
 	void unlockEntry(long offset, Condition condition) {
+		if (stripes != null) {
+			int stripe = stripeOf(offset);
+			assert condition == stripeTokens[stripe];
+			stripes[stripe].unlock();
+			return;
+		}
+
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
@@ -91,6 +176,14 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
+		if (stripes != null) {
+			// Wait for the current holder of each stripe, if any.
+			for (ReentrantLock stripe : stripes) {
+				stripe.lock();
+				stripe.unlock();
+			}
+			return;
+		}
 		entryLock.lock();
 		try {
 			while (!lockMap.isEmpty()) {
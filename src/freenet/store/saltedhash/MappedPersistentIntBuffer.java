@@ -0,0 +1,219 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/** A memory mapped version of ResizablePersistentIntBuffer, with the same on-disk format.
+ * Nothing is read into the heap on startup, and only the segments which have been modified
+ * since the last checkpoint are flushed.
+ *
+ * The persistence time has the same meaning as for ResizablePersistentIntBuffer, except that
+ * "write immediately" only means the change is visible to the OS immediately (as with a
+ * normal write()); it is not forced to disk until the next checkpoint or shutdown.
+ */
+public class MappedPersistentIntBuffer implements PersistentIntBuffer {
+
+	/** Number of ints per mapped segment. The unit of dirty tracking and flushing. */
+	static final int SEGMENT_INTS = 256 * 1024;
+
+	private final File filename;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final boolean isNew;
+	private int size;
+	/** The mapped segments. Replaced on resize, under the write lock. */
+	private IntBuffer[] segments;
+	/** The underlying buffers, needed to force() them. */
+	private MappedByteBuffer[] mapped;
+	/** Non-zero if a segment has been modified since it was last flushed. */
+	private AtomicIntegerArray dirty;
+	/** Protects segments against resize. */
+	private final ReadWriteLock lock;
+	/** 0 = checkpoint only on shutdown, +ve = checkpoint period in millis, -1 = as 0 */
+	private final int persistenceTime;
+	private Ticker ticker;
+	/** Is the checkpoint job scheduled? Protected by (this). */
+	private boolean scheduled;
+	private boolean closed;
+
+	/** Open the file, creating if necessary, set its size and map it.
+	 * @param f The filename.
+	 * @param size The expected size in ints (i.e. multiply by four to get bytes).
+	 * @throws IOException
+	 */
+	public MappedPersistentIntBuffer(File f, int size, int persistenceTime) throws IOException {
+		this.filename = f;
+		isNew = !f.exists();
+		this.raf = new RandomAccessFile(f, "rw");
+		this.channel = raf.getChannel();
+		this.lock = new ReentrantReadWriteLock();
+		this.persistenceTime = persistenceTime;
+		this.size = size;
+		long expectedLength = ((long)size)*4;
+		if(raf.length() != expectedLength)
+			raf.setLength(expectedLength);
+		map(size);
+	}
+
+	/** Map the file at its current size, reusing any segments which haven't changed size.
+	 * Caller must hold the write lock, or be the constructor. */
+	private void map(int size) throws IOException {
+		int count = (int) ((size + (long)SEGMENT_INTS - 1) / SEGMENT_INTS);
+		IntBuffer[] newSegments = new IntBuffer[count];
+		MappedByteBuffer[] newMapped = new MappedByteBuffer[count];
+		AtomicIntegerArray newDirty = new AtomicIntegerArray(count);
+		for(int i=0;i<count;i++) {
+			long start = ((long)i) * SEGMENT_INTS;
+			int ints = (int) Math.min(SEGMENT_INTS, size - start);
+			if(mapped != null && i < mapped.length && segments[i].capacity() == ints) {
+				newMapped[i] = mapped[i];
+				newSegments[i] = segments[i];
+				newDirty.set(i, dirty.get(i));
+				continue;
+			}
+			newMapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start * 4, ((long)ints) * 4);
+			newMapped[i].order(ByteOrder.LITTLE_ENDIAN); // Same as Fields.intsToBytes
+			newSegments[i] = newMapped[i].asIntBuffer();
+		}
+		mapped = newMapped;
+		segments = newSegments;
+		dirty = newDirty;
+	}
+
+	public void start(Ticker ticker) {
+		synchronized(this) {
+			this.ticker = ticker;
+		}
+	}
+
+	public int get(int offset) {
+		lock.readLock().lock();
+		try {
+			if(closed) throw new IllegalStateException("Already shut down");
+			return segments[offset / SEGMENT_INTS].get(offset % SEGMENT_INTS);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void put(int offset, int value) throws IOException {
+		put(offset, value, false);
+	}
+
+	/** @param noWrite Ignored, the write only goes to the mapping anyway. */
+	public void put(int offset, int value, boolean noWrite) throws IOException {
+		lock.readLock().lock();
+		try {
+			if(closed) throw new IllegalStateException("Already shut down");
+			int segment = offset / SEGMENT_INTS;
+			segments[segment].put(offset % SEGMENT_INTS, value);
+			if(dirty.get(segment) == 0) {
+				dirty.set(segment, 1);
+				if(persistenceTime > 0) {
+					synchronized(this) {
+						if(!scheduled && ticker != null) {
+							ticker.queueTimedJob(checkpointer, persistenceTime);
+							scheduled = true;
+						}
+					}
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private final Runnable checkpointer = new Runnable() {
+
+		public void run() {
+			synchronized(MappedPersistentIntBuffer.this) {
+				scheduled = false;
+			}
+			forceWrite();
+		}
+
+	};
+
+	/** Flush the modified segments. Caller must hold the lock. */
+	private void checkpoint() {
+		int flushed = 0;
+		for(int i=0;i<mapped.length;i++) {
+			// Clear first: A concurrent put() after this will mark it dirty again.
+			if(dirty.getAndSet(i, 0) != 0) {
+				mapped[i].force();
+				flushed++;
+			}
+		}
+		if(flushed > 0 && Logger.shouldLog(Logger.LogLevel.MINOR, this))
+			Logger.minor(this, "Flushed "+flushed+" of "+mapped.length+" segments of "+filename);
+	}
+
+	public void forceWrite() {
+		lock.readLock().lock();
+		try {
+			if(closed) return;
+			checkpoint();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void shutdown() {
+		lock.writeLock().lock();
+		try {
+			if(closed) return;
+			checkpoint();
+			closed = true;
+			try {
+				raf.close();
+			} catch (IOException e) {
+				Logger.error(this, "Close failed during shutdown: "+e+" on "+filename, e);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void resize(int size) {
+		lock.writeLock().lock();
+		try {
+			if(this.size == size || closed) return;
+			Logger.normal(this, "Resizing cache from "+this.size+" slots to "+size);
+			checkpoint();
+			try {
+				// Nobody can access the old mappings once we have the write lock, so it is safe
+				// to truncate the file on most platforms.
+				if(size > this.size)
+					raf.setLength(((long)size) * 4);
+				map(size);
+				int oldSize = this.size;
+				this.size = size;
+				if(size < oldSize)
+					raf.setLength(((long)size) * 4);
+			} catch (IOException e) {
+				Logger.error(this, "Failed to change size during resize on "+filename+" : "+e, e);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean isNew() {
+		return isNew;
+	}
+
+}
@@ -0,0 +1,33 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+
+import freenet.support.Ticker;
+
+/** A large resizable block of int's, persisted to disk. Used for the slot filter. */
+public interface PersistentIntBuffer {
+
+	public void start(Ticker ticker);
+
+	public int get(int offset);
+
+	public void put(int offset, int value) throws IOException;
+
+	/** @param noWrite If true, don't write to disk immediately, even if the policy is to do so. */
+	public void put(int offset, int value, boolean noWrite) throws IOException;
+
+	/** Write everything to disk and close the file. */
+	public void shutdown();
+
+	public void resize(int size);
+
+	/** Write everything to disk now. */
+	public void forceWrite();
+
+	/** @return True if the file did not exist before. */
+	public boolean isNew();
+
+}
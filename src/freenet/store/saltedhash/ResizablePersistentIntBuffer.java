@@ -18,10 +18,10 @@ import freenet.support.Ticker;
  * It would be better to do this with ByteBuffer's and an IntBuffer view, unfortunately
  * it is not possible to subclass ByteBuffer's! Also, ideally we'd memory map, but there 
  * is no way to unmap, and it is likely there will never be, so resizing would be very
- * messy and expensive.
+ * messy and expensive. See MappedPersistentIntBuffer for a mapped version.
  * @author toad
  */
-public class ResizablePersistentIntBuffer {
+public class ResizablePersistentIntBuffer implements PersistentIntBuffer {
 	
 	private final File filename;
 	private final RandomAccessFile raf;
@@ -87,7 +87,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * bit 28 - ENTRY_WRONG_STORE: 0 = Stored in correct store, 1 = stored in wrong store.
 	 * bit 0...23 - The first 3 bytes of the salted key.
 	 */
-	private final ResizablePersistentIntBuffer slotFilter;
+	private final PersistentIntBuffer slotFilter;
 	private final File slotFilterFile;
 	/** If true, don't create a slot filter, don't keep it up to date, don't
 	 * do anything with it. */
@@ -124,8 +124,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private int flags;
 
 	private boolean preallocate = true;
+	/** If true, memory-map the metadata file and use striped locks rather than a lock per
+	 * offset. */
+	private final boolean mapMetadata;
+	/** If non-null, put() queues blocks here to be written by a separate thread. */
+	private volatile WriteBehindQueue<T> writeQueue;
 	public static boolean NO_CLEANER_SLEEP = false;
 	static final int SLOT_FILTER_INTERVAL = -1; // Write immediately.
+	/** How often to flush modified parts of a memory mapped slot filter. */
+	static final int SLOT_FILTER_CHECKPOINT_INTERVAL = 5 * 60 * 1000;
 
 	/** If we have no space in this store, try writing it to the alternate store,
 	 * with the wrong store flag set. Note that we do not *read from* it, the caller
@@ -136,6 +143,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * grows so slowly it will hardly ever need more space from the cache. */
 	private SaltedHashFreenetStore<T> altStore;
 
+	/** Queue puts and write them in batches on a separate thread, rather than on the caller's
+	 * thread. Only possible if collisions are impossible, since we can't throw a 
+	 * KeyCollisionException later. Must be called before the store is used. */
+	public void enableWriteBehind() {
+		if(collisionPossible) {
+			Logger.normal(this, "Not enabling write-behind for "+name+" as collisions are possible");
+			return;
+		}
+		if(writeQueue == null)
+			writeQueue = new WriteBehindQueue<T>(this, name);
+	}
+
 	public void setAltStore(SaltedHashFreenetStore<T> store) {
 		if(store.altStore != null) throw new IllegalStateException("Target must not have an altStore - deadlock can result");
 		altStore = store;
@@ -144,12 +163,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate, resizeOnStart,
+		        exec, masterKey, false, false);
+	}
+
+	/**
+	 * @param mapMetadata If true, memory-map the metadata file and use striped locks.
+	 * @param mapSlotFilter If true, memory-map the slot filter rather than keeping it on the heap.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean mapMetadata, boolean mapSlotFilter) throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, masterKey, mapMetadata, mapSlotFilter);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        boolean mapMetadata, boolean mapSlotFilter) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -168,8 +199,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.random = random;
 		storeSize = maxKeys;
 		this.preallocate = preallocate;
+		this.mapMetadata = mapMetadata;
 
-		lockManager = new LockManager();
+		lockManager = new LockManager(mapMetadata ? LOCK_STRIPES : 0);
 
 		// Create a directory it not exist
 		this.baseDir.mkdirs();
@@ -199,7 +231,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		int size = (int)Math.max(storeSize, prevStoreSize);
 		slotFilterDisabled = !enableSlotFilters;
 		if(!slotFilterDisabled) {
-			slotFilter = new ResizablePersistentIntBuffer(slotFilterFile, size, SLOT_FILTER_INTERVAL);
+			if(mapSlotFilter)
+				slotFilter = new MappedPersistentIntBuffer(slotFilterFile, size, SLOT_FILTER_CHECKPOINT_INTERVAL);
+			else
+				slotFilter = new ResizablePersistentIntBuffer(slotFilterFile, size, SLOT_FILTER_INTERVAL);
 			System.err.println("Slot filter (" + slotFilterFile + ") for " + name + " is loaded (new="+slotFilter.isNew()+").");
 		} else
 			slotFilter = null;
@@ -275,6 +310,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		storeFileOffsetReady = Math.min(curStoreFileSize / (headerBlockLength + dataBlockLength + hdPadding), curMetaFileSize / Entry.METADATA_LENGTH);
 
+		if(metaMap != null)
+			metaMap.remap(curMetaFileSize);
+
 		if(ticker == null) {
 			cleanerThread.start();
 		} else
@@ -297,6 +335,23 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
+		WriteBehindQueue<T> queue = writeQueue;
+		if (queue != null) {
+			WriteBehindQueue.PendingWrite<T> queued = queue.get(routingKey);
+			if (queued != null) {
+				if (queued.isOldBlock) {
+					if (ignoreOldBlocks) {
+						Logger.normal(this, "Ignoring old block");
+						return null;
+					}
+					if (meta != null)
+						meta.setOldBlock();
+				}
+				hits.incrementAndGet();
+				return queued.block;
+			}
+		}
+
 		try {
 			int retry = 0;
 			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
@@ -397,9 +452,53 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	@Override
 	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
+		WriteBehindQueue<T> queue = writeQueue;
+		if (queue != null && !shutdown && queue.queue(block, data, header, overwrite, isOldBlock))
+			return;
+		put(block, data, header, overwrite, isOldBlock, false);
+	}
+
+	/** Called by the WriteBehindQueue to actually write a block. */
+	void writeQueued(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		put(block, data, header, overwrite, isOldBlock, false);
 	}
 
+	/** Get the first slot a block would be written to, for ordering writes. */
+	long getFirstSlot(byte[] routingKey) {
+		configLock.readLock().lock();
+		try {
+			return getOffsetFromPlainKey(routingKey, storeSize)[0];
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
+	/** Force all writes so far to disk. */
+	void syncFiles() throws IOException {
+		if(metaMap != null)
+			metaMap.force();
+		metaFC.force(false);
+		hdFC.force(false);
+	}
+
+	/** @return The number of blocks queued for writing, or 0 if write-behind is disabled. */
+	public int getWriteQueueSize() {
+		WriteBehindQueue<T> queue = writeQueue;
+		return queue == null ? 0 : queue.size();
+	}
+
+	/** @return The average time to write and sync a batch of queued blocks, in milliseconds. */
+	public double getAverageFlushTime() {
+		WriteBehindQueue<T> queue = writeQueue;
+		return queue == null ? 0.0 : queue.averageFlushTime();
+	}
+
+	/** @return The average number of queued blocks written per sync. */
+	public double getAverageFlushBatchSize() {
+		WriteBehindQueue<T> queue = writeQueue;
+		return queue == null ? 0.0 : queue.averageBatchSize();
+	}
+
 	public boolean put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore) throws IOException, KeyCollisionException {
 		byte[] routingKey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
@@ -553,6 +652,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private File metaFile;
 	private RandomAccessFile metaRAF;
 	private FileChannel metaFC;
+	/** Mapping of the metadata file, or null if we use metaFC for everything. */
+	private SegmentedMappedFile metaMap;
+	/** Size of each mapped region of the metadata file. Must be a multiple of METADATA_LENGTH. */
+	private static final int META_MAP_SEGMENT_SIZE = 64 * 1024 * 1024;
 	// header+data file
 	private File hdFile;
 	private RandomAccessFile hdRAF;
@@ -825,6 +928,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		metaRAF = new RandomAccessFile(metaFile, "rw");
 		metaFC = metaRAF.getChannel();
 		metaFC.lock();
+		if(mapMetadata)
+			metaMap = new SegmentedMappedFile(metaFC, META_MAP_SEGMENT_SIZE);
 
 		hdRAF = new RandomAccessFile(hdFile, "rw");
 		hdFC = hdRAF.getChannel();
@@ -858,13 +963,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
 
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
+		if(metaMap == null || !metaMap.read(mbf, Entry.METADATA_LENGTH * offset)) {
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+		}
 		mbf.flip();
 
 		Entry entry = new Entry(mbf, null);
@@ -992,11 +1099,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		cipherManager.encrypt(entry, random);
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
+		if(metaMap == null || !metaMap.write(bf, Entry.METADATA_LENGTH * offset)) {
+			do {
+				int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (bf.hasRemaining());
+		}
 
 		bf = entry.toHDBuffer();
 		if (bf != null) {
@@ -1014,6 +1123,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private void flushAndClose() {
 		Logger.normal(this, "Flush and closing this store: " + name);
 		try {
+			if(metaMap != null)
+				metaMap.close();
 			metaFC.force(true);
 			metaFC.close();
 		} catch (Exception e) {
@@ -1104,13 +1215,36 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
-			metaRAF.setLength(newMetaLen);
+			// A mapped metadata file cannot be truncated while fetches may still be probing
+			// the old slots, see truncateMappedMetadata().
+			if(metaMap == null || newMetaLen >= metaMap.mappedLength())
+				metaRAF.setLength(newMetaLen);
 			hdRAF.setLength(newHdLen);
+			if(metaMap != null && newMetaLen > metaMap.mappedLength())
+				metaMap.remap(newMetaLen);
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
 		}
 	}
 
+	/**
+	 * Shrink the mapped metadata file to the current store size. Must be called with the
+	 * configLock write lock held, after the resize has completed, so nobody can be reading the
+	 * slots being removed.
+	 */
+	private void truncateMappedMetadata() {
+		long newMetaLen = Entry.METADATA_LENGTH * storeSize;
+		try {
+			if(metaRAF.length() > newMetaLen) {
+				metaMap.remap(newMetaLen);
+				metaRAF.setLength(newMetaLen);
+			}
+		} catch (IOException e) {
+			// E.g. on Windows, a file cannot be truncated while any part of it is mapped.
+			Logger.error(this, "Unable to truncate metadata file for "+name+" : "+e, e);
+		}
+	}
+
 	// ------------- Configuration
 	/**
 	 * Configuration File
@@ -1495,6 +1629,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						prevStoreSize = 0;
 						if(!slotFilterDisabled)
 							slotFilter.resize((int)storeSize);
+						if(metaMap != null)
+							truncateMappedMetadata();
 
 						flags &= ~FLAG_REBUILD_BLOOM;
 						resizeCompleteCondition.signalAll();
@@ -1668,8 +1804,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			Condition[] locked = new Condition[length];
 			try {
 				// acquire all locks in the region, will unlock in the finally block
-				for (int i = 0; i < length; i++) {
-					locked[i] = lockManager.lockEntry(offset + i);
+				Long[] lockOrder = new Long[length];
+				for (int i = 0; i < length; i++)
+					lockOrder[i] = offset + i;
+				Arrays.sort(lockOrder, lockManager.getLockOrder());
+				for (long lockOffset : lockOrder) {
+					int i = (int) (lockOffset - offset);
+					locked[i] = lockManager.lockEntry(lockOffset);
 					if (locked[i] == null)
 						return false;
 				}
@@ -1681,10 +1822,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				ByteBuffer buf = ByteBuffer.allocate((int) bufLen);
 				boolean dirty = false;
 				try {
-					while (buf.hasRemaining()) {
-						int status = metaFC.read(buf, startFileOffset + buf.position());
-						if (status == -1)
-							break;
+					if (metaMap == null || !metaMap.read(buf, startFileOffset)) {
+						while (buf.hasRemaining()) {
+							int status = metaFC.read(buf, startFileOffset + buf.position());
+							if (status == -1)
+								break;
+						}
 					}
 				} catch (IOException ioe) {
 					if (shutdown)
@@ -1750,8 +1893,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						buf.flip();
 
 						try {
-							while (buf.hasRemaining()) {
-								metaFC.write(buf, startFileOffset + buf.position());
+							if (metaMap == null || !metaMap.write(buf, startFileOffset)) {
+								while (buf.hasRemaining()) {
+									metaFC.write(buf, startFileOffset + buf.position());
+								}
 							}
 						} catch (IOException ioe) {
 							Logger.error(this, "unexpected IOException", ioe);
@@ -1968,6 +2113,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	// ------------- Locking
 	volatile boolean shutdown = false;
 	private LockManager lockManager;
+	/** Number of striped locks used when mapMetadata is enabled. */
+	private static final int LOCK_STRIPES = 1024;
 	private ReadWriteLock configLock = new ReentrantReadWriteLock();
 	private Condition resizeCompleteCondition = configLock.writeLock().newCondition();
 
@@ -1981,7 +2128,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
 		// use a set to prevent duplicated offsets,
 		// a sorted set to prevent deadlocks
-		SortedSet<Long> offsets = new TreeSet<Long>();
+		SortedSet<Long> offsets = new TreeSet<Long>(lockManager.getLockOrder());
 		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
 		for (long offset : offsetArray)
 			offsets.add(offset);
@@ -2049,6 +2196,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	public void close() {
+		if(writeQueue != null)
+			writeQueue.close();
 		shutdown = true;
 		lockManager.shutdown();
 
@@ -2197,6 +2346,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
+		WriteBehindQueue<T> queue = writeQueue;
+		if(queue != null && queue.contains(routingKey))
+			return true;
 		configLock.readLock().lock();
 		
 		try {
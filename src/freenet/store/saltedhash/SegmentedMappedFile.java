@@ -0,0 +1,146 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import freenet.support.Logger;
+
+/**
+ * A file which is memory mapped in fixed size segments, so that reads and writes of small
+ * records become plain memory accesses rather than a system call each.
+ *
+ * Only accesses which fall entirely within one mapped segment are served from the mapping; the
+ * caller must fall back to the FileChannel for anything else (typically the tail of a file which
+ * has been grown since the last {@link #remap(long)}). Records must therefore not straddle a
+ * segment boundary, i.e. the segment size should be a multiple of the record size.
+ *
+ * There is no way to unmap a buffer in Java, so the file <strong>must not</strong> be truncated
+ * below the mapped length while anyone may still be reading it, or the JVM will crash. Call
+ * {@link #remap(long)} with the new length first, and make sure there are no concurrent readers
+ * of the truncated region.
+ */
+public class SegmentedMappedFile {
+
+	private final FileChannel channel;
+	private final int segmentSize;
+	/** The mapped segments. Replaced (never modified) on remap. */
+	private volatile MappedByteBuffer[] segments;
+	private volatile boolean closed;
+
+	/**
+	 * @param channel
+	 *            The file to map. Must be opened read-write.
+	 * @param segmentSize
+	 *            The size of each mapped segment in bytes.
+	 */
+	public SegmentedMappedFile(FileChannel channel, int segmentSize) {
+		this.channel = channel;
+		this.segmentSize = segmentSize;
+		this.segments = new MappedByteBuffer[0];
+	}
+
+	/**
+	 * Map the first <code>length</code> bytes of the file. Existing segments are reused if they
+	 * are still the right size. If mapping fails, e.g. because we are out of address space, the
+	 * segments mapped so far are kept and the rest will be accessed through the channel.
+	 */
+	public synchronized void remap(long length) {
+		if (closed)
+			return;
+		MappedByteBuffer[] old = segments;
+		int count = (int) ((length + segmentSize - 1) / segmentSize);
+		MappedByteBuffer[] newSegments = new MappedByteBuffer[count];
+		int i;
+		for (i = 0; i < count; i++) {
+			long start = ((long) i) * segmentSize;
+			int size = (int) Math.min(segmentSize, length - start);
+			if (i < old.length && old[i].capacity() == size) {
+				newSegments[i] = old[i];
+				continue;
+			}
+			try {
+				newSegments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to map segment " + i + " : " + e + " - will use normal I/O beyond " + start, e);
+				break;
+			}
+		}
+		if (i < count) {
+			MappedByteBuffer[] shorter = new MappedByteBuffer[i];
+			System.arraycopy(newSegments, 0, shorter, 0, i);
+			newSegments = shorter;
+		}
+		segments = newSegments;
+	}
+
+	/** @return The number of bytes currently mapped. */
+	public long mappedLength() {
+		MappedByteBuffer[] s = segments;
+		if (s.length == 0)
+			return 0;
+		return ((long) (s.length - 1)) * segmentSize + s[s.length - 1].capacity();
+	}
+
+	private ByteBuffer segmentFor(long pos, int length) {
+		if (closed)
+			return null;
+		MappedByteBuffer[] s = segments;
+		long seg = pos / segmentSize;
+		if (seg >= s.length)
+			return null;
+		MappedByteBuffer segment = s[(int) seg];
+		int offset = (int) (pos - seg * segmentSize);
+		if (offset + length > segment.capacity())
+			return null;
+		// Duplicate so concurrent accesses don't share position/limit.
+		ByteBuffer buf = segment.duplicate();
+		buf.position(offset);
+		buf.limit(offset + length);
+		return buf;
+	}
+
+	/**
+	 * Read <code>dst.remaining()</code> bytes at <code>pos</code> from the mapping.
+	 *
+	 * @return False if the region is not mapped, in which case nothing has been read.
+	 */
+	public boolean read(ByteBuffer dst, long pos) {
+		ByteBuffer buf = segmentFor(pos, dst.remaining());
+		if (buf == null)
+			return false;
+		dst.put(buf);
+		return true;
+	}
+
+	/**
+	 * Write <code>src.remaining()</code> bytes at <code>pos</code> to the mapping.
+	 *
+	 * @return False if the region is not mapped, in which case nothing has been written.
+	 */
+	public boolean write(ByteBuffer src, long pos) {
+		ByteBuffer buf = segmentFor(pos, src.remaining());
+		if (buf == null)
+			return false;
+		buf.put(src);
+		return true;
+	}
+
+	/** Flush all mapped segments to disk. */
+	public void force() {
+		for (MappedByteBuffer buf : segments)
+			buf.force();
+	}
+
+	/** Flush and stop using the mapping. Subsequent reads and writes will return false. */
+	public synchronized void close() {
+		force();
+		closed = true;
+		segments = new MappedByteBuffer[0];
+	}
+
+}
@@ -0,0 +1,258 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.store.KeyCollisionException;
+import freenet.store.StorableBlock;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+import freenet.support.math.RunningAverage;
+import freenet.support.math.TrivialRunningAverage;
+
+/**
+ * Write-behind stage in front of SaltedHashFreenetStore.put(). Blocks are queued and returned
+ * to the caller immediately; a writer thread drains them in batches, sorted by slot so the disk
+ * sees mostly sequential writes, and syncs the store files once per batch. Queued blocks remain
+ * visible to fetch() until they have been written.
+ *
+ * Only usable for stores where collisions are impossible, since we can't throw a
+ * KeyCollisionException after the fact.
+ */
+class WriteBehindQueue<T extends StorableBlock> {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Maximum number of blocks queued. If full, the caller must write synchronously. */
+	static final int MAX_QUEUED = 1024;
+	/** Maximum number of blocks written between syncs. */
+	static final int MAX_BATCH = 256;
+	/** How long to wait for more blocks before writing a partial batch. */
+	static final int BATCH_DELAY = 200;
+
+	static class PendingWrite<T> {
+		final T block;
+		final byte[] data;
+		final byte[] header;
+		final boolean overwrite;
+		final boolean isOldBlock;
+		/** The first slot the block would be written to, used for sorting. Set by the writer. */
+		long slot;
+
+		PendingWrite(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) {
+			this.block = block;
+			this.data = data;
+			this.header = header;
+			this.overwrite = overwrite;
+			this.isOldBlock = isOldBlock;
+		}
+	}
+
+	private static final Comparator<PendingWrite<?>> SLOT_ORDER = new Comparator<PendingWrite<?>>() {
+		public int compare(PendingWrite<?> w1, PendingWrite<?> w2) {
+			if (w1.slot == w2.slot)
+				return 0;
+			return w1.slot < w2.slot ? -1 : 1;
+		}
+	};
+
+	private final SaltedHashFreenetStore<T> store;
+	private final String name;
+	/** Blocks waiting to be written. Protected by (this). */
+	private final LinkedHashMap<ByteArrayWrapper, PendingWrite<T>> pending;
+	/** Blocks being written by the current batch. Protected by (this). */
+	private final Map<ByteArrayWrapper, PendingWrite<T>> inFlight;
+	/** Protected by (this). */
+	private boolean closed;
+	private final RunningAverage flushTime;
+	private final RunningAverage batchSize;
+	private final Writer writer;
+
+	WriteBehindQueue(SaltedHashFreenetStore<T> store, String name) {
+		this.store = store;
+		this.name = name;
+		pending = new LinkedHashMap<ByteArrayWrapper, PendingWrite<T>>();
+		inFlight = new HashMap<ByteArrayWrapper, PendingWrite<T>>();
+		flushTime = new TrivialRunningAverage();
+		batchSize = new TrivialRunningAverage();
+		writer = new Writer();
+		writer.start();
+	}
+
+	/**
+	 * Queue a block for writing.
+	 *
+	 * @return False if the queue is full or closed, in which case the caller must write the block
+	 *         itself.
+	 */
+	boolean queue(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) {
+		ByteArrayWrapper key = new ByteArrayWrapper(block.getRoutingKey());
+		synchronized (this) {
+			if (closed)
+				return false;
+			PendingWrite<T> old = pending.get(key);
+			if (old == null && pending.size() >= MAX_QUEUED)
+				return false;
+			if (old != null && !old.isOldBlock)
+				isOldBlock = false;
+			pending.put(key, new PendingWrite<T>(block, data, header, overwrite, isOldBlock));
+			if (pending.size() == 1 || pending.size() >= MAX_BATCH)
+				notifyAll();
+			return true;
+		}
+	}
+
+	/** Get a block which has been queued but may not have been written yet. */
+	synchronized PendingWrite<T> get(byte[] routingKey) {
+		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
+		PendingWrite<T> w = pending.get(key);
+		if (w == null)
+			w = inFlight.get(key);
+		return w;
+	}
+
+	synchronized boolean contains(byte[] routingKey) {
+		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
+		return pending.containsKey(key) || inFlight.containsKey(key);
+	}
+
+	/** @return The number of blocks which have not yet been written. */
+	synchronized int size() {
+		return pending.size() + inFlight.size();
+	}
+
+	/** @return The average time taken to write and sync a batch, in milliseconds. */
+	double averageFlushTime() {
+		return flushTime.countReports() == 0 ? 0.0 : flushTime.currentValue();
+	}
+
+	/** @return The average number of blocks written per batch. */
+	double averageBatchSize() {
+		return batchSize.countReports() == 0 ? 0.0 : batchSize.currentValue();
+	}
+
+	/**
+	 * Stop accepting new blocks, and wait for everything queued so far to be written.
+	 */
+	void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			while (!(pending.isEmpty() && inFlight.isEmpty()) && writer.isAlive()) {
+				try {
+					wait(1000);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	private List<PendingWrite<T>> nextBatch() throws InterruptedException {
+		synchronized (this) {
+			while (pending.isEmpty()) {
+				if (closed)
+					return null;
+				wait();
+			}
+			// Give more blocks a chance to arrive so we can write a bigger batch.
+			long deadline = System.currentTimeMillis() + BATCH_DELAY;
+			while (!closed && pending.size() < MAX_BATCH) {
+				long now = System.currentTimeMillis();
+				if (now >= deadline)
+					break;
+				wait(deadline - now);
+			}
+			List<PendingWrite<T>> batch = new ArrayList<PendingWrite<T>>(Math.min(pending.size(), MAX_BATCH));
+			Iterator<Map.Entry<ByteArrayWrapper, PendingWrite<T>>> it = pending.entrySet().iterator();
+			while (it.hasNext() && batch.size() < MAX_BATCH) {
+				Map.Entry<ByteArrayWrapper, PendingWrite<T>> e = it.next();
+				it.remove();
+				inFlight.put(e.getKey(), e.getValue());
+				batch.add(e.getValue());
+			}
+			return batch;
+		}
+	}
+
+	private void writeBatch(List<PendingWrite<T>> batch) {
+		long start = System.currentTimeMillis();
+		for (PendingWrite<T> w : batch)
+			w.slot = store.getFirstSlot(w.block.getRoutingKey());
+		Collections.sort(batch, SLOT_ORDER);
+		for (PendingWrite<T> w : batch) {
+			try {
+				store.writeQueued(w.block, w.data, w.header, w.overwrite, w.isOldBlock);
+			} catch (KeyCollisionException e) {
+				if (logMINOR)
+					Logger.minor(this, "Collision writing queued block to " + name);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to write queued block to " + name + " : " + e, e);
+			}
+		}
+		try {
+			store.syncFiles();
+		} catch (IOException e) {
+			Logger.error(this, "Unable to sync " + name + " : " + e, e);
+		}
+		long end = System.currentTimeMillis();
+		flushTime.report(end - start);
+		batchSize.report(batch.size());
+		synchronized (this) {
+			for (PendingWrite<T> w : batch) {
+				ByteArrayWrapper key = new ByteArrayWrapper(w.block.getRoutingKey());
+				if (inFlight.get(key) == w)
+					inFlight.remove(key);
+			}
+			notifyAll();
+		}
+		if (logMINOR)
+			Logger.minor(this, "Wrote " + batch.size() + " queued blocks to " + name + " in " + (end - start) + "ms");
+	}
+
+	private class Writer extends NativeThread {
+
+		Writer() {
+			super("Store-" + name + "-Writer", NativeThread.HIGH_PRIORITY, false);
+			setDaemon(true);
+		}
+
+		@Override
+		public void realRun() {
+			while (true) {
+				List<PendingWrite<T>> batch;
+				try {
+					batch = nextBatch();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if (batch == null)
+					return;
+				writeBatch(batch);
+			}
+		}
+	}
+
+}
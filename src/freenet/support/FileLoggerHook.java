@@ -22,7 +22,8 @@ import java.util.LinkedList;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
@@ -46,7 +47,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		UNAME = 7;
 
 	private volatile boolean closed = false;
+	/** LOCKING: Lock closeSync. */
 	private boolean closedFinished = false;
+	private final Object closeSync = new Object();
 
 	protected int INTERVAL = Calendar.MINUTE;
 	protected int INTERVAL_MULTIPLIER = 5;
@@ -104,23 +107,24 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected boolean redirectStdErr = false;
 
 	protected final int MAX_LIST_SIZE;
-	protected long MAX_LIST_BYTES = 10 * (1 << 20);
-	protected long LIST_WRITE_THRESHOLD;
+	protected volatile long MAX_LIST_BYTES = 10 * (1 << 20);
+	protected volatile long LIST_WRITE_THRESHOLD;
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to
 	 * block So run the actual write on another thread
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
-	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * Threads which log only copy the message into a preallocated slot, without taking any
+	 * lock; the writer thread formats and writes them. If the queue is full, or holds too 
+	 * many bytes, the message is dropped, and the writer says how many were dropped.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
-	protected long listBytes = 0;
+	protected final LogRingBuffer list;
+	/** Approximate size of the messages queued. */
+	protected final AtomicLong listBytes = new AtomicLong();
+	/** The writer thread, so we can wake it up if the queue is filling up. */
+	private volatile Thread writerThread;
+	/** True while the writer thread is waiting for messages. */
+	private volatile boolean writerWaiting;
 
 	long maxOldLogfilesDiskUsage;
 	protected final LinkedList<OldLogFile> logFiles = new LinkedList<OldLogFile>();
@@ -140,10 +144,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	public void setMaxListBytes(long len) {
-		synchronized(list) {
-			MAX_LIST_BYTES = len;
-			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
-		}
+		MAX_LIST_BYTES = len;
+		LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
 	}
 
 	public void setInterval(String intervalName) throws IntervalParseException {
@@ -233,7 +235,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	// Unless we are writing flat out, everything will hit disk within this period.
-	private long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
+	private volatile long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
 
 	class WriterThread extends Thread {
 		WriterThread() {
@@ -295,9 +297,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			}
 			long timeWaitingForSync = -1;
 			long flush;
-			synchronized(this) {
-				flush = flushTime;
-			}
+			long reportedDropped = 0;
 			while (true) {
 				try {
 					thisTime = System.currentTimeMillis();
@@ -318,57 +318,63 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					}
 					boolean died = false;
 					boolean timeoutFlush = false;
-					synchronized (list) {
-						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while(o == null) {
-							if (closed) {
-								died = true;
-								break;
-							}
-							try {
-								if(thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
-									list.wait(Math.min(500, (int)(Math.min(maxWait-thisTime, Integer.MAX_VALUE))));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if(closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if(maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									} else {
-										// Do NOT use list.poll(timeout) because it uses a separate lock.
-										o = list.poll();
-									}
-								}
-							} catch (InterruptedException e) {
-								// Ignored.
-							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
+					flush = flushTime;
+					long maxWait;
+					if(timeWaitingForSync == -1)
+						maxWait = Long.MAX_VALUE;
+					else
+						maxWait = timeWaitingForSync + flush;
+					o = poll();
+					while(o == null) {
+						if (closed) {
+							died = true;
+							break;
+						}
+						if(thisTime < maxWait) {
+							// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
+							writerWaiting = true;
+							if(listBytes.get() <= LIST_WRITE_THRESHOLD)
+								LockSupport.parkNanos(Math.min(500, maxWait-thisTime) * 1000 * 1000);
+							writerWaiting = false;
+							thisTime = System.currentTimeMillis();
+							if(listBytes.get() < LIST_WRITE_THRESHOLD) {
+								// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
+								if(listBytes.get() != 0 && maxWait == Long.MAX_VALUE)
 									maxWait = thisTime + flush;
+								if(closed) // If closing, write stuff ASAP.
+									o = poll();
+								else if(maxWait != Long.MAX_VALUE) {
+									continue;
 								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
-						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
+							} else {
+								o = poll();
+							}
 						}
+						if(o == null) {
+							if(timeWaitingForSync == -1) {
+								timeWaitingForSync = thisTime;
+								maxWait = thisTime + flush;
+							}
+							if(thisTime >= maxWait) {
+								timeoutFlush = true;
+								timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
+								break;
+							}
+						} else break;
+					}
+					long dropped = list.dropped();
+					if(dropped != reportedDropped) {
+						String err =
+							"GRRR: ERROR: Logging too fast, dropped "
+								+ (dropped - reportedDropped)
+								+ " entries, "
+								+ listBytes.get()
+								+ " bytes in memory\n";
+						reportedDropped = dropped;
+						byte[] buf = err.getBytes();
+						myWrite(logStream, buf);
+						if(altLogStream != null)
+							myWrite(altLogStream, buf);
 					}
 					if(timeoutFlush || died) {
 						// Flush to disk 
@@ -389,9 +395,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 								System.err.println("Failed to close compressed log stream: "+e);
 							}
 						}
-						synchronized(list) {
+						synchronized(closeSync) {
 							closedFinished = true;
-							list.notifyAll();
+							closeSync.notifyAll();
 						}
 						return;
 					}
@@ -785,6 +791,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			System.setErr(new PrintStream(new OutputStreamLogger(LogLevel.ERROR, "Stderr: ")));
 		WriterThread wt = new WriterThread();
 		wt.setDaemon(true);
+		writerThread = wt;
 		CloserThread ct = new CloserThread();
 		SemiOrderedShutdownHook.get().addLateJob(ct);
 		wt.start();
@@ -833,7 +840,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		list = new LogRingBuffer(MAX_LIST_SIZE);
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -903,6 +910,16 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (closed)
 			return;
 		
+		// We don't know how long the line will be until the writer formats it.
+		long bytes = (msg == null ? 0 : msg.length()) + (e == null ? 0 : 1024) + LINE_OVERHEAD;
+		if(!reserve(bytes)) return;
+		if(!list.offer(o, c, msg, e, priority))
+			listBytes.addAndGet(-bytes);
+	}
+
+	/** Format a message. Only called by the writer thread. */
+	private byte[] format(LogRingBuffer.LogEvent event) {
+		Throwable e = event.throwable;
 		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
 		int sctr = 0;
 
@@ -912,29 +929,26 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
+					myDate.setTime(event.time);
+					sb.append(df.format(myDate));
 					break;
 				case CLASS :
-					sb.append(c == null ? "<none>" : c.getName());
+					sb.append(event.source == null ? "<none>" : event.source.getName());
 					break;
 				case HASHCODE :
 					sb.append(
-						o == null
+						!event.hasObject
 							? "<none>"
-							: Integer.toHexString(o.hashCode()));
+							: Integer.toHexString(event.hashCode));
 					break;
 				case THREAD :
-					sb.append(Thread.currentThread().getName());
+					sb.append(event.threadName);
 					break;
 				case PRIORITY :
-					sb.append(priority.name());
+					sb.append(event.priority.name());
 					break;
 				case MESSAGE :
-					sb.append(msg);
+					sb.append(event.message);
 					break;
 				case UNAME :
 					sb.append(uname);
@@ -967,66 +981,59 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			else break;
 		}
 
-		logString(sb.toString().getBytes());
+		return sb.toString().getBytes();
 	}
 
 	/** Memory allocation overhead (estimated through experimentation with bsh) */
 	private static final int LINE_OVERHEAD = 60;
 	
 	public void logString(byte[] b) {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ 2
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes();
-				if(list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
-				}
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ x
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes();
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
-			}
-			if (sz == 0)
-				list.notifyAll();
+		long bytes = b.length + LINE_OVERHEAD;
+		if(!reserve(bytes)) return;
+		if(!list.offer(b))
+			listBytes.addAndGet(-bytes);
+	}
+
+	/** Account for a message we are about to queue, and wake up the writer if the queue is
+	 * getting full.
+	 * @return False if there are too many bytes queued already, in which case the message
+	 * has been counted as dropped. */
+	private boolean reserve(long bytes) {
+		long queued = listBytes.addAndGet(bytes);
+		if(queued > MAX_LIST_BYTES) {
+			listBytes.addAndGet(-bytes);
+			list.drop();
+			return false;
+		}
+		if(writerWaiting && (queued - bytes <= LIST_WRITE_THRESHOLD && queued > LIST_WRITE_THRESHOLD
+				|| list.size() >= list.capacity() / 2)) {
+			Thread writer = writerThread;
+			if(writer != null) LockSupport.unpark(writer);
 		}
+		return true;
 	}
 
-	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
+	/** Take the next line to write from the queue. Only called by the writer thread.
+	 * @return The formatted line, or null if the queue is empty. */
+	private byte[] poll() {
+		LogRingBuffer.LogEvent event = list.peek();
+		if(event == null) return null;
+		byte[] b;
+		long bytes;
+		if(event.formatted != null) {
+			b = event.formatted;
+			bytes = b.length + LINE_OVERHEAD;
+		} else {
+			b = format(event);
+			bytes = (event.message == null ? 0 : event.message.length()) + (event.throwable == null ? 0 : 1024) + LINE_OVERHEAD;
 		}
+		list.release(event);
+		listBytes.addAndGet(-bytes);
+		return b;
+	}
+
+	public long listBytes() {
+		return listBytes.get();
 	}
 
 	public static int numberOf(char c) {
@@ -1058,14 +1065,16 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	class CloserThread extends Thread {
 		@Override
 		public void run() {
-			synchronized(list) {
-				closed = true;
+			closed = true;
+			Thread writer = writerThread;
+			if(writer != null) LockSupport.unpark(writer);
+			synchronized(closeSync) {
 				long deadline = System.currentTimeMillis() + 10*1000;
 				while(!closedFinished) {
 					int wait = (int) (deadline - System.currentTimeMillis());
 					if(wait <= 0) return;
 					try {
-						list.wait(wait);
+						closeSync.wait(wait);
 					} catch (InterruptedException e) {
 						// Ok.
 					}
@@ -1197,7 +1206,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		return redirectStdOut || redirectStdErr;
 	}
 
-	public synchronized void setMaxBacklogNotBusy(long val) {
+	public void setMaxBacklogNotBusy(long val) {
 		flushTime = val;
 	}
 }
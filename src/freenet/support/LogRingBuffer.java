@@ -0,0 +1,159 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.support.Logger.LogLevel;
+
+/**
+ * A bounded queue of log events, which any number of threads can add to without locking, and
+ * one thread (the log writer) takes from. The events are allocated up front and reused, so
+ * logging a message only copies a few references into a slot; formatting is left to the
+ * writer. If the queue is full, the event is dropped and counted rather than making the
+ * caller wait.
+ *
+ * Each slot has a sequence number, which says whether it is free for the producer who claims
+ * position n (sequence == n) or holds an event for the consumer (sequence == n + 1).
+ * Producers claim positions by compare-and-set on the tail.
+ */
+public final class LogRingBuffer {
+
+	/** A log message, or a line which has already been formatted. */
+	public static final class LogEvent {
+		private volatile long sequence;
+		public long time;
+		public String threadName;
+		public Class<?> source;
+		/** The hash code of the object which logged the message, or 0 if none. */
+		public int hashCode;
+		public boolean hasObject;
+		public String message;
+		public Throwable throwable;
+		public LogLevel priority;
+		/** If not null, a line which has already been formatted, and the other fields are
+		 * not used. */
+		public byte[] formatted;
+
+		private void clear() {
+			threadName = null;
+			source = null;
+			message = null;
+			throwable = null;
+			priority = null;
+			formatted = null;
+		}
+	}
+
+	private final LogEvent[] events;
+	private final int mask;
+	/** The next position to be claimed by a producer. */
+	private final AtomicLong tail = new AtomicLong();
+	/** The next position to be taken by the consumer. Only written by the consumer. */
+	private volatile long head;
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** @param capacity Rounded up to a power of 2. */
+	public LogRingBuffer(int capacity) {
+		int size = 1;
+		while(size < capacity) size <<= 1;
+		events = new LogEvent[size];
+		for(int i=0;i<size;i++) {
+			events[i] = new LogEvent();
+			events[i].sequence = i;
+		}
+		mask = size - 1;
+	}
+
+	/** Claim a free slot. Must be followed by publish().
+	 * @return The slot, or null if the queue is full. */
+	private LogEvent claim() {
+		while(true) {
+			long pos = tail.get();
+			LogEvent event = events[(int)pos & mask];
+			long seq = event.sequence;
+			if(seq == pos) {
+				if(tail.compareAndSet(pos, pos + 1))
+					return event;
+			} else if(seq < pos) {
+				// Still holds an event from the last time round.
+				dropped.incrementAndGet();
+				return null;
+			}
+			// Otherwise another producer got there first.
+		}
+	}
+
+	private void publish(LogEvent event) {
+		event.sequence = event.sequence + 1;
+	}
+
+	/** Add a message. Does not block.
+	 * @param o The object which logged the message, or null. Only its hash code is kept.
+	 * @return False if the queue was full and the message was dropped. */
+	public boolean offer(Object o, Class<?> source, String message, Throwable e, LogLevel priority) {
+		LogEvent event = claim();
+		if(event == null) return false;
+		event.time = System.currentTimeMillis();
+		event.threadName = Thread.currentThread().getName();
+		event.source = source;
+		event.hasObject = o != null;
+		event.hashCode = o == null ? 0 : o.hashCode();
+		event.message = message;
+		event.throwable = e;
+		event.priority = priority;
+		publish(event);
+		return true;
+	}
+
+	/** Add a line which has already been formatted. Does not block.
+	 * @return False if the queue was full and the line was dropped. */
+	public boolean offer(byte[] formatted) {
+		LogEvent event = claim();
+		if(event == null) return false;
+		event.formatted = formatted;
+		publish(event);
+		return true;
+	}
+
+	/** Get the oldest event, without removing it. Consumer only.
+	 * @return The event, or null if there are none. The caller must call release() when it
+	 * has finished with it. */
+	public LogEvent peek() {
+		long pos = head;
+		LogEvent event = events[(int)pos & mask];
+		if(event.sequence != pos + 1) return null;
+		return event;
+	}
+
+	/** Remove the event returned by peek(), so that the slot can be reused. Consumer only. */
+	public void release(LogEvent event) {
+		long pos = head;
+		event.clear();
+		// The slot is next free for the producer who claims the position one lap later.
+		event.sequence = pos + events.length;
+		head = pos + 1;
+	}
+
+	/** Count an event which was dropped for some other reason, e.g. because the queued
+	 * messages take up too much memory. */
+	public void drop() {
+		dropped.incrementAndGet();
+	}
+
+	/** The total number of events dropped so far. */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	/** The number of events queued. Only approximate while producers are adding events. */
+	public int size() {
+		return (int) Math.max(0, Math.min(events.length, tail.get() - head));
+	}
+
+	public int capacity() {
+		return events.length;
+	}
+
+}
@@ -1,5 +1,10 @@
 package freenet.support;
 
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
 import org.tanukisoftware.wrapper.WrapperManager;
 
 import com.db4o.ObjectContainer;
@@ -35,6 +40,40 @@ public class RandomGrabArray implements RemoveRandom, HasCooldownCacheItem {
 	protected final boolean persistent;
 	private final int hashCode;
 	private RemoveRandomParent parent;
+	
+	/** Which slots removeRandom() may choose from: weight 1 if the item may be fetchable,
+	 * 0 if it has been excluded until some time. Not stored: rebuilt with every item 
+	 * included when needed. */
+	private transient SumTree eligible;
+	/** For each slot, the time until which it is excluded, or 0. */
+	private transient long[] wakeTimes;
+	/** The slot of each excluded item. */
+	private transient IdentityHashMap<RandomGrabArrayItem, Integer> excludedSlots;
+	/** Excluded items by the time at which to check them again. May contain entries for 
+	 * items which have since been included or moved; these are ignored. */
+	private transient PriorityQueue<Excluded> excludedQueue;
+	
+	/** The longest we exclude an item for before checking it again. Items are excluded 
+	 * until their cooldown time, but cooldowns can be cleared early, e.g. when a request 
+	 * in flight finishes, and we don't always find out about it. */
+	static final long MAX_EXCLUDE_TIME = 60*1000;
+	
+	private static class Excluded implements Comparable<Excluded> {
+		final long wakeTime;
+		final RandomGrabArrayItem item;
+		
+		Excluded(long wakeTime, RandomGrabArrayItem item) {
+			this.wakeTime = wakeTime;
+			this.item = item;
+		}
+
+		@Override
+		public int compareTo(Excluded o) {
+			if(wakeTime < o.wakeTime) return -1;
+			if(wakeTime > o.wakeTime) return 1;
+			return 0;
+		}
+	}
 
 	public RandomGrabArray(boolean persistent, ObjectContainer container, RemoveRandomParent parent) {
 		this.blocks = new Block[] { new Block() };
@@ -80,6 +119,7 @@ public class RandomGrabArray implements RemoveRandom, HasCooldownCacheItem {
 					blocks[0].reqs = newReqs;
 				}
 				blocks[0].reqs[index++] = req;
+				slotAdded(index-1);
 				if(logMINOR) Logger.minor(this, "Added "+req+" before index "+index);
 				if(persistent) {
 					container.store(blocks[0]);
@@ -126,6 +166,7 @@ public class RandomGrabArray implements RemoveRandom, HasCooldownCacheItem {
 			}
 			Block target = blocks[targetBlock];
 			target.reqs[index++ % BLOCK_SIZE] = req;
+			slotAdded(index-1);
 			if(persistent) {
 				for(int i=oldBlockLen;i<blocks.length;i++)
 					container.store(blocks[i]);
@@ -138,9 +179,6 @@ public class RandomGrabArray implements RemoveRandom, HasCooldownCacheItem {
 		}
 	}
 	
-	/** Must be less than BLOCK_SIZE */
-	static final int MAX_EXCLUDED = 10;
-	
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ObjectContainer container, ClientContext context, long now) {
 		if(logMINOR) Logger.minor(this, "removeRandom() on "+this+" index="+index);
@@ -149,338 +187,231 @@ public class RandomGrabArray implements RemoveRandom, HasCooldownCacheItem {
 				if(logMINOR) Logger.minor(this, "All null on "+this);
 				return null;
 			}
-			if(index < MAX_EXCLUDED) {
-				return removeRandomExhaustiveSearch(excluding, container, context, now);
-			}
-			RandomGrabArrayItem ret = removeRandomLimited(excluding, container, context, now);
-			if(ret != null)
-				return new RemoveRandomReturn(ret);
-			if(index == 0) {
-				if(logMINOR) Logger.minor(this, "All null on "+this);
-				return null;
-			}
-			return removeRandomExhaustiveSearch(excluding, container, context, now);
-		}
-	}
-	
-	private RandomGrabArrayItem removeRandomLimited(
-			RandomGrabArrayItemExclusionList excluding,
-			ObjectContainer container, ClientContext context, long now) {
-		int excluded = 0;
-		boolean changedMe = false;
-		int lastActiveBlock = -1;
-		while(true) {
-			int i = context.fastWeakRandom.nextInt(index);
-			int blockNo = i / BLOCK_SIZE;
-			RandomGrabArrayItem ret, oret;
-			if(persistent && blockNo != lastActiveBlock) {
-				if(lastActiveBlock != -1)
-					container.deactivate(blocks[lastActiveBlock], 1);
-				lastActiveBlock = blockNo;
-				container.activate(blocks[blockNo], 1);
-			}
-			ret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-			if(ret == null) {
-				Logger.error(this, "reqs["+i+"] = null");
-				remove(blockNo, i, container);
-				changedMe = true;
-				continue;
-			}
-			if(excluding.excludeSummarily(ret, this, container, persistent, now) > 0) {
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					if(persistent) {
-						if(changedMe)
-							container.store(this);
-						container.deactivate(blocks[blockNo], 1);
-					}
-					return null;
-				}
-				continue;
-			}
-			if(persistent)
-				container.activate(ret, 1);
-			oret = ret;
-			long itemWakeTime = -1;
-			boolean broken = false;
-			broken = persistent && ret.isStorageBroken(container);
-			if(broken) {
-				Logger.error(this, "Storage broken on "+ret);
-				try {
-					ret.removeFrom(container, context);
-				} catch (Throwable t) {
-					// Ignore
-					container.delete(ret);
-				}
-			} else itemWakeTime = ret.getCooldownTime(container, context, now);
-			if(broken || itemWakeTime == -1) {
-				if(logMINOR) Logger.minor(this, "Not returning because cancelled: "+ret);
-				ret = null;
-				// Will be removed in the do{} loop
-				// Tell it that it's been removed first.
-				oret.setParentGrabArray(null, container);
-			}
-			if(itemWakeTime == 0)
-				itemWakeTime = excluding.exclude(ret, container, context, now);
-			if(ret != null && itemWakeTime > 0) {
-				excluded++;
-				if(persistent)
-					container.deactivate(ret, 1);
-				if(excluded > MAX_EXCLUDED) {
-					if(persistent) {
-						if(changedMe)
-							container.store(this);
-						container.deactivate(blocks[blockNo], 1);
-					}
-					return null;
+			if(eligible == null || eligible.total() + excludedSlots.size() != index)
+				// First time, or the database has been rolled back.
+				includeAll();
+			else {
+				includeExpired(now);
+				if(eligible.total() == 0) {
+					// Everything was excluded, yet we are being asked, so our cached wakeup 
+					// time has been cleared: something has probably become fetchable.
+					if(logMINOR) Logger.minor(this, "Checking all items again on "+this);
+					includeAll();
 				}
-				continue;
 			}
-			if(ret != null) {
-				if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+index);
-				if(persistent) {
-					if(changedMe)
-						container.store(this);
-					container.deactivate(blocks[blockNo], 1);
+			boolean changedMe = false;
+			int activeBlock = -1;
+			RandomGrabArrayItem ret = null;
+			while(eligible.total() > 0) {
+				int i = eligible.find(context.fastWeakRandom.nextInt(eligible.total()));
+				int blockNo = i / BLOCK_SIZE;
+				if(persistent && blockNo != activeBlock) {
+					if(activeBlock != -1)
+						container.deactivate(blocks[activeBlock], 1);
+					activeBlock = blockNo;
+					container.activate(blocks[blockNo], 1);
 				}
-				return ret;
-			}
-			// Remove an element.
-			do {
-				changedMe = true;
-				remove(blockNo, i, container);
-				if(persistent && oret != null && ret == null) // if ret != null we will return it
-					container.deactivate(oret, 1);
-				oret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-				// Check for nulls, but don't check for cancelled, since we'd have to activate.
-			} while (index > i && oret == null);
-			int newBlockCount;
-			// Shrink array
-			if(blocks.length == 1 && index < blocks[0].reqs.length / 4 && blocks[0].reqs.length > MIN_SIZE) {
-				changedMe = true;
-				// Shrink array
-				int newSize = Math.max(index * 2, MIN_SIZE);
-				RandomGrabArrayItem[] r = new RandomGrabArrayItem[newSize];
-				System.arraycopy(blocks[0].reqs, 0, r, 0, r.length);
-				blocks[0].reqs = r;
-				if(persistent) {
-					container.store(this);
-					container.store(blocks[0]);
-					container.deactivate(blocks[0], 1);
-				}
-			} else if(blocks.length > 1 &&
-					(newBlockCount = (((index + (BLOCK_SIZE/2)) / BLOCK_SIZE) + 1)) < 
-					blocks.length) {
-				if(logMINOR)
-					Logger.minor(this, "Shrinking blocks on "+this);
-				Block[] newBlocks = new Block[newBlockCount];
-				System.arraycopy(blocks, 0, newBlocks, 0, newBlocks.length);
-				Block[] oldBlocks = blocks;
-				blocks = newBlocks;
-				if(persistent) {
-					container.store(this);
-					for(int x=newBlocks.length;x<oldBlocks.length;x++)
-						container.delete(oldBlocks[x]);
-					container.deactivate(oldBlocks[blockNo], 1);
-				}
-			}
-			if(changedMe && persistent)
-				container.store(this);
-			return ret;
-		}
-	}
-
-	private RemoveRandomReturn removeRandomExhaustiveSearch(
-			RandomGrabArrayItemExclusionList excluding,
-			ObjectContainer container, ClientContext context, long now) {
-		if(logMINOR)
-			Logger.minor(this, "Doing exhaustive search and compaction on "+this);
-		boolean changedMe = false;
-		long wakeupTime = Long.MAX_VALUE;
-		RandomGrabArrayItem ret = null;
-		int random = -1;
-		while(true) {
-			if(persistent) container.activate(blocks[0], 1);
-			RandomGrabArrayItem[] reqsReading = blocks[0].reqs;
-			RandomGrabArrayItem[] reqsWriting = blocks[0].reqs;
-			int blockNumReading = 0;
-			int blockNumWriting = 0;
-			int offset = -1;
-			int writeOffset = -1;
-			int exclude = 0;
-			int valid = 0;
-			int validIndex = -1;
-			int target = 0;
-			int chosenIndex = -1;
-			RandomGrabArrayItem chosenItem = null;
-			RandomGrabArrayItem validItem = null;
-			for(int i=0;i<index;i++) {
-				offset++;
-				// Compact the array.
-				RandomGrabArrayItem item;
-				if(offset == BLOCK_SIZE) {
-					offset = 0;
-					if(persistent && changedMe)
-						container.store(blocks[blockNumReading]);
-					if(persistent && blockNumReading != blockNumWriting)
-						container.deactivate(blocks[blockNumReading], 1);
-					blockNumReading++;
-					if(persistent && blockNumReading != blockNumWriting)
-						container.activate(blocks[blockNumReading], 1);
-					reqsReading = blocks[blockNumReading].reqs;
-				}
-				item = reqsReading[offset];
+				RandomGrabArrayItem item = blocks[blockNo].reqs[i % BLOCK_SIZE];
 				if(item == null) {
-					if(logMINOR) Logger.minor(this, "Found null item at offset "+offset+" i="+i+" block = "+blockNumReading+" on "+this);
+					Logger.error(this, "reqs["+i+"] = null on "+this);
+					remove(blockNo, i, container);
+					changedMe = true;
 					continue;
 				}
-				boolean excludeItem = false;
-				boolean activated = false;
 				long excludeTime = excluding.excludeSummarily(item, this, container, persistent, now);
 				if(excludeTime > 0) {
 					// In cooldown, will be wanted later.
-					excludeItem = true;
-					if(wakeupTime > excludeTime) wakeupTime = excludeTime;
-				} else {
-					if(persistent)
-						container.activate(item, 1);
-					activated = true;
-					boolean broken = persistent && item.isStorageBroken(container);
-					long itemWakeTime = -1;
-					if(broken) {
-						Logger.error(this, "Storage broken on "+item);
-						try {
-							item.removeFrom(container, context);
-						} catch (Throwable t) {
-							// Ignore
-							container.delete(item);
-						}
-					} else itemWakeTime = item.getCooldownTime(container, context, now);
-					if(itemWakeTime == -1 || broken) {
-						if(logMINOR) Logger.minor(this, "Removing "+item+" on "+this);
-						changedMe = true;
-						// We are doing compaction here. We don't need to swap with the end; we write valid ones to the target location.
-						reqsReading[offset] = null;
-						item.setParentGrabArray(null, container);
-						if(persistent)
-							container.deactivate(item, 1);
-						continue;
-					} else if(itemWakeTime > 0) {
-						if(itemWakeTime < wakeupTime) wakeupTime = itemWakeTime;
-						excludeItem = true;
-					}
-					if(!excludeItem) {
-						itemWakeTime = excluding.exclude(item, container, context, now);
-						if(itemWakeTime > 0) {
-							if(itemWakeTime < wakeupTime) wakeupTime = itemWakeTime;
-							excludeItem = true;
-						}
-					}
-				}
-				writeOffset++;
-				if(writeOffset == BLOCK_SIZE) {
-					writeOffset = 0;
-					if(persistent && changedMe)
-						container.store(blocks[blockNumWriting]);
-					if(persistent && blockNumReading != blockNumWriting)
-						container.deactivate(blocks[blockNumWriting], 1);
-					blockNumWriting++;
-					if(persistent && blockNumReading != blockNumWriting)
-						container.activate(blocks[blockNumWriting], 1);
-					reqsWriting = blocks[blockNumWriting].reqs;
+					exclude(i, item, excludeTime, now);
+					continue;
 				}
-				if(i != target) {
-					changedMe = true;
-					reqsReading[offset] = null;
-					reqsWriting[writeOffset] = item;
-				} // else the request can happily stay where it is
-				target++;
-				if(excludeItem) {
-					exclude++;
-				} else {
-					if(valid == random) { // Picked on previous round
-						chosenIndex = target-1;
-						chosenItem = item;
-					}
-					if(validIndex == -1) {
-						// Take the first valid item
-						validIndex = target-1;
-						validItem = item;
+				if(persistent)
+					container.activate(item, 1);
+				boolean broken = persistent && item.isStorageBroken(container);
+				long itemWakeTime = -1;
+				if(broken) {
+					Logger.error(this, "Storage broken on "+item);
+					try {
+						item.removeFrom(container, context);
+					} catch (Throwable t) {
+						// Ignore
+						container.delete(item);
 					}
-					valid++;
+				} else itemWakeTime = item.getCooldownTime(container, context, now);
+				if(broken || itemWakeTime == -1) {
+					if(logMINOR) Logger.minor(this, "Removing "+item+" on "+this);
+					item.setParentGrabArray(null, container);
+					if(persistent)
+						container.deactivate(item, 1);
+					remove(blockNo, i, container);
+					changedMe = true;
+					continue;
 				}
-				if(persistent && activated && item != chosenItem && item != validItem) {
-					if(logMINOR)
-						Logger.minor(this, "Deactivating "+item);
-					container.deactivate(item, 1);
+				if(itemWakeTime == 0)
+					itemWakeTime = excluding.exclude(item, container, context, now);
+				if(itemWakeTime > 0) {
+					if(persistent)
+						container.deactivate(item, 1);
+					exclude(i, item, itemWakeTime, now);
+					continue;
 				}
+				ret = item;
+				break;
 			}
-			if(index != target) {
-				changedMe = true;
-				index = target;
-			}
-			// We reach this point if 1) the random number we picked last round is invalid because an item became cancelled or excluded
-			// or 2) we are on the first round anyway.
-			if(chosenItem != null) {
-				if(persistent && validItem != null && validItem != chosenItem)
-					container.deactivate(validItem, 1);
-				ret = chosenItem;
-				if(logMINOR) Logger.minor(this, "Chosen random item "+ret+" out of "+valid+" total "+index);
-				if(persistent && changedMe) {
-					container.store(blocks[blockNumReading]);
-					if(blockNumReading != blockNumWriting)
-						container.store(blocks[blockNumWriting]);
+			if(persistent && activeBlock != -1)
+				container.deactivate(blocks[activeBlock], 1);
+			if(changedMe) {
+				shrink(container);
+				if(persistent)
 					container.store(this);
-					container.deactivate(blocks[blockNumReading], 1);
-					if(blockNumReading != blockNumWriting)
-						container.deactivate(blocks[blockNumWriting], 1);
-				}
+			}
+			if(ret != null) {
+				if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+index);
 				return new RemoveRandomReturn(ret);
 			}
-			if(valid == 0 && exclude == 0) {
-				if(logMINOR) Logger.minor(this, "No valid or excluded items total "+index);
+			if(index == 0) {
+				if(logMINOR) Logger.minor(this, "No valid or excluded items on "+this);
 				return null; // Caller should remove the whole RGA
-			} else if(valid == 0) {
-				if(persistent && changedMe) {
-					container.store(blocks[blockNumReading]);
-					if(blockNumReading != blockNumWriting)
-						container.store(blocks[blockNumWriting]);
-					container.store(this);
-					container.deactivate(blocks[blockNumReading], 1);
-					if(blockNumReading != blockNumWriting)
-						container.deactivate(blocks[blockNumWriting], 1);
-				}
-				if(logMINOR) Logger.minor(this, "No valid items, "+exclude+" excluded items total "+index);
-				context.cooldownTracker.setCachedWakeup(wakeupTime, this, parent, persistent, container, context);
-				return new RemoveRandomReturn(wakeupTime);
-			} else if(valid == 1) {
-				ret = validItem;
-				if(logMINOR) Logger.minor(this, "No valid or excluded items apart from "+ret+" total "+index);
-				if(persistent && changedMe) {
-					container.store(blocks[blockNumReading]);
-					if(blockNumReading != blockNumWriting)
-						container.store(blocks[blockNumWriting]);
-					container.store(this);
-					container.deactivate(blocks[blockNumReading], 1);
-					if(blockNumReading != blockNumWriting)
-						container.deactivate(blocks[blockNumWriting], 1);
-				}
-				return new RemoveRandomReturn(ret);
-			} else {
-				random = context.fastWeakRandom.nextInt(valid);
-				if(logMINOR) Logger.minor(this, "Looping to choose valid item "+random+" of "+valid+" (excluded "+exclude+")");
-				// Loop
-				if(persistent && blockNumReading != 0) {
-					if(changedMe) container.store(blocks[blockNumReading]);
-					container.deactivate(blocks[blockNumReading], 1);
-				}
-				if(persistent && blockNumWriting != 0 && blockNumWriting != blockNumReading) {
-					if(changedMe) container.store(blocks[blockNumWriting]);
-					container.deactivate(blocks[blockNumWriting], 1);
-				}
 			}
+			long wakeupTime = nextWakeTime();
+			if(logMINOR) Logger.minor(this, "No valid items, "+index+" excluded items on "+this);
+			context.cooldownTracker.setCachedWakeup(wakeupTime, this, parent, persistent, container, context);
+			return new RemoveRandomReturn(wakeupTime);
 		}
 	}
+	
+	/** Shrink the array after removing items, if it is much bigger than it needs to be. */
+	private void shrink(ObjectContainer container) {
+		int newBlockCount;
+		if(blocks.length == 1) {
+			if(persistent) container.activate(blocks[0], 1);
+			if(index < blocks[0].reqs.length / 4 && blocks[0].reqs.length > MIN_SIZE) {
+				int newSize = Math.max(index * 2, MIN_SIZE);
+				RandomGrabArrayItem[] r = new RandomGrabArrayItem[newSize];
+				System.arraycopy(blocks[0].reqs, 0, r, 0, r.length);
+				blocks[0].reqs = r;
+				if(persistent)
+					container.store(blocks[0]);
+			}
+			if(persistent) container.deactivate(blocks[0], 1);
+		} else if((newBlockCount = (((index + (BLOCK_SIZE/2)) / BLOCK_SIZE) + 1)) < 
+				blocks.length) {
+			if(logMINOR)
+				Logger.minor(this, "Shrinking blocks on "+this);
+			Block[] newBlocks = new Block[newBlockCount];
+			System.arraycopy(blocks, 0, newBlocks, 0, newBlocks.length);
+			Block[] oldBlocks = blocks;
+			blocks = newBlocks;
+			if(persistent) {
+				for(int x=newBlocks.length;x<oldBlocks.length;x++)
+					container.delete(oldBlocks[x]);
+			}
+		}
+	}
+	
+	/** Include every item again. Called when we don't know which items are excluded. */
+	private void includeAll() {
+		if(eligible == null)
+			eligible = new SumTree(index);
+		eligible.fill(1, index);
+		if(wakeTimes == null || wakeTimes.length < eligible.capacity())
+			wakeTimes = new long[eligible.capacity()];
+		else
+			Arrays.fill(wakeTimes, 0);
+		excludedSlots = new IdentityHashMap<RandomGrabArrayItem, Integer>();
+		excludedQueue = new PriorityQueue<Excluded>();
+	}
+	
+	/** Forget which items are excluded. */
+	private void clearEligible() {
+		eligible = null;
+		wakeTimes = null;
+		excludedSlots = null;
+		excludedQueue = null;
+	}
+	
+	/** Don't choose an item until its wake time, or MAX_EXCLUDE_TIME, whichever is sooner. */
+	private void exclude(int slot, RandomGrabArrayItem item, long wakeTime, long now) {
+		wakeTime = Math.min(wakeTime, now + MAX_EXCLUDE_TIME);
+		eligible.set(slot, 0);
+		wakeTimes[slot] = wakeTime;
+		excludedSlots.put(item, slot);
+		excludedQueue.add(new Excluded(wakeTime, item));
+		if(excludedQueue.size() > excludedSlots.size() * 2 + MIN_SIZE) {
+			// Drop the entries for items which have been included since.
+			excludedQueue.clear();
+			for(Map.Entry<RandomGrabArrayItem, Integer> e : excludedSlots.entrySet())
+				excludedQueue.add(new Excluded(wakeTimes[e.getValue()], e.getKey()));
+		}
+	}
+	
+	/** Include an item again.
+	 * @param wakeTime If not -1, only include it if it was excluded until this time. */
+	private void include(RandomGrabArrayItem item, long wakeTime) {
+		Integer slot = excludedSlots.get(item);
+		if(slot == null) return;
+		if(wakeTime != -1 && wakeTimes[slot] != wakeTime) return;
+		excludedSlots.remove(item);
+		wakeTimes[slot] = 0;
+		eligible.set(slot, 1);
+	}
+	
+	private void includeExpired(long now) {
+		while(true) {
+			Excluded e = excludedQueue.peek();
+			if(e == null || e.wakeTime > now) return;
+			excludedQueue.poll();
+			include(e.item, e.wakeTime);
+		}
+	}
+	
+	/** @return The earliest time at which an excluded item will be checked again. */
+	private long nextWakeTime() {
+		while(true) {
+			Excluded e = excludedQueue.peek();
+			if(e == null) return Long.MAX_VALUE;
+			Integer slot = excludedSlots.get(e.item);
+			if(slot != null && wakeTimes[slot] == e.wakeTime)
+				return e.wakeTime;
+			excludedQueue.poll();
+		}
+	}
+	
+	/** An item's cooldown has been cleared, so it may be fetchable before the time it was 
+	 * excluded until. Called by the CooldownTracker. */
+	public synchronized void clearExcluded(RandomGrabArrayItem item) {
+		if(excludedSlots == null) return;
+		include(item, -1);
+	}
+	
+	/** A slot has been added at the end of the array. */
+	private void slotAdded(int slot) {
+		if(eligible == null) return;
+		eligible.ensureCapacity(slot + 1);
+		if(wakeTimes.length < eligible.capacity()) {
+			long[] newWakeTimes = new long[eligible.capacity()];
+			System.arraycopy(wakeTimes, 0, newWakeTimes, 0, wakeTimes.length);
+			wakeTimes = newWakeTimes;
+		}
+		eligible.set(slot, 1);
+		wakeTimes[slot] = 0;
+	}
+	
+	/** An item has been removed, and the last item (at slot index) moved into its slot.
+	 * @param removed The item removed, if known.
+	 * @param moved The item now in the slot, or null if it was the last. */
+	private void slotRemoved(int slot, RandomGrabArrayItem removed, RandomGrabArrayItem moved) {
+		if(eligible == null) return;
+		if(removed != null)
+			excludedSlots.remove(removed);
+		if(slot != index) {
+			eligible.set(slot, eligible.get(index));
+			wakeTimes[slot] = wakeTimes[index];
+			if(moved != null && wakeTimes[slot] != 0)
+				excludedSlots.put(moved, slot);
+		}
+		eligible.set(index, 0);
+		wakeTimes[index] = 0;
+	}
 
 	/**
 	 * blockNo is assumed to be already active. The last block is assumed not 
@@ -492,16 +423,20 @@ public class RandomGrabArray implements RemoveRandom, HasCooldownCacheItem {
 		if(blocks.length == 1 || blockNo == endBlock) {
 			RandomGrabArrayItem[] items = blocks[blockNo].reqs;
 			int idx = index % BLOCK_SIZE;
+			RandomGrabArrayItem removed = items[i % BLOCK_SIZE];
 			items[i % BLOCK_SIZE] = items[idx];
 			items[idx] = null;
+			slotRemoved(i, removed, i == index ? null : items[i % BLOCK_SIZE]);
 			if(persistent)
 				container.store(blocks[blockNo]);
 		} else {
 			RandomGrabArrayItem[] toItems = blocks[blockNo].reqs;
 			if(persistent) container.activate(blocks[endBlock], 1);
 			RandomGrabArrayItem[] endItems = blocks[endBlock].reqs;
+			RandomGrabArrayItem removed = toItems[i % BLOCK_SIZE];
 			toItems[i % BLOCK_SIZE] = endItems[index % BLOCK_SIZE];
 			endItems[index % BLOCK_SIZE] = null;
+			slotRemoved(i, removed, toItems[i % BLOCK_SIZE]);
 			if(persistent) {
 				container.store(blocks[blockNo]);
 				container.store(blocks[endBlock]);
@@ -534,6 +469,7 @@ public class RandomGrabArray implements RemoveRandom, HasCooldownCacheItem {
 					if(block.reqs[i] == it) {
 						block.reqs[i] = block.reqs[--index];
 						block.reqs[index] = null;
+						slotRemoved(i, it, i == index ? null : block.reqs[i]);
 						matched = true;
 						if(persistent)
 							container.store(block);
@@ -570,6 +506,8 @@ public class RandomGrabArray implements RemoveRandom, HasCooldownCacheItem {
 									container.deactivate(fromBlock, 1);
 								}
 							}
+							int slot = i * BLOCK_SIZE + j;
+							slotRemoved(slot, it, slot == index ? null : block.reqs[j]);
 							if(persistent)
 								container.store(block);
 							matched = true;
@@ -703,6 +641,9 @@ public class RandomGrabArray implements RemoveRandom, HasCooldownCacheItem {
 	public void moveElementsTo(RandomGrabArray existingGrabber,
 			ObjectContainer container, boolean canCommit) {
 		WrapperManager.signalStarting(5*60*1000);
+		synchronized(this) {
+			clearEligible();
+		}
 		for(int i=0;i<blocks.length;i++) {
 			Block block = blocks[i];
 			if(persistent) container.activate(block, 1);
@@ -0,0 +1,105 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * A list of non-negative weights, which can choose an index at random with probability
+ * proportional to its weight. Setting a weight and choosing an index both take O(log n) time,
+ * so we can choose among only the eligible items of a large array without retrying. This is a
+ * Fenwick tree (binary indexed tree) with a binary search down it. The total weight must fit
+ * in an int. Not thread-safe.
+ */
+public final class SumTree {
+
+	/** The weight of each index. */
+	private int[] weights;
+	/** Fenwick tree, 1-based: tree[i] is the sum of weights[i - (i & -i) .. i-1]. The length
+	 * is a power of 2 plus one, so that find() can walk down it. */
+	private int[] tree;
+	private int total;
+
+	public SumTree(int capacity) {
+		int size = 1;
+		while(size < capacity) size <<= 1;
+		weights = new int[size];
+		tree = new int[size + 1];
+	}
+
+	public int capacity() {
+		return weights.length;
+	}
+
+	/** Make room for at least this many indexes. The new ones have weight 0. */
+	public void ensureCapacity(int capacity) {
+		if(capacity <= weights.length) return;
+		int size = weights.length;
+		while(size < capacity) size <<= 1;
+		int[] newWeights = new int[size];
+		System.arraycopy(weights, 0, newWeights, 0, weights.length);
+		weights = newWeights;
+		rebuild();
+	}
+
+	/** Rebuild the tree from the weights in linear time. */
+	private void rebuild() {
+		tree = new int[weights.length + 1];
+		for(int i=1;i<tree.length;i++) {
+			tree[i] += weights[i-1];
+			int parent = i + (i & -i);
+			if(parent < tree.length)
+				tree[parent] += tree[i];
+		}
+	}
+
+	public int get(int index) {
+		return weights[index];
+	}
+
+	public void set(int index, int weight) {
+		if(weight < 0) throw new IllegalArgumentException("Negative weight "+weight);
+		int delta = weight - weights[index];
+		if(delta == 0) return;
+		weights[index] = weight;
+		total += delta;
+		for(int i = index + 1; i < tree.length; i += i & -i)
+			tree[i] += delta;
+	}
+
+	/** Set every weight to the same value. */
+	public void fill(int weight, int count) {
+		if(weight < 0) throw new IllegalArgumentException("Negative weight "+weight);
+		ensureCapacity(count);
+		for(int i=0;i<weights.length;i++)
+			weights[i] = i < count ? weight : 0;
+		total = weight * count;
+		rebuild();
+	}
+
+	/** The sum of all the weights. */
+	public int total() {
+		return total;
+	}
+
+	/**
+	 * Find the index at a given point in the weights, so that passing a uniform random number
+	 * from 0 to total() - 1 chooses each index with probability proportional to its weight.
+	 * An index with weight 0 is never returned.
+	 * @param point At least 0 and less than total().
+	 */
+	public int find(int point) {
+		if(point < 0 || point >= total)
+			throw new IllegalArgumentException("Point "+point+" not in 0.."+(total - 1));
+		// Walk down the tree: pos is the largest index whose prefix sum is <= point.
+		int pos = 0;
+		for(int step = weights.length; step > 0; step >>= 1) {
+			int next = pos + step;
+			if(next < tree.length && tree[next] <= point) {
+				pos = next;
+				point -= tree[next];
+			}
+		}
+		return pos;
+	}
+
+}
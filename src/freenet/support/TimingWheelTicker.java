@@ -0,0 +1,424 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import freenet.node.FastRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Ticker using a hierarchical timing wheel (Varghese and Lauck), as in the classic Linux kernel
+ * timer code, instead of a sorted map. Queueing and removing a job is O(1), and expired jobs are
+ * collected a whole slot at a time, so it copes with very large numbers of pending timeouts.
+ *
+ * The wheel has 1ms ticks, measured from System.nanoTime() so that the clock being changed
+ * doesn't hold up or bring forward every job. The first level has 256
+ * slots of one tick each; each further level has 64 slots, each covering a whole rotation of the
+ * level below. When the first level wraps around, the next slot of the level above is cascaded
+ * down. Five levels cover 2^32 ms (~49 days); jobs further in the future are parked in the last
+ * slot that will cascade before they are due, and are simply re-filed when they come down.
+ *
+ * Jobs are otherwise treated exactly as by PrioritizedTicker: FastRunnable's run on the ticker
+ * thread, everything else is handed to the executor.
+ */
+public class TimingWheelTicker implements Ticker, Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final int MAX_SLEEP_TIME = 200;
+
+	private static final int ROOT_BITS = 8;
+	private static final int ROOT_SIZE = 1 << ROOT_BITS;
+	private static final int ROOT_MASK = ROOT_SIZE - 1;
+	private static final int LEVEL_BITS = 6;
+	private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+	private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+	/** Number of levels above the root level */
+	private static final int LEVELS = 4;
+	/** Largest offset which can be represented exactly */
+	private static final long MAX_OFFSET = (1L << (ROOT_BITS + LEVELS * LEVEL_BITS)) - 1;
+
+	private final static class Job {
+		final String name;
+		final Runnable job;
+		/** Time at which to run the job */
+		final long when;
+		/** Position on the wheel. level is -1 if not queued. */
+		int level = -1;
+		int slot;
+		Job prev;
+		Job next;
+		/** Other queued jobs for the same Runnable, for removeQueuedJob() and noDupes */
+		Job prevSame;
+		Job nextSame;
+
+		Job(String name, Runnable job, long when) {
+			this.name = name;
+			this.job = job;
+			this.when = when;
+		}
+
+		@Override
+		public String toString() {
+			return name + ":" + job;
+		}
+	}
+
+	/** The root level, one slot per tick */
+	private final Job[] root = new Job[ROOT_SIZE];
+	/** Bitmap of occupied root slots, so we can sleep until the next one */
+	private final long[] rootOccupied = new long[ROOT_SIZE / 64];
+	/** The higher levels, levels[0] is the one immediately above the root */
+	private final Job[][] levels = new Job[LEVELS][LEVEL_SIZE];
+	/** The most recently queued job for each Runnable. Identity, as in PrioritizedTicker. */
+	private final IdentityHashMap<Runnable, Job> jobsByRunnable = new IdentityHashMap<Runnable, Job>();
+	/** The next tick to be processed. Protected by (this). */
+	private long currentTick;
+	private int size;
+	/** When the ticker thread will next wake up, so we only wake it if we need to. */
+	private long wakeTime;
+
+	private final long startNanos;
+
+	final NativeThread myThread;
+	final Executor executor;
+
+	public TimingWheelTicker(Executor executor, int portNumber) {
+		this.executor = executor;
+		startNanos = System.nanoTime();
+		currentTick = now();
+		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
+		myThread.setDaemon(true);
+	}
+
+	public void start() {
+		Logger.normal(this, "Starting Ticker");
+		System.out.println("Starting Ticker");
+		myThread.start();
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In Ticker.run()");
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				realRun();
+			} catch(OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				System.err.println("Will retry above failed operation...");
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in Ticker: " + t, t);
+				System.err.println("Caught in Ticker: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/** @return The current tick. */
+	private long now() {
+		return (System.nanoTime() - startNanos) / (1000 * 1000);
+	}
+
+	private void realRun() {
+		long now = now();
+
+		List<Job> jobsToRun = expire(now);
+
+		if(jobsToRun != null)
+			for(Job r : jobsToRun) {
+				if(logMINOR)
+					Logger.minor(this, "Running " + r);
+				if(r.job instanceof FastRunnable)
+					// Run in-line
+
+					try {
+						r.job.run();
+					} catch(Throwable t) {
+						Logger.error(this, "Caught " + t + " running " + r, t);
+					}
+				else
+					try {
+						executor.execute(r.job, r.name, true);
+					} catch(OutOfMemoryError e) {
+						OOMHandler.handleOOM(e);
+						System.err.println("Will retry above failed operation...");
+						queueTimedJob(r.job, r.name, 200, true, false);
+					} catch(Throwable t) {
+						Logger.error(this, "Caught in Ticker: " + t, t);
+						System.err.println("Caught in Ticker: " + t);
+						t.printStackTrace();
+					}
+			}
+
+		synchronized(this) {
+			now = now();
+			long sleepTime = nextTick() - now;
+			if(sleepTime > MAX_SLEEP_TIME) sleepTime = MAX_SLEEP_TIME;
+			if(sleepTime <= 0) return;
+			wakeTime = now + sleepTime;
+			try {
+				if(logMINOR)
+					Logger.minor(this, "Sleeping for " + sleepTime);
+				wait(sleepTime);
+			} catch(InterruptedException e) {
+				// Ignore, just wake up.
+			}
+			wakeTime = 0;
+		}
+	}
+
+	/**
+	 * Advance the wheel to now, and remove all the jobs which are due.
+	 * @return The jobs to run, or null if there are none.
+	 */
+	synchronized List<Job> expire(long now) {
+		List<Job> jobsToRun = null;
+		while(currentTick <= now) {
+			int index = (int) (currentTick & ROOT_MASK);
+			if(index == 0) {
+				// Cascade down each level in turn, stopping at the first one which hasn't wrapped.
+				for(int level = 0; level < LEVELS; level++) {
+					int slot = levelIndex(currentTick, level);
+					cascade(level, slot);
+					if(slot != 0) break;
+				}
+			}
+			Job j = root[index];
+			if(j != null) {
+				root[index] = null;
+				rootOccupied[index >> 6] &= ~(1L << (index & 63));
+				while(j != null) {
+					Job next = j.next;
+					j.prev = j.next = null;
+					j.level = -1;
+					if(j.when > now) {
+						// Shouldn't happen, but don't run it early.
+						file(j);
+					} else {
+						unlinkSame(j);
+						size--;
+						if(jobsToRun == null) jobsToRun = new ArrayList<Job>();
+						jobsToRun.add(j);
+					}
+					j = next;
+				}
+			}
+			currentTick++;
+			if(size == 0) {
+				// Nothing to cascade either.
+				currentTick = Math.max(currentTick, now + 1);
+			} else if(index != ROOT_MASK && !rootOccupiedFrom(index + 1)) {
+				// Nothing else on the root level this rotation: skip to the end of it, or to now.
+				currentTick = Math.min((currentTick | ROOT_MASK) + 1, now + 1);
+			}
+		}
+		return jobsToRun;
+	}
+
+	/** @return The time at which the next job might be due. */
+	private long nextTick() {
+		int index = (int) (currentTick & ROOT_MASK);
+		int next = nextRootOccupied(index);
+		if(next >= 0)
+			return currentTick + (next - index);
+		// Must wake up at the end of this rotation, to cascade. That may be now.
+		return (currentTick + ROOT_MASK) & ~ROOT_MASK;
+	}
+
+	private static int levelIndex(long tick, int level) {
+		return (int) ((tick >>> (ROOT_BITS + level * LEVEL_BITS)) & LEVEL_MASK);
+	}
+
+	private void cascade(int level, int slot) {
+		Job j = levels[level][slot];
+		levels[level][slot] = null;
+		while(j != null) {
+			Job next = j.next;
+			j.prev = j.next = null;
+			j.level = -1;
+			file(j);
+			j = next;
+		}
+	}
+
+	/** Put a job on the right slot for its time, relative to the current tick. */
+	private void file(Job job) {
+		long when = job.when;
+		long offset = when - currentTick;
+		if(offset < 0) {
+			// Overdue, run on the next tick.
+			when = currentTick;
+			offset = 0;
+		} else if(offset > MAX_OFFSET) {
+			// Too far ahead. Park it as far ahead as we can, and re-file it when it comes down.
+			offset = MAX_OFFSET;
+			when = currentTick + offset;
+		}
+		if(offset < ROOT_SIZE) {
+			int index = (int) (when & ROOT_MASK);
+			link(job, -1, index, root);
+			rootOccupied[index >> 6] |= 1L << (index & 63);
+			return;
+		}
+		for(int level = 0; level < LEVELS; level++) {
+			if(offset < 1L << (ROOT_BITS + (level + 1) * LEVEL_BITS)) {
+				link(job, level, levelIndex(when, level), levels[level]);
+				return;
+			}
+		}
+		// Unreachable given MAX_OFFSET.
+		throw new IllegalStateException("Offset "+offset+" too large");
+	}
+
+	private static void link(Job job, int level, int slot, Job[] slots) {
+		// Root is 0, the higher levels are 1 to LEVELS.
+		job.level = level + 1;
+		job.slot = slot;
+		Job head = slots[slot];
+		job.next = head;
+		if(head != null) head.prev = job;
+		slots[slot] = job;
+	}
+
+	/** Remove a job from the wheel. */
+	private void unlink(Job job) {
+		if(job.level < 0) return;
+		Job[] slots = job.level == 0 ? root : levels[job.level - 1];
+		if(job.prev != null)
+			job.prev.next = job.next;
+		else {
+			slots[job.slot] = job.next;
+			if(job.level == 0 && job.next == null)
+				rootOccupied[job.slot >> 6] &= ~(1L << (job.slot & 63));
+		}
+		if(job.next != null)
+			job.next.prev = job.prev;
+		job.prev = job.next = null;
+		job.level = -1;
+		unlinkSame(job);
+		size--;
+	}
+
+	private void unlinkSame(Job job) {
+		if(job.nextSame != null)
+			job.nextSame.prevSame = job.prevSame;
+		else {
+			// Most recent for this Runnable.
+			if(job.prevSame != null)
+				jobsByRunnable.put(job.job, job.prevSame);
+			else
+				jobsByRunnable.remove(job.job);
+		}
+		if(job.prevSame != null)
+			job.prevSame.nextSame = job.nextSame;
+		job.prevSame = job.nextSame = null;
+	}
+
+	private boolean rootOccupiedFrom(int index) {
+		return nextRootOccupied(index) >= 0;
+	}
+
+	/** @return The first occupied root slot at or after index, not wrapping around, or -1. */
+	private int nextRootOccupied(int index) {
+		int word = index >> 6;
+		long bits = rootOccupied[word] & (-1L << (index & 63));
+		while(true) {
+			if(bits != 0)
+				return (word << 6) + Long.numberOfTrailingZeros(bits);
+			if(++word == rootOccupied.length) return -1;
+			bits = rootOccupied[word];
+		}
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	/**
+	 * Queue a job at a specific time. Parameters are the same as for PrioritizedTicker.
+	 * @param runner The job to run. FastRunnable's get run directly on the ticker thread.
+	 * @param name The name of the job, the thread running it will temporarily take this name,
+	 * assuming it is run on a separate thread.
+	 * @param offset The time at which to run the job in milliseconds from now.
+	 * @param runOnTickerAnyway If false, run jobs with offset <=0 directly through the executor;
+	 * if true, run them from the ticker thread, so that the executor can create a thread at a
+	 * higher priority than the caller's.
+	 * @param noDupes Don't queue this job if it is already queued to run at the same time or
+	 * earlier. If it is queued to run later, it will only run at the new time. Cheap here.
+	 */
+	@Override
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		// Run directly *if* that won't cause any priority problems.
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return;
+		}
+		if(offset < 0) offset = 0;
+		long when = now() + offset;
+		Job job = new Job(name, runner, when);
+		synchronized(this) {
+			Job last = jobsByRunnable.get(runner);
+			if(noDupes && last != null) {
+				for(Job j = last; j != null; j = j.prevSame) {
+					if(j.when <= when) {
+						Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+						return;
+					}
+				}
+				// Delete the existing jobs because the new job will run first.
+				while(last != null) {
+					Job prev = last.prevSame;
+					unlink(last);
+					last = prev;
+				}
+			}
+			file(job);
+			size++;
+			if(last != null) {
+				last.nextSame = job;
+				job.prevSame = last;
+			}
+			jobsByRunnable.put(runner, job);
+			if(wakeTime != 0 && when < wakeTime)
+				notifyAll();
+		}
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public synchronized int queuedJobs() {
+		return size;
+	}
+
+	/** Remove every queued instance of the job. */
+	@Override
+	public synchronized void removeQueuedJob(Runnable runnable) {
+		Job job = jobsByRunnable.get(runnable);
+		while(job != null) {
+			Job prev = job.prevSame;
+			unlink(job);
+			job = prev;
+		}
+	}
+
+}
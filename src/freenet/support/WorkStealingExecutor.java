@@ -0,0 +1,360 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Executor with the same priority semantics as PooledExecutor: each job runs on a NativeThread
+ * of its own priority. Jobs are queued on lock-free queues rather than handed to a particular
+ * thread under the executor's lock. Each priority has a shared queue, and each worker has a
+ * local queue which jobs submitted by that worker go on, which idle workers of the same
+ * priority steal from.
+ *
+ * Jobs may block (e.g. waiting for a message), so if no worker is idle we start a new one, just
+ * like PooledExecutor, up to a per-priority limit; beyond that jobs wait in the queue. Idle
+ * workers exit after TIMEOUT. The most recently idle worker is reused first so that surplus
+ * workers do time out.
+ *
+ * Also keeps track of how long jobs wait in the queue, per priority.
+ */
+public class WorkStealingExecutor implements Executor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Maximum time a worker will wait for a job before exiting */
+	static final int TIMEOUT = 1 * 60 * 1000;
+	/** Default maximum number of workers per priority. Jobs can block, so this must be well
+	 * above the node's thread limit, it is only there to stop runaway thread creation. */
+	public static final int DEFAULT_MAX_THREADS = 1000;
+
+	private final Pool[] pools = new Pool[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	private final int maxThreadsPerPriority;
+	private final AtomicInteger waitingThreadsCount = new AtomicInteger();
+	// Ticker thread that runs at maximum priority.
+	private volatile Ticker ticker;
+
+	public WorkStealingExecutor() {
+		this(DEFAULT_MAX_THREADS);
+	}
+
+	public WorkStealingExecutor(int maxThreadsPerPriority) {
+		this.maxThreadsPerPriority = maxThreadsPerPriority;
+		for(int i = 0; i < pools.length; i++)
+			pools[i] = new Pool(i + 1);
+	}
+
+	public void setTicker(Ticker ticker) {
+		this.ticker = ticker;
+	}
+
+	private static class Job {
+		final Runnable runnable;
+		final String name;
+		final long queuedTime;
+
+		Job(Runnable runnable, String name) {
+			this.runnable = runnable;
+			this.name = name;
+			this.queuedTime = System.nanoTime();
+		}
+	}
+
+	/** The workers and queues for one priority. */
+	private class Pool {
+		final int prio;
+		final ConcurrentLinkedQueue<Job> queue = new ConcurrentLinkedQueue<Job>();
+		final CopyOnWriteArrayList<Worker> workers = new CopyOnWriteArrayList<Worker>();
+		/** Idle workers, most recently idle last. Protected by (this). */
+		final ArrayList<Worker> idle = new ArrayList<Worker>();
+		volatile int idleCount;
+		final AtomicInteger threads = new AtomicInteger();
+		final AtomicLong threadCounter = new AtomicLong();
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicLong jobsRun = new AtomicLong();
+		final AtomicLong totalWaitNanos = new AtomicLong();
+		final AtomicLong maxWaitNanos = new AtomicLong();
+
+		Pool(int prio) {
+			this.prio = prio;
+		}
+
+		/** Get a job for a worker: its own queue first, then the shared queue, then steal. */
+		Job take(Worker w) {
+			Job job = w.local.poll();
+			if(job == null)
+				job = queue.poll();
+			if(job == null) {
+				for(Worker victim : workers) {
+					if(victim == w) continue;
+					job = victim.local.poll();
+					if(job != null) break;
+				}
+			}
+			if(job != null) {
+				queued.decrementAndGet();
+				long wait = System.nanoTime() - job.queuedTime;
+				jobsRun.incrementAndGet();
+				totalWaitNanos.addAndGet(wait);
+				long max;
+				while(wait > (max = maxWaitNanos.get()))
+					if(maxWaitNanos.compareAndSet(max, wait)) break;
+			}
+			return job;
+		}
+
+		Worker popIdle() {
+			if(idleCount == 0) return null;
+			synchronized(this) {
+				if(idle.isEmpty()) return null;
+				Worker w = idle.remove(idle.size() - 1);
+				idleCount--;
+				waitingThreadsCount.decrementAndGet();
+				w.woken = true;
+				return w;
+			}
+		}
+
+		synchronized void pushIdle(Worker w) {
+			w.woken = false;
+			idle.add(w);
+			idleCount++;
+			waitingThreadsCount.incrementAndGet();
+		}
+
+		/** @return False if the worker has already been popped by someone else. */
+		synchronized boolean removeIdle(Worker w) {
+			if(!idle.remove(w)) return false;
+			idleCount--;
+			waitingThreadsCount.decrementAndGet();
+			return true;
+		}
+
+		/** Start a new worker, if we are under the limit. */
+		boolean spawn(boolean dontCheckRenice) {
+			while(true) {
+				int count = threads.get();
+				if(count >= maxThreadsPerPriority) return false;
+				if(threads.compareAndSet(count, count + 1)) break;
+			}
+			long threadNo = threadCounter.getAndIncrement();
+			// Will be coalesced by thread count listings if we use "@" or "for"
+			Worker w = new Worker(this, "Pooled thread awaiting work @" + threadNo + " for prio " + prio, threadNo, dontCheckRenice);
+			w.setDaemon(true);
+			workers.add(w);
+			w.start();
+			return true;
+		}
+	}
+
+	private class Worker extends NativeThread {
+		final Pool pool;
+		final String defaultName;
+		final long threadNo;
+		final ConcurrentLinkedQueue<Job> local = new ConcurrentLinkedQueue<Job>();
+		/** Set when we are taken off the idle list to run a job. */
+		volatile boolean woken;
+
+		Worker(Pool pool, String defaultName, long threadNo, boolean dontCheckRenice) {
+			super(defaultName, pool.prio, dontCheckRenice);
+			this.pool = pool;
+			this.defaultName = defaultName;
+			this.threadNo = threadNo;
+		}
+
+		@Override
+		public void realRun() {
+			long ranJobs = 0;
+			try {
+				while(true) {
+					Job job = pool.take(this);
+					if(job == null) {
+						job = waitForJob();
+						if(job == null) {
+							if(logMINOR)
+								Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+							return;
+						}
+					}
+					try {
+						setName(job.name + "(" + threadNo + ")");
+						job.runnable.run();
+					} catch (OutOfMemoryError e) {
+						OOMHandler.handleOOM(e);
+					} catch(Throwable t) {
+						Logger.error(this, "Caught " + t + " running job " + job, t);
+					}
+					ranJobs++;
+				}
+			} finally {
+				pool.workers.remove(this);
+				pool.threads.decrementAndGet();
+				// Anything left on our queue must not be stranded.
+				Job job;
+				while((job = local.poll()) != null) {
+					pool.queue.offer(job);
+					Worker w = pool.popIdle();
+					if(w != null) LockSupport.unpark(w);
+				}
+			}
+		}
+
+		/** Go idle until we are given a job or time out.
+		 * @return A job, or null if we should exit. */
+		private Job waitForJob() {
+			setName(defaultName);
+			pool.pushIdle(this);
+			long deadline = System.nanoTime() + TIMEOUT * 1000L * 1000L;
+			while(true) {
+				// Recheck after going on the idle list, in case a job was queued just before.
+				Job job = pool.take(this);
+				if(job != null) {
+					pool.removeIdle(this);
+					return job;
+				}
+				if(woken) {
+					// Popped for a job, but somebody else may have taken it already.
+					pool.pushIdle(this);
+					continue;
+				}
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					if(pool.removeIdle(this)) {
+						// Last chance, since we are no longer on the idle list.
+						return pool.take(this);
+					}
+					// Popped just now, go round again.
+					continue;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+		}
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(Runnable runnable, String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(runnable instanceof PrioRunnable)
+			prio = ((PrioRunnable) runnable).getPriority();
+
+		if(logMINOR)
+			Logger.minor(this, "Executing " + runnable + " as " + jobName + " at prio " + prio);
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+
+		Pool pool = pools[prio - 1];
+		Ticker t = ticker;
+		if(pool.idleCount == 0 && t != null && (!fromTicker) && NativeThread.usingNativeCode() &&
+				prio > Thread.currentThread().getPriority() && pool.threads.get() < maxThreadsPerPriority) {
+			// We will probably need a new thread. Get the ticker to create it with the right
+			// priority, since we can't.
+			t.queueTimedJob(runnable, jobName, 0, true, false);
+			return;
+		}
+
+		Job job = new Job(runnable, jobName);
+		pool.queued.incrementAndGet();
+		Thread current = Thread.currentThread();
+		if(current instanceof Worker && ((Worker) current).pool == pool)
+			((Worker) current).local.offer(job);
+		else
+			pool.queue.offer(job);
+
+		Worker w = pool.popIdle();
+		if(w != null) {
+			LockSupport.unpark(w);
+			return;
+		}
+		if(!pool.spawn(!fromTicker)) {
+			if(logMINOR)
+				Logger.minor(this, "Queued " + jobName + " at prio " + prio + " : all " + maxThreadsPerPriority + " threads busy");
+		}
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[pools.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = pools[i].threads.get() - pools[i].idleCount;
+		return result;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		int[] result = new int[pools.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = pools[i].idleCount;
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return waitingThreadsCount.get();
+	}
+
+	/** @return The number of jobs queued but not yet started, by priority. */
+	public int[] queuedJobs() {
+		int[] result = new int[pools.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = pools[i].queued.get();
+		return result;
+	}
+
+	/** @return The number of jobs started, by priority. */
+	public long[] jobsRun() {
+		long[] result = new long[pools.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = pools[i].jobsRun.get();
+		return result;
+	}
+
+	/** @return The average time jobs have waited in the queue before starting, in
+	 * milliseconds, by priority. */
+	public double[] averageQueueWait() {
+		double[] result = new double[pools.length];
+		for(int i = 0; i < result.length; i++) {
+			long count = pools[i].jobsRun.get();
+			result[i] = count == 0 ? 0.0 : pools[i].totalWaitNanos.get() / (count * 1000.0 * 1000.0);
+		}
+		return result;
+	}
+
+	/** @return The longest time a job has waited in the queue before starting, in
+	 * milliseconds, by priority. */
+	public double[] maxQueueWait() {
+		double[] result = new double[pools.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = pools[i].maxWaitNanos.get() / (1000.0 * 1000.0);
+		return result;
+	}
+
+}
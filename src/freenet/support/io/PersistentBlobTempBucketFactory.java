@@ -1,12 +1,19 @@
 package freenet.support.io;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.SyncFailedException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -39,6 +46,11 @@ import freenet.support.api.Bucket;
  * 
  * Currently we only use one blob file. This means that on FAT and some other
  * filesystems, the node will have to fall back once we reach 2GB of temp files.
+ * 
+ * We keep a bitmap of the occupied blocks in memory. Building it means reading
+ * every tag from the database, which takes a long time for a big file, so we also
+ * write it to a file next to the blob file after a commit, and read that instead at
+ * startup if it is still the same as the database.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 // WARNING: THIS CLASS IS STORED IN DB4O -- THINK TWICE BEFORE ADD/REMOVE/RENAME FIELDS
@@ -91,6 +103,22 @@ public class PersistentBlobTempBucketFactory {
 	
 	private final long nodeDBHandle;
 	
+	/** Changed, in the same transaction, the first time the occupied blocks change after
+	 * we have written the bitmap file. The file is only used if it has the same number.
+	 * See bitmapChanged(). */
+	private long bitmapGeneration;
+	
+	/** The bitmap file on disk has the current bitmapGeneration. If not, we need to write
+	 * it again. */
+	private transient boolean bitmapOnDisk;
+	
+	private transient long lastWroteBitmap;
+	
+	/** Don't write the bitmap file more often than this. */
+	static final int WRITE_BITMAP_INTERVAL = 60*1000;
+	
+	static final long BITMAP_MAGIC = 0x6f3c2a1e9b5d4780L;
+	
 	public PersistentBlobTempBucketFactory(long blockSize2, long nodeDBHandle2, File storageFile2) {
 		blockSize = blockSize2;
 		nodeDBHandle = nodeDBHandle2;
@@ -124,11 +152,15 @@ public class PersistentBlobTempBucketFactory {
 		freeJobs = new HashSet<DBJob>();
 		this.ticker = ticker;
 		
-//		if(freeBlocksCache != null)
-//			container.activate(freeBlocksCache, 2);
-//		else {
+		freeBlocksCache = readBitmap(getBitmapFile(), bitmapGeneration, getSize());
+		if(freeBlocksCache != null) {
+			System.out.println("Read free blocks cache from "+getBitmapFile());
+			bitmapOnDisk = true;
+		} else {
+			// It may be out of date, so must not be read after we have changed anything.
+			getBitmapFile().delete();
 			freeBlocksCache = createFreeBlocksCache(container);
-//		}
+		}
 		
 		maybeShrink(container);
 		
@@ -285,14 +317,29 @@ public class PersistentBlobTempBucketFactory {
 	
 	static final int MAX_FREE = 2048;
 	
+	/** If there are fewer free slots than this after allocating one, look for more in the
+	 * background, so that makeBucket() rarely has to wait for the database. */
+	static final int MIN_FREE = MAX_FREE / 4;
+	
+	/** Maximum number of slots to look up tags for in one query. */
+	static final int SLOT_BATCH = 256;
+	
+	/** Maximum distance between the first and last slot in a batch. */
+	static final int SLOT_BATCH_RANGE = 4096;
+	
 	private transient DBJob slotFinder;
 	
+	private transient boolean slotFinderQueued;
+	
 	private void initSlotFinder() {
 		slotFinder = new DBJob() {
 		
 		@Override
 		public boolean run(ObjectContainer container, ClientContext context) {
 			int added = 0;
+			synchronized(PersistentBlobTempBucketFactory.this) {
+				slotFinderQueued = false;
+			}
 			
 			while(true) {
 			synchronized(PersistentBlobTempBucketFactory.this) {
@@ -303,55 +350,61 @@ public class PersistentBlobTempBucketFactory {
 			long ptr = blocks - 1;
 			boolean changedTags = false;
 			
-			int first = -1;
-outer:		while(true) {
-				if(logMINOR) Logger.minor(this, "Maybe found free slot from bitmap "+first);
+			// Look up the tags for the slots the bitmap says are free a batch at a time,
+			// with one query for each batch rather than one for each slot.
+			int first = 0;
+			long[] batch = new long[SLOT_BATCH];
+			while(first != -1) {
+				int count = 0;
 				synchronized(PersistentBlobTempBucketFactory.this) {
-					first = freeBlocksCache.firstZero(first+1);
-					if(first == -1) break;
-					if(first > ptr) break;
-					if(freeSlots.containsKey((long)first)) continue;
-					if(almostFreeSlots.containsKey((long)first)) continue;
-					if(notCommittedBlobs.containsKey((long)first)) continue;
+					while(count < SLOT_BATCH) {
+						int next = freeBlocksCache.firstZero(first);
+						if(next == -1 || next > ptr) {
+							first = -1;
+							break;
+						}
+						if(count > 0 && next - batch[0] >= SLOT_BATCH_RANGE) {
+							first = next;
+							break;
+						}
+						first = next + 1;
+						if(freeSlots.containsKey((long)next)) continue;
+						if(almostFreeSlots.containsKey((long)next)) continue;
+						if(notCommittedBlobs.containsKey((long)next)) continue;
+						batch[count++] = next;
+					}
 				}
-				Query query = container.query();
-				query.constrain(PersistentBlobTempBucketTag.class);
-				query.descend("index").constrain((long)first);
-				ObjectSet<PersistentBlobTempBucketTag> tags = query.execute();
-				
-				while(tags.hasNext()) {
-					PersistentBlobTempBucketTag tag = tags.next();
-					if(tag.factory != PersistentBlobTempBucketFactory.this) continue;
-					if(!tag.isFree) continue outer;
-					if(tag.bucket != null) {
-						Logger.error(this, "Index "+first+" has bucket despite free?!");
-						container.activate(tag.bucket, 2);
-						if(!tag.bucket.freed()) {
-							Logger.error(this, "And the bucket is not free either!");
+				if(count == 0) continue;
+				if(logMINOR) Logger.minor(this, "Maybe found "+count+" free slots from bitmap between "+batch[0]+" and "+batch[count-1]);
+				HashMap<Long, PersistentBlobTempBucketTag> found = findTags(container, batch[0], batch[count-1]);
+				for(int i=0;i<count;i++) {
+					long index = batch[i];
+					PersistentBlobTempBucketTag tag = found.get(index);
+					if(tag == null) {
+						// Not found
+						Logger.error(PersistentBlobTempBucketFactory.this, "No tag for index "+index);
+						tag = new PersistentBlobTempBucketTag(PersistentBlobTempBucketFactory.this, index);
+						container.store(tag);
+						Logger.normal(this, "Found free slot (missing) from bitmap "+index);
+					} else {
+						if(!tag.isFree) continue;
+						if(tag.bucket != null) {
+							Logger.error(this, "Index "+index+" has bucket despite free?!");
+							container.activate(tag.bucket, 2);
+							if(!tag.bucket.freed()) {
+								Logger.error(this, "And the bucket is not free either!");
+							}
+							continue;
 						}
-						continue outer;
+						if(logMINOR) Logger.minor(this, "Found free slot from bitmap "+index);
 					}
 					synchronized(PersistentBlobTempBucketFactory.this) {
-						freeSlots.put((long)first, tag);
+						freeSlots.put(index, tag);
 					}
 					added++;
 					changedTags = true;
-					if(logMINOR) Logger.minor(this, "Found free slot from bitmap "+first);
 					if(added > MAX_FREE) return true;
-					continue outer;
 				}
-				
-				// Not found
-				Logger.error(PersistentBlobTempBucketFactory.this, "No tag for index "+first);
-				PersistentBlobTempBucketTag tag = new PersistentBlobTempBucketTag(PersistentBlobTempBucketFactory.this, first);
-				container.store(tag);
-				synchronized(PersistentBlobTempBucketFactory.this) {
-					freeSlots.put(ptr, tag);
-				}
-				Logger.normal(this, "Found free slot (missing) from bitmap "+first);
-				added++;
-				changedTags = true;
-				if(added > MAX_FREE) return true;
 			}
 
 			for(long l = 0; l < blockSize + 16383; l += 16384) {
@@ -467,7 +520,7 @@ outer:		while(true) {
 			}
 			
 			synchronized(PersistentBlobTempBucketFactory.this) {
-				freeBlocksCache.setSize((int) Math.min(Integer.MAX_VALUE, (blocks + addBlocks)));
+				setBitmapSize(blocks + addBlocks, container);
 			}
 			
 			long extendBy = addBlocks * blockSize;
@@ -532,6 +585,27 @@ outer:		while(true) {
 	 * @throws DatabaseDisabledException 
 	 */
 	public PersistentBlobTempBucket makeBucket() throws DatabaseDisabledException {
+		PersistentBlobTempBucket bucket = innerMakeBucket();
+		boolean refill = false;
+		synchronized(this) {
+			if(freeSlots.size() < MIN_FREE && !slotFinderQueued) {
+				slotFinderQueued = true;
+				refill = true;
+			}
+		}
+		if(refill) {
+			try {
+				jobRunner.queue(slotFinder, NativeThread.NORM_PRIORITY, true);
+			} catch (DatabaseDisabledException e) {
+				synchronized(this) {
+					slotFinderQueued = false;
+				}
+			}
+		}
+		return bucket;
+	}
+	
+	private PersistentBlobTempBucket innerMakeBucket() throws DatabaseDisabledException {
 		// Find a free slot.
 		synchronized(this) {
 			if(!freeSlots.isEmpty()) {
@@ -606,7 +680,7 @@ outer:		while(true) {
 		if(shadow != null) {
 			shadow.freed();
 		}
-		freeBlocksCache.setBit((int)index, false);
+		// The block stays marked as occupied until remove(), when the tag is changed.
 	}
 
 	private long lastCheckedEnd = -1;
@@ -661,6 +735,7 @@ outer:		while(true) {
 			tag.bucket = null;
 			tag.isFree = true;
 			container.store(tag);
+			setOccupied(index, false, container);
 		} else {
 			Logger.error(this, "Tag still null for "+bucket, new Exception("error"));
 			if(!bucket.freed()) {
@@ -724,8 +799,10 @@ outer:		while(true) {
 					MOVE_BLOCKS_PER_MINUTE = 20;
 				else
 					MOVE_BLOCKS_PER_MINUTE = 10;
+				// Carry on down from the last block we moved, rather than checking the
+				// free tags at the end of the file again for every block.
+				int last = (int) blocks;
 findloop:		while(true) {
-					int last = (int) blocks;
 outer:				while(true) {
 						synchronized(this) {
 							last = freeBlocksCache.lastOne(last-1);
@@ -754,7 +831,7 @@ outer:				while(true) {
 						PersistentBlobTempBucketTag tag = new PersistentBlobTempBucketTag(PersistentBlobTempBucketFactory.this, last);
 						container.store(tag);
 						synchronized(this) {
-							freeBlocksCache.setBit(last, false);
+							setOccupied(last, false, container);
 						}
 						continue;
 					}
@@ -875,7 +952,7 @@ outer:				while(true) {
 			cachedSize = newBlocks;
 		}
 		synchronized(this) {
-			freeBlocksCache.setSize((int)Math.min(Integer.MAX_VALUE, newBlocks));
+			setBitmapSize(newBlocks, container);
 		}
 		try {
 			channel.truncate(newBlocks * blockSize);
@@ -982,8 +1059,8 @@ outer:				while(true) {
 			lastMovedFrom = Math.min(lastMovedFrom, lastTag.index);
 			// Ensure that even in wierd cases it won't be reused before commit and therefore won't cause problems.
 			almostFreeSlots.put(lastTag.index, lastTag);
-			freeBlocksCache.setBit((int)newTag.index, true);
-			freeBlocksCache.setBit((int)lastTag.index, false);
+			setOccupied(newTag.index, true, container);
+			setOccupied(lastTag.index, false, container);
 		}
 		return true;
 	}
@@ -1031,11 +1108,45 @@ outer:				while(true) {
 		container.store(bucket);
 		synchronized(this) {
 			notCommittedBlobs.remove(index);
-			freeBlocksCache.setBit((int)index, true);
+			setOccupied(index, true, container);
 		}
 	}
+	
+	/** Caller must hold the lock, and be on the database thread, in the transaction which
+	 * changes the tag. */
+	private void setOccupied(long index, boolean occupied, ObjectContainer container) {
+		freeBlocksCache.setBit((int)index, occupied);
+		bitmapChanged(container);
+	}
+	
+	/** Caller must hold the lock, and be on the database thread. */
+	private void setBitmapSize(long blocks, ObjectContainer container) {
+		freeBlocksCache.setSize((int)Math.min(Integer.MAX_VALUE, blocks));
+		bitmapChanged(container);
+	}
+	
+	/**
+	 * The first time the bitmap changes after we have written it to disk, change the
+	 * generation in the same transaction as the change. Not all commits go through
+	 * NodeClientCore, so this can't wait until just before the commit: whichever commit
+	 * includes the change must also stop us using the file after a restart.
+	 * Caller must hold the lock.
+	 */
+	private void bitmapChanged(ObjectContainer container) {
+		if(!bitmapOnDisk) return;
+		bitmapOnDisk = false;
+		bitmapGeneration++;
+		container.store(this);
+	}
 
-	public synchronized void postCommit() {
+	public void postCommit() {
+		synchronized(this) {
+			innerPostCommit();
+		}
+		maybeWriteBitmap();
+	}
+	
+	private void innerPostCommit() {
 		int freeNow = freeSlots.size();
 		int sz = freeNow + almostFreeSlots.size();
 		if(sz == 0) return;
@@ -1054,6 +1165,82 @@ outer:				while(true) {
 		almostFreeSlots.clear();
 	}
 	
+	/** Write the bitmap to disk if it has changed, just after a commit, when it is the same
+	 * as the database. */
+	private void maybeWriteBitmap() {
+		BitArray bitmap;
+		long generation;
+		synchronized(this) {
+			if(bitmapOnDisk || freeBlocksCache == null) return;
+			long now = System.currentTimeMillis();
+			if(now - lastWroteBitmap < WRITE_BITMAP_INTERVAL) return;
+			lastWroteBitmap = now;
+			bitmap = freeBlocksCache.copy();
+			generation = bitmapGeneration;
+			// Set now, so that if it changes while we are writing, the change will still
+			// change the generation.
+			bitmapOnDisk = true;
+		}
+		try {
+			writeBitmap(getBitmapFile(), generation, bitmap);
+			if(logMINOR) Logger.minor(this, "Wrote free blocks cache generation "+generation+" for "+bitmap.getSize()+" blocks");
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write free blocks cache to "+getBitmapFile()+" : "+e, e);
+		}
+	}
+	
+	private File getBitmapFile() {
+		return new File(storageFile.getPath()+".bitmap");
+	}
+	
+	static void writeBitmap(File file, long generation, BitArray bitmap) throws IOException {
+		File temp = new File(file.getPath()+".tmp");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			dos.writeLong(BITMAP_MAGIC);
+			dos.writeLong(generation);
+			bitmap.writeToDataOutputStream(dos);
+			dos.close();
+			dos = null;
+		} finally {
+			Closer.close(dos);
+		}
+		if(!FileUtil.renameTo(temp, file)) {
+			temp.delete();
+			throw new IOException("Unable to rename "+temp+" to "+file);
+		}
+	}
+	
+	/**
+	 * @return The bitmap, or null if the file doesn't exist, is from a different generation,
+	 * or is for a different number of blocks.
+	 */
+	static BitArray readBitmap(File file, long generation, long blocks) {
+		if(!file.exists()) return null;
+		if(blocks <= 0 || blocks > Integer.MAX_VALUE) return null;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if(dis.readLong() != BITMAP_MAGIC) return null;
+			long fileGeneration = dis.readLong();
+			if(fileGeneration != generation) {
+				System.err.println("Free blocks cache is out of date: generation "+fileGeneration+" but should be "+generation);
+				return null;
+			}
+			BitArray bitmap = new BitArray(dis, Integer.MAX_VALUE);
+			if(bitmap.getSize() != blocks) {
+				System.err.println("Free blocks cache is for "+bitmap.getSize()+" blocks but file has "+blocks);
+				return null;
+			}
+			return bitmap;
+		} catch (IOException e) {
+			System.err.println("Unable to read free blocks cache from "+file+" : "+e);
+			return null;
+		} finally {
+			Closer.close(dis);
+		}
+	}
+	
 	private transient long cachedSize;
 
 	private synchronized long getSize() {
@@ -1123,6 +1310,27 @@ outer:				while(true) {
 		}
 	}
 
+	/** Get the tags for a range of indexes with one query. */
+	private HashMap<Long, PersistentBlobTempBucketTag> findTags(ObjectContainer container, long start, long end) {
+		Query query = container.query();
+		query.constrain(PersistentBlobTempBucketTag.class);
+		query.descend("index").constrain(start-1).greater().and(query.descend("index").constrain(end+1).smaller());
+		ObjectSet<PersistentBlobTempBucketTag> tags = query.execute();
+		HashMap<Long, PersistentBlobTempBucketTag> found = new HashMap<Long, PersistentBlobTempBucketTag>();
+		while(tags.hasNext()) {
+			PersistentBlobTempBucketTag tag = tags.next();
+			if(tag.factory != this) continue;
+			if(tag.index < start || tag.index > end) continue;
+			PersistentBlobTempBucketTag old = found.put(tag.index, tag);
+			if(old != null) {
+				Logger.error(this, "Two tags for index "+tag.index);
+				// Don't reuse the slot if either of them is in use.
+				if(!old.isFree) found.put(tag.index, old);
+			}
+		}
+		return found;
+	}
+
 	/** @return The index of the last block in the file. */
 	synchronized int lastOccupiedBlock() {
 		return freeBlocksCache.lastOne(Integer.MAX_VALUE);
@@ -0,0 +1,143 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.client.InsertContext.CompatibilityMode;
+import freenet.support.TestProperty;
+
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+public class LongWordFECCodecTest extends TestCase {
+
+	/** Not a multiple of 8, so the tail of each stripe is done a byte at a time. */
+	private static final int STRIPE_SIZE = 85;
+
+	private final Random random = new Random(1234);
+
+	/** Every segment shape we can create, for every compatibility mode. */
+	public void testMatchesPureCode() {
+		HashSet<Integer> done = new HashSet<Integer>();
+		for(CompatibilityMode mode : CompatibilityMode.values()) {
+			for(int k = 1; k <= HighLevelSimpleClientImpl.SPLITFILE_BLOCKS_PER_SEGMENT; k++) {
+				int m = FECCodec.getCheckBlocks(Metadata.SPLITFILE_ONION_STANDARD, k, mode);
+				if(done.add((k << 16) + m))
+					checkShape(k, m);
+			}
+		}
+		// And the biggest segments possible.
+		checkShape(128, 128);
+		checkShape(1, 255);
+		checkShape(255, 1);
+	}
+
+	private void checkShape(int k, int m) {
+		int n = k + m;
+		LongWordFECCodec codec = new LongWordFECCodec(k, n);
+		PureCode pure = new PureCode(k, n);
+
+		byte[] data = new byte[k * STRIPE_SIZE];
+		random.nextBytes(data);
+
+		// Encode all the check blocks with both.
+		int[] toEncode = new int[m];
+		for(int i = 0; i < m; i++)
+			toEncode[i] = k + i;
+		byte[] buf = new byte[n * STRIPE_SIZE];
+		System.arraycopy(data, 0, buf, 0, data.length);
+		codec.encodeStripe(buf, STRIPE_SIZE, toEncode);
+
+		byte[] pureBuf = new byte[n * STRIPE_SIZE];
+		System.arraycopy(data, 0, pureBuf, 0, data.length);
+		pure.encode(buffers(pureBuf, 0, k), buffers(pureBuf, k, m), toEncode.clone());
+		assertTrue("Check blocks differ for k="+k+" m="+m, Arrays.equals(pureBuf, buf));
+
+		// Decode from a random selection of k blocks, in random order.
+		int[] all = new int[n];
+		for(int i = 0; i < n; i++) all[i] = i;
+		for(int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = all[i]; all[i] = all[j]; all[j] = t;
+		}
+		int[] indexes = Arrays.copyOf(all, k);
+		byte[] received = new byte[k * STRIPE_SIZE];
+		for(int i = 0; i < k; i++)
+			System.arraycopy(buf, indexes[i] * STRIPE_SIZE, received, i * STRIPE_SIZE, STRIPE_SIZE);
+		byte[] pureReceived = received.clone();
+
+		codec.decodeStripe(received, STRIPE_SIZE, indexes.clone());
+		assertTrue("Decode failed for k="+k+" m="+m, Arrays.equals(data, received));
+
+		pure.decode(buffers(pureReceived, 0, k), indexes.clone());
+		assertTrue("Decode differs from PureCode for k="+k+" m="+m, Arrays.equals(pureReceived, received));
+	}
+
+	/** Decoding with only data blocks just puts them in order. */
+	public void testDecodeReorders() {
+		int k = 5;
+		LongWordFECCodec codec = new LongWordFECCodec(k, 10);
+		byte[] data = new byte[k * STRIPE_SIZE];
+		random.nextBytes(data);
+		int[] indexes = new int[] { 3, 0, 4, 1, 2 };
+		byte[] received = new byte[data.length];
+		for(int i = 0; i < k; i++)
+			System.arraycopy(data, indexes[i] * STRIPE_SIZE, received, i * STRIPE_SIZE, STRIPE_SIZE);
+		codec.decodeStripe(received, STRIPE_SIZE, indexes);
+		assertTrue(Arrays.equals(data, received));
+	}
+
+	private static Buffer[] buffers(byte[] buf, int first, int count) {
+		Buffer[] buffers = new Buffer[count];
+		for(int i = 0; i < count; i++)
+			buffers[i] = new Buffer(buf, (first + i) * STRIPE_SIZE, STRIPE_SIZE);
+		return buffers;
+	}
+
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		// 128 data blocks of 256, the usual full segment.
+		benchmark(128, 128);
+		// The largest segment, with fewer check blocks.
+		benchmark(136, 120);
+	}
+
+	/** Encode all the check blocks, and decode with as many data blocks missing as possible. */
+	private void benchmark(int k, int m) {
+		final int blockSize = 32768;
+		int n = k + m;
+		LongWordFECCodec codec = new LongWordFECCodec(k, n);
+		StandardOnionFECCodec pure = new StandardOnionFECCodec(k, n);
+		byte[] buf = new byte[n * blockSize];
+		random.nextBytes(buf);
+		int[] toEncode = new int[m];
+		for(int i = 0; i < m; i++)
+			toEncode[i] = k + i;
+		int[] indexes = new int[k];
+		for(int i = 0; i < k; i++)
+			indexes[i] = i < m ? k + i : i;
+		for(int round = 0; round < 5; round++) {
+			long t0 = System.nanoTime();
+			pure.encodeStripe(buf, blockSize, toEncode.clone());
+			long t1 = System.nanoTime();
+			codec.encodeStripe(buf, blockSize, toEncode.clone());
+			long t2 = System.nanoTime();
+			byte[] received = new byte[k * blockSize];
+			for(int i = 0; i < k; i++)
+				System.arraycopy(buf, indexes[i] * blockSize, received, i * blockSize, blockSize);
+			byte[] pureReceived = received.clone();
+			long t3 = System.nanoTime();
+			pure.decodeStripe(pureReceived, blockSize, indexes.clone());
+			long t4 = System.nanoTime();
+			codec.decodeStripe(received, blockSize, indexes.clone());
+			long t5 = System.nanoTime();
+			System.out.println("k=" + k + " n=" + n + ": encode PureCode " + (t1 - t0) / (1000 * 1000) +
+					"ms LongWordFECCodec " + (t2 - t1) / (1000 * 1000) + "ms, decode PureCode " +
+					(t4 - t3) / (1000 * 1000) + "ms LongWordFECCodec " + (t5 - t4) / (1000 * 1000) + "ms");
+		}
+	}
+
+}
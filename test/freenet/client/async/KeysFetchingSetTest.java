@@ -0,0 +1,221 @@
+package freenet.client.async;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.support.TestProperty;
+
+public class KeysFetchingSetTest extends TestCase {
+
+	private static Key[] makeKeys(int count, long seed) {
+		Random r = new Random(seed);
+		Key[] keys = new Key[count];
+		for(int i=0;i<count;i++) {
+			byte[] routingKey = new byte[32];
+			r.nextBytes(routingKey);
+			keys[i] = new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+		}
+		return keys;
+	}
+
+	public void testAddRemove() {
+		KeysFetchingSet<Object> set = new KeysFetchingSet<Object>();
+		Key[] keys = makeKeys(1000, 1);
+		for(Key key : keys)
+			assertTrue(set.add(KeysFetchingSet.fingerprint(key)));
+		assertEquals(keys.length, set.size());
+		for(Key key : keys) {
+			assertFalse(set.add(KeysFetchingSet.fingerprint(key)));
+			assertTrue(set.contains(KeysFetchingSet.fingerprint(key.cloneKey())));
+		}
+		for(Key key : makeKeys(1000, 2))
+			assertFalse(set.contains(KeysFetchingSet.fingerprint(key)));
+		for(int i=0;i<keys.length;i+=2)
+			set.remove(KeysFetchingSet.fingerprint(keys[i]));
+		assertEquals(keys.length / 2, set.size());
+		for(int i=0;i<keys.length;i++)
+			assertEquals(i % 2 == 1, set.contains(KeysFetchingSet.fingerprint(keys[i])));
+	}
+
+	/** Adding and removing keys for a long time must not fill the tables up with removed
+	 * entries. */
+	public void testChurn() {
+		KeysFetchingSet<Object> set = new KeysFetchingSet<Object>();
+		Key[] keys = makeKeys(10000, 3);
+		for(int i=0;i<keys.length;i++) {
+			assertTrue(set.add(KeysFetchingSet.fingerprint(keys[i])));
+			if(i >= 10)
+				assertNull(set.remove(KeysFetchingSet.fingerprint(keys[i-10])));
+		}
+		assertEquals(10, set.size());
+		for(int i=0;i<keys.length;i++)
+			assertEquals(i >= keys.length - 10, set.contains(KeysFetchingSet.fingerprint(keys[i])));
+	}
+
+	public void testWaiting() {
+		KeysFetchingSet<Object> set = new KeysFetchingSet<Object>();
+		long fp = KeysFetchingSet.fingerprint(makeKeys(1, 4)[0]);
+		Object getter = new Object();
+		assertFalse(set.addWaiting(fp, 1L));
+		assertFalse(set.addWaiting(fp, getter));
+		set.add(fp);
+		assertTrue(set.addWaiting(fp, 1L));
+		assertTrue(set.addWaiting(fp, 1L));
+		assertTrue(set.addWaiting(fp, 2L));
+		assertTrue(set.addWaiting(fp, getter));
+		assertTrue(set.addWaiting(fp, getter));
+		KeysFetchingSet.Waiting<Object> waiting = set.remove(fp);
+		assertEquals(2, waiting.persistent.length);
+		assertEquals(1, waiting.nonPersistent.length);
+		assertSame(getter, waiting.nonPersistent[0].get());
+		assertFalse(set.contains(fp));
+		assertNull(set.remove(fp));
+	}
+
+	/** Keys which are never removed must always be visible to readers while other keys are
+	 * added and removed, even while tables are being rebuilt. */
+	public void testConcurrentReaders() throws InterruptedException {
+		final KeysFetchingSet<Object> set = new KeysFetchingSet<Object>();
+		final Key[] fixed = makeKeys(500, 5);
+		final Key[] churn = makeKeys(5000, 6);
+		for(Key key : fixed)
+			set.add(KeysFetchingSet.fingerprint(key));
+		final AtomicBoolean failed = new AtomicBoolean();
+		final AtomicBoolean stop = new AtomicBoolean();
+		Thread[] readers = new Thread[2];
+		for(int i=0;i<readers.length;i++) {
+			readers[i] = new Thread() {
+				@Override
+				public void run() {
+					while(!stop.get()) {
+						for(Key key : fixed) {
+							if(!set.contains(KeysFetchingSet.fingerprint(key)))
+								failed.set(true);
+						}
+					}
+				}
+			};
+			readers[i].start();
+		}
+		for(int round=0;round<20;round++) {
+			for(Key key : churn)
+				set.add(KeysFetchingSet.fingerprint(key));
+			for(Key key : churn)
+				set.remove(KeysFetchingSet.fingerprint(key));
+		}
+		stop.set(true);
+		for(Thread t : readers)
+			t.join();
+		assertFalse(failed.get());
+		assertEquals(fixed.length, set.size());
+	}
+
+	private interface FetchingKeys {
+		boolean add(Key key);
+		boolean contains(Key key);
+		void remove(Key key);
+	}
+
+	/** The old implementation: one synchronized HashSet of Key's. */
+	private static class SynchronizedFetchingKeys implements FetchingKeys {
+		private final HashSet<Key> keys = new HashSet<Key>();
+		@Override
+		public synchronized boolean add(Key key) {
+			return keys.add(key);
+		}
+		@Override
+		public synchronized boolean contains(Key key) {
+			return keys.contains(key);
+		}
+		@Override
+		public synchronized void remove(Key key) {
+			keys.remove(key);
+		}
+	}
+
+	private static class ShardedFetchingKeys implements FetchingKeys {
+		private final KeysFetchingSet<Object> keys = new KeysFetchingSet<Object>();
+		@Override
+		public boolean add(Key key) {
+			return keys.add(KeysFetchingSet.fingerprint(key));
+		}
+		@Override
+		public boolean contains(Key key) {
+			return keys.contains(KeysFetchingSet.fingerprint(key));
+		}
+		@Override
+		public void remove(Key key) {
+			keys.remove(KeysFetchingSet.fingerprint(key));
+		}
+	}
+
+	/** Selections per second: selector threads check candidate blocks against the keys being
+	 * fetched, while completion threads start and finish fetches as fast as they can. */
+	private static long selectionsPerSecond(final FetchingKeys fetching, int selectors, int completers, final Key[] keys) throws InterruptedException {
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong selections = new AtomicLong();
+		Thread[] threads = new Thread[selectors + completers];
+		for(int i=0;i<threads.length;i++) {
+			final int seed = i;
+			if(i < selectors) {
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						Random r = new Random(seed);
+						long count = 0;
+						while(!stop.get()) {
+							for(int j=0;j<1000;j++)
+								fetching.contains(keys[r.nextInt(keys.length)]);
+							count += 1000;
+						}
+						selections.addAndGet(count);
+					}
+				};
+			} else {
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						Random r = new Random(seed);
+						while(!stop.get()) {
+							Key key = keys[r.nextInt(keys.length)];
+							if(fetching.add(key))
+								fetching.remove(key);
+						}
+					}
+				};
+			}
+		}
+		for(int i=0;i<keys.length;i+=4)
+			fetching.add(keys[i]);
+		long start = System.nanoTime();
+		for(Thread t : threads)
+			t.start();
+		Thread.sleep(1000);
+		stop.set(true);
+		for(Thread t : threads)
+			t.join();
+		long time = System.nanoTime() - start;
+		return selections.get() * 1000 * 1000 * 1000 / time;
+	}
+
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		Key[] keys = makeKeys(10000, 7);
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int[][] threads = new int[][] { { 1, 0 }, { 1, 1 }, { cpus, 1 }, { cpus, cpus } };
+		for(int round=0;round<3;round++) {
+			for(int[] t : threads) {
+				long old = selectionsPerSecond(new SynchronizedFetchingKeys(), t[0], t[1], keys);
+				long sharded = selectionsPerSecond(new ShardedFetchingKeys(), t[0], t[1], keys);
+				System.out.println(t[0] + " selectors, " + t[1] + " completers: synchronized HashSet " +
+						old + " selections/sec, KeysFetchingSet " + sharded + " selections/sec");
+			}
+		}
+	}
+
+}
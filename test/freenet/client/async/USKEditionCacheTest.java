@@ -0,0 +1,97 @@
+package freenet.client.async;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.USK;
+import freenet.support.Base64;
+import freenet.support.IllegalBase64Exception;
+import freenet.support.SimpleFieldSet;
+
+public class USKEditionCacheTest extends TestCase {
+
+	private static USK makeUSK(Random r, String siteName, long edition) throws MalformedURLException, IllegalBase64Exception {
+		byte[] pubKeyHash = new byte[32];
+		byte[] cryptoKey = new byte[32];
+		r.nextBytes(pubKeyHash);
+		r.nextBytes(cryptoKey);
+		return new USK(pubKeyHash, cryptoKey, Base64.decode("AQACAAE"), siteName, edition);
+	}
+
+	public void testUpdate() throws MalformedURLException, IllegalBase64Exception {
+		USKEditionCache cache = new USKEditionCache(10);
+		Random r = new Random(1);
+		USK usk = makeUSK(r, "site", 5);
+		assertNull(cache.get(usk));
+		cache.update(usk.clearCopy(), -1, 7);
+		long[] saved = cache.get(usk.copy(3));
+		assertEquals(-1, saved[0]);
+		assertEquals(7, saved[1]);
+		cache.update(usk, 6, 6);
+		saved = cache.get(usk);
+		assertEquals(6, saved[0]);
+		assertEquals(7, saved[1]);
+		cache.update(usk, 9, -1);
+		saved = cache.get(usk);
+		assertEquals(9, saved[0]);
+		assertEquals(9, saved[1]);
+		// Same key, different site name.
+		assertNull(cache.get(new USK(usk.pubKeyHash, usk.cryptoKey, Base64.decode("AQACAAE"), "other", 0)));
+	}
+
+	public void testEviction() throws MalformedURLException, IllegalBase64Exception {
+		USKEditionCache cache = new USKEditionCache(3);
+		Random r = new Random(2);
+		USK[] usks = new USK[4];
+		for(int i=0;i<usks.length;i++)
+			usks[i] = makeUSK(r, "site"+i, 0);
+		for(int i=0;i<3;i++)
+			cache.update(usks[i], i, i);
+		// Looking up the oldest makes it the most recently used.
+		assertNotNull(cache.get(usks[0]));
+		cache.update(usks[3], 3, 3);
+		assertEquals(3, cache.size());
+		assertNotNull(cache.get(usks[0]));
+		assertNull(cache.get(usks[1]));
+		assertNotNull(cache.get(usks[2]));
+		assertNotNull(cache.get(usks[3]));
+	}
+
+	public void testPersist() throws IOException, IllegalBase64Exception {
+		USKEditionCache cache = new USKEditionCache(10);
+		Random r = new Random(3);
+		USK[] usks = new USK[5];
+		for(int i=0;i<usks.length;i++) {
+			usks[i] = makeUSK(r, "site "+i, 0);
+			cache.update(usks[i], i * 10, i * 10 + 2);
+		}
+		SimpleFieldSet fs = cache.persistThrottlesToFieldSet();
+		// As written to disk by Persister.
+		fs = new SimpleFieldSet(fs.toString(), false, true);
+		// Restarting with a smaller cache keeps the most recently used.
+		USKEditionCache read = new USKEditionCache(3);
+		read.readFrom(fs);
+		assertEquals(3, read.size());
+		assertNull(read.get(usks[0]));
+		assertNull(read.get(usks[1]));
+		for(int i=2;i<usks.length;i++) {
+			long[] saved = read.get(usks[i]);
+			assertEquals(i * 10, saved[0]);
+			assertEquals(i * 10 + 2, saved[1]);
+		}
+	}
+
+	public void testDisabled() throws MalformedURLException, IllegalBase64Exception {
+		USKEditionCache cache = new USKEditionCache(10);
+		USK usk = makeUSK(new Random(4), "site", 0);
+		cache.update(usk, 1, 1);
+		cache.setEnabled(false);
+		assertNull(cache.get(usk));
+		cache.update(usk, 2, 2);
+		assertNull(cache.get(usk));
+		assertNull(cache.persistThrottlesToFieldSet().subset("0"));
+	}
+
+}
@@ -0,0 +1,141 @@
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+import freenet.support.io.LineReadingInputStream;
+
+public class HTTPConnectionSelectorTest extends TestCase {
+
+	private ServerSocketChannel server;
+	private SocketChannel client;
+	private HTTPConnectionSelector.Connection conn;
+
+	@Override
+	public void setUp() throws IOException {
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		client = SocketChannel.open(server.socket().getLocalSocketAddress());
+		SocketChannel accepted = server.accept();
+		conn = new HTTPConnectionSelector.Connection(accepted.socket(), accepted);
+	}
+
+	@Override
+	public void tearDown() throws IOException {
+		conn.close();
+		client.close();
+		server.close();
+	}
+
+	private void send(String s) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+		while(buf.hasRemaining())
+			client.write(buf);
+	}
+
+	/** Read from the non-blocking channel until the headers are complete, as the selector does. */
+	private void waitForHeaders() throws IOException, InterruptedException {
+		conn.channel.configureBlocking(false);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(!conn.haveHeaders()) {
+			assertTrue(conn.fill() >= 0);
+			assertTrue("Timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		conn.channel.configureBlocking(true);
+	}
+
+	public void testPipelined() throws Exception {
+		send("\r\nPOST /a HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET /b HTTP/1.1\r\nHost: x\r\n\r\nGET /c");
+		waitForHeaders();
+		LineReadingInputStream lis = new LineReadingInputStream(conn.in);
+		assertEquals("", lis.readLine(32768, 128, false));
+		assertEquals("POST /a HTTP/1.1", lis.readLine(32768, 128, false));
+		assertEquals("Content-Length: 5", lis.readLine(32768, 128, false));
+		assertEquals("", lis.readLine(32768, 128, false));
+		byte[] body = new byte[5];
+		assertEquals(5, conn.in.read(body));
+		assertEquals("hello", new String(body, "ISO-8859-1"));
+		// The second request was sent with the first.
+		assertTrue(conn.haveHeaders());
+		lis = new LineReadingInputStream(conn.in);
+		assertEquals("GET /b HTTP/1.1", lis.readLine(32768, 128, false));
+		assertEquals("Host: x", lis.readLine(32768, 128, false));
+		assertEquals("", lis.readLine(32768, 128, false));
+		// The third is incomplete.
+		assertFalse(conn.haveHeaders());
+		send(" HTTP/1.0\n\n");
+		waitForHeaders();
+		lis = new LineReadingInputStream(conn.in);
+		assertEquals("GET /c HTTP/1.0", lis.readLine(32768, 128, false));
+		assertEquals("", lis.readLine(32768, 128, false));
+	}
+
+	/** Lines and bodies which don't fit in the initial buffer. */
+	public void testBigRequest() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < HTTPConnectionSelector.INITIAL_BUFFER_SIZE * 3; i++)
+			sb.append((char) ('a' + i % 26));
+		String longHeader = "X-Long: " + sb;
+		send("POST / HTTP/1.1\r\n" + longHeader + "\r\n\r\n");
+		waitForHeaders();
+		LineReadingInputStream lis = new LineReadingInputStream(conn.in);
+		assertEquals("POST / HTTP/1.1", lis.readLine(32768, 128, false));
+		assertEquals(longHeader, lis.readLine(32768, 128, false));
+		assertEquals("", lis.readLine(32768, 128, false));
+
+		// The body is read from the blocking channel once the buffer is empty.
+		final byte[] body = new byte[HTTPConnectionSelector.MAX_BUFFER_SIZE * 2];
+		for(int i = 0; i < body.length; i++)
+			body[i] = (byte) i;
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					ByteBuffer buf = ByteBuffer.wrap(body);
+					while(buf.hasRemaining())
+						client.write(buf);
+				} catch (IOException e) {
+					// Test will fail
+				}
+			}
+		};
+		sender.start();
+		byte[] read = new byte[body.length];
+		InputStream in = conn.in;
+		int offset = 0;
+		while(offset < read.length) {
+			int x = in.read(read, offset, read.length - offset);
+			assertTrue(x > 0);
+			offset += x;
+		}
+		sender.join();
+		for(int i = 0; i < body.length; i++)
+			assertEquals(body[i], read[i]);
+	}
+
+	public void testEOF() throws Exception {
+		send("GET / HTTP/1.1\r\n");
+		client.close();
+		conn.channel.configureBlocking(false);
+		long deadline = System.currentTimeMillis() + 5000;
+		int x;
+		while((x = conn.fill()) == 0) {
+			assertTrue("Timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		if(x > 0) {
+			while((x = conn.fill()) == 0) Thread.sleep(1);
+		}
+		assertEquals(-1, x);
+		assertFalse(conn.haveHeaders());
+	}
+
+}
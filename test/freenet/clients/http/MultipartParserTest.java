@@ -0,0 +1,216 @@
+package freenet.clients.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.NullBucketFactory;
+
+public class MultipartParserTest extends TestCase {
+
+	private static final String BOUNDARY = "---------------------------1234567890abcdef";
+
+	private final Random random = new Random(1234);
+
+	/** Returns at most maxChunk bytes from each read, to split the data in awkward places. */
+	private static class ChunkedInputStream extends InputStream {
+		private final InputStream in;
+		private final Random random;
+		private final int maxChunk;
+
+		ChunkedInputStream(byte[] data, Random random, int maxChunk) {
+			this.in = new ByteArrayInputStream(data);
+			this.random = random;
+			this.maxChunk = maxChunk;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			return in.read(buf, offset, Math.min(length, 1 + random.nextInt(maxChunk)));
+		}
+	}
+
+	private static class Field {
+		final String name;
+		final String filename;
+		final byte[] data;
+		Field(String name, String filename, byte[] data) {
+			this.name = name;
+			this.filename = filename;
+			this.data = data;
+		}
+	}
+
+	private static byte[] encode(String preamble, List<Field> fields, boolean close) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		os.write(preamble.getBytes("UTF-8"));
+		for(Field f : fields) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("--").append(BOUNDARY).append("\r\n");
+			if(f.name != null) {
+				sb.append("Content-Disposition: form-data; name=\"").append(f.name).append('"');
+				if(f.filename != null) sb.append("; filename=\"").append(f.filename).append('"');
+				sb.append("\r\n");
+			}
+			if(f.filename != null) sb.append("Content-Type: application/octet-stream\r\n");
+			sb.append("\r\n");
+			os.write(sb.toString().getBytes("UTF-8"));
+			os.write(f.data);
+			os.write("\r\n".getBytes("UTF-8"));
+		}
+		if(close)
+			os.write(("--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+		return os.toByteArray();
+	}
+
+	private static List<MultipartParser.Part> parse(InputStream is) throws IOException {
+		MultipartParser parser = new MultipartParser(is, BOUNDARY, new ArrayBucketFactory());
+		List<MultipartParser.Part> parts = new ArrayList<MultipartParser.Part>();
+		MultipartParser.Part part;
+		while((part = parser.readPart()) != null)
+			parts.add(part);
+		return parts;
+	}
+
+	private void check(List<Field> fields, byte[] body) throws IOException {
+		// Every part with a name, in order.
+		List<Field> named = new ArrayList<Field>();
+		for(Field f : fields)
+			if(f.name != null) named.add(f);
+		for(int maxChunk : new int[] { 1, 7, BOUNDARY.length() + 3, 4096, Integer.MAX_VALUE - 1 }) {
+			List<MultipartParser.Part> parts = parse(new ChunkedInputStream(body, random, maxChunk));
+			assertEquals(named.size(), parts.size());
+			for(int i = 0; i < parts.size(); i++) {
+				MultipartParser.Part part = parts.get(i);
+				Field f = named.get(i);
+				assertEquals(f.name, part.name);
+				assertEquals(f.filename, part.filename);
+				if(f.filename != null)
+					assertEquals("application/octet-stream", part.contentType);
+				assertTrue("Part "+f.name+" differs with chunks of "+maxChunk,
+						Arrays.equals(f.data, BucketTools.toByteArray(part.data)));
+			}
+		}
+	}
+
+	public void testSimpleForm() throws IOException {
+		List<Field> fields = new ArrayList<Field>();
+		fields.add(new Field("formPassword", null, "abcdef".getBytes("UTF-8")));
+		fields.add(new Field("empty", null, new byte[0]));
+		fields.add(new Field("text", null, "line 1\r\nline 2\n\r\n".getBytes("UTF-8")));
+		fields.add(new Field("unicode", null, "é中文".getBytes("UTF-8")));
+		check(fields, encode("", fields, true));
+	}
+
+	/** Data which looks a lot like the boundary, but isn't. */
+	public void testNearMisses() throws IOException {
+		String[] nasty = new String[] {
+				"\r\n--",
+				"\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1),
+				"\r\r\n--" + BOUNDARY.substring(0, 10) + "\r\n",
+				"--" + BOUNDARY,
+				"\n--" + BOUNDARY,
+				"\r\n-" + BOUNDARY,
+				"\r\n\r\n\r\n--" + BOUNDARY.substring(1),
+		};
+		List<Field> fields = new ArrayList<Field>();
+		for(int i = 0; i < nasty.length; i++) {
+			fields.add(new Field("start"+i, "file"+i, (nasty[i] + "xyz").getBytes("UTF-8")));
+			fields.add(new Field("end"+i, null, ("xyz" + nasty[i]).getBytes("UTF-8")));
+			fields.add(new Field("only"+i, null, nasty[i].getBytes("UTF-8")));
+		}
+		check(fields, encode("", fields, true));
+	}
+
+	public void testRandomFiles() throws IOException {
+		List<Field> fields = new ArrayList<Field>();
+		for(int i = 0; i < 10; i++) {
+			byte[] data = new byte[random.nextInt(100000)];
+			random.nextBytes(data);
+			// Sprinkle in bits of the delimiter.
+			byte[] delimiter = ("\r\n--" + BOUNDARY).getBytes("US-ASCII");
+			for(int j = 0; j < data.length / 1000; j++) {
+				int len = random.nextInt(delimiter.length - 1);
+				int offset = random.nextInt(data.length - len);
+				System.arraycopy(delimiter, 0, data, offset, len);
+			}
+			fields.add(new Field("file"+i, "file"+i+".bin", data));
+		}
+		check(fields, encode("", fields, true));
+	}
+
+	public void testPreambleAndUnnamed() throws IOException {
+		List<Field> fields = new ArrayList<Field>();
+		fields.add(new Field(null, null, "ignored".getBytes("UTF-8")));
+		fields.add(new Field("a", null, "1".getBytes("UTF-8")));
+		fields.add(new Field(null, null, ("\r\n--" + BOUNDARY.substring(3)).getBytes("UTF-8")));
+		fields.add(new Field("b", null, "2".getBytes("UTF-8")));
+		check(fields, encode("This is a preamble.\r\n--not the boundary\r\n", fields, true));
+	}
+
+	/** If the body is cut off, we still get what we have. */
+	public void testTruncated() throws IOException {
+		List<Field> fields = new ArrayList<Field>();
+		fields.add(new Field("a", null, "1".getBytes("UTF-8")));
+		fields.add(new Field("b", null, "2".getBytes("UTF-8")));
+		byte[] body = encode("", fields, false);
+		List<MultipartParser.Part> parts = parse(new ByteArrayInputStream(body));
+		assertEquals(2, parts.size());
+		assertEquals("1", new String(BucketTools.toByteArray(parts.get(0).data), "UTF-8"));
+		// Without the closing boundary, the trailing CRLF is part of the data.
+		assertEquals("2\r\n", new String(BucketTools.toByteArray(parts.get(1).data), "UTF-8"));
+		// No boundary at all.
+		assertTrue(parse(new ByteArrayInputStream("just some text".getBytes("UTF-8"))).isEmpty());
+		assertTrue(parse(new ByteArrayInputStream(new byte[0])).isEmpty());
+	}
+
+	public void testHeaderTooLong() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("--").append(BOUNDARY).append("\r\nContent-Disposition: form-data; name=\"");
+		for(int i = 0; i < MultipartParser.MAX_HEADER_LINE; i++)
+			sb.append('x');
+		sb.append("\"\r\n\r\ndata\r\n--").append(BOUNDARY).append("--\r\n");
+		try {
+			parse(new ByteArrayInputStream(sb.toString().getBytes("UTF-8")));
+			fail("Should have thrown");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] file = new byte[64 * 1024 * 1024];
+		random.nextBytes(file);
+		List<Field> fields = new ArrayList<Field>();
+		fields.add(new Field("formPassword", null, "abcdef".getBytes("UTF-8")));
+		fields.add(new Field("file", "big.bin", file));
+		byte[] body = encode("", fields, true);
+		for(int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body), BOUNDARY, new NullBucketFactory());
+			int count = 0;
+			while(parser.readPart() != null) count++;
+			long time = System.nanoTime() - start;
+			assertEquals(2, count);
+			System.out.println("Parsed " + body.length + " bytes in " + time / (1000 * 1000) + "ms: " +
+					(body.length / Math.max(1, time / 1000)) + " MB/s");
+		}
+	}
+
+}
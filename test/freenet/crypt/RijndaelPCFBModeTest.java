@@ -0,0 +1,99 @@
+package freenet.crypt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.TestProperty;
+
+public class RijndaelPCFBModeTest extends TestCase {
+
+	private static final Random rand = new Random(12345);
+
+	private static Rijndael makeCipher(int blockSize) throws UnsupportedCipherException {
+		Rijndael aes = new Rijndael(256, blockSize);
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		aes.initialize(key);
+		return aes;
+	}
+
+	/** The bulk code must give exactly the same output as the generic PCFBMode, however the
+	 * data is split up between calls. */
+	public void testSameAsGeneric() throws UnsupportedCipherException {
+		for(int blockSize : new int[] { 128, 192, 256 }) {
+			Rijndael aes = makeCipher(blockSize);
+			byte[] iv = new byte[blockSize / 8];
+			rand.nextBytes(iv);
+			for(int round=0;round<100;round++) {
+				byte[] plain = new byte[rand.nextInt(1000)];
+				rand.nextBytes(plain);
+				byte[] expected = plain.clone();
+				new PCFBMode(aes, iv, 0).blockEncipher(expected, 0, expected.length);
+
+				byte[] buf = plain.clone();
+				PCFBMode pcfb = PCFBMode.create(aes, iv);
+				assertTrue(pcfb instanceof RijndaelPCFBMode);
+				for(int off = 0; off < buf.length;) {
+					int len = Math.min(buf.length - off, rand.nextInt(100));
+					pcfb.blockEncipher(buf, off, len);
+					off += len;
+					// Mix in the single byte calls too.
+					if(off < buf.length && rand.nextBoolean()) {
+						buf[off] = (byte) pcfb.encipher(buf[off]);
+						off++;
+					}
+				}
+				assertTrue(Arrays.equals(expected, buf));
+
+				pcfb = PCFBMode.create(aes, iv);
+				for(int off = 0; off < buf.length;) {
+					int len = Math.min(buf.length - off, rand.nextInt(100));
+					pcfb.blockDecipher(buf, off, len);
+					off += len;
+					if(off < buf.length && rand.nextBoolean()) {
+						buf[off] = (byte) pcfb.decipher(buf[off]);
+						off++;
+					}
+				}
+				assertTrue(Arrays.equals(plain, buf));
+			}
+		}
+	}
+
+	/** A CHK block: a 32 byte header then 32 KiB of data, with one PCFB. */
+	private static double megabytesPerSecond(boolean bulk, boolean encrypt) throws UnsupportedCipherException {
+		Rijndael aes = makeCipher(256);
+		byte[] header = new byte[34];
+		byte[] data = new byte[32768];
+		rand.nextBytes(data);
+		int blocks = 2000;
+		long start = System.nanoTime();
+		for(int i=0;i<blocks;i++) {
+			PCFBMode pcfb = bulk ? PCFBMode.create(aes) : new PCFBMode(aes);
+			if(encrypt) {
+				pcfb.blockEncipher(header, 2, header.length - 2);
+				pcfb.blockEncipher(data, 0, data.length);
+			} else {
+				pcfb.blockDecipher(header, 2, header.length - 2);
+				pcfb.blockDecipher(data, 0, data.length);
+			}
+		}
+		long time = System.nanoTime() - start;
+		return (double)blocks * data.length * 1000 / time;
+	}
+
+	public void testBenchmark() throws UnsupportedCipherException {
+		if(!TestProperty.BENCHMARK) return;
+		for(int round=0;round<3;round++) {
+			for(boolean encrypt : new boolean[] { true, false }) {
+				double generic = megabytesPerSecond(false, encrypt);
+				double bulk = megabytesPerSecond(true, encrypt);
+				System.out.println((encrypt ? "Encipher" : "Decipher") + ": PCFBMode " + (int)generic +
+						" MB/s, RijndaelPCFBMode " + (int)bulk + " MB/s");
+			}
+		}
+	}
+
+}
@@ -1083,4 +1083,74 @@ public class RijndaelTest extends TestCase {
 			}
 		}
 	}
+
+	/** Encrypting a block held as words must give the same result as encrypting bytes. */
+	public void testEncipherWords() throws UnsupportedCipherException {
+		final int[] SIZE = new int[] { 128, 192, 256 };
+
+		for (int k = 0; k < SIZE.length; k++) {
+			int size = SIZE[k];
+			Rijndael aes = new Rijndael(256, size);
+
+			byte[] key = new byte[32];
+			rand.nextBytes(key);
+			aes.initialize(key);
+			int words = aes.getTempArraySize();
+			int[] a = new int[words];
+			int[] t = new int[words];
+
+			for (int i = 0; i < 1024; i++) {
+				byte[] plain = new byte[size / 8];
+				rand.nextBytes(plain);
+				byte[] cipher = new byte[size / 8];
+				aes.encipher(plain, cipher);
+
+				int[] block = new int[words];
+				for (int j = 0; j < words; j++)
+					block[j] = (plain[j*4] & 0xFF) << 24 | (plain[j*4+1] & 0xFF) << 16 |
+						(plain[j*4+2] & 0xFF) << 8 | (plain[j*4+3] & 0xFF);
+				aes.encipher(block, block, a, t);
+				byte[] cipher2 = new byte[size / 8];
+				for (int j = 0; j < words; j++) {
+					cipher2[j*4] = (byte) (block[j] >>> 24);
+					cipher2[j*4+1] = (byte) (block[j] >>> 16);
+					cipher2[j*4+2] = (byte) (block[j] >>> 8);
+					cipher2[j*4+3] = (byte) block[j];
+				}
+				assertTrue("(256," + size + ") KEY=" + HexUtil.bytesToHex(key) +
+						", PLAIN=" + HexUtil.bytesToHex(plain),
+						Arrays.equals(cipher, cipher2));
+			}
+		}
+	}
+
+	public void testInitializeCached() throws UnsupportedCipherException {
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		byte[] plain = new byte[32];
+		rand.nextBytes(plain);
+		byte[] expected = new byte[32];
+		Rijndael aes = new Rijndael(256, 256);
+		aes.initialize(key);
+		aes.encipher(plain, expected);
+		for (int i = 0; i < 2; i++) {
+			aes = new Rijndael(256, 256);
+			aes.initializeCached(key);
+			byte[] cipher = new byte[32];
+			aes.encipher(plain, cipher);
+			assertTrue(Arrays.equals(expected, cipher));
+		}
+		// The same key with a different block size has a different schedule.
+		Rijndael aes128 = new Rijndael(256, 128);
+		aes128.initializeCached(key);
+		byte[] plain128 = new byte[16];
+		System.arraycopy(plain, 0, plain128, 0, 16);
+		byte[] cipher128 = new byte[16];
+		aes128.encipher(plain128, cipher128);
+		Rijndael check = new Rijndael(256, 128);
+		check.initialize(key);
+		byte[] expected128 = new byte[16];
+		check.encipher(plain128, expected128);
+		assertTrue(Arrays.equals(expected128, cipher128));
+	}
 }
@@ -0,0 +1,165 @@
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MessageFilterIndexTest extends TestCase {
+
+	private static final MessageType typeA = new MessageType("MessageFilterIndexTestA", (short)0);
+	private static final MessageType typeB = new MessageType("MessageFilterIndexTestB", (short)0);
+
+	static {
+		typeA.addField("id", Long.class);
+	}
+
+	private Message messageA(long id) {
+		Message m = new Message(typeA);
+		m.set("id", id);
+		return m;
+	}
+
+	public void testMatchByType() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex(now);
+		MessageFilter fa = MessageFilter.create().setType(typeA).setField("id", 1L).setTimeout(10000);
+		MessageFilter fb = MessageFilter.create().setType(typeB).setTimeout(10000);
+		index.add(fa);
+		index.add(fb);
+		assertEquals(2, index.size());
+
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		assertNull(index.match(messageA(2), now, timedOut));
+		assertEquals(fa, index.match(messageA(1), now, timedOut));
+		assertTrue(timedOut.isEmpty());
+		assertFalse(index.contains(fa));
+		assertTrue(index.contains(fb));
+		assertEquals(fb, index.match(new Message(typeB), now, timedOut));
+		assertEquals(0, index.size());
+	}
+
+	public void testEarliestTimeoutWins() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex(now);
+		MessageFilter late = MessageFilter.create().setType(typeA).setTimeout(20000);
+		MessageFilter early = MessageFilter.create().setType(typeA).setTimeout(10000);
+		// Matches through the or() alternative, so is in a different bucket.
+		MessageFilter earliest = MessageFilter.create().setType(typeB).setTimeout(5000);
+		earliest.or(MessageFilter.create().setType(typeA).setTimeout(5000));
+		index.add(late);
+		index.add(early);
+		assertEquals(early, index.match(messageA(1), now, new ArrayList<MessageFilter>()));
+		index.add(early);
+		index.add(earliest);
+		assertEquals(earliest, index.match(messageA(1), now, new ArrayList<MessageFilter>()));
+		assertEquals(early, index.match(messageA(1), now, new ArrayList<MessageFilter>()));
+		assertEquals(late, index.match(messageA(1), now, new ArrayList<MessageFilter>()));
+		assertEquals(0, index.size());
+	}
+
+	public void testTimeout() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex(now);
+		MessageFilter shortTimeout = MessageFilter.create().setType(typeA).setTimeout(1000);
+		MessageFilter longTimeout = MessageFilter.create().setType(typeA).setTimeout(1000000);
+		MessageFilter noTimeout = MessageFilter.create().setType(typeB).setNoTimeout();
+		index.add(shortTimeout);
+		index.add(longTimeout);
+		index.add(noTimeout);
+
+		assertTrue(index.removeTimedOut(now).isEmpty());
+		List<MessageFilter> timedOut = index.removeTimedOut(now + 2000);
+		assertEquals(1, timedOut.size());
+		assertEquals(shortTimeout, timedOut.get(0));
+		// More than a full turn of the wheel.
+		long later = now + MessageFilterIndex.WHEEL_TICK * (MessageFilterIndex.WHEEL_SLOTS + 10L);
+		assertTrue(index.removeTimedOut(later).isEmpty());
+		timedOut = index.removeTimedOut(now + 1000001 + MessageFilterIndex.WHEEL_TICK);
+		assertEquals(1, timedOut.size());
+		assertEquals(longTimeout, timedOut.get(0));
+		assertTrue(index.contains(noTimeout));
+
+		// A filter which has been removed and re-added is only timed out once.
+		MessageFilter reused = MessageFilter.create().setType(typeA).setTimeout(1000);
+		index.add(reused);
+		index.remove(reused);
+		index.add(reused);
+		long now2 = System.currentTimeMillis();
+		timedOut = index.removeTimedOut(Math.max(now2, now + 1000001 + MessageFilterIndex.WHEEL_TICK) + 2000);
+		assertEquals(1, timedOut.size());
+		assertEquals(reused, timedOut.get(0));
+	}
+
+	/** A filter in two buckets which matches in the first is not also timed out in the second,
+	 * even if its callback asks to time out when it is checked again. */
+	public void testMatchedNotTimedOut() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex(now);
+		final int[] checks = new int[1];
+		AsyncMessageFilterCallback cb = new AsyncMessageFilterCallback() {
+
+			@Override
+			public void onMatched(Message m) {
+				// Ignore
+			}
+
+			@Override
+			public boolean shouldTimeout() {
+				return checks[0]++ > 0;
+			}
+
+			@Override
+			public void onTimeout() {
+				// Ignore
+			}
+
+			@Override
+			public void onDisconnect(PeerContext ctx) {
+				// Ignore
+			}
+
+			@Override
+			public void onRestarted(PeerContext ctx) {
+				// Ignore
+			}
+
+		};
+		// Indexed under typeA and under any type.
+		MessageFilter filter = MessageFilter.create().setType(typeA).setTimeout(10000);
+		filter.or(MessageFilter.create().setTimeout(10000).setAsyncCallback(cb, null));
+		index.add(filter);
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		assertEquals(filter, index.match(messageA(1), now, timedOut));
+		assertTrue(timedOut.isEmpty());
+		assertEquals(0, index.size());
+	}
+
+	/** A filter which has already matched is unlinked, but not reported as timed out. */
+	public void testPreMatchedNotTimedOut() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex(now);
+		MessageFilter filter = MessageFilter.create().setType(typeA).setTimeout(10000);
+		index.add(filter);
+		filter.setMessage(messageA(1));
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		assertNull(index.match(messageA(2), now, timedOut));
+		assertTrue(timedOut.isEmpty());
+		assertEquals(0, index.size());
+	}
+
+	public void testMatchRemovesTimedOut() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex(now);
+		MessageFilter expired = MessageFilter.create().setType(typeA).setField("id", 1L).setTimeout(1000);
+		MessageFilter live = MessageFilter.create().setType(typeA).setField("id", 2L).setTimeout(100000);
+		index.add(expired);
+		index.add(live);
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		assertEquals(live, index.match(messageA(2), now + 2000, timedOut));
+		assertEquals(1, timedOut.size());
+		assertEquals(expired, timedOut.get(0));
+		assertEquals(0, index.size());
+	}
+
+}
@@ -0,0 +1,154 @@
+package freenet.io.comm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedList;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+
+public class MessageTest extends TestCase {
+
+	private static final MessageType testType = new MessageType("MessageTestType", (short)0) {{
+		addField("bool", Boolean.class);
+		addField("byte", Byte.class);
+		addField("short", Short.class);
+		addField("int", Integer.class);
+		addField("long", Long.class);
+		addField("double", Double.class);
+		addField("string", String.class);
+		addLinkedListField("list", Long.class);
+	}};
+
+	private Message createMessage() {
+		Message m = new Message(testType);
+		m.set("bool", true);
+		m.set("byte", (byte)-3);
+		m.set("short", (short)-1234);
+		m.set("int", 0x12345678);
+		m.set("long", -0x123456789abcdefL);
+		m.set("double", 0.625);
+		m.set("string", "hello");
+		LinkedList<Long> list = new LinkedList<Long>();
+		list.add(1L);
+		list.add(2L);
+		m.set("list", list);
+		return m;
+	}
+
+	private void checkMessage(Message m) {
+		assertTrue(m.getBoolean("bool"));
+		assertEquals((byte)-3, m.getByte("byte"));
+		assertEquals((short)-1234, m.getShort("short"));
+		assertEquals(0x12345678, m.getInt("int"));
+		assertEquals(-0x123456789abcdefL, m.getLong("long"));
+		assertEquals(0.625, m.getDouble("double"));
+		assertEquals("hello", m.getString("string"));
+		assertEquals(2, ((LinkedList<?>)m.getObject("list")).size());
+	}
+
+	public void testEncodeDecode() {
+		Message m = createMessage();
+		checkMessage(m);
+		byte[] buf = m.encodeToPacket();
+		// Type, bool, byte, short, int, long, double, string, list
+		assertEquals(4 + 1 + 1 + 2 + 4 + 8 + 8 + (4 + 10) + (4 + 16), buf.length);
+		Message decoded = Message.decodeMessageFromPacket(buf, 0, buf.length, null, 0);
+		assertNotNull(decoded);
+		assertEquals(testType, decoded.getSpec());
+		checkMessage(decoded);
+		assertEquals(m.toString(), decoded.toString());
+	}
+
+	public void testBoxedAccess() {
+		Message m = createMessage();
+		assertEquals(Long.valueOf(-0x123456789abcdefL), m.getObject("long"));
+		assertEquals(Boolean.TRUE, m.getFromPayload("bool"));
+		assertEquals(Double.valueOf(0.625), m.getObject("double"));
+		m.set("int", Integer.valueOf(7));
+		assertEquals(7, m.getInt("int"));
+		assertNull(m.getObject("nonexistent"));
+	}
+
+	public void testUnset() {
+		Message m = new Message(testType);
+		assertFalse(m.isSet("long"));
+		assertNull(m.getObject("long"));
+		try {
+			m.getLong("long");
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected
+		}
+		m.set("long", 1L);
+		assertTrue(m.isSet("long"));
+		assertFalse(m.isSet("int"));
+	}
+
+	public void testWrongType() {
+		Message m = new Message(testType);
+		try {
+			m.set("long", 1);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected
+		}
+		m.set("long", 1L);
+		try {
+			m.getInt("long");
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected
+		}
+	}
+
+	private static final MessageType benchmarkType = new MessageType("MessageTestBenchmarkType", (short)0) {{
+		addField("uid", Long.class);
+		addField("htl", Short.class);
+		addField("location", Double.class);
+		addField("packetNo", Integer.class);
+		addField("realTime", Boolean.class);
+	}};
+
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+
+		Message m = new Message(benchmarkType);
+		m.set("uid", 1234567890123L);
+		m.set("htl", (short)18);
+		m.set("location", 0.5);
+		m.set("packetNo", 42);
+		m.set("realTime", false);
+		byte[] buf = m.encodeToPacket();
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocBean = bean instanceof com.sun.management.ThreadMXBean ?
+				(com.sun.management.ThreadMXBean) bean : null;
+		final int count = 1000000;
+		long sum = 0;
+		for(int round=0;round<3;round++) {
+			long id = Thread.currentThread().getId();
+			long allocStart = allocBean == null ? 0 : allocBean.getThreadAllocatedBytes(id);
+			long t1 = System.nanoTime();
+			for(int i=0;i<count;i++) {
+				Message decoded = Message.decodeMessageFromPacket(buf, 0, buf.length, null, 0);
+				sum += decoded.getLong("uid") + decoded.getShort("htl");
+			}
+			long t2 = System.nanoTime();
+			long allocEnd = allocBean == null ? 0 : allocBean.getThreadAllocatedBytes(id);
+			System.out.println("Decode: "+((t2-t1)/count)+"ns/message"+
+					(allocBean == null ? "" : ", "+((allocEnd-allocStart)/count)+" bytes/message allocated"));
+			allocStart = allocBean == null ? 0 : allocBean.getThreadAllocatedBytes(id);
+			t1 = System.nanoTime();
+			for(int i=0;i<count;i++)
+				sum += m.encodeToPacket().length;
+			t2 = System.nanoTime();
+			allocEnd = allocBean == null ? 0 : allocBean.getThreadAllocatedBytes(id);
+			System.out.println("Encode: "+((t2-t1)/count)+"ns/message"+
+					(allocBean == null ? "" : ", "+((allocEnd-allocStart)/count)+" bytes/message allocated"));
+		}
+		assertTrue(sum != 0);
+	}
+
+}
@@ -0,0 +1,282 @@
+package freenet.io.comm;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import freenet.support.PooledExecutor;
+
+public class UdpReceivePipelineTest extends TestCase {
+
+	private static final int SENDERS = 8;
+	private static final int PACKETS = 100;
+
+	/** Every packet arrives, and packets from each sender are handled in order. */
+	public void testOrderPerSource() throws Exception {
+		final HashMap<Integer, List<Integer>> received = new HashMap<Integer, List<Integer>>();
+		DatagramChannel channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		channel.socket().setReceiveBufferSize(1024 * 1024);
+		UdpReceivePipeline pipeline = new UdpReceivePipeline(channel, 4, 1500, new UdpReceivePipeline.PacketHandler() {
+
+			@Override
+			public Object getOrderingKey(InetAddress address, int port) {
+				return port;
+			}
+
+			@Override
+			public void handle(byte[] buf, int offset, int length, InetAddress address, int port) {
+				assertEquals(4, length);
+				int seq = ((buf[offset] & 0xff) << 8) | (buf[offset+1] & 0xff);
+				synchronized(received) {
+					List<Integer> list = received.get(port);
+					if(list == null) {
+						list = new ArrayList<Integer>();
+						received.put(port, list);
+					}
+					list.add(seq);
+					received.notifyAll();
+				}
+			}
+
+		});
+		pipeline.start(new PooledExecutor(), "test");
+		final UdpReceivePipeline p = pipeline;
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				p.run();
+			}
+		};
+		reader.start();
+
+		InetSocketAddress target = (InetSocketAddress) channel.socket().getLocalSocketAddress();
+		DatagramSocket[] senders = new DatagramSocket[SENDERS];
+		for(int i=0;i<SENDERS;i++)
+			senders[i] = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		for(int j=0;j<PACKETS;j++) {
+			for(int i=0;i<SENDERS;i++) {
+				byte[] data = new byte[] { (byte)(j >> 8), (byte)j, (byte)i, 0 };
+				senders[i].send(new DatagramPacket(data, data.length, target));
+			}
+			if(j % 10 == 0) Thread.sleep(1);
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		synchronized(received) {
+			while(total(received) < SENDERS * PACKETS && System.currentTimeMillis() < deadline)
+				received.wait(100);
+		}
+		channel.close();
+		pipeline.stop();
+		reader.join(5000);
+		for(DatagramSocket s : senders) s.close();
+
+		long[] stats = pipeline.getStats();
+		assertEquals(SENDERS * PACKETS, stats[0]);
+		assertEquals(0, stats[1]);
+		assertEquals(0, stats[2]);
+		assertTrue(stats[4] >= stats[3]);
+		synchronized(received) {
+			assertEquals(SENDERS, received.size());
+			for(List<Integer> list : received.values()) {
+				assertEquals(PACKETS, list.size());
+				for(int j=0;j<PACKETS;j++)
+					assertEquals(j, (int)list.get(j));
+			}
+		}
+	}
+
+	/** Packets with the same key are never processed concurrently, and packets with no key
+	 * are all processed on one thread. */
+	public void testOrderingKey() throws Exception {
+		final int[] total = new int[1];
+		final Object[] active = new Object[2];
+		final boolean[] overlapped = new boolean[1];
+		final HashSet<Thread> unknownThreads = new HashSet<Thread>();
+		DatagramChannel channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		channel.socket().setReceiveBufferSize(1024 * 1024);
+		UdpReceivePipeline pipeline = new UdpReceivePipeline(channel, 4, 1500, new UdpReceivePipeline.PacketHandler() {
+
+			@Override
+			public Object getOrderingKey(InetAddress address, int port) {
+				// Two sources share each key, as if one peer had two addresses.
+				int key = port % 3;
+				return key == 2 ? null : key;
+			}
+
+			@Override
+			public void handle(byte[] buf, int offset, int length, InetAddress address, int port) {
+				int key = port % 3;
+				synchronized(active) {
+					if(key == 2) {
+						unknownThreads.add(Thread.currentThread());
+					} else {
+						if(active[key] != null) overlapped[0] = true;
+						active[key] = Thread.currentThread();
+					}
+				}
+				Thread.yield();
+				synchronized(active) {
+					if(key != 2) active[key] = null;
+					total[0]++;
+					active.notifyAll();
+				}
+			}
+
+		});
+		pipeline.start(new PooledExecutor(), "test");
+		final UdpReceivePipeline p = pipeline;
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				p.run();
+			}
+		};
+		reader.start();
+
+		InetSocketAddress target = (InetSocketAddress) channel.socket().getLocalSocketAddress();
+		DatagramSocket[] senders = new DatagramSocket[SENDERS];
+		for(int i=0;i<SENDERS;i++)
+			senders[i] = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		for(int j=0;j<PACKETS;j++) {
+			for(int i=0;i<SENDERS;i++) {
+				byte[] data = new byte[] { (byte)(j >> 8), (byte)j, (byte)i, 0 };
+				senders[i].send(new DatagramPacket(data, data.length, target));
+			}
+			// Only two workers are used, so don't overflow their queues.
+			Thread.sleep(1);
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		synchronized(active) {
+			while(total[0] < SENDERS * PACKETS && System.currentTimeMillis() < deadline)
+				active.wait(100);
+		}
+		channel.close();
+		pipeline.stop();
+		reader.join(5000);
+		for(DatagramSocket s : senders) s.close();
+
+		long[] stats = pipeline.getStats();
+		assertEquals(SENDERS * PACKETS, stats[0]);
+		assertEquals(0, stats[1] + stats[2]);
+		synchronized(active) {
+			assertEquals(SENDERS * PACKETS, total[0]);
+			assertFalse(overlapped[0]);
+			assertTrue(unknownThreads.size() <= 1);
+		}
+	}
+
+	/** Packets queued on the first worker while the address was unknown are handled before
+	 * packets that arrive after it becomes known. */
+	public void testIdentifiedInOrder() throws Exception {
+		final List<Integer> received = new ArrayList<Integer>();
+		final boolean[] known = new boolean[1];
+		final Object started = new Object();
+		final Object release = new Object();
+		final boolean[] released = new boolean[1];
+		DatagramChannel channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		UdpReceivePipeline pipeline = new UdpReceivePipeline(channel, 4, 1500, new UdpReceivePipeline.PacketHandler() {
+
+			@Override
+			public Object getOrderingKey(InetAddress address, int port) {
+				synchronized(known) {
+					// Not the first worker.
+					return known[0] ? 1 : null;
+				}
+			}
+
+			@Override
+			public void handle(byte[] buf, int offset, int length, InetAddress address, int port) {
+				int seq = buf[offset] & 0xff;
+				if(seq == 0) {
+					synchronized(started) {
+						received.add(seq);
+						started.notifyAll();
+					}
+					synchronized(release) {
+						while(!released[0]) {
+							try {
+								release.wait();
+							} catch (InterruptedException e) {
+								// Ignore.
+							}
+						}
+					}
+					return;
+				}
+				synchronized(started) {
+					received.add(seq);
+					started.notifyAll();
+				}
+			}
+
+		});
+		pipeline.start(new PooledExecutor(), "test");
+		final UdpReceivePipeline p = pipeline;
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				p.run();
+			}
+		};
+		reader.start();
+
+		InetSocketAddress target = (InetSocketAddress) channel.socket().getLocalSocketAddress();
+		DatagramSocket sender = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		for(int i=0;i<10;i++)
+			sender.send(new DatagramPacket(new byte[] { (byte)i }, 1, target));
+		long deadline = System.currentTimeMillis() + 10000;
+		while(pipeline.getStats()[0] < 10 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		synchronized(started) {
+			while(received.isEmpty() && System.currentTimeMillis() < deadline)
+				started.wait(100);
+		}
+		// Packet 0 has identified the peer, and is still being processed.
+		synchronized(known) {
+			known[0] = true;
+		}
+		for(int i=10;i<20;i++)
+			sender.send(new DatagramPacket(new byte[] { (byte)i }, 1, target));
+		while(pipeline.getStats()[0] < 20 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		synchronized(release) {
+			released[0] = true;
+			release.notifyAll();
+		}
+		synchronized(started) {
+			while(received.size() < 20 && System.currentTimeMillis() < deadline)
+				started.wait(100);
+		}
+		channel.close();
+		pipeline.stop();
+		reader.join(5000);
+		sender.close();
+
+		synchronized(started) {
+			assertEquals(20, received.size());
+			for(int i=0;i<20;i++)
+				assertEquals(i, (int)received.get(i));
+		}
+	}
+
+	private static int total(HashMap<Integer, List<Integer>> received) {
+		int total = 0;
+		for(List<Integer> list : received.values())
+			total += list.size();
+		return total;
+	}
+
+}
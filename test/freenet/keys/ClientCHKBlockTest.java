@@ -0,0 +1,66 @@
+package freenet.keys;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.crypt.SHA256;
+import freenet.support.TestProperty;
+
+public class ClientCHKBlockTest extends TestCase {
+
+	private static final Random rand = new Random(12345);
+
+	private static byte[] randomBlock() {
+		byte[] data = new byte[CHKBlock.DATA_LENGTH];
+		rand.nextBytes(data);
+		return data;
+	}
+
+	public void testEncodeDecode() throws Exception {
+		byte[] cryptoKey = new byte[32];
+		rand.nextBytes(cryptoKey);
+		for(int i=0;i<10;i++) {
+			byte[] data = randomBlock();
+			// With a shared splitfile key (cached key schedule) and with the data's own hash.
+			ClientCHKBlock block = ClientCHKBlock.encodeSplitfileBlock(data.clone(), i % 2 == 0 ? cryptoKey : null, Key.ALGO_AES_PCFB_256_SHA256);
+			ClientCHK key = block.getClientKey();
+			if(i % 2 == 0)
+				assertTrue(Arrays.equals(cryptoKey, key.getCryptoKey()));
+			else
+				assertTrue(Arrays.equals(SHA256.digest(data), key.getCryptoKey()));
+			assertFalse(Arrays.equals(data, block.getRawData()));
+			ClientCHKBlock verify = new ClientCHKBlock(block.getRawData(), block.getRawHeaders(), key, true);
+			assertTrue(Arrays.equals(data, verify.memoryDecode()));
+		}
+	}
+
+	/** Splitfile blocks all sharing one crypto key, as inserted and fetched since 1255. */
+	private static double megabytesPerSecond(boolean decode) throws Exception {
+		byte[] cryptoKey = new byte[32];
+		rand.nextBytes(cryptoKey);
+		int count = 1000;
+		ClientCHKBlock[] blocks = new ClientCHKBlock[count];
+		byte[] data = randomBlock();
+		long start = System.nanoTime();
+		for(int i=0;i<count;i++)
+			blocks[i] = ClientCHKBlock.encodeSplitfileBlock(data.clone(), cryptoKey, Key.ALGO_AES_PCFB_256_SHA256);
+		long time = System.nanoTime() - start;
+		if(!decode)
+			return (double)count * data.length * 1000 / time;
+		start = System.nanoTime();
+		for(ClientCHKBlock block : blocks)
+			block.memoryDecode();
+		time = System.nanoTime() - start;
+		return (double)count * data.length * 1000 / time;
+	}
+
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		for(int round=0;round<3;round++) {
+			System.out.println("CHK encode: " + (int)megabytesPerSecond(false) + " MB/s, decode: " +
+					(int)megabytesPerSecond(true) + " MB/s");
+		}
+	}
+
+}
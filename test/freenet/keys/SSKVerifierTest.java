@@ -0,0 +1,176 @@
+package freenet.keys;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+import freenet.crypt.DSA;
+import freenet.crypt.DSAPrivateKey;
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DSASignature;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.Global;
+import freenet.crypt.SHA256;
+import freenet.support.Executor;
+import freenet.support.TestProperty;
+
+public class SSKVerifierTest extends TestCase {
+
+	private static final DummyRandomSource random = new DummyRandomSource();
+	private static final DSAPrivateKey privKey = new DSAPrivateKey(Global.DSAgroupBigA, random);
+	private static final DSAPublicKey pubKey = new DSAPublicKey(Global.DSAgroupBigA, privKey);
+	private static final byte[] pubKeyHash = SHA256.digest(pubKey.asBytes());
+
+	/** A hash and a signature on it. */
+	private static class Signed {
+		final byte[] hash;
+		final byte[] r;
+		final byte[] s;
+		Signed(Random r) {
+			hash = new byte[32];
+			r.nextBytes(hash);
+			DSASignature sig = DSA.sign(pubKey.getGroup(), privKey, new BigInteger(1, hash), random);
+			this.r = toBytes(sig.getR());
+			this.s = toBytes(sig.getS());
+		}
+		boolean verify() {
+			return SSKVerifier.verify(pubKey, pubKeyHash, hash, r, s);
+		}
+	}
+
+	private static byte[] toBytes(BigInteger i) {
+		byte[] buf = new byte[32];
+		byte[] b = i.toByteArray();
+		if(b.length > 32)
+			System.arraycopy(b, b.length - 32, buf, 0, 32);
+		else
+			System.arraycopy(b, 0, buf, 32 - b.length, b.length);
+		return buf;
+	}
+
+	public void testCache() {
+		Signed signed = new Signed(new Random(1));
+		long hits = SSKVerifier.getCacheHits();
+		long verifications = SSKVerifier.getVerifications();
+		assertTrue(signed.verify());
+		assertEquals(verifications + 1, SSKVerifier.getVerifications());
+		assertTrue(signed.verify());
+		assertEquals(hits + 1, SSKVerifier.getCacheHits());
+		assertEquals(verifications + 1, SSKVerifier.getVerifications());
+		// A different signature on the same hash must be checked again, and fail.
+		byte[] badS = signed.s.clone();
+		badS[31] ^= 1;
+		assertFalse(SSKVerifier.verify(pubKey, pubKeyHash, signed.hash, signed.r, badS));
+		assertFalse(SSKVerifier.verify(pubKey, pubKeyHash, signed.hash, signed.r, badS));
+		assertEquals(verifications + 3, SSKVerifier.getVerifications());
+		assertEquals(hits + 1, SSKVerifier.getCacheHits());
+	}
+
+	/** Runs each job on a new thread. */
+	private static class ThreadExecutor implements Executor {
+		@Override
+		public void execute(Runnable job) {
+			new Thread(job).start();
+		}
+		@Override
+		public void execute(Runnable job, String jobName) {
+			new Thread(job, jobName).start();
+		}
+		@Override
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			execute(job, jobName);
+		}
+		@Override
+		public int[] runningThreads() {
+			return null;
+		}
+		@Override
+		public int[] waitingThreads() {
+			return null;
+		}
+		@Override
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+	}
+
+	private static List<Callable<Boolean>> verifyJobs(Signed[] signed) {
+		List<Callable<Boolean>> jobs = new ArrayList<Callable<Boolean>>();
+		for(final Signed s : signed) {
+			jobs.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return s.verify();
+				}
+			});
+		}
+		return jobs;
+	}
+
+	public void testRunInParallel() throws KeyVerifyException {
+		SSKVerifier.setExecutor(new ThreadExecutor());
+		try {
+			Random r = new Random(2);
+			Signed[] signed = new Signed[10];
+			for(int i=0;i<signed.length;i++)
+				signed[i] = new Signed(r);
+			signed[3].s[0] ^= 1;
+			List<Boolean> results = SSKVerifier.runInParallel(verifyJobs(signed));
+			assertEquals(signed.length, results.size());
+			for(int i=0;i<signed.length;i++)
+				assertEquals(i != 3, results.get(i).booleanValue());
+
+			List<Callable<Boolean>> jobs = verifyJobs(signed);
+			final KeyVerifyException e = new KeyVerifyException("test");
+			jobs.add(5, new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws KeyVerifyException {
+					throw e;
+				}
+			});
+			try {
+				SSKVerifier.runInParallel(jobs);
+				fail();
+			} catch (KeyVerifyException e1) {
+				assertSame(e, e1);
+			}
+		} finally {
+			SSKVerifier.setExecutor(null);
+		}
+	}
+
+	public void testBenchmark() throws KeyVerifyException {
+		if(!TestProperty.BENCHMARK) return;
+		Random r = new Random(3);
+		Signed[] signed = new Signed[200];
+		for(int i=0;i<signed.length;i++)
+			signed[i] = new Signed(r);
+		// Fill the cache.
+		long start = System.nanoTime();
+		for(Signed s : signed)
+			assertTrue(s.verify());
+		long uncached = System.nanoTime() - start;
+		start = System.nanoTime();
+		for(Signed s : signed)
+			assertTrue(s.verify());
+		long cached = System.nanoTime() - start;
+		System.out.println("Sequential: " + (uncached / signed.length / 1000) + "us per block, cached: " +
+				(cached / signed.length / 1000) + "us per block");
+		for(int i=0;i<signed.length;i++)
+			signed[i] = new Signed(r);
+		SSKVerifier.setExecutor(new ThreadExecutor());
+		try {
+			start = System.nanoTime();
+			SSKVerifier.runInParallel(verifyJobs(signed));
+			long parallel = System.nanoTime() - start;
+			System.out.println("Parallel on " + Runtime.getRuntime().availableProcessors() + " CPUs: " +
+					(parallel / signed.length / 1000) + "us per block");
+		} finally {
+			SSKVerifier.setExecutor(null);
+		}
+	}
+
+}
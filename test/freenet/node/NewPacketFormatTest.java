@@ -3,14 +3,28 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
 import java.util.LinkedList;
-
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.support.MutableBoolean;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
 public class NewPacketFormatTest extends TestCase {
+
+	/** The HMAC length NewPacketFormat uses for real peers. */
+	private static final int HMAC_LENGTH = 10;
 	
 	@Override
 	public void setUp() {
@@ -333,4 +347,164 @@ public class NewPacketFormatTest extends TestCase {
 		}
 	}
 	
+	private static SessionKey createCryptoKey(Random random) throws UnsupportedCipherException {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		BlockCipher outgoing = new Rijndael(256, 256);
+		outgoing.initialize(key);
+		BlockCipher ivCipher = new Rijndael(256, 256);
+		byte[] ivKey = new byte[32];
+		random.nextBytes(ivKey);
+		ivCipher.initialize(ivKey);
+		byte[] ivNonce = new byte[32];
+		random.nextBytes(ivNonce);
+		byte[] hmacKey = new byte[32];
+		random.nextBytes(hmacKey);
+		return new SessionKey(null, null, outgoing, key, null, null, ivCipher, ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0));
+	}
+
+	private static BlockCipher createCipher(byte[] key) throws UnsupportedCipherException {
+		BlockCipher cipher = new Rijndael(256, 256);
+		cipher.initialize(key);
+		return cipher;
+	}
+
+	/** Two threads decrypting packets for the same key at once, as happens when a packet from
+	 * a new address is trial decrypted while others are decoded from the peer's old address. */
+	public void testConcurrentDecrypt() throws Exception {
+		Random random = new Random(4321);
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		byte[] ivKey = new byte[32];
+		random.nextBytes(ivKey);
+		byte[] ivNonce = new byte[32];
+		random.nextBytes(ivNonce);
+		byte[] hmacKey = new byte[32];
+		random.nextBytes(hmacKey);
+		SessionKey senderKey = new SessionKey(null, null, createCipher(key), key, null, null, createCipher(ivKey), ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0));
+		final SessionKey receiverKey = new SessionKey(null, null, null, null, createCipher(key), key, createCipher(ivKey), ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0));
+		final AtomicInteger messages = new AtomicInteger();
+		NullBasePeerNode receiverNode = new NullBasePeerNode() {
+
+			@Override
+			public void verified(SessionKey s) {
+				assertSame(receiverKey, s);
+			}
+
+			@Override
+			protected void processDecryptedMessage(byte[] data, int offset, int length, int overhead) {
+				messages.incrementAndGet();
+			}
+
+		};
+		receiverNode.currentKey = receiverKey;
+		NewPacketFormat sender = new NewPacketFormat(new NullBasePeerNode(), 0, 0);
+		final NewPacketFormat receiver = new NewPacketFormat(receiverNode, 0, 0);
+
+		// More than the watch list, so it has to move.
+		final int count = 5000;
+		final byte[][] packets = new byte[count][];
+		for(int i = 0; i < count; i++) {
+			NPFPacket packet = new NPFPacket();
+			packet.setSequenceNumber(i);
+			packet.addMessageFragment(new MessageFragment(true, false, true, i, 8, 8, 0, new byte[8], null));
+			byte[] data = new byte[packet.getLength() + HMAC_LENGTH];
+			packet.toBytes(data, HMAC_LENGTH, random);
+			sender.encryptPacket(data, senderKey);
+			packets[i] = data;
+		}
+
+		final AtomicInteger failed = new AtomicInteger();
+		Thread[] threads = new Thread[2];
+		for(int t = 0; t < threads.length; t++) {
+			final int first = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i = first; i < count; i += 2) {
+						try {
+							if(!receiver.handleReceivedPacket(packets[i], 0, packets[i].length, System.currentTimeMillis(), null))
+								failed.incrementAndGet();
+						} catch (Throwable e) {
+							e.printStackTrace();
+							failed.incrementAndGet();
+						}
+					}
+				}
+			};
+		}
+		for(Thread t : threads) t.start();
+		for(Thread t : threads) t.join();
+		assertEquals(0, failed.get());
+		assertEquals(count, messages.get());
+	}
+
+	/** The old way: new IV, cipher and HMAC input for every packet. */
+	private static void encryptReference(byte[] data, SessionKey sessionKey, int hmacLength) {
+		BlockCipher ivCipher = sessionKey.ivCipher;
+		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
+		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
+		System.arraycopy(data, hmacLength, IV, IV.length - 4, 4);
+		ivCipher.encipher(IV, IV);
+		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
+		payloadCipher.blockEncipher(data, hmacLength, data.length - hmacLength);
+		byte[] text = new byte[data.length - hmacLength];
+		System.arraycopy(data, hmacLength, text, 0, text.length);
+		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text, hmacLength);
+		System.arraycopy(hash, 0, data, 0, hmacLength);
+	}
+
+	/** Encrypting in place with the reused cipher must give exactly the same packets. */
+	public void testEncryptInPlace() throws UnsupportedCipherException {
+		Random random = new Random(1234);
+		SessionKey key = createCryptoKey(random);
+		NewPacketFormat npf = new NewPacketFormat(new NullBasePeerNode(), 0, 0);
+		for(int i = 0; i < 20; i++) {
+			byte[] data = new byte[HMAC_LENGTH + 4 + random.nextInt(1400)];
+			random.nextBytes(data);
+			byte[] expected = data.clone();
+			encryptReference(expected, key, HMAC_LENGTH);
+			npf.encryptPacket(data, key);
+			assertTrue("Packet "+i+" differs", Arrays.equals(expected, data));
+		}
+	}
+
+	public void testEncryptBenchmark() throws UnsupportedCipherException {
+		if(!TestProperty.BENCHMARK) return;
+		Random random = new Random(1234);
+		SessionKey key = createCryptoKey(random);
+		NewPacketFormat npf = new NewPacketFormat(new NullBasePeerNode(), 0, 0);
+		byte[] packet = new byte[1232];
+		random.nextBytes(packet);
+		byte[] data = new byte[packet.length];
+		final int count = 100000;
+		for(int round = 0; round < 5; round++) {
+			long bytes0 = allocatedBytes();
+			long t0 = System.nanoTime();
+			for(int i = 0; i < count; i++) {
+				System.arraycopy(packet, 0, data, 0, packet.length);
+				encryptReference(data, key, HMAC_LENGTH);
+			}
+			long t1 = System.nanoTime();
+			long bytes1 = allocatedBytes();
+			for(int i = 0; i < count; i++) {
+				System.arraycopy(packet, 0, data, 0, packet.length);
+				npf.encryptPacket(data, key);
+			}
+			long t2 = System.nanoTime();
+			long bytes2 = allocatedBytes();
+			System.out.println("Old: " + (count * 1000L * 1000 * 1000 / (t1 - t0)) + " packets/sec" +
+					(bytes0 < 0 ? "" : ", " + (bytes1 - bytes0) / count + " bytes/packet") +
+					" In place: " + (count * 1000L * 1000 * 1000 / (t2 - t1)) + " packets/sec" +
+					(bytes0 < 0 ? "" : ", " + (bytes2 - bytes1) / count + " bytes/packet"));
+		}
+	}
+
+	/** @return Bytes allocated by this thread so far, or -1 if the JVM can't tell us. */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+		return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
 }
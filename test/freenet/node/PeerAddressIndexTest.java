@@ -0,0 +1,81 @@
+package freenet.node;
+
+import java.net.UnknownHostException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import freenet.io.comm.FreenetInetAddress;
+import freenet.io.comm.Peer;
+import freenet.io.comm.PeerParseException;
+
+public class PeerAddressIndexTest extends TestCase {
+
+	private static Peer peer(String s) throws PeerParseException, UnknownHostException {
+		return new Peer(s, false);
+	}
+
+	public void testLookup() throws Exception {
+		PeerAddressIndex<String> index = new PeerAddressIndex<String>();
+		index.update("a", new Peer[] { peer("10.0.0.1:1234"), null, peer("10.0.0.2:1234") });
+		index.update("b", new Peer[] { peer("10.0.0.1:5678") });
+		assertEquals(2, index.size());
+		assertEquals("a", index.get(peer("10.0.0.1:1234")).get(0));
+		assertEquals("a", index.get(peer("10.0.0.2:1234")).get(0));
+		assertEquals("b", index.get(peer("10.0.0.1:5678")).get(0));
+		assertTrue(index.get(peer("10.0.0.1:9999")).isEmpty());
+		List<String> byIP = index.getByIP(peer("10.0.0.1:9999").getFreenetAddress());
+		assertEquals(2, byIP.size());
+		assertTrue(byIP.contains("a"));
+		assertTrue(byIP.contains("b"));
+		assertTrue(index.getByIP(peer("10.0.0.3:1234").getFreenetAddress()).isEmpty());
+	}
+
+	public void testUpdateAndRemove() throws Exception {
+		PeerAddressIndex<String> index = new PeerAddressIndex<String>();
+		index.update("a", new Peer[] { peer("10.0.0.1:1234") });
+		index.update("b", new Peer[] { peer("10.0.0.1:1234") });
+		assertEquals(2, index.get(peer("10.0.0.1:1234")).size());
+		// Moved.
+		index.update("a", new Peer[] { peer("10.0.0.2:1234") });
+		List<String> list = index.get(peer("10.0.0.1:1234"));
+		assertEquals(1, list.size());
+		assertEquals("b", list.get(0));
+		assertEquals("a", index.get(peer("10.0.0.2:1234")).get(0));
+		index.remove("b");
+		assertTrue(index.get(peer("10.0.0.1:1234")).isEmpty());
+		assertTrue(index.getByIP(peer("10.0.0.1:1234").getFreenetAddress()).isEmpty());
+		assertEquals(1, index.size());
+		index.update("a", new Peer[0]);
+		assertEquals(0, index.size());
+		assertTrue(index.get(peer("10.0.0.2:1234")).isEmpty());
+	}
+
+	public void testHostnames() throws Exception {
+		PeerAddressIndex<String> index = new PeerAddressIndex<String>();
+		// Not looked up yet, so can't be indexed.
+		Peer unresolved = new Peer(new FreenetInetAddress("unresolved.invalid", true), 1234);
+		index.update("a", new Peer[] { unresolved });
+		assertEquals(0, index.size());
+	}
+
+	public void testCandidates() throws Exception {
+		PeerAddressIndex<String> index = new PeerAddressIndex<String>();
+		assertTrue(index.getCandidates().isEmpty());
+		index.addressMismatch("a");
+		index.addressMismatch("b");
+		index.addressMismatch("a");
+		List<String> candidates = index.getCandidates();
+		assertEquals(2, candidates.size());
+		assertEquals("a", candidates.get(0));
+		assertEquals("b", candidates.get(1));
+		for(int i=0;i<PeerAddressIndex.MAX_CANDIDATES * 2;i++)
+			index.addressMismatch("x"+i);
+		candidates = index.getCandidates();
+		assertEquals(PeerAddressIndex.MAX_CANDIDATES, candidates.size());
+		assertEquals("x"+(PeerAddressIndex.MAX_CANDIDATES * 2 - 1), candidates.get(0));
+		index.remove("x"+(PeerAddressIndex.MAX_CANDIDATES * 2 - 1));
+		assertEquals(PeerAddressIndex.MAX_CANDIDATES - 1, index.getCandidates().size());
+	}
+
+}
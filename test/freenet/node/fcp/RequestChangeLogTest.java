@@ -0,0 +1,65 @@
+package freenet.node.fcp;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class RequestChangeLogTest extends TestCase {
+
+	public void testChangesSince() {
+		RequestChangeLog log = new RequestChangeLog();
+		long start = RequestChangeLog.currentSequence();
+		log.changed("a");
+		log.changed("b");
+		long middle = RequestChangeLog.currentSequence();
+		log.changed("c");
+		log.changed("a");
+		log.removed("b");
+
+		RequestChangeLog.Changes changes = log.getChangesSince(start);
+		assertEquals(Arrays.asList("c", "a"), changes.changed);
+		assertEquals(Arrays.asList("b"), changes.removed);
+
+		changes = log.getChangesSince(middle);
+		assertEquals(Arrays.asList("c", "a"), changes.changed);
+		assertEquals(Arrays.asList("b"), changes.removed);
+
+		changes = log.getChangesSince(RequestChangeLog.currentSequence());
+		assertTrue(changes.changed.isEmpty());
+		assertTrue(changes.removed.isEmpty());
+
+		// Re-added after removal.
+		log.changed("b");
+		changes = log.getChangesSince(middle);
+		assertEquals(Arrays.asList("c", "a", "b"), changes.changed);
+		assertTrue(changes.removed.isEmpty());
+	}
+
+	public void testSequenceSharedBetweenLogs() {
+		RequestChangeLog log1 = new RequestChangeLog();
+		RequestChangeLog log2 = new RequestChangeLog();
+		long start = RequestChangeLog.currentSequence();
+		log1.changed("a");
+		long middle = RequestChangeLog.currentSequence();
+		log2.changed("a");
+		assertEquals(1, log1.getChangesSince(start).changed.size());
+		assertEquals(0, log1.getChangesSince(middle).changed.size());
+		assertEquals(1, log2.getChangesSince(middle).changed.size());
+	}
+
+	public void testForgetRemovals() {
+		RequestChangeLog log = new RequestChangeLog();
+		long start = RequestChangeLog.currentSequence();
+		log.changed("kept");
+		for(int i=0;i<=RequestChangeLog.MAX_REMOVED;i++)
+			log.removed("removed"+i);
+		// Old removals have been forgotten, so a client which hasn't looked since must list
+		// everything.
+		assertNull(log.getChangesSince(start));
+		RequestChangeLog.Changes changes = log.getChangesSince(RequestChangeLog.currentSequence() - 10);
+		assertNotNull(changes);
+		assertEquals(10, changes.removed.size());
+		assertEquals("removed"+RequestChangeLog.MAX_REMOVED, changes.removed.get(9));
+	}
+
+}
@@ -0,0 +1,148 @@
+package freenet.store;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKDecodeException;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class OffHeapFreenetStoreTest extends TestCase {
+
+	public void testStore() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		for(int i=0;i<5;i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlock(test);
+			store.put(block, false);
+
+			ClientCHK key = block.getClientKey();
+
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			String data = decodeBlock(verify, key);
+			assertEquals(test, data);
+		}
+		assertEquals(5, store.keyCount());
+	}
+
+	public void testOldBlocks() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		String test = "test";
+		ClientCHKBlock block = encodeBlock(test);
+		store.put(block, true);
+
+		ClientCHK key = block.getClientKey();
+
+		CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+		assertEquals(test, decodeBlock(verify, key));
+
+		// ignoreOldBlocks works.
+		assertEquals(null, store.fetch(key.getNodeCHK(), false, true, null));
+
+		// Put it with oldBlock = false should unset the flag.
+		store.put(block, false);
+
+		verify = store.fetch(key.getNodeCHK(), false, true, null);
+		assertEquals(test, decodeBlock(verify, key));
+	}
+
+	public void testEviction() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(store, 3);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[10];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlock("test" + i);
+			store.put(blocks[i], false);
+			assertEquals(Math.min(i + 1, 3), store.keyCount());
+		}
+		// The most recent block is always kept.
+		ClientCHK key = blocks[9].getClientKey();
+		assertEquals("test9", decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		int found = 0;
+		for(ClientCHKBlock block : blocks) {
+			ClientCHK k = block.getClientKey();
+			if(store.fetch(k.getNodeCHK(), true, false, null) != null) found++;
+		}
+		assertEquals(3, found);
+	}
+
+	public void testShrink() throws Exception {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> offHeapStore = new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[10];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlock("test" + i);
+			store.put(blocks[i], false);
+		}
+		offHeapStore.setMaxKeys(4, true);
+		assertEquals(4, store.keyCount());
+		int found = 0;
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			if(verify == null) continue;
+			assertEquals("test" + i, decodeBlock(verify, key));
+			found++;
+		}
+		assertEquals(4, found);
+
+		// Grow again and fill it up.
+		offHeapStore.setMaxKeys(10, true);
+		for(int i=0;i<blocks.length;i++)
+			store.put(blocks[i], false);
+		assertEquals(10, store.keyCount());
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			assertEquals("test" + i, decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+	}
+
+	public void testMigrate() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> offHeapStore = new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		String test = "test";
+		ClientCHKBlock block = encodeBlock(test);
+		store.put(block, false);
+		ClientCHK key = block.getClientKey();
+
+		CHKStore newStore = new CHKStore();
+		new RAMFreenetStore<CHKBlock>(newStore, 10);
+
+		offHeapStore.migrateTo(newStore, false);
+		offHeapStore.clear();
+		assertEquals(0, store.keyCount());
+
+		CHKBlock newVerify = newStore.fetch(key.getNodeCHK(), false, false, null);
+		assertEquals(test, decodeBlock(newVerify, key));
+	}
+
+	private String decodeBlock(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
+		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
+		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
+		byte[] buf = BucketTools.toByteArray(output);
+		return new String(buf, "UTF-8");
+	}
+
+	private ClientCHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, (byte)0);
+	}
+
+}
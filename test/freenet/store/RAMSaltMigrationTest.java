@@ -115,6 +115,55 @@ public class RAMSaltMigrationTest extends TestCase {
 		}
 	}
 
+	public void testSaltedStoreMapped() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore-mapped"), "teststore", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, true, false);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlock("test" + i);
+			store.put(blocks[i], false);
+		}
+
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			String data = decodeBlock(verify, key);
+			assertEquals("test" + i, data);
+		}
+		saltStore.close();
+	}
+
+	public void testSaltedStoreWriteBehind() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File dir = new File(tempDir, "saltstore-writebehind");
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(dir, "teststore", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.enableWriteBehind();
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlock("test" + i);
+			store.put(blocks[i], false);
+			// Visible whether or not it has been written yet.
+			ClientCHK key = blocks[i].getClientKey();
+			assertEquals("test" + i, decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+		// Flushes the queue.
+		saltStore.close();
+		assertEquals(0, saltStore.getWriteQueueSize());
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(dir, "teststore", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			assertEquals("test" + i, decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+		saltStore.close();
+	}
+
 	public void testSaltedStoreOldBlock() throws CHKEncodeException, CHKVerifyException, CHKDecodeException, IOException {
 		checkSaltedStoreOldBlocks(5, 10, 0, false);
 		checkSaltedStoreOldBlocks(5, 10, 50, false);
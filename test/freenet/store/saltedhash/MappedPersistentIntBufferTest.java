@@ -0,0 +1,66 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import freenet.support.io.FileUtil;
+
+/** Test that MappedPersistentIntBuffer is interchangeable with ResizablePersistentIntBuffer. */
+public class MappedPersistentIntBufferTest extends TestCase {
+
+	private File tempDir;
+
+	@Override
+	protected void setUp() {
+		tempDir = new File("tmp-mappedintbuffertest");
+		tempDir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	public void testFormatCompatible() throws IOException {
+		File f = new File(tempDir, "compat");
+		// Bigger than one segment, with a partial last segment.
+		int size = MappedPersistentIntBuffer.SEGMENT_INTS + 1000;
+		MappedPersistentIntBuffer mapped = new MappedPersistentIntBuffer(f, size, 0);
+		assertTrue(mapped.isNew());
+		for(int i=0;i<size;i+=7)
+			mapped.put(i, i * 31 + 0x80000000);
+		mapped.shutdown();
+
+		ResizablePersistentIntBuffer heap = new ResizablePersistentIntBuffer(f, size, -1);
+		assertFalse(heap.isNew());
+		for(int i=0;i<size;i++)
+			assertEquals(i % 7 == 0 ? i * 31 + 0x80000000 : 0, heap.get(i));
+		heap.put(5, 5);
+		heap.shutdown();
+
+		mapped = new MappedPersistentIntBuffer(f, size, 0);
+		assertEquals(5, mapped.get(5));
+		assertEquals(7 * 31 + 0x80000000, mapped.get(7));
+		mapped.shutdown();
+	}
+
+	public void testResize() throws IOException {
+		File f = new File(tempDir, "resize");
+		MappedPersistentIntBuffer buf = new MappedPersistentIntBuffer(f, 100, 0);
+		for(int i=0;i<100;i++)
+			buf.put(i, i);
+		buf.resize(MappedPersistentIntBuffer.SEGMENT_INTS * 2);
+		for(int i=0;i<100;i++)
+			assertEquals(i, buf.get(i));
+		assertEquals(0, buf.get(MappedPersistentIntBuffer.SEGMENT_INTS * 2 - 1));
+		buf.put(MappedPersistentIntBuffer.SEGMENT_INTS + 1, 42);
+		buf.resize(50);
+		for(int i=0;i<50;i++)
+			assertEquals(i, buf.get(i));
+		buf.shutdown();
+		assertEquals(200, f.length());
+	}
+
+}
@@ -0,0 +1,38 @@
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+import freenet.support.Logger.LogLevel;
+
+public class FileLoggerHookTest extends TestCase {
+
+	/** Messages are formatted by the writer thread, with the details of the thread which
+	 * logged them. */
+	public void testFormat() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "c:t:p:m", "", LogLevel.NORMAL);
+		hook.start();
+		hook.log(this, FileLoggerHookTest.class, "first", null, LogLevel.NORMAL);
+		hook.log(this, FileLoggerHookTest.class, "not logged", null, LogLevel.MINOR);
+		hook.log(null, null, "second", new Exception("test"), LogLevel.ERROR);
+		hook.logString("third\n".getBytes());
+		String thread = Thread.currentThread().getName();
+		String expected = FileLoggerHookTest.class.getName() + ":" + thread + ":NORMAL:first\n" +
+			"<none>:" + thread + ":ERROR:second\njava.lang.Exception: test\n";
+		long deadline = System.currentTimeMillis() + 10*1000;
+		String output;
+		while(true) {
+			synchronized(os) {
+				output = os.toString();
+			}
+			if(output.endsWith("third\n") || System.currentTimeMillis() > deadline) break;
+			Thread.sleep(50);
+		}
+		hook.close();
+		assertTrue(output, output.startsWith(expected));
+		assertTrue(output, output.endsWith("third\n"));
+		assertFalse(output, output.contains("not logged"));
+	}
+
+}
@@ -0,0 +1,158 @@
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+import freenet.support.Logger.LogLevel;
+
+public class LogRingBufferTest extends TestCase {
+
+	public void testOrder() {
+		LogRingBuffer buffer = new LogRingBuffer(4);
+		for(int round=0;round<3;round++) {
+			assertNull(buffer.peek());
+			Throwable t = new Throwable();
+			assertTrue(buffer.offer(this, LogRingBufferTest.class, "first", t, LogLevel.MINOR));
+			assertTrue(buffer.offer(new byte[] { 1, 2 }));
+			assertTrue(buffer.offer(null, null, "third", null, LogLevel.ERROR));
+			assertEquals(3, buffer.size());
+			LogRingBuffer.LogEvent e = buffer.peek();
+			assertEquals("first", e.message);
+			assertSame(t, e.throwable);
+			assertEquals(LogRingBufferTest.class, e.source);
+			assertTrue(e.hasObject);
+			assertEquals(hashCode(), e.hashCode);
+			assertEquals(LogLevel.MINOR, e.priority);
+			assertEquals(Thread.currentThread().getName(), e.threadName);
+			buffer.release(e);
+			e = buffer.peek();
+			assertEquals(2, e.formatted.length);
+			buffer.release(e);
+			e = buffer.peek();
+			assertEquals("third", e.message);
+			assertFalse(e.hasObject);
+			buffer.release(e);
+			assertNull(e.message);
+			assertEquals(0, buffer.size());
+		}
+		assertEquals(0, buffer.dropped());
+	}
+
+	public void testFull() {
+		LogRingBuffer buffer = new LogRingBuffer(3);
+		assertEquals(4, buffer.capacity());
+		for(int i=0;i<4;i++)
+			assertTrue(buffer.offer(null, null, Integer.toString(i), null, LogLevel.NORMAL));
+		assertFalse(buffer.offer(null, null, "dropped", null, LogLevel.NORMAL));
+		assertFalse(buffer.offer(new byte[0]));
+		assertEquals(2, buffer.dropped());
+		buffer.release(buffer.peek());
+		assertTrue(buffer.offer(null, null, "4", null, LogLevel.NORMAL));
+		for(int i=1;i<=4;i++) {
+			LogRingBuffer.LogEvent e = buffer.peek();
+			assertEquals(Integer.toString(i), e.message);
+			buffer.release(e);
+		}
+		assertNull(buffer.peek());
+	}
+
+	/** Every message from many threads must either arrive exactly once, in order for each
+	 * thread, or be counted as dropped. */
+	public void testConcurrentProducers() throws InterruptedException {
+		final LogRingBuffer buffer = new LogRingBuffer(64);
+		final int threads = 8;
+		final int messages = 20000;
+		Thread[] producers = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			final String name = Integer.toString(i);
+			producers[i] = new Thread(name) {
+				@Override
+				public void run() {
+					for(int j=0;j<messages;j++)
+						buffer.offer(null, null, Integer.toString(j), null, LogLevel.MINOR);
+				}
+			};
+			producers[i].start();
+		}
+		int[] last = new int[threads];
+		for(int i=0;i<threads;i++) last[i] = -1;
+		long received = 0;
+		while(true) {
+			LogRingBuffer.LogEvent e = buffer.peek();
+			if(e == null) {
+				boolean alive = false;
+				for(Thread t : producers)
+					if(t.isAlive()) alive = true;
+				if(!alive && buffer.peek() == null) break;
+				Thread.yield();
+				continue;
+			}
+			int thread = Integer.parseInt(e.threadName);
+			int seq = Integer.parseInt(e.message);
+			assertTrue(seq > last[thread]);
+			last[thread] = seq;
+			received++;
+			buffer.release(e);
+		}
+		assertEquals((long)threads * messages, received + buffer.dropped());
+	}
+
+	/** Consumes lines as fast as possible. */
+	private static class CountingOutputStream extends java.io.OutputStream {
+		final AtomicLong bytes = new AtomicLong();
+		@Override
+		public void write(int b) {
+			bytes.incrementAndGet();
+		}
+		@Override
+		public void write(byte[] buf, int offset, int length) {
+			bytes.addAndGet(length);
+		}
+	}
+
+	/** Messages per second logged by a number of threads through a FileLoggerHook. If
+	 * globalLock, every call locks the same monitor, as the Logger statics used to. */
+	private static long messagesPerSecond(int threads, final boolean globalLock) throws Exception {
+		final FileLoggerHook hook = new FileLoggerHook(new CountingOutputStream(), "d (c, t, p): m", "MMM dd, yyyy HH:mm:ss:SSS", LogLevel.MINOR);
+		hook.setMaxListBytes(10 * 1024 * 1024);
+		hook.start();
+		final int messages = 200 * 1000 / threads;
+		Thread[] loggers = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			loggers[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<messages;j++) {
+						if(globalLock) {
+							synchronized(LogRingBufferTest.class) {
+								hook.log(this, LogRingBufferTest.class, "Message number "+j, null, LogLevel.MINOR);
+							}
+						} else
+							hook.log(this, LogRingBufferTest.class, "Message number "+j, null, LogLevel.MINOR);
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : loggers)
+			t.start();
+		for(Thread t : loggers)
+			t.join();
+		long time = System.nanoTime() - start;
+		hook.close();
+		return (long)messages * threads * 1000 * 1000 * 1000 / time;
+	}
+
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		for(int round=0;round<3;round++) {
+			for(int threads : new int[] { 1, 32 }) {
+				long locked = messagesPerSecond(threads, true);
+				long unlocked = messagesPerSecond(threads, false);
+				System.out.println(threads + " threads: " + locked + " messages/sec with a global lock, " +
+						unlocked + " messages/sec without");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+package freenet.support;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.HasCooldownCacheItem;
+import freenet.support.RemoveRandom.RemoveRandomReturn;
+
+public class RandomGrabArrayTest extends TestCase {
+
+	/** A transient item whose cooldown time is set by the test. */
+	private static class Item implements RandomGrabArrayItem {
+
+		long cooldownTime;
+		int checks;
+		private RandomGrabArray parent;
+
+		Item(long cooldownTime) {
+			this.cooldownTime = cooldownTime;
+		}
+
+		@Override
+		public long getCooldownTime(ObjectContainer container, ClientContext context, long now) {
+			checks++;
+			return cooldownTime;
+		}
+
+		@Override
+		public boolean knowsParentGrabArray() {
+			return true;
+		}
+
+		@Override
+		public void setParentGrabArray(RandomGrabArray parent, ObjectContainer container) {
+			this.parent = parent;
+		}
+
+		@Override
+		public RandomGrabArray getParentGrabArray() {
+			return parent;
+		}
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public boolean isStorageBroken(ObjectContainer container) {
+			return false;
+		}
+
+		@Override
+		public void removeFrom(ObjectContainer container, ClientContext context) {
+			// Do nothing.
+		}
+
+	}
+
+	private static final RandomGrabArrayItemExclusionList NO_EXCLUSIONS = new RandomGrabArrayItemExclusionList() {
+
+		@Override
+		public long excludeSummarily(HasCooldownCacheItem item, HasCooldownCacheItem parent, ObjectContainer container, boolean persistent, long now) {
+			return 0;
+		}
+
+		@Override
+		public long exclude(RandomGrabArrayItem item, ObjectContainer container, ClientContext context, long now) {
+			return 0;
+		}
+
+	};
+
+	private ClientContext context;
+	private long now;
+
+	@Override
+	protected void setUp() {
+		context = new ClientContext(0, 0, null, null, null, null, null, null, null, null, null, null, null,
+				new Random(1234), null, null, null, null, null, null);
+		now = System.currentTimeMillis();
+	}
+
+	private RemoveRandomReturn removeRandom(RandomGrabArray array) {
+		return array.removeRandom(NO_EXCLUSIONS, null, context, now);
+	}
+
+	/** An excluded item stays excluded when remove() moves it into another slot. */
+	public void testExcludedItemMoved() {
+		RandomGrabArray array = new RandomGrabArray(false, null, null);
+		Item first = new Item(now + 1000);
+		Item middle = new Item(now + 2000);
+		Item last = new Item(now + 5000);
+		array.add(first, null, null);
+		array.add(middle, null, null);
+		array.add(last, null, null);
+		assertEquals(now + 1000, removeRandom(array).wakeupTime);
+		assertEquals(1, last.checks);
+
+		// The last item is moved into slot 0.
+		array.remove(first, null, context);
+		assertEquals(2, array.size());
+		assertSame(last, array.get(0, null));
+		middle.cooldownTime = 0;
+		array.clearExcluded(middle);
+		for(int i=0;i<10;i++)
+			assertSame(middle, removeRandom(array).item);
+		assertEquals(1, last.checks);
+
+		// The wake time comes from the moved item.
+		middle.cooldownTime = now + 8000;
+		array.clearExcluded(middle);
+		RemoveRandomReturn ret = removeRandom(array);
+		assertNull(ret.item);
+		assertEquals(now + 5000, ret.wakeupTime);
+		assertEquals(1, last.checks);
+	}
+
+	/** clearExcluded() makes an item eligible again before its exclusion ends. */
+	public void testClearExcluded() {
+		RandomGrabArray array = new RandomGrabArray(false, null, null);
+		Item cleared = new Item(now + 1000);
+		array.add(cleared, null, null);
+		Item[] others = new Item[10];
+		for(int i=0;i<others.length;i++) {
+			others[i] = new Item(now + 5000);
+			array.add(others[i], null, null);
+		}
+		assertEquals(now + 1000, removeRandom(array).wakeupTime);
+
+		cleared.cooldownTime = 0;
+		array.clearExcluded(cleared);
+		assertSame(cleared, removeRandom(array).item);
+		// Only the cleared item was back in the pool.
+		for(Item item : others)
+			assertEquals(1, item.checks);
+	}
+
+	/** If the array changes behind our back, as when the database is rolled back, the
+	 * exclusions are forgotten and every item is eligible again. */
+	public void testResyncAfterRollback() throws Exception {
+		RandomGrabArray array = new RandomGrabArray(false, null, null);
+		Item excluded = new Item(now + 5000);
+		Item fetchable = new Item(0);
+		array.add(excluded, null, null);
+		array.add(fetchable, null, null);
+		for(int i=0;i<10;i++)
+			assertSame(fetchable, removeRandom(array).item);
+
+		// Simulate a rollback to a state with an item added, without going through add().
+		Item restored = new Item(0);
+		Field indexField = RandomGrabArray.class.getDeclaredField("index");
+		indexField.setAccessible(true);
+		Field blocksField = RandomGrabArray.class.getDeclaredField("blocks");
+		blocksField.setAccessible(true);
+		Object block = ((Object[]) blocksField.get(array))[0];
+		Field reqsField = block.getClass().getDeclaredField("reqs");
+		reqsField.setAccessible(true);
+		((RandomGrabArrayItem[]) reqsField.get(block))[2] = restored;
+		indexField.setInt(array, 3);
+		restored.setParentGrabArray(array, null);
+
+		boolean found = false;
+		for(int i=0;i<50 && !found;i++)
+			found = removeRandom(array).item == restored;
+		assertTrue(found);
+	}
+
+	/** The wake time returned ignores queue entries for items which have been included and
+	 * excluded again since. */
+	public void testNextWakeTimeSkipsStale() {
+		RandomGrabArray array = new RandomGrabArray(false, null, null);
+		Item early = new Item(now + 1000);
+		Item later = new Item(now + 5000);
+		array.add(early, null, null);
+		array.add(later, null, null);
+		assertEquals(now + 1000, removeRandom(array).wakeupTime);
+
+		// Included, then excluded until after the other item.
+		early.cooldownTime = now + 10000;
+		array.clearExcluded(early);
+		assertEquals(now + 5000, removeRandom(array).wakeupTime);
+		assertEquals(2, early.checks);
+		assertEquals(1, later.checks);
+	}
+
+}
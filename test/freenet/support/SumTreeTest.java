@@ -0,0 +1,84 @@
+package freenet.support;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SumTreeTest extends TestCase {
+
+	public void testFind() {
+		SumTree tree = new SumTree(5);
+		int[] weights = new int[] { 2, 0, 3, 0, 1 };
+		for(int i=0;i<weights.length;i++)
+			tree.set(i, weights[i]);
+		assertEquals(6, tree.total());
+		int[] expected = new int[] { 0, 0, 2, 2, 2, 4 };
+		for(int i=0;i<expected.length;i++)
+			assertEquals(expected[i], tree.find(i));
+		try {
+			tree.find(6);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+
+	public void testSetAndGrow() {
+		SumTree tree = new SumTree(1);
+		Random r = new Random(1234);
+		int[] weights = new int[1000];
+		for(int i=0;i<weights.length;i++) {
+			tree.ensureCapacity(i+1);
+			weights[i] = r.nextInt(3);
+			tree.set(i, weights[i]);
+		}
+		for(int round=0;round<1000;round++) {
+			int i = r.nextInt(weights.length);
+			weights[i] = r.nextInt(3);
+			tree.set(i, weights[i]);
+		}
+		int total = 0;
+		for(int i=0;i<weights.length;i++) {
+			assertEquals(weights[i], tree.get(i));
+			// Every point in this index's range must find it.
+			for(int j=0;j<weights[i];j++)
+				assertEquals(i, tree.find(total + j));
+			total += weights[i];
+		}
+		assertEquals(total, tree.total());
+	}
+
+	public void testFill() {
+		SumTree tree = new SumTree(4);
+		tree.set(3, 5);
+		tree.fill(1, 10);
+		assertEquals(10, tree.total());
+		assertTrue(tree.capacity() >= 10);
+		for(int i=0;i<10;i++)
+			assertEquals(i, tree.find(i));
+		tree.set(0, 0);
+		tree.set(9, 0);
+		assertEquals(8, tree.total());
+		assertEquals(1, tree.find(0));
+		assertEquals(8, tree.find(7));
+	}
+
+	/** Choosing at random should pick each index in proportion to its weight. */
+	public void testDistribution() {
+		SumTree tree = new SumTree(4);
+		tree.set(0, 1);
+		tree.set(1, 0);
+		tree.set(2, 2);
+		tree.set(3, 1);
+		int[] counts = new int[4];
+		Random r = new Random(5678);
+		int samples = 40000;
+		for(int i=0;i<samples;i++)
+			counts[tree.find(r.nextInt(tree.total()))]++;
+		assertEquals(0, counts[1]);
+		assertTrue(Math.abs(counts[0] - samples / 4) < samples / 50);
+		assertTrue(Math.abs(counts[2] - samples / 2) < samples / 50);
+		assertTrue(Math.abs(counts[3] - samples / 4) < samples / 50);
+	}
+
+}
@@ -0,0 +1,189 @@
+package freenet.support;
+
+import java.util.List;
+import java.util.Random;
+
+import freenet.node.FastRunnable;
+import junit.framework.TestCase;
+
+public class TimingWheelTickerTest extends TestCase {
+
+	private Executor realExec;
+
+	private TimingWheelTicker ticker;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		realExec = new PooledExecutor();
+		ticker = new TimingWheelTicker(realExec, 0);
+		ticker.start();
+	}
+
+	private int runCount = 0;
+
+	Runnable simpleRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized(TimingWheelTickerTest.this) {
+				runCount++;
+			}
+		}
+
+	};
+
+	private synchronized int runCount() {
+		return runCount;
+	}
+
+	public void testSimple() throws InterruptedException {
+		assertEquals(0, ticker.queuedJobs());
+		ticker.queueTimedJob(simpleRunnable, 0);
+		Thread.sleep(50);
+		assertEquals(1, runCount());
+		assertEquals(0, ticker.queuedJobs());
+		ticker.queueTimedJob(simpleRunnable, 100);
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(50);
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(250);
+		assertEquals(0, ticker.queuedJobs());
+		assertEquals(2, runCount());
+	}
+
+	public void testDeduping() throws InterruptedException {
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 100, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 150, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(250);
+		assertEquals(1, runCount());
+		assertEquals(0, ticker.queuedJobs());
+		// Now backwards
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 150, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 100, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(250);
+		assertEquals(2, runCount());
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	public void testRemove() throws InterruptedException {
+		ticker.queueTimedJob(simpleRunnable, 100);
+		ticker.queueTimedJob(simpleRunnable, 1000);
+		ticker.queueTimedJob(simpleRunnable, 100000);
+		assertEquals(3, ticker.queuedJobs());
+		ticker.removeQueuedJob(simpleRunnable);
+		assertEquals(0, ticker.queuedJobs());
+		Thread.sleep(200);
+		assertEquals(0, runCount());
+	}
+
+	/** Jobs spread over several rotations of the root level must run on time, in order. */
+	public void testManyJobs() throws InterruptedException {
+		final int count = 2000;
+		final long[] ranAt = new long[count];
+		final long[] due = new long[count];
+		Random r = new Random(1234);
+		for(int i=0;i<count;i++) {
+			final int x = i;
+			long offset = 1 + r.nextInt(1500);
+			due[i] = System.nanoTime() / (1000 * 1000) + offset;
+			ticker.queueTimedJob(new FastRunnable() {
+
+				@Override
+				public void run() {
+					synchronized(ranAt) {
+						ranAt[x] = System.nanoTime() / (1000 * 1000);
+					}
+				}
+
+			}, "test", offset, true, false);
+		}
+		Thread.sleep(2000);
+		assertEquals(0, ticker.queuedJobs());
+		synchronized(ranAt) {
+			for(int i=0;i<count;i++) {
+				assertTrue("Job "+i+" didn't run", ranAt[i] != 0);
+				assertTrue("Job "+i+" ran early", ranAt[i] >= due[i] - 1);
+				assertTrue("Job "+i+" ran "+(ranAt[i] - due[i])+"ms late", ranAt[i] <= due[i] + 100);
+			}
+		}
+	}
+
+	/** Drive the wheel by hand to check jobs on the upper levels cascade down at the right time. */
+	public void testCascade() {
+		TimingWheelTicker wheel = new TimingWheelTicker(realExec, 0);
+		long[] offsets = new long[] { 300, 20 * 1000, 5 * 60 * 1000, 2 * 60 * 60 * 1000, 60L * 24 * 60 * 60 * 1000 };
+		for(long offset : offsets)
+			wheel.queueTimedJob(simpleRunnable, "test", offset, true, false);
+		assertEquals(offsets.length, wheel.queuedJobs());
+		long start = 0;
+		for(int i=0;i<offsets.length;i++) {
+			List<?> early = wheel.expire(offsets[i] - 50);
+			assertNull("Job "+i+" ran early", early);
+			List<?> due = wheel.expire(offsets[i] + 50);
+			assertNotNull("Job "+i+" didn't run", due);
+			assertEquals(1, due.size());
+			assertEquals(offsets.length - i - 1, wheel.queuedJobs());
+			start = offsets[i];
+		}
+		assertNull(wheel.expire(start + 1000));
+	}
+
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		int count = 100 * 1000;
+		Runnable[] jobs = new Runnable[count];
+		long[] offsets = new long[count];
+		Random r = new Random(1234);
+		for(int i=0;i<count;i++) {
+			jobs[i] = new Runnable() {
+
+				@Override
+				public void run() {
+					// Do nothing
+				}
+
+			};
+			// Typical timeouts: from a few seconds to a few minutes.
+			offsets[i] = 10 * 1000 + r.nextInt(10 * 60 * 1000);
+		}
+		for(int round=0;round<5;round++) {
+			PrioritizedTicker sorted = new PrioritizedTicker(realExec, 0);
+			TimingWheelTicker wheel = new TimingWheelTicker(realExec, 0);
+			long t0 = System.nanoTime();
+			for(int i=0;i<count;i++)
+				sorted.queueTimedJob(jobs[i], "test", offsets[i], true, false);
+			long t1 = System.nanoTime();
+			for(int i=0;i<count;i++)
+				sorted.removeQueuedJob(jobs[i]);
+			long t2 = System.nanoTime();
+			for(int i=0;i<count;i++)
+				wheel.queueTimedJob(jobs[i], "test", offsets[i], true, false);
+			long t3 = System.nanoTime();
+			for(int i=0;i<count;i++)
+				wheel.removeQueuedJob(jobs[i]);
+			long t4 = System.nanoTime();
+			System.out.println("Queue/remove " + count + " timers: PrioritizedTicker " +
+					(t1 - t0) / count + "/" + (t2 - t1) / count + " ns, TimingWheelTicker " +
+					(t3 - t2) / count + "/" + (t4 - t3) / count + " ns");
+		}
+		// Expiry: run the wheel through ten minutes with all the timers queued.
+		TimingWheelTicker wheel = new TimingWheelTicker(realExec, 0);
+		for(int i=0;i<count;i++)
+			wheel.queueTimedJob(jobs[i], "test", offsets[i], true, false);
+		long t0 = System.nanoTime();
+		int expired = 0;
+		for(long now = 0; now <= 11 * 60 * 1000; now += 100) {
+			List<?> list = wheel.expire(now);
+			if(list != null) expired += list.size();
+		}
+		long t1 = System.nanoTime();
+		assertEquals(count, expired);
+		System.out.println("Expired " + count + " timers in " + (t1 - t0) / (1000 * 1000) + " ms");
+	}
+
+}
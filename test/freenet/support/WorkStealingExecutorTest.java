@@ -0,0 +1,114 @@
+package freenet.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+import junit.framework.TestCase;
+
+public class WorkStealingExecutorTest extends TestCase {
+
+	private static class Job implements PrioRunnable {
+		final int prio;
+		final CountDownLatch done;
+		final AtomicInteger wrongPriority;
+
+		Job(int prio, CountDownLatch done, AtomicInteger wrongPriority) {
+			this.prio = prio;
+			this.done = done;
+			this.wrongPriority = wrongPriority;
+		}
+
+		@Override
+		public void run() {
+			if(Thread.currentThread().getPriority() != prio)
+				wrongPriority.incrementAndGet();
+			done.countDown();
+		}
+
+		@Override
+		public int getPriority() {
+			return prio;
+		}
+	}
+
+	public void testRunsAllJobsAtTheirPriority() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor();
+		int count = 1000;
+		CountDownLatch done = new CountDownLatch(count);
+		AtomicInteger wrongPriority = new AtomicInteger();
+		for(int i=0;i<count;i++)
+			exec.execute(new Job(NativeThread.MIN_PRIORITY + (i % NativeThread.JAVA_PRIORITY_RANGE), done, wrongPriority), "test");
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, wrongPriority.get());
+		long total = 0;
+		for(long l : exec.jobsRun())
+			total += l;
+		assertEquals(count, total);
+	}
+
+	public void testJobsFromWorkers() throws InterruptedException {
+		final WorkStealingExecutor exec = new WorkStealingExecutor();
+		final int count = 100;
+		final CountDownLatch done = new CountDownLatch(count * count);
+		final AtomicInteger wrongPriority = new AtomicInteger();
+		for(int i=0;i<count;i++) {
+			exec.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					// Goes on this worker's own queue, and is stolen by other workers.
+					for(int j=0;j<count;j++)
+						exec.execute(new Job(NativeThread.NORM_PRIORITY, done, wrongPriority), "test");
+				}
+
+			}, "spawner");
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, wrongPriority.get());
+	}
+
+	public void testBlockingJobsGetNewThreads() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor();
+		int count = 20;
+		final CountDownLatch started = new CountDownLatch(count);
+		final CountDownLatch release = new CountDownLatch(1);
+		for(int i=0;i<count;i++) {
+			exec.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+
+			}, "blocker");
+		}
+		// Every job must be started even though none of them finish.
+		assertTrue(started.await(30, TimeUnit.SECONDS));
+		assertEquals(count, exec.runningThreads()[NativeThread.NORM_PRIORITY - 1]);
+		release.countDown();
+	}
+
+	public void testLimitedThreadsQueueJobs() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor(2);
+		int count = 200;
+		CountDownLatch done = new CountDownLatch(count);
+		AtomicInteger wrongPriority = new AtomicInteger();
+		for(int i=0;i<count;i++)
+			exec.execute(new Job(NativeThread.NORM_PRIORITY, done, wrongPriority), "test");
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		int[] running = exec.runningThreads();
+		int[] waiting = exec.waitingThreads();
+		assertTrue(running[NativeThread.NORM_PRIORITY - 1] + waiting[NativeThread.NORM_PRIORITY - 1] <= 2);
+		assertEquals(count, exec.jobsRun()[NativeThread.NORM_PRIORITY - 1]);
+		assertTrue(exec.averageQueueWait()[NativeThread.NORM_PRIORITY - 1] >= 0.0);
+	}
+
+}
@@ -8,11 +8,14 @@ import java.util.Arrays;
 
 import com.db4o.Db4o;
 import com.db4o.ObjectContainer;
+import com.db4o.ObjectSet;
+import com.db4o.query.Query;
 
 import freenet.client.async.ClientContext;
 import freenet.client.async.DatabaseDisabledException;
 import freenet.client.async.TrivialDBJobRunner;
 import freenet.crypt.DummyRandomSource;
+import freenet.support.BitArray;
 import freenet.support.Executor;
 import freenet.support.PooledExecutor;
 import freenet.support.TrivialTicker;
@@ -263,4 +266,91 @@ public class PersistentBlobTempBucketTest extends TestCase {
 		container.close();
 	}
 
+	/** A commit which doesn't go through NodeClientCore, and so doesn't call postCommit(),
+	 * may include changes to the occupied blocks. After a restart we must not use the bitmap
+	 * file written before those changes. */
+	public void testBitmapFileDirectCommit() throws IOException, DatabaseDisabledException {
+		int blockSize = 1024;
+		File database = File.createTempFile("persistent-blob-test", ".db4o");
+		File store = File.createTempFile("persistent-blob-test", ".blob");
+		database.delete();
+		store.delete();
+		ObjectContainer container =
+			Db4o.openFile(database.getPath());
+		MersenneTwister fastWeakRandom = new MersenneTwister(1234);
+		final Executor exec = new PooledExecutor();
+		TrivialDBJobRunner jobRunner = new TrivialDBJobRunner(container);
+		final TrivialTicker ticker = new TrivialTicker(exec);
+		ClientContext context = new ClientContext(-1, -1, jobRunner, null, exec, 
+				null, null, 
+				null, null, null, null,
+				null, new DummyRandomSource(12345),
+				fastWeakRandom, ticker, 
+				null, null, null, null, null);
+		jobRunner.start(exec, context);
+		PersistentBlobTempBucketFactory factory = new PersistentBlobTempBucketFactory(blockSize, -1, store);
+		container.store(factory);
+		factory.onInit(container, jobRunner, fastWeakRandom, store, blockSize, ticker);
+		
+		byte[] buf = new byte[blockSize];
+		for(int i=0;i<2;i++) {
+			fastWeakRandom.nextBytes(buf);
+			Bucket bucket = factory.makeBucket();
+			OutputStream os = bucket.getOutputStream();
+			os.write(buf);
+			os.close();
+			bucket.storeTo(container);
+			if(i == 0) {
+				container.commit();
+				// Writes the bitmap file.
+				factory.postCommit();
+				assertTrue(new File(store.getPath()+".bitmap").exists());
+			}
+		}
+		// Not through NodeClientCore, so no postCommit().
+		container.commit();
+		assertEquals(1, factory.lastOccupiedBlock());
+		container.close();
+		
+		// Restart.
+		container = Db4o.openFile(database.getPath());
+		jobRunner = new TrivialDBJobRunner(container);
+		context = new ClientContext(-1, -1, jobRunner, null, exec, 
+				null, null, 
+				null, null, null, null,
+				null, new DummyRandomSource(12345),
+				fastWeakRandom, ticker, 
+				null, null, null, null, null);
+		jobRunner.start(exec, context);
+		Query query = container.query();
+		query.constrain(PersistentBlobTempBucketFactory.class);
+		ObjectSet<PersistentBlobTempBucketFactory> results = query.execute();
+		assertTrue(results.hasNext());
+		factory = results.next();
+		factory.onInit(container, jobRunner, fastWeakRandom, store, blockSize, ticker);
+		assertEquals(1, factory.lastOccupiedBlock());
+		
+		container.close();
+	}
+	
+	public void testBitmapFile() throws IOException {
+		File file = File.createTempFile("persistent-blob-test", ".bitmap");
+		file.delete();
+		assertNull(PersistentBlobTempBucketFactory.readBitmap(file, 0, 100));
+		BitArray bitmap = new BitArray(100);
+		bitmap.setBit(0, true);
+		bitmap.setBit(37, true);
+		bitmap.setBit(99, true);
+		PersistentBlobTempBucketFactory.writeBitmap(file, 5, bitmap);
+		assertEquals(bitmap, PersistentBlobTempBucketFactory.readBitmap(file, 5, 100));
+		// Written before the database changed.
+		assertNull(PersistentBlobTempBucketFactory.readBitmap(file, 6, 100));
+		// The blob file has been extended or shrunk since.
+		assertNull(PersistentBlobTempBucketFactory.readBitmap(file, 5, 132));
+		bitmap.setBit(37, false);
+		PersistentBlobTempBucketFactory.writeBitmap(file, 6, bitmap);
+		assertEquals(bitmap, PersistentBlobTempBucketFactory.readBitmap(file, 6, 100));
+		file.delete();
+	}
+
 }